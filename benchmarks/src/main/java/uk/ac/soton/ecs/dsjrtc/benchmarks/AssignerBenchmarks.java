@@ -0,0 +1,114 @@
+package uk.ac.soton.ecs.dsjrtc.benchmarks;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openimaj.image.FImage;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import org.openimaj.ml.clustering.assignment.hard.ExactFloatAssigner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.soton.ecs.dsjrtc.lib.BlockedCentroidAssigner;
+import uk.ac.soton.ecs.dsjrtc.run2.DensePatches;
+import uk.ac.soton.ecs.dsjrtc.run2.PatchesFeature;
+
+/**
+ * Throughput of visual word assignment with a vocabulary of the size of the run 2 vocabulary,
+ * comparing OpenIMAJ's exact assigner with the {@link BlockedCentroidAssigner}. Each invocation
+ * assigns a fixed number of dense patches of synthetic images and counts as one operation per
+ * patch, so results are in patches per second. The exact assigner takes the patches as rows, the
+ * blocked assigner takes them packed as the extractors hold them.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AssignerBenchmarks {
+  /** Patches assigned per invocation */
+  private static final int PATCHES = 4096;
+  /** Vocabulary size of the run 2 classifier */
+  private static final int CLUSTERS = 500;
+
+  /** Assigner to benchmark */
+  @Param({"ExactFloatAssigner", "BlockedCentroidAssigner"})
+  public String assignerType;
+
+  private ExactFloatAssigner exact;
+  private BlockedCentroidAssigner blocked;
+  /** Patches, one per row */
+  private float[][] rows;
+  /** Patches packed together, patch i occupies [i * dims, (i + 1) * dims) */
+  private float[] packed;
+  private int[] words;
+
+  /**
+   * Extract the patches, create a random vocabulary and the assigner.
+   */
+  @Setup
+  public void setup() {
+    final PatchesFeature patchesFeature = new PatchesFeature();
+    final int dims = patchesFeature.getWindow().width * patchesFeature.getWindow().height;
+    packed = new float[PATCHES * dims];
+    rows = new float[PATCHES][dims];
+    int n = 0;
+    final List<FImage> images = SyntheticImages.createImages(0, 8);
+    for (int i = 0; n < PATCHES; i++) {
+      final DensePatches patches = patchesFeature.extractDense(images.get(i % images.size()));
+      final int count = Math.min(patches.getCount(), PATCHES - n);
+      System.arraycopy(patches.getData(), 0, packed, n * dims, count * dims);
+      n += count;
+    }
+    for (int i = 0; i < PATCHES; i++) {
+      System.arraycopy(packed, i * dims, rows[i], 0, dims);
+    }
+    words = new int[PATCHES];
+
+    final Random random = new Random(1);
+    final FloatCentroidsResult vocabulary = new FloatCentroidsResult();
+    vocabulary.centroids = new float[CLUSTERS][dims];
+    for (float[] centroid : vocabulary.centroids) {
+      for (int d = 0; d < dims; d++) {
+        centroid[d] = (float) random.nextGaussian() * 0.1f;
+      }
+    }
+    switch (assignerType) {
+      case "ExactFloatAssigner":
+        exact = new ExactFloatAssigner(vocabulary);
+        break;
+      case "BlockedCentroidAssigner":
+        blocked = new BlockedCentroidAssigner(vocabulary);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown assigner: " + assignerType);
+    }
+  }
+
+  /**
+   * @return Visual word of each patch
+   */
+  @Benchmark
+  @OperationsPerInvocation(PATCHES)
+  public int[] assign() {
+    if (blocked != null) {
+      blocked.assign(packed, 0, PATCHES, words);
+      return words;
+    }
+    return exact.assign(rows);
+  }
+
+}
@@ -0,0 +1,40 @@
+package uk.ac.soton.ecs.dsjrtc.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler enabled, so every result is reported with its
+ * allocation rate (gc.alloc.rate.norm is the bytes allocated per operation). Standard JMH command
+ * line options are accepted, e.g. a benchmark name regular expression to run a subset, or
+ * {@code -p classifierType=TinyImageClassifier}.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class BenchmarkRunner {
+
+  /**
+   * Main method for the benchmarks.
+   *
+   * @param args JMH command line options
+   * @throws CommandLineOptionException If the options cannot be parsed
+   * @throws RunnerException If a benchmark fails
+   */
+  public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+    final CommandLineOptions commandLine = new CommandLineOptions(args);
+    final OptionsBuilder builder = new OptionsBuilder();
+    builder.parent(commandLine).addProfiler(GCProfiler.class);
+    if (commandLine.getIncludes().isEmpty()) {
+      builder.include(BenchmarkRunner.class.getPackage().getName() + ".*");
+    }
+    final Options options = builder.build();
+    new Runner(options).run();
+  }
+
+}
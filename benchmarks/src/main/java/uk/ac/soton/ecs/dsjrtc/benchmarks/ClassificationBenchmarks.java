@@ -0,0 +1,108 @@
+package uk.ac.soton.ecs.dsjrtc.benchmarks;
+
+import java.awt.Dimension;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.image.FImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.soton.ecs.dsjrtc.lib.TrainableClassifier;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageClassifier;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageFeature;
+import uk.ac.soton.ecs.dsjrtc.run2.LinearBOVWClassifier;
+import uk.ac.soton.ecs.dsjrtc.run3.Network;
+import uk.ac.soton.ecs.dsjrtc.run3.TensorFlowCNNWrapper;
+
+/**
+ * Benchmarks of single and batch classification for the classifier of each run, with the same
+ * configuration as the test application. Classifiers are trained once per trial on a synthetic
+ * dataset of the size of the scene training set; the CNN is given random weights rather than
+ * trained, which does not change its cost. Batch scores are per image, so the two modes can be
+ * compared directly.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassificationBenchmarks {
+  private static final int CLASSES = 15;
+  private static final int TRAINING_PER_CLASS = 75;
+  private static final int BATCH = 64;
+
+  /** Classifier to benchmark */
+  @Param({"TinyImageClassifier", "LinearBOVWClassifier", "TensorFlowCNNWrapper"})
+  public String classifierType;
+
+  private TrainableClassifier<String, FImage> classifier;
+  private List<FImage> images;
+  private int next = 0;
+
+  /**
+   * Create and train the classifier and create the images to classify.
+   */
+  @Setup
+  public void setup() {
+    switch (classifierType) {
+      case "TinyImageClassifier":
+        classifier = new TinyImageClassifier(20, new TinyImageFeature(new Dimension(16, 16), true));
+        classifier.train(SyntheticImages.createDataset(0, CLASSES, TRAINING_PER_CLASS));
+        break;
+      case "LinearBOVWClassifier":
+        classifier = new LinearBOVWClassifier();
+        classifier.train(SyntheticImages.createDataset(0, CLASSES, TRAINING_PER_CLASS));
+        break;
+      case "TensorFlowCNNWrapper":
+        final Network network =
+            TensorFlowCNNWrapper.createDefaultNetwork(TensorFlowCNNWrapper.DEFAULT_INPUT_SIZE,
+                CLASSES);
+        network.initialise(new Random(0));
+        final String[] classes = new String[CLASSES];
+        for (int c = 0; c < CLASSES; c++) {
+          classes[c] = "class" + c;
+        }
+        classifier =
+            new TensorFlowCNNWrapper(network, classes, TensorFlowCNNWrapper.DEFAULT_THREADS);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown classifier: " + classifierType);
+    }
+    images = SyntheticImages.createImages(1, BATCH);
+  }
+
+  /**
+   * @return Result of classifying one image
+   */
+  @Benchmark
+  public ClassificationResult<String> classifySingle() {
+    final FImage img = images.get(next);
+    next = (next + 1) % BATCH;
+    return classifier.classify(img);
+  }
+
+  /**
+   * @return Results of classifying a batch of images, scored per image
+   */
+  @Benchmark
+  @OperationsPerInvocation(BATCH)
+  public List<ClassificationResult<String>> classifyBatch() {
+    return classifier.classifyAll(images);
+  }
+
+}
@@ -0,0 +1,121 @@
+package uk.ac.soton.ecs.dsjrtc.benchmarks;
+
+import java.awt.Dimension;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openimaj.image.FImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.soton.ecs.dsjrtc.lib.BlockedCentroidAssigner;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageFeature;
+import uk.ac.soton.ecs.dsjrtc.run2.BOVWExtractor;
+import uk.ac.soton.ecs.dsjrtc.run2.DensePatches;
+import uk.ac.soton.ecs.dsjrtc.run2.PatchesFeature;
+
+/**
+ * Per image benchmarks of feature extraction: dense patch extraction, visual word assignment of
+ * the patches of an image, bag of visual words histograms and tiny image vectors. Buffers are
+ * reused between invocations as the classifiers reuse them, so the allocation rate reported by the
+ * GC profiler is that of the steady state. Each invocation moves to the next of a fixed set of
+ * synthetic images.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureBenchmarks {
+  private static final int IMAGES = 16;
+  /** Vocabulary size of the run 2 classifier */
+  private static final int CLUSTERS = 500;
+
+  private List<FImage> images;
+  private int next = 0;
+  private PatchesFeature patchesFeature;
+  private BlockedCentroidAssigner assigner;
+  private BOVWExtractor extractor;
+  private DensePatches patches;
+  private int[] words;
+  private int[] histogram;
+  private float[] tiny;
+  private final Dimension tinyScale = new Dimension(16, 16);
+
+  /**
+   * Create the images, a random vocabulary and the reused buffers.
+   */
+  @Setup
+  public void setup() {
+    images = SyntheticImages.createImages(0, IMAGES);
+    patchesFeature = new PatchesFeature();
+    final Dimension window = patchesFeature.getWindow();
+    final Random random = new Random(1);
+    final float[][] centroids = new float[CLUSTERS][window.width * window.height];
+    for (float[] centroid : centroids) {
+      for (int d = 0; d < centroid.length; d++) {
+        centroid[d] = (float) random.nextGaussian() * 0.1f;
+      }
+    }
+    assigner = new BlockedCentroidAssigner(centroids);
+    extractor = new BOVWExtractor(patchesFeature, assigner);
+    patches = patchesFeature.extractDense(images.get(0));
+    words = new int[patches.getCount()];
+    histogram = new int[extractor.getLength()];
+    tiny = new float[tinyScale.width * tinyScale.height];
+  }
+
+  private FImage nextImage() {
+    final FImage img = images.get(next);
+    next = (next + 1) % IMAGES;
+    return img;
+  }
+
+  /**
+   * @return Dense normalised patches of an image
+   */
+  @Benchmark
+  public DensePatches patchExtraction() {
+    patches = patchesFeature.extractDense(nextImage(), patches);
+    return patches;
+  }
+
+  /**
+   * @return Visual words of the patches of an image, patches are extracted once up front
+   */
+  @Benchmark
+  public int[] vocabularyAssignment() {
+    assigner.assign(patches.getData(), 0, patches.getCount(), words);
+    return words;
+  }
+
+  /**
+   * @return Spatially pooled bag of visual words histogram of an image
+   */
+  @Benchmark
+  public int[] bovwHistogram() {
+    histogram = extractor.extractHistogram(nextImage(), histogram);
+    return histogram;
+  }
+
+  /**
+   * @return Normalised 16x16 tiny image vector of an image
+   */
+  @Benchmark
+  public float[] tinyImage() {
+    TinyImageFeature.makeTinyImage(nextImage(), tinyScale, true, tiny, 0);
+    return tiny;
+  }
+
+}
@@ -0,0 +1,103 @@
+package uk.ac.soton.ecs.dsjrtc.benchmarks;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openimaj.image.FImage;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.ac.soton.ecs.dsjrtc.lib.MiniBatchFloatKMeans;
+import uk.ac.soton.ecs.dsjrtc.lib.ParallelFloatKMeans;
+import uk.ac.soton.ecs.dsjrtc.run2.DensePatches;
+import uk.ac.soton.ecs.dsjrtc.run2.PatchesFeature;
+
+/**
+ * Benchmarks of k-means iterations at the size of the run 2 vocabulary: a single full batch
+ * iteration (with its random initialisation) over the patches of a sample of images, and a single
+ * mini-batch update. Patches are extracted from synthetic images once per trial.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KMeansBenchmarks {
+  private static final int IMAGES = 10;
+  /** Vocabulary size of the run 2 classifier */
+  private static final int CLUSTERS = 500;
+  /** Vectors in each mini-batch, as used by the vocabulary builder */
+  private static final int BATCH_SIZE = 10000;
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+  private float[] data;
+  private int n;
+  private int dims;
+  private float[] batch;
+  private ParallelFloatKMeans fullBatch;
+  private MiniBatchFloatKMeans miniBatch;
+
+  /**
+   * Extract the patches to cluster and initialise the mini-batch centroids.
+   */
+  @Setup
+  public void setup() {
+    final PatchesFeature patchesFeature = new PatchesFeature();
+    final List<FImage> images = SyntheticImages.createImages(0, IMAGES);
+    dims = patchesFeature.getWindow().width * patchesFeature.getWindow().height;
+    final DensePatches first = patchesFeature.extractDense(images.get(0));
+    data = new float[IMAGES * first.getCount() * dims];
+    n = 0;
+    for (FImage img : images) {
+      final DensePatches patches = patchesFeature.extractDense(img);
+      System.arraycopy(patches.getData(), 0, data, n * dims, patches.getCount() * dims);
+      n += patches.getCount();
+    }
+    batch = new float[BATCH_SIZE * dims];
+    System.arraycopy(data, 0, batch, 0, batch.length);
+
+    fullBatch = new ParallelFloatKMeans(CLUSTERS, 1, THREADS);
+    fullBatch.seed(0);
+    miniBatch = new MiniBatchFloatKMeans(CLUSTERS, dims, false, THREADS);
+    miniBatch.seed(0);
+    miniBatch.update(batch, BATCH_SIZE);
+  }
+
+  /**
+   * Stop the mini-batch clusterer's threads.
+   */
+  @TearDown
+  public void tearDown() {
+    miniBatch.shutdown();
+  }
+
+  /**
+   * @return Centroids after one full batch iteration
+   */
+  @Benchmark
+  public FloatCentroidsResult fullBatchIteration() {
+    return fullBatch.cluster(data, n, dims);
+  }
+
+  /**
+   * @return Whether the clusterer is initialised, after one mini-batch update
+   */
+  @Benchmark
+  public boolean miniBatchUpdate() {
+    miniBatch.update(batch, BATCH_SIZE);
+    return miniBatch.isInitialised();
+  }
+
+}
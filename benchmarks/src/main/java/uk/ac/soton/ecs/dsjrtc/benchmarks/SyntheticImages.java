@@ -0,0 +1,105 @@
+package uk.ac.soton.ecs.dsjrtc.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.image.FImage;
+
+/**
+ * Synthetic greyscale images of the size of the scene dataset images, so benchmarks need no
+ * dataset. Each image is a sum of a few random gradients and ripples with added noise, giving
+ * patches with some structure (a uniform noise image makes every patch equally far from every
+ * visual word). Images are generated from a seed, so every benchmark run sees the same images.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class SyntheticImages {
+  /** Width of a typical scene dataset image */
+  public static final int WIDTH = 300;
+  /** Height of a typical scene dataset image */
+  public static final int HEIGHT = 250;
+  private static final int WAVES = 4;
+  private static final float NOISE = 0.1f;
+
+  /**
+   * This class should not be instantiated.
+   */
+  private SyntheticImages() {}
+
+  /**
+   * Create a synthetic image with values in [0, 1].
+   *
+   * @param random Source of randomness
+   * @param width Width of the image
+   * @param height Height of the image
+   * @return The image
+   */
+  public static FImage createImage(Random random, int width, int height) {
+    final FImage img = new FImage(width, height);
+    final float[] fx = new float[WAVES];
+    final float[] fy = new float[WAVES];
+    final float[] phase = new float[WAVES];
+    for (int w = 0; w < WAVES; w++) {
+      fx[w] = (float) (random.nextGaussian() * 0.05);
+      fy[w] = (float) (random.nextGaussian() * 0.05);
+      phase[w] = (float) (random.nextFloat() * 2 * Math.PI);
+    }
+    for (int y = 0; y < height; y++) {
+      final float[] row = img.pixels[y];
+      for (int x = 0; x < width; x++) {
+        float v = 0;
+        for (int w = 0; w < WAVES; w++) {
+          v += (float) Math.sin(fx[w] * x + fy[w] * y + phase[w]);
+        }
+        v = 0.5f + v / (2 * WAVES) + NOISE * (random.nextFloat() - 0.5f);
+        row[x] = Math.min(1, Math.max(0, v));
+      }
+    }
+    return img;
+  }
+
+  /**
+   * Create a list of synthetic images of the typical scene dataset size.
+   *
+   * @param seed Seed of the images
+   * @param count Number of images
+   * @return The images
+   */
+  public static List<FImage> createImages(long seed, int count) {
+    final Random random = new Random(seed);
+    final List<FImage> images = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      images.add(createImage(random, WIDTH, HEIGHT));
+    }
+    return images;
+  }
+
+  /**
+   * Create a grouped dataset of synthetic images of the typical scene dataset size.
+   *
+   * @param seed Seed of the images
+   * @param classes Number of groups
+   * @param perClass Number of images in each group
+   * @return The dataset, groups are named class0, class1, ...
+   */
+  public static GroupedDataset<String, ListDataset<FImage>, FImage> createDataset(long seed,
+      int classes, int perClass) {
+    final Random random = new Random(seed);
+    final MapBackedDataset<String, ListDataset<FImage>, FImage> dataset =
+        new MapBackedDataset<>();
+    for (int c = 0; c < classes; c++) {
+      final List<FImage> images = new ArrayList<>(perClass);
+      for (int i = 0; i < perClass; i++) {
+        images.add(createImage(random, WIDTH, HEIGHT));
+      }
+      dataset.put("class" + c, new ListBackedDataset<>(images));
+    }
+    return dataset;
+  }
+
+}
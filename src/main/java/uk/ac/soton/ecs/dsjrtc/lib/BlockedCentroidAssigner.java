@@ -0,0 +1,239 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.util.Arrays;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.util.pair.IntFloatPair;
+
+/**
+ * Exact nearest centroid assigner optimised for assigning many vectors at once. Centroids are held
+ * transposed in a single flat array (dimension d of every centroid is contiguous) along with their
+ * squared norms, so that distances are calculated as ||x||^2 + ||c||^2 - 2 x.c.<br>
+ *
+ * Vectors are processed in blocks of {@link #BLOCK_SIZE}: the dot products of a whole block with
+ * every centroid are accumulated one dimension at a time, the innermost loop being a simple
+ * multiply-add over contiguous centroid values that the JIT can auto-vectorise. Each block of
+ * dot products is small enough to stay in cache while it is built. Plain loops are used rather than
+ * the incubating Vector API so the assigner runs on any Java 7+ runtime.<br>
+ *
+ * Instances are immutable and safe to share between threads, scratch space is held per thread.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class BlockedCentroidAssigner implements HardAssigner<float[], float[], IntFloatPair> {
+  /** Number of vectors assigned together */
+  public static final int BLOCK_SIZE = 16;
+
+  /** Number of centroids */
+  private final int k;
+  /** Dimensionality of each centroid */
+  private final int dims;
+  /** Transposed centroids, dimension d of centroid c is at [d * k + c] */
+  private final float[] centroidsT;
+  /** Squared L2 norm of each centroid */
+  private final float[] norms;
+  /** Per thread dot product accumulators for a block */
+  private final ThreadLocal<float[]> scratch;
+
+  /**
+   * Instantiate an assigner for the centroids of a clustering result.
+   *
+   * @param result Clustering result holding the centroids
+   */
+  public BlockedCentroidAssigner(FloatCentroidsResult result) {
+    this(result.centroids);
+  }
+
+  /**
+   * Instantiate an assigner for the given centroids, the centroids are copied.
+   *
+   * @param centroids Centroids to assign to, all must be of the same length
+   */
+  public BlockedCentroidAssigner(float[][] centroids) {
+    if (centroids.length == 0) {
+      throw new IllegalArgumentException("There must be at least one centroid");
+    }
+    this.k = centroids.length;
+    this.dims = centroids[0].length;
+    this.centroidsT = new float[k * dims];
+    this.norms = new float[k];
+    for (int c = 0; c < k; c++) {
+      if (centroids[c].length != dims) {
+        throw new IllegalArgumentException("Centroids must all be the same length");
+      }
+      float norm = 0;
+      for (int d = 0; d < dims; d++) {
+        final float v = centroids[c][d];
+        centroidsT[d * k + c] = v;
+        norm += v * v;
+      }
+      norms[c] = norm;
+    }
+    this.scratch = new ThreadLocal<float[]>() {
+      @Override
+      protected float[] initialValue() {
+        return new float[BLOCK_SIZE * k];
+      }
+    };
+  }
+
+  /**
+   * Assign packed vectors to their nearest centroids.
+   *
+   * @param data Array holding the packed vectors, vector i occupies [offset + i * dims, offset +
+   *        (i + 1) * dims)
+   * @param offset Offset of the first vector in the array
+   * @param n Number of vectors to assign
+   * @param indices Array to fill with the index of each vector's nearest centroid
+   */
+  public void assign(float[] data, int offset, int n, int[] indices) {
+    assignDistance(data, offset, n, indices, null);
+  }
+
+  /**
+   * Assign packed vectors to their nearest centroids, also calculating the squared Euclidean
+   * distance to the centroid.
+   *
+   * @param data Array holding the packed vectors, vector i occupies [offset + i * dims, offset +
+   *        (i + 1) * dims)
+   * @param offset Offset of the first vector in the array
+   * @param n Number of vectors to assign
+   * @param indices Array to fill with the index of each vector's nearest centroid
+   * @param distances Array to fill with each vector's squared distance to its nearest centroid,
+   *        can be null if not required
+   */
+  public void assignDistance(float[] data, int offset, int n, int[] indices, float[] distances) {
+    if (offset < 0 || n < 0 || offset + (long) n * dims > data.length) {
+      throw new IllegalArgumentException("Vectors exceed the bounds of the data array");
+    }
+    if (indices.length < n || (distances != null && distances.length < n)) {
+      throw new IllegalArgumentException("Output arrays are too short");
+    }
+    final float[] dots = scratch.get();
+    for (int start = 0; start < n; start += BLOCK_SIZE) {
+      final int size = Math.min(BLOCK_SIZE, n - start);
+      final int blockOffset = offset + start * dims;
+      dotBlock(data, blockOffset, size, dots);
+      for (int b = 0; b < size; b++) {
+        final int row = b * k;
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < k; c++) {
+          final float distance = norms[c] - 2 * dots[row + c];
+          if (distance < bestDistance) {
+            bestDistance = distance;
+            best = c;
+          }
+        }
+        indices[start + b] = best;
+        if (distances != null) {
+          // Add the vector norm back to give the true squared distance
+          final int vOffset = blockOffset + b * dims;
+          float norm = 0;
+          for (int d = 0; d < dims; d++) {
+            norm += data[vOffset + d] * data[vOffset + d];
+          }
+          distances[start + b] = Math.max(0, bestDistance + norm);
+        }
+      }
+    }
+  }
+
+  /**
+   * Calculate the dot product of every vector in a block with every centroid. Vectors are taken
+   * four at a time so each centroid value loaded is used for four multiply-adds.
+   *
+   * @param data Array holding the packed vectors
+   * @param offset Offset of the first vector of the block
+   * @param size Number of vectors in the block
+   * @param dots Array to fill, the dot product of vector b with centroid c is put at [b * k + c]
+   */
+  private void dotBlock(float[] data, int offset, int size, float[] dots) {
+    Arrays.fill(dots, 0, size * k, 0);
+    final int quads = size - size % 4;
+    for (int d = 0; d < dims; d++) {
+      final int column = d * k;
+      for (int b = 0; b < quads; b += 4) {
+        final int row0 = b * k;
+        final int row1 = row0 + k;
+        final int row2 = row1 + k;
+        final int row3 = row2 + k;
+        final int x0Offset = offset + b * dims + d;
+        final float x0 = data[x0Offset];
+        final float x1 = data[x0Offset + dims];
+        final float x2 = data[x0Offset + 2 * dims];
+        final float x3 = data[x0Offset + 3 * dims];
+        // Contiguous multiply-adds over all centroids
+        for (int c = 0; c < k; c++) {
+          final float v = centroidsT[column + c];
+          dots[row0 + c] += x0 * v;
+          dots[row1 + c] += x1 * v;
+          dots[row2 + c] += x2 * v;
+          dots[row3 + c] += x3 * v;
+        }
+      }
+      for (int b = quads; b < size; b++) {
+        final int row = b * k;
+        final float x = data[offset + b * dims + d];
+        for (int c = 0; c < k; c++) {
+          dots[row + c] += x * centroidsT[column + c];
+        }
+      }
+    }
+  }
+
+  /**
+   * Pack vectors into a single array.
+   *
+   * @param data Vectors to pack, all must match the centroid length
+   * @return Packed vectors
+   */
+  private float[] pack(float[][] data) {
+    final float[] packed = new float[data.length * dims];
+    for (int i = 0; i < data.length; i++) {
+      if (data[i].length != dims) {
+        throw new IllegalArgumentException(String.format(
+            "Vector length %d does not match centroid length %d", data[i].length, dims));
+      }
+      System.arraycopy(data[i], 0, packed, i * dims, dims);
+    }
+    return packed;
+  }
+
+  @Override
+  public int[] assign(float[][] data) {
+    final int[] indices = new int[data.length];
+    assign(pack(data), 0, data.length, indices);
+    return indices;
+  }
+
+  @Override
+  public int assign(float[] data) {
+    return assign(new float[][] {data})[0];
+  }
+
+  @Override
+  public void assignDistance(float[][] data, int[] indices, float[] distances) {
+    assignDistance(pack(data), 0, data.length, indices, distances);
+  }
+
+  @Override
+  public IntFloatPair assignDistance(float[] data) {
+    final int[] indices = new int[1];
+    final float[] distances = new float[1];
+    assignDistance(new float[][] {data}, indices, distances);
+    return new IntFloatPair(indices[0], distances[0]);
+  }
+
+  @Override
+  public int size() {
+    return k;
+  }
+
+  @Override
+  public int numDimensions() {
+    return dims;
+  }
+
+}
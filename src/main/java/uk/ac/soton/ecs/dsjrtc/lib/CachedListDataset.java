@@ -0,0 +1,122 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.util.AbstractList;
+import java.util.Map.Entry;
+import java.util.Random;
+import org.apache.commons.vfs2.FileObject;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.image.FImage;
+
+/**
+ * List dataset of images that caches decoded images from another dataset in an
+ * {@link ImageCache}. Images from a {@link VFSListDataset} are cached under the URI of their file,
+ * so they can be shared between datasets (and runs, if the cache spills to disk); images from any
+ * other dataset are cached under a key prefix and their index.<br>
+ *
+ * Every call to {@link #get(int)} returns a new copy of the image, as with a
+ * {@link VFSListDataset}.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class CachedListDataset extends AbstractList<FImage> implements ListDataset<FImage> {
+  private final ListDataset<FImage> dataset;
+  private final ImageCache cache;
+  private final String keyPrefix;
+  private final Random random;
+
+  /**
+   * Instantiate a caching wrapper around a dataset.
+   *
+   * @param dataset Dataset to read uncached images from
+   * @param cache Cache to use, can be shared between datasets
+   * @param keyPrefix Prefix of the cache keys of a dataset that is not a {@link VFSListDataset},
+   *        must be unique to the dataset within the cache
+   */
+  public CachedListDataset(ListDataset<FImage> dataset, ImageCache cache, String keyPrefix) {
+    if (dataset == null || cache == null) {
+      throw new IllegalArgumentException("Dataset and cache cannot be null");
+    }
+    this.dataset = dataset;
+    this.cache = cache;
+    this.keyPrefix = keyPrefix;
+    this.random = new Random();
+  }
+
+  /**
+   * Wrap every group of a grouped dataset in a caching wrapper.
+   *
+   * @param dataset Dataset to wrap
+   * @param cache Cache to use
+   * @param keyPrefix Prefix of the cache keys of groups that are not {@link VFSListDataset}s, the
+   *        group name is appended to this
+   * @return Grouped dataset of cached groups
+   */
+  public static GroupedDataset<String, ListDataset<FImage>, FImage> wrap(
+      GroupedDataset<String, ? extends ListDataset<FImage>, FImage> dataset, ImageCache cache,
+      String keyPrefix) {
+    final MapBackedDataset<String, ListDataset<FImage>, FImage> wrapped =
+        new MapBackedDataset<>();
+    for (Entry<String, ? extends ListDataset<FImage>> group : dataset.entrySet()) {
+      wrapped.put(group.getKey(), new CachedListDataset(group.getValue(), cache,
+          keyPrefix + group.getKey() + "/"));
+    }
+    return wrapped;
+  }
+
+  /**
+   * @param file File of an image
+   * @return Cache key used for the image
+   */
+  public static String getKey(FileObject file) {
+    return file.getName().getURI();
+  }
+
+  /**
+   * @param index Index of an image
+   * @return Cache key used for the image
+   */
+  private String getKey(int index) {
+    if (dataset instanceof VFSListDataset) {
+      return getKey(((VFSListDataset<FImage>) dataset).getFileObject(index));
+    }
+    return keyPrefix + index;
+  }
+
+  @Override
+  public FImage get(int index) {
+    final String key = getKey(index);
+    FImage img = cache.get(key);
+    if (img == null) {
+      final long start = Metrics.start();
+      img = dataset.get(index);
+      Metrics.stop(Metrics.Stage.DECODE, start);
+      cache.put(key, img);
+    }
+    return img;
+  }
+
+  @Override
+  public FImage getInstance(int index) {
+    return get(index);
+  }
+
+  @Override
+  public FImage getRandomInstance() {
+    return get(random.nextInt(size()));
+  }
+
+  @Override
+  public int numInstances() {
+    return size();
+  }
+
+  @Override
+  public int size() {
+    return dataset.size();
+  }
+
+}
@@ -0,0 +1,439 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.image.FImage;
+import org.openimaj.util.array.SparseIntArray;
+
+/**
+ * Thread safe store of precomputed image features for a single extractor configuration, so that
+ * training passes (and hyper-parameter changes) do not need to extract features again. Images are
+ * identified by a hash of their pixels, so the same image is found however it was loaded.<br>
+ *
+ * Features are held column by column: image keys, row pointers, then packed feature indices and
+ * values, as compressed sparse rows for {@link Kind#SPARSE} stores or as fixed length rows for
+ * {@link Kind#DENSE} stores. Stores are saved with {@link ModelWriter} and reopened with
+ * {@link #open(File, String, Kind, int)}, which discards a file made by a different configuration.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class FeatureStore {
+  /** Model type recorded in store files */
+  private static final String FILE_TYPE = "FeatureStore";
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  /**
+   * Type of features held in a store.
+   */
+  public enum Kind {
+    /** Sparse count histograms */
+    SPARSE,
+    /** Dense float vectors */
+    DENSE
+  }
+
+  private final File file;
+  private final String configKey;
+  private final Kind kind;
+  private final int dims;
+  /** Row of each image key */
+  private final Map<Long, Integer> rows;
+  /** Image key of each row */
+  private long[] keys;
+  /** Start of each row in the index and value columns, row r ends where row r + 1 starts */
+  private int[] rowPointers;
+  /** Feature indices of sparse rows */
+  private int[] indices;
+  /** Feature values of sparse rows */
+  private int[] counts;
+  /** Feature values of dense rows */
+  private float[] values;
+  private int nRows;
+  private int nValues;
+  private boolean modified;
+
+  /**
+   * Instantiate an empty store.
+   *
+   * @param file File the store is saved to
+   * @param configKey Key identifying the extractor configuration
+   * @param kind Type of features held
+   * @param dims Length of each feature
+   */
+  private FeatureStore(File file, String configKey, Kind kind, int dims) {
+    this.file = file;
+    this.configKey = configKey;
+    this.kind = kind;
+    this.dims = dims;
+    this.rows = new HashMap<>();
+    this.keys = new long[16];
+    this.rowPointers = new int[17];
+    this.indices = new int[kind == Kind.SPARSE ? 1024 : 0];
+    this.counts = new int[kind == Kind.SPARSE ? 1024 : 0];
+    this.values = new float[kind == Kind.DENSE ? 16 * dims : 0];
+    this.nRows = 0;
+    this.nValues = 0;
+    this.modified = false;
+  }
+
+  /**
+   * Open the store for an extractor configuration in a directory, loading any features previously
+   * saved for the same configuration.
+   *
+   * @param directory Directory holding stores, is created if it does not exist
+   * @param configKey Key identifying the extractor configuration
+   * @param kind Type of features held
+   * @param dims Length of each feature
+   * @return The opened store
+   * @throws IOException If the directory cannot be created
+   */
+  public static FeatureStore open(File directory, String configKey, Kind kind, int dims)
+      throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException(String.format("Cannot create store directory '%s'", directory));
+    }
+    final File file = new File(directory, toHex(sha1(configKey)) + ".fst");
+    if (file.isFile()) {
+      final FeatureStore store = new FeatureStore(file, configKey, kind, dims);
+      try {
+        store.read(new ModelReader(file, FILE_TYPE));
+        return store;
+      } catch (IOException | RuntimeException e) {
+        // A damaged or mismatched store only costs extraction time
+        Debugger.println(String.format("Ignoring unreadable feature store '%s': %s", file, e));
+      }
+    }
+    return new FeatureStore(file, configKey, kind, dims);
+  }
+
+  /**
+   * Open a store as {@link #open} for a classifier that can carry on without one, reporting a store
+   * that cannot be opened rather than failing.
+   *
+   * @param directory Directory holding stores, null for no store
+   * @param configKey Key identifying the extractor configuration
+   * @param kind Type of features held
+   * @param dims Length of each feature
+   * @return The opened store, null if no directory is set or the store cannot be opened
+   */
+  public static FeatureStore openOrNull(File directory, String configKey, Kind kind, int dims) {
+    if (directory == null) {
+      return null;
+    }
+    try {
+      final FeatureStore store = open(directory, configKey, kind, dims);
+      Debugger.println(String.format("Opened feature store with %d features", store.size()));
+      return store;
+    } catch (IOException e) {
+      System.err.println(String.format("Failed to open feature store: %s", e));
+      return null;
+    }
+  }
+
+  /**
+   * Save a store opened by {@link #openOrNull}, reporting a failure rather than throwing it.
+   *
+   * @param store Store to save, ignored if null
+   */
+  public static void saveOrReport(FeatureStore store) {
+    if (store == null) {
+      return;
+    }
+    try {
+      store.save();
+    } catch (IOException e) {
+      System.err.println(String.format("Failed to save feature store: %s", e));
+    }
+  }
+
+  /**
+   * Calculate the key of an image from its size and pixels.
+   *
+   * @param img Image to identify
+   * @return 64-bit hash of the image
+   */
+  public static long getImageKey(FImage img) {
+    long hash = FNV_OFFSET;
+    hash = (hash ^ img.width) * FNV_PRIME;
+    hash = (hash ^ img.height) * FNV_PRIME;
+    for (int y = 0; y < img.height; y++) {
+      final float[] row = img.pixels[y];
+      for (int x = 0; x < img.width; x++) {
+        hash = (hash ^ Float.floatToIntBits(row[x])) * FNV_PRIME;
+      }
+    }
+    return hash;
+  }
+
+  /**
+   * Calculate a hash of a matrix, suitable for identifying a vocabulary in a configuration key.
+   *
+   * @param matrix Matrix to hash
+   * @return Hex string of a 64-bit hash of the matrix
+   */
+  public static String hashMatrix(float[][] matrix) {
+    long hash = FNV_OFFSET;
+    hash = (hash ^ matrix.length) * FNV_PRIME;
+    for (float[] row : matrix) {
+      hash = (hash ^ row.length) * FNV_PRIME;
+      for (float value : row) {
+        hash = (hash ^ Float.floatToIntBits(value)) * FNV_PRIME;
+      }
+    }
+    return Long.toHexString(hash);
+  }
+
+  /**
+   * @return Key identifying the extractor configuration
+   */
+  public String getConfigKey() {
+    return configKey;
+  }
+
+  /**
+   * @return Number of features held
+   */
+  public synchronized int size() {
+    return nRows;
+  }
+
+  /**
+   * @param imageKey Key of an image
+   * @return Whether a feature is held for the image
+   */
+  public synchronized boolean contains(long imageKey) {
+    return rows.containsKey(imageKey);
+  }
+
+  /**
+   * @param imageKey Key of an image
+   * @return Feature of the image, null if not held
+   */
+  public synchronized SparseIntFV getSparse(long imageKey) {
+    checkKind(Kind.SPARSE);
+    final Integer row = rows.get(imageKey);
+    if (row == null) {
+      return null;
+    }
+    final SparseIntFV fv = new SparseIntFV(dims);
+    final SparseIntArray vector = fv.getVector();
+    for (int i = rowPointers[row]; i < rowPointers[row + 1]; i++) {
+      vector.set(indices[i], counts[i]);
+    }
+    return fv;
+  }
+
+  /**
+   * @param imageKey Key of an image
+   * @return A copy of the feature of the image, null if not held
+   */
+  public synchronized float[] getDense(long imageKey) {
+    checkKind(Kind.DENSE);
+    final Integer row = rows.get(imageKey);
+    if (row == null) {
+      return null;
+    }
+    return Arrays.copyOfRange(values, row * dims, (row + 1) * dims);
+  }
+
+  /**
+   * Store the feature of an image, ignored if a feature is already held for it.
+   *
+   * @param imageKey Key of the image
+   * @param fv Feature to store
+   */
+  public synchronized void putSparse(long imageKey, SparseIntFV fv) {
+    checkKind(Kind.SPARSE);
+    checkLength(fv.length());
+    if (rows.containsKey(imageKey)) {
+      return;
+    }
+    // Sparse entries are not guaranteed to be ordered
+    final SparseIntArray vector = fv.getVector();
+    final int[] rowIndices = new int[vector.used()];
+    int used = 0;
+    for (SparseIntArray.Entry entry : vector.entries()) {
+      if (entry.value != 0) {
+        rowIndices[used++] = entry.index;
+      }
+    }
+    Arrays.sort(rowIndices, 0, used);
+    ensureValueCapacity(nValues + used);
+    for (int i = 0; i < used; i++) {
+      indices[nValues + i] = rowIndices[i];
+      counts[nValues + i] = vector.get(rowIndices[i]);
+    }
+    addRow(imageKey, used);
+  }
+
+  /**
+   * Store the feature of an image, ignored if a feature is already held for it.
+   *
+   * @param imageKey Key of the image
+   * @param feature Feature to store
+   */
+  public synchronized void putDense(long imageKey, float[] feature) {
+    checkKind(Kind.DENSE);
+    checkLength(feature.length);
+    if (rows.containsKey(imageKey)) {
+      return;
+    }
+    ensureValueCapacity(nValues + dims);
+    System.arraycopy(feature, 0, values, nValues, dims);
+    addRow(imageKey, dims);
+  }
+
+  /**
+   * Remove all features from the store, the file is not changed until the next save.
+   */
+  public synchronized void clear() {
+    rows.clear();
+    nRows = 0;
+    nValues = 0;
+    rowPointers[0] = 0;
+    modified = true;
+  }
+
+  /**
+   * Save the store to its file if it has changed since it was opened or last saved.
+   *
+   * @throws IOException If the file cannot be written
+   */
+  public synchronized void save() throws IOException {
+    if (!modified) {
+      return;
+    }
+    try (ModelWriter writer = new ModelWriter(file, FILE_TYPE)) {
+      writer.writeString(configKey);
+      writer.writeInt(kind.ordinal());
+      writer.writeInt(dims);
+      writer.writeInt(nRows);
+      for (int r = 0; r < nRows; r++) {
+        writer.writeLong(keys[r]);
+      }
+      writer.writeInts(rowPointers, 0, nRows + 1);
+      if (kind == Kind.SPARSE) {
+        writer.writeInts(indices, 0, nValues);
+        writer.writeInts(counts, 0, nValues);
+      } else {
+        writer.writeFloats(values, 0, nValues);
+      }
+    }
+    modified = false;
+  }
+
+  /**
+   * Read the columns of a saved store.
+   *
+   * @param reader Reader positioned after the file header
+   * @throws IOException If the file was made by a different configuration
+   */
+  private void read(ModelReader reader) throws IOException {
+    if (!reader.readString().equals(configKey) || reader.readInt() != kind.ordinal()
+        || reader.readInt() != dims) {
+      throw new IOException("Store was made by a different configuration");
+    }
+    nRows = reader.readInt();
+    keys = new long[Math.max(16, nRows)];
+    for (int r = 0; r < nRows; r++) {
+      keys[r] = reader.readLong();
+      rows.put(keys[r], r);
+    }
+    rowPointers = Arrays.copyOf(reader.readInts(), keys.length + 1);
+    if (kind == Kind.SPARSE) {
+      indices = reader.readInts();
+      counts = reader.readInts();
+      nValues = indices.length;
+    } else {
+      values = reader.readFloats();
+      nValues = values.length;
+    }
+  }
+
+  /**
+   * Add a row whose values have already been written after the last row.
+   *
+   * @param imageKey Key of the image
+   * @param length Number of values in the row
+   */
+  private void addRow(long imageKey, int length) {
+    if (nRows == keys.length) {
+      keys = Arrays.copyOf(keys, keys.length * 2);
+      rowPointers = Arrays.copyOf(rowPointers, keys.length + 1);
+    }
+    keys[nRows] = imageKey;
+    rows.put(imageKey, nRows);
+    nValues += length;
+    nRows++;
+    rowPointers[nRows] = nValues;
+    modified = true;
+  }
+
+  /**
+   * @param capacity Number of values the value columns must be able to hold
+   */
+  private void ensureValueCapacity(int capacity) {
+    if (kind == Kind.SPARSE && capacity > indices.length) {
+      final int length = Math.max(capacity, indices.length * 2);
+      indices = Arrays.copyOf(indices, length);
+      counts = Arrays.copyOf(counts, length);
+    } else if (kind == Kind.DENSE && capacity > values.length) {
+      values = Arrays.copyOf(values, Math.max(capacity, values.length * 2));
+    }
+  }
+
+  /**
+   * @param expected Kind of features being accessed
+   */
+  private void checkKind(Kind expected) {
+    if (kind != expected) {
+      throw new IllegalStateException(
+          String.format("Store holds %s features not %s features", kind, expected));
+    }
+  }
+
+  /**
+   * @param length Length of a feature being stored
+   */
+  private void checkLength(int length) {
+    if (length != dims) {
+      throw new IllegalArgumentException(
+          String.format("Feature length %d does not match store length %d", length, dims));
+    }
+  }
+
+  /**
+   * @param value String to hash
+   * @return SHA-1 digest of the string
+   */
+  private static byte[] sha1(String value) {
+    try {
+      return MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform must support SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param bytes Bytes to convert
+   * @return Lower case hex string of the bytes
+   */
+  private static String toHex(byte[] bytes) {
+    final StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+}
@@ -12,15 +12,240 @@ import org.openimaj.image.processing.algorithm.MeanCenter;
 public class FeatureUtilities {
 
 	/**
-	 * Normalise a 1D array of floats. See {@link #normalise(float[][])}.
+	 * Normalise a 1D array of floats without any intermediate allocation. Gives
+	 * the same result as {@link #inplaceNormalise(FImage)} on an image holding
+	 * the array.
 	 * 
-	 * @param img Image to normalise in place
-	 * @return Reference to the input pixels
+	 * @param data Array to normalise in place
+	 * @return Reference to the input array
 	 */
-	public static float[] inplaceNormalise(float[] pixels) {
-		float[][] pixels2D = { pixels };
-		inplaceNormalise(new FImage(pixels2D));
-		return pixels;
+	public static float[] inplaceNormalise(float[] data) {
+		return inplaceNormalise(data, 0, data.length, 1, data.length);
+	}
+
+	/**
+	 * Normalise a range of a 1D array of floats without any intermediate
+	 * allocation. Gives the same result as {@link #inplaceNormalise(FImage)}
+	 * on an image holding just the range.
+	 *
+	 * @param data Array holding the values to normalise in place
+	 * @param offset Index of the first value to normalise
+	 * @param length Number of values to normalise
+	 * @return Reference to the input array
+	 */
+	public static float[] inplaceNormalise(float[] data, int offset, int length) {
+		return inplaceNormalise(data, offset, length, 1, length);
+	}
+
+	/**
+	 * Normalise a strided region of a 1D array of floats (such as a patch of a
+	 * packed image) by scaling to [0, 1] and then mean centring, without any
+	 * intermediate allocation. Gives the same result as
+	 * {@link #inplaceNormalise(FImage)} on an image holding just the region.
+	 *
+	 * @param data Array holding the region to normalise in place
+	 * @param offset Index of the first value of the region
+	 * @param width Number of values in each row of the region
+	 * @param height Number of rows in the region
+	 * @param stride Distance between the start of each row of the region
+	 * @return Reference to the input array
+	 */
+	public static float[] inplaceNormalise(float[] data, int offset, int width, int height,
+			int stride) {
+		checkRegion(data, offset, width, height, stride);
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		for (int r = 0, row = offset; r < height; r++, row += stride) {
+			for (int i = row; i < row + width; i++) {
+				final float v = data[i];
+				if (v < min) {
+					min = v;
+				}
+				if (v > max) {
+					max = v;
+				}
+			}
+		}
+		// Scale to [0, 1] (skipped for constant regions) whilst accumulating the mean
+		float sum = 0;
+		final float range = max - min;
+		for (int r = 0, row = offset; r < height; r++, row += stride) {
+			for (int i = row; i < row + width; i++) {
+				final float v = max != min ? (data[i] - min) / range : data[i];
+				data[i] = v;
+				sum += v;
+			}
+		}
+		return subtract(data, offset, width, height, stride, sum / (width * height));
+	}
+
+	/**
+	 * Scale a 1D array of floats to [0, 1], constant arrays are left unchanged.
+	 * See {@link #inplaceMinMax(float[], int, int, int, int)}.
+	 *
+	 * @param data Array to scale in place
+	 * @return Reference to the input array
+	 */
+	public static float[] inplaceMinMax(float[] data) {
+		return inplaceMinMax(data, 0, data.length, 1, data.length);
+	}
+
+	/**
+	 * Scale a strided region of a 1D array of floats to [0, 1], constant regions
+	 * are left unchanged. Gives the same result as {@link FImage#normalise()} on
+	 * an image holding just the region.
+	 *
+	 * @param data Array holding the region to scale in place
+	 * @param offset Index of the first value of the region
+	 * @param width Number of values in each row of the region
+	 * @param height Number of rows in the region
+	 * @param stride Distance between the start of each row of the region
+	 * @return Reference to the input array
+	 */
+	public static float[] inplaceMinMax(float[] data, int offset, int width, int height,
+			int stride) {
+		checkRegion(data, offset, width, height, stride);
+		float min = Float.MAX_VALUE;
+		float max = -Float.MAX_VALUE;
+		for (int r = 0, row = offset; r < height; r++, row += stride) {
+			for (int i = row; i < row + width; i++) {
+				final float v = data[i];
+				if (v < min) {
+					min = v;
+				}
+				if (v > max) {
+					max = v;
+				}
+			}
+		}
+		if (max != min) {
+			final float range = max - min;
+			for (int r = 0, row = offset; r < height; r++, row += stride) {
+				for (int i = row; i < row + width; i++) {
+					data[i] = (data[i] - min) / range;
+				}
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Subtract the mean from a 1D array of floats. See
+	 * {@link #inplaceMeanCentre(float[], int, int, int, int)}.
+	 *
+	 * @param data Array to centre in place
+	 * @return Reference to the input array
+	 */
+	public static float[] inplaceMeanCentre(float[] data) {
+		return inplaceMeanCentre(data, 0, data.length, 1, data.length);
+	}
+
+	/**
+	 * Subtract the mean from a strided region of a 1D array of floats. Gives the
+	 * same result as {@link MeanCenter} on an image holding just the region.
+	 *
+	 * @param data Array holding the region to centre in place
+	 * @param offset Index of the first value of the region
+	 * @param width Number of values in each row of the region
+	 * @param height Number of rows in the region
+	 * @param stride Distance between the start of each row of the region
+	 * @return Reference to the input array
+	 */
+	public static float[] inplaceMeanCentre(float[] data, int offset, int width, int height,
+			int stride) {
+		checkRegion(data, offset, width, height, stride);
+		float sum = 0;
+		for (int r = 0, row = offset; r < height; r++, row += stride) {
+			for (int i = row; i < row + width; i++) {
+				sum += data[i];
+			}
+		}
+		return subtract(data, offset, width, height, stride, sum / (width * height));
+	}
+
+	/**
+	 * Scale a 1D array of floats to unit L2 norm. See
+	 * {@link #inplaceUnitL2(float[], int, int, int, int)}.
+	 *
+	 * @param data Array to scale in place
+	 * @return Reference to the input array
+	 */
+	public static float[] inplaceUnitL2(float[] data) {
+		return inplaceUnitL2(data, 0, data.length, 1, data.length);
+	}
+
+	/**
+	 * Scale a strided region of a 1D array of floats to unit L2 norm, all zero
+	 * regions are left unchanged. The norm is accumulated in double precision.
+	 *
+	 * @param data Array holding the region to scale in place
+	 * @param offset Index of the first value of the region
+	 * @param width Number of values in each row of the region
+	 * @param height Number of rows in the region
+	 * @param stride Distance between the start of each row of the region
+	 * @return Reference to the input array
+	 */
+	public static float[] inplaceUnitL2(float[] data, int offset, int width, int height,
+			int stride) {
+		checkRegion(data, offset, width, height, stride);
+		double sumSq = 0;
+		for (int r = 0, row = offset; r < height; r++, row += stride) {
+			for (int i = row; i < row + width; i++) {
+				sumSq += (double) data[i] * data[i];
+			}
+		}
+		if (sumSq > 0) {
+			scale(data, offset, width, height, stride, (float) (1 / Math.sqrt(sumSq)));
+		}
+		return data;
+	}
+
+	/**
+	 * Standardise a 1D array of floats to zero mean and unit variance. See
+	 * {@link #inplaceStandardise(float[], int, int, int, int)}.
+	 *
+	 * @param data Array to standardise in place
+	 * @return Reference to the input array
+	 */
+	public static float[] inplaceStandardise(float[] data) {
+		return inplaceStandardise(data, 0, data.length, 1, data.length);
+	}
+
+	/**
+	 * Standardise a strided region of a 1D array of floats to zero mean and
+	 * unit (population) variance, constant regions are only mean centred. The
+	 * mean and variance are found in a single pass (Welford's method) in double
+	 * precision.
+	 *
+	 * @param data Array holding the region to standardise in place
+	 * @param offset Index of the first value of the region
+	 * @param width Number of values in each row of the region
+	 * @param height Number of rows in the region
+	 * @param stride Distance between the start of each row of the region
+	 * @return Reference to the input array
+	 */
+	public static float[] inplaceStandardise(float[] data, int offset, int width, int height,
+			int stride) {
+		checkRegion(data, offset, width, height, stride);
+		double mean = 0;
+		double m2 = 0;
+		int n = 0;
+		for (int r = 0, row = offset; r < height; r++, row += stride) {
+			for (int i = row; i < row + width; i++) {
+				n++;
+				final double delta = data[i] - mean;
+				mean += delta / n;
+				m2 += delta * (data[i] - mean);
+			}
+		}
+		final double std = n > 0 ? Math.sqrt(m2 / n) : 0;
+		final float factor = std > 0 ? (float) (1 / std) : 1;
+		for (int r = 0, row = offset; r < height; r++, row += stride) {
+			for (int i = row; i < row + width; i++) {
+				data[i] = (float) ((data[i] - mean) * factor);
+			}
+		}
+		return data;
 	}
 
 	/**
@@ -47,4 +272,64 @@ public class FeatureUtilities {
 		return img;
 	}
 
+	/**
+	 * Subtract a value from every value of a strided region.
+	 *
+	 * @param data Array holding the region
+	 * @param offset Index of the first value of the region
+	 * @param width Number of values in each row of the region
+	 * @param height Number of rows in the region
+	 * @param stride Distance between the start of each row of the region
+	 * @param value Value to subtract
+	 * @return Reference to the input array
+	 */
+	private static float[] subtract(float[] data, int offset, int width, int height, int stride,
+			float value) {
+		for (int r = 0, row = offset; r < height; r++, row += stride) {
+			for (int i = row; i < row + width; i++) {
+				data[i] -= value;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Multiply every value of a strided region by a factor.
+	 *
+	 * @param data Array holding the region
+	 * @param offset Index of the first value of the region
+	 * @param width Number of values in each row of the region
+	 * @param height Number of rows in the region
+	 * @param stride Distance between the start of each row of the region
+	 * @param factor Factor to multiply by
+	 * @return Reference to the input array
+	 */
+	private static float[] scale(float[] data, int offset, int width, int height, int stride,
+			float factor) {
+		for (int r = 0, row = offset; r < height; r++, row += stride) {
+			for (int i = row; i < row + width; i++) {
+				data[i] *= factor;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Check a strided region lies within an array and is not empty.
+	 *
+	 * @param data Array holding the region
+	 * @param offset Index of the first value of the region
+	 * @param width Number of values in each row of the region
+	 * @param height Number of rows in the region
+	 * @param stride Distance between the start of each row of the region
+	 */
+	private static void checkRegion(float[] data, int offset, int width, int height, int stride) {
+		if (width <= 0 || height <= 0 || offset < 0 || (height > 1 && stride < width)
+				|| offset + (long) (height - 1) * stride + width > data.length) {
+			throw new IllegalArgumentException(String.format(
+					"Region (offset %d, %dx%d, stride %d) is empty or outside array of length %d",
+					offset, width, height, stride, data.length));
+		}
+	}
+
 }
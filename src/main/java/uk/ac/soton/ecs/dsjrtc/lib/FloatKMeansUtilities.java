@@ -0,0 +1,87 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+
+/**
+ * Utilities shared by the k-means implementations that work on packed float centroids, where
+ * centroid c occupies [c * dims, (c + 1) * dims) of a single array.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class FloatKMeansUtilities {
+
+  /**
+   * This class should not be instantiated.
+   */
+  private FloatKMeansUtilities() {}
+
+  /**
+   * @param centroids Packed centroids
+   * @param k Number of centroids
+   * @param dims Dimensionality of each centroid
+   * @return Squared L2 norm of each centroid
+   */
+  public static float[] squaredNorms(float[] centroids, int k, int dims) {
+    final float[] norms = new float[k];
+    for (int c = 0; c < k; c++) {
+      final int offset = c * dims;
+      float sum = 0;
+      for (int d = 0; d < dims; d++) {
+        final float v = centroids[offset + d];
+        sum += v * v;
+      }
+      norms[c] = sum;
+    }
+    return norms;
+  }
+
+  /**
+   * Find the nearest centroid to a vector by Euclidean distance. As the norm of the vector is
+   * constant it is left out, so only ||c||^2 - 2 x.c is compared.
+   *
+   * @param data Array holding the vector
+   * @param offset Offset of the vector in the array
+   * @param centroids Packed centroids
+   * @param norms Squared L2 norm of each centroid
+   * @param k Number of centroids
+   * @param dims Dimensionality of the vector and centroids
+   * @return Index of the nearest centroid
+   */
+  public static int nearest(float[] data, int offset, float[] centroids, float[] norms, int k,
+      int dims) {
+    int best = 0;
+    float bestDistance = Float.MAX_VALUE;
+    for (int c = 0; c < k; c++) {
+      final int cOffset = c * dims;
+      float dot = 0;
+      for (int d = 0; d < dims; d++) {
+        dot += data[offset + d] * centroids[cOffset + d];
+      }
+      final float distance = norms[c] - 2 * dot;
+      if (distance < bestDistance) {
+        bestDistance = distance;
+        best = c;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Convert packed centroids to a centroids result.
+   *
+   * @param centroids Packed centroids
+   * @param k Number of centroids
+   * @param dims Dimensionality of each centroid
+   * @return Centroids result holding a copy of the centroids
+   */
+  public static FloatCentroidsResult toResult(float[] centroids, int k, int dims) {
+    final FloatCentroidsResult result = new FloatCentroidsResult();
+    result.centroids = new float[k][dims];
+    for (int c = 0; c < k; c++) {
+      System.arraycopy(centroids, c * dims, result.centroids[c], 0, dims);
+    }
+    return result;
+  }
+
+}
@@ -0,0 +1,376 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.openimaj.image.FImage;
+
+/**
+ * Thread safe cache of decoded images, so that images read repeatedly do not need to be decoded
+ * every time. Pixels are held off-heap in direct buffers, either as floats or quantised to bytes,
+ * up to a memory limit with the least recently used images evicted first.<br>
+ *
+ * Optionally images can also be spilled to a directory as raw pixel files when they are first
+ * cached. Images evicted from memory (or cached by an earlier run) are then read back from disk
+ * rather than decoded again.<br>
+ *
+ * Byte storage uses a quarter of the memory of float storage. It is lossless for 8-bit greyscale
+ * sources, as their pixels are multiples of 1/255, but the luminance of colour sources is rounded
+ * to the nearest 1/255.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ImageCache {
+  public static final long DEFAULT_MEMORY_LIMIT = 256L * 1024 * 1024;
+  public static final Storage DEFAULT_STORAGE = Storage.FLOAT;
+  /** Magic number at the start of every spill file ("SRIC") */
+  private static final int SPILL_MAGIC = 0x53524943;
+  /** Length of a spill file header: magic, storage, width and height */
+  private static final int SPILL_HEADER_LENGTH = 16;
+
+  /**
+   * Format that pixels are stored in.
+   */
+  public enum Storage {
+    /** Full precision floats, 4 bytes per pixel */
+    FLOAT(4),
+    /** Pixels quantised to [0, 255], 1 byte per pixel */
+    BYTE(1);
+
+    private final int bytesPerPixel;
+
+    Storage(int bytesPerPixel) {
+      this.bytesPerPixel = bytesPerPixel;
+    }
+  }
+
+  private final long memoryLimit;
+  private final Storage storage;
+  private final File spillDirectory;
+  /** Cached images in access order, least recently used first */
+  private final LinkedHashMap<String, Entry> entries;
+  private long memoryUsed;
+  private long hits;
+  private long spillHits;
+  private long misses;
+
+  /**
+   * Instantiate an in-memory cache with the class default memory limit and storage.
+   */
+  public ImageCache() {
+    this(DEFAULT_MEMORY_LIMIT);
+  }
+
+  /**
+   * Instantiate an in-memory cache with the class default storage.
+   *
+   * @param memoryLimit Maximum number of bytes of pixels to hold in memory
+   */
+  public ImageCache(long memoryLimit) {
+    this(memoryLimit, DEFAULT_STORAGE, null);
+  }
+
+  /**
+   * Instantiate a cache.
+   *
+   * @param memoryLimit Maximum number of bytes of pixels to hold in memory
+   * @param storage Format to store pixels in
+   * @param spillDirectory Directory to spill images to, no spilling if null
+   */
+  public ImageCache(long memoryLimit, Storage storage, File spillDirectory) {
+    if (memoryLimit < 0) {
+      throw new IllegalArgumentException("Memory limit cannot be negative");
+    }
+    if (storage == null) {
+      throw new IllegalArgumentException("Storage cannot be null");
+    }
+    if (spillDirectory != null && !spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+      throw new IllegalArgumentException(
+          String.format("Cannot create spill directory '%s'", spillDirectory));
+    }
+    this.memoryLimit = memoryLimit;
+    this.storage = storage;
+    this.spillDirectory = spillDirectory;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Get a cached image, looking in memory then in the spill directory.
+   *
+   * @param key Key the image was cached under
+   * @return A new copy of the cached image, null if not cached
+   */
+  public FImage get(String key) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry != null) {
+        hits++;
+      }
+    }
+    if (entry == null && spillDirectory != null) {
+      entry = readSpill(key);
+      if (entry != null) {
+        synchronized (this) {
+          spillHits++;
+          insert(key, entry);
+        }
+      }
+    }
+    if (entry == null) {
+      synchronized (this) {
+        misses++;
+      }
+      return null;
+    }
+    // Buffers are never written after creation, so can be read outside the lock
+    return decode(entry);
+  }
+
+  /**
+   * Cache an image, spilling it to disk if a spill directory is set.
+   *
+   * @param key Key to cache the image under
+   * @param img Image to cache, is not modified
+   */
+  public void put(String key, FImage img) {
+    final Entry entry = encode(img);
+    if (spillDirectory != null) {
+      writeSpill(key, entry);
+    }
+    synchronized (this) {
+      insert(key, entry);
+    }
+  }
+
+  /**
+   * Remove all images from memory, spilled images are kept.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    memoryUsed = 0;
+  }
+
+  /**
+   * @return Number of images held in memory
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * @return Number of bytes of pixels held in memory
+   */
+  public synchronized long getMemoryUsed() {
+    return memoryUsed;
+  }
+
+  /**
+   * @return Number of lookups found in memory
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return Number of lookups found in the spill directory
+   */
+  public synchronized long getSpillHits() {
+    return spillHits;
+  }
+
+  /**
+   * @return Number of lookups not found
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Add an entry to memory, evicting the least recently used entries to stay under the limit.
+   * Entries larger than the limit are not held. Must be called holding the lock.
+   *
+   * @param key Key of the entry
+   * @param entry Entry to add
+   */
+  private void insert(String key, Entry entry) {
+    final long bytes = entry.pixels.capacity();
+    if (bytes > memoryLimit) {
+      return;
+    }
+    final Entry previous = entries.put(key, entry);
+    if (previous != null) {
+      memoryUsed -= previous.pixels.capacity();
+    }
+    memoryUsed += bytes;
+    final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (memoryUsed > memoryLimit && it.hasNext()) {
+      final Entry eldest = it.next().getValue();
+      if (eldest != entry) {
+        memoryUsed -= eldest.pixels.capacity();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @param img Image to encode
+   * @return Entry holding the image pixels in a new direct buffer
+   */
+  private Entry encode(FImage img) {
+    final ByteBuffer pixels = ByteBuffer
+        .allocateDirect(img.width * img.height * storage.bytesPerPixel)
+        .order(ByteOrder.nativeOrder());
+    if (storage == Storage.FLOAT) {
+      final FloatBuffer view = pixels.asFloatBuffer();
+      for (float[] row : img.pixels) {
+        view.put(row, 0, img.width);
+      }
+    } else {
+      final byte[] row = new byte[img.width];
+      for (int y = 0; y < img.height; y++) {
+        for (int x = 0; x < img.width; x++) {
+          final float v = Math.max(0, Math.min(1, img.pixels[y][x]));
+          row[x] = (byte) Math.round(v * 255);
+        }
+        pixels.put(row);
+      }
+      pixels.clear();
+    }
+    return new Entry(storage, img.width, img.height, pixels);
+  }
+
+  /**
+   * @param entry Entry to decode
+   * @return New image holding the entry's pixels
+   */
+  private static FImage decode(Entry entry) {
+    final FImage img = new FImage(entry.width, entry.height);
+    final ByteBuffer pixels = entry.pixels.duplicate().order(ByteOrder.nativeOrder());
+    if (entry.storage == Storage.FLOAT) {
+      final FloatBuffer view = pixels.asFloatBuffer();
+      for (float[] row : img.pixels) {
+        view.get(row);
+      }
+    } else {
+      final byte[] row = new byte[entry.width];
+      for (float[] pixelRow : img.pixels) {
+        pixels.get(row);
+        for (int x = 0; x < row.length; x++) {
+          pixelRow[x] = (row[x] & 0xFF) / 255f;
+        }
+      }
+    }
+    return img;
+  }
+
+  /**
+   * @param key Key of an image
+   * @return Spill file of the image
+   */
+  private File getSpillFile(String key) {
+    try {
+      final byte[] hash =
+          MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+      final StringBuilder name = new StringBuilder();
+      for (byte b : hash) {
+        name.append(String.format("%02x", b));
+      }
+      return new File(spillDirectory, name.append(".img").toString());
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform must support SHA-1
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Write an entry to its spill file, failures are reported but otherwise ignored as the image can
+   * always be decoded again.
+   *
+   * @param key Key of the entry
+   * @param entry Entry to write
+   */
+  private void writeSpill(String key, Entry entry) {
+    final File file = getSpillFile(key);
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel()) {
+      final ByteBuffer header = ByteBuffer.allocate(SPILL_HEADER_LENGTH);
+      header.putInt(SPILL_MAGIC).putInt(entry.storage.ordinal()).putInt(entry.width)
+          .putInt(entry.height).flip();
+      raf.setLength(0);
+      channel.write(new ByteBuffer[] {header, entry.pixels.duplicate()});
+    } catch (IOException e) {
+      System.err.println(String.format("Failed to spill image to '%s': %s", file, e));
+    }
+  }
+
+  /**
+   * Read an entry back from its spill file.
+   *
+   * @param key Key of the entry
+   * @return The read entry, null if not spilled (or the spill file is unreadable)
+   */
+  private Entry readSpill(String key) {
+    final File file = getSpillFile(key);
+    if (!file.isFile()) {
+      return null;
+    }
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      final ByteBuffer header = ByteBuffer.allocate(SPILL_HEADER_LENGTH);
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // Keep reading until the header is full
+      }
+      header.flip();
+      if (header.remaining() < SPILL_HEADER_LENGTH || header.getInt() != SPILL_MAGIC) {
+        return null;
+      }
+      final Storage spillStorage = Storage.values()[header.getInt()];
+      final int width = header.getInt();
+      final int height = header.getInt();
+      final ByteBuffer pixels = ByteBuffer
+          .allocateDirect(width * height * spillStorage.bytesPerPixel)
+          .order(ByteOrder.nativeOrder());
+      while (pixels.hasRemaining() && channel.read(pixels) >= 0) {
+        // Keep reading until the pixels are full
+      }
+      if (pixels.hasRemaining()) {
+        return null;
+      }
+      pixels.clear();
+      return new Entry(spillStorage, width, height, pixels);
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Pixels of a cached image.
+   */
+  private static class Entry {
+    final Storage storage;
+    final int width;
+    final int height;
+    /** Packed rows of pixels in native byte order, never written after creation */
+    final ByteBuffer pixels;
+
+    Entry(Storage storage, int width, int height, ByteBuffer pixels) {
+      this.storage = storage;
+      this.width = width;
+      this.height = height;
+      this.pixels = pixels;
+    }
+  }
+
+}
@@ -0,0 +1,285 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.util.array.SparseIntArray;
+
+/**
+ * One-vs-rest L2 regularised L2 loss linear SVM trainer that can be warm started, for training sets
+ * that grow over time.<br>
+ *
+ * Each class is solved by dual coordinate descent with shrinking (the method liblinear uses for
+ * its dual solvers), which reaches the same optimum as liblinear's primal L2R_L2LOSS_SVC solver.
+ * The dual variables of every example are kept between trainings: examples added since the last
+ * training start at zero, so the previous weights are the starting point and the solver mostly
+ * works on the new examples, old examples that remain correctly classified being shrunk out of the
+ * active set after a single pass. Classes seen for the first time start from zero weights. Class
+ * problems are independent and solved in parallel.<br>
+ *
+ * Features are held as sparse arrays for the lifetime of the trainer.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class IncrementalLinearTrainer {
+  /** Stopping tolerance of the projected gradient, the liblinear default for dual solvers */
+  public static final double DEFAULT_EPS = 0.1;
+  /** Maximum number of passes over the active examples per class */
+  private static final int MAX_ITERATIONS = 1000;
+  /** Seed of the example order within each pass, offset by the class index */
+  private static final long SEED = 0;
+
+  /** Feature vector length */
+  private final int dims;
+  private final double eps;
+  private final int nThreads;
+  /** Cost of constraint violation used by the next training */
+  private double c;
+
+  /** Non-zero feature indices and values of each example */
+  private final List<int[]> indices = new ArrayList<>();
+  private final List<float[]> values = new ArrayList<>();
+  /** Squared norm of each example */
+  private double[] squaredNorms = new double[0];
+  /** Class index of each example */
+  private int[] labels = new int[0];
+  private int size = 0;
+
+  /** Classes in order of first appearance */
+  private final List<String> classList = new ArrayList<>();
+  private final Map<String, Integer> classIndices = new HashMap<>();
+  /** Dual variables of each class problem, one per example (grown as examples are added) */
+  private final List<double[]> alphas = new ArrayList<>();
+  /** Weights of each class problem, kept in step with its dual variables */
+  private final List<double[]> weights = new ArrayList<>();
+
+  /**
+   * Instantiate a trainer.
+   *
+   * @param dims Feature vector length
+   * @param c Cost of constraint violation
+   * @param eps Stopping tolerance of the projected gradient
+   * @param nThreads Number of threads to solve class problems with
+   */
+  public IncrementalLinearTrainer(int dims, double c, double eps, int nThreads) {
+    if (dims <= 0) {
+      throw new IllegalArgumentException("Feature vector length must be positive");
+    }
+    if (eps <= 0) {
+      throw new IllegalArgumentException("Stopping tolerance must be positive");
+    }
+    if (nThreads <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive");
+    }
+    this.dims = dims;
+    this.eps = eps;
+    this.nThreads = nThreads;
+    setC(c);
+  }
+
+  /**
+   * Set the cost of constraint violation used by the next training. The kept dual variables remain
+   * a valid starting point.
+   *
+   * @param c C parameter, must be positive
+   */
+  public void setC(double c) {
+    if (c <= 0) {
+      throw new IllegalArgumentException("C parameter must be positive");
+    }
+    this.c = c;
+  }
+
+  /**
+   * Add an example, it is used from the next training.
+   *
+   * @param feature Feature vector of the example
+   * @param label Class of the example
+   */
+  public void add(SparseIntFV feature, String label) {
+    if (feature.length() != dims) {
+      throw new IllegalArgumentException(
+          String.format("Feature vector length %d does not match trainer length %d",
+              feature.length(), dims));
+    }
+    final SparseIntArray array = feature.getVector();
+    final int[] exampleIndices = new int[array.used()];
+    final float[] exampleValues = new float[array.used()];
+    double norm = 0;
+    int nz = 0;
+    for (SparseIntArray.Entry entry : array.entries()) {
+      exampleIndices[nz] = entry.index;
+      exampleValues[nz] = entry.value;
+      norm += (double) entry.value * entry.value;
+      nz++;
+    }
+    Integer classIndex = classIndices.get(label);
+    if (classIndex == null) {
+      classIndex = classList.size();
+      classIndices.put(label, classIndex);
+      classList.add(label);
+      alphas.add(new double[labels.length]);
+      weights.add(new double[dims]);
+    }
+    if (size == labels.length) {
+      final int capacity = Math.max(16, size * 2);
+      labels = Arrays.copyOf(labels, capacity);
+      squaredNorms = Arrays.copyOf(squaredNorms, capacity);
+      for (int k = 0; k < alphas.size(); k++) {
+        alphas.set(k, Arrays.copyOf(alphas.get(k), capacity));
+      }
+    }
+    indices.add(exampleIndices);
+    values.add(exampleValues);
+    squaredNorms[size] = norm;
+    labels[size] = classIndex;
+    size++;
+  }
+
+  /**
+   * @return Number of examples added
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Solve every class problem, starting from the previous solution, and make a model of the
+   * result.
+   *
+   * @return The trained model
+   */
+  public LinearModel train() {
+    if (classList.size() < 2) {
+      throw new IllegalArgumentException("At least two classes are required for training");
+    }
+    final long start = Metrics.start();
+    final ExecutorService pool = Executors.newFixedThreadPool(Math.min(nThreads, classList.size()));
+    try {
+      final List<Future<Integer>> futures = new ArrayList<>();
+      for (int k = 0; k < classList.size(); k++) {
+        final int target = k;
+        futures.add(pool.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() {
+            return solve(target);
+          }
+        }));
+      }
+      for (int k = 0; k < futures.size(); k++) {
+        Debugger.println(String.format("Class %s solved in %d iterations", classList.get(k),
+            futures.get(k).get()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while training", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Training failed", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+    Metrics.stop(Metrics.Stage.SVM_FIT, start, size);
+
+    final int nClasses = classList.size();
+    final float[] packed = new float[nClasses * dims];
+    for (int k = 0; k < nClasses; k++) {
+      final double[] w = weights.get(k);
+      for (int d = 0; d < dims; d++) {
+        packed[k * dims + d] = (float) w[d];
+      }
+    }
+    return new LinearModel(classList.toArray(new String[nClasses]), dims, packed,
+        new float[nClasses]);
+  }
+
+  /**
+   * Solve the one-vs-rest problem of a class by dual coordinate descent, updating its dual
+   * variables and weights in place.
+   *
+   * @param target Index of the class
+   * @return Number of passes made
+   */
+  private int solve(int target) {
+    final double[] alpha = alphas.get(target);
+    final double[] w = weights.get(target);
+    // L2 loss: diagonal added to the kernel, no upper bound on the dual variables
+    final double diag = 0.5 / c;
+    final Random random = new Random(SEED + target);
+    final int[] index = new int[size];
+    for (int i = 0; i < size; i++) {
+      index[i] = i;
+    }
+    int activeSize = size;
+    double maxOld = Double.POSITIVE_INFINITY;
+    int iter = 0;
+    while (iter < MAX_ITERATIONS) {
+      double maxNew = Double.NEGATIVE_INFINITY;
+      double minNew = Double.POSITIVE_INFINITY;
+      for (int s = 0; s < activeSize; s++) {
+        final int j = s + random.nextInt(activeSize - s);
+        final int tmp = index[s];
+        index[s] = index[j];
+        index[j] = tmp;
+      }
+      for (int s = 0; s < activeSize; s++) {
+        final int i = index[s];
+        final int y = labels[i] == target ? 1 : -1;
+        final int[] exampleIndices = indices.get(i);
+        final float[] exampleValues = values.get(i);
+        double dot = 0;
+        for (int nz = 0; nz < exampleIndices.length; nz++) {
+          dot += w[exampleIndices[nz]] * exampleValues[nz];
+        }
+        final double g = y * dot - 1 + alpha[i] * diag;
+        double pg = 0;
+        if (alpha[i] == 0) {
+          if (g > maxOld) {
+            // Shrink, the example is very unlikely to become a support vector
+            activeSize--;
+            index[s] = index[activeSize];
+            index[activeSize] = i;
+            s--;
+            continue;
+          } else if (g < 0) {
+            pg = g;
+          }
+        } else {
+          pg = g;
+        }
+        maxNew = Math.max(maxNew, pg);
+        minNew = Math.min(minNew, pg);
+        if (Math.abs(pg) > 1.0e-12) {
+          final double old = alpha[i];
+          alpha[i] = Math.max(old - g / (squaredNorms[i] + diag), 0);
+          final double step = (alpha[i] - old) * y;
+          for (int nz = 0; nz < exampleIndices.length; nz++) {
+            w[exampleIndices[nz]] += step * exampleValues[nz];
+          }
+        }
+      }
+      iter++;
+      if (maxNew - minNew <= eps) {
+        if (activeSize == size) {
+          break;
+        }
+        // Check the shrunk examples before stopping
+        activeSize = size;
+        maxOld = Double.POSITIVE_INFINITY;
+        continue;
+      }
+      maxOld = maxNew <= 0 ? Double.POSITIVE_INFINITY : maxNew;
+    }
+    return iter;
+  }
+
+}
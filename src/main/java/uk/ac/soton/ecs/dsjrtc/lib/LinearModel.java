@@ -0,0 +1,355 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.openimaj.experiment.evaluation.classification.BasicClassificationResult;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.feature.FeatureVector;
+import org.openimaj.feature.SparseIntFV;
+import org.openimaj.util.array.SparseIntArray;
+import de.bwaldvogel.liblinear.Feature;
+import de.bwaldvogel.liblinear.FeatureNode;
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.Parameter;
+import de.bwaldvogel.liblinear.Problem;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * Immutable one-vs-rest linear classifier, trained with liblinear. Weights are held as one packed
+ * row per class so they can be persisted and scored without the liblinear model.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class LinearModel {
+  /** Class of each weight row */
+  private final String[] classes;
+  /** Feature vector length */
+  private final int dims;
+  /** Packed weights, class c occupies [c * dims, (c + 1) * dims) */
+  private final float[] weights;
+  /** Bias of each class */
+  private final float[] biases;
+
+  /**
+   * Create a model from existing weights.
+   *
+   * @param classes Class of each weight row
+   * @param dims Feature vector length
+   * @param weights Packed weights, one row of dims values per class
+   * @param biases Bias of each class
+   */
+  public LinearModel(String[] classes, int dims, float[] weights, float[] biases) {
+    if (weights.length != classes.length * dims || biases.length != classes.length) {
+      throw new IllegalArgumentException("Weights and biases do not match the number of classes");
+    }
+    this.classes = classes.clone();
+    this.dims = dims;
+    this.weights = weights.clone();
+    this.biases = biases.clone();
+  }
+
+  /**
+   * Train a model with liblinear.
+   *
+   * @param features Training feature vectors, all must be of the same length
+   * @param labels Class of each feature vector
+   * @param solver Liblinear solver to use
+   * @param c Cost of constraint violation
+   * @param eps Stopping criteria
+   * @return The trained model
+   */
+  public static LinearModel train(List<? extends FeatureVector> features, List<String> labels,
+      SolverType solver, double c, double eps) {
+    if (features.isEmpty() || features.size() != labels.size()) {
+      throw new IllegalArgumentException("There must be one label for every feature vector");
+    }
+    // Number classes in order of first appearance
+    final Map<String, Integer> classIndices = new HashMap<>();
+    final List<String> classList = new ArrayList<>();
+    for (String label : labels) {
+      if (!classIndices.containsKey(label)) {
+        classIndices.put(label, classList.size());
+        classList.add(label);
+      }
+    }
+    if (classList.size() < 2) {
+      throw new IllegalArgumentException("At least two classes are required for training");
+    }
+
+    final int dims = features.get(0).length();
+    final Problem problem = new Problem();
+    problem.l = features.size();
+    problem.n = dims;
+    problem.bias = -1;
+    problem.x = new Feature[problem.l][];
+    problem.y = new double[problem.l];
+    for (int i = 0; i < problem.l; i++) {
+      if (features.get(i).length() != dims) {
+        throw new IllegalArgumentException("Feature vectors must all be the same length");
+      }
+      problem.x[i] = toNodes(features.get(i));
+      problem.y[i] = classIndices.get(labels.get(i));
+    }
+    final long start = Metrics.start();
+    final Model model = Linear.train(problem, new Parameter(solver, c, eps));
+    Metrics.stop(Metrics.Stage.SVM_FIT, start, problem.l);
+    return fromLiblinear(model, classList, dims);
+  }
+
+  /**
+   * Convert a trained liblinear model into packed per class weights.
+   *
+   * @param model Trained model, labels must index into the class list
+   * @param classList Classes indexed by label
+   * @param dims Feature vector length
+   * @return The converted model
+   */
+  private static LinearModel fromLiblinear(Model model, List<String> classList, int dims) {
+    final int nClasses = model.getNrClass();
+    final int[] labels = model.getLabels();
+    final double[] w = model.getFeatureWeights();
+    // Two class models (other than Crammer and Singer) only hold a single weight vector
+    final int nW = w.length / (model.getBias() >= 0 ? dims + 1 : dims);
+
+    final String[] classes = new String[nClasses];
+    final float[] weights = new float[nClasses * dims];
+    final float[] biases = new float[nClasses];
+    for (int c = 0; c < nClasses; c++) {
+      classes[c] = classList.get(labels[c]);
+      // The second class of a single vector model scores the negated decision value
+      final int column = nW == 1 ? 0 : c;
+      final float sign = (nW == 1 && c == 1) ? -1 : 1;
+      for (int d = 0; d < dims; d++) {
+        weights[c * dims + d] = sign * (float) w[d * nW + column];
+      }
+      if (model.getBias() >= 0) {
+        biases[c] = sign * (float) (w[dims * nW + column] * model.getBias());
+      }
+    }
+    return new LinearModel(classes, dims, weights, biases);
+  }
+
+  /**
+   * Convert a feature vector to liblinear nodes, skipping zero values.
+   *
+   * @param fv Feature vector to convert
+   * @return Nodes with 1-based indices
+   */
+  static Feature[] toNodes(FeatureVector fv) {
+    final List<Feature> nodes = new ArrayList<>();
+    if (fv instanceof SparseIntFV) {
+      for (SparseIntArray.Entry entry : ((SparseIntFV) fv).getVector().entries()) {
+        if (entry.value != 0) {
+          nodes.add(new FeatureNode(entry.index + 1, entry.value));
+        }
+      }
+      // Sparse entries are not guaranteed to be ordered
+      sortNodes(nodes);
+    } else {
+      final double[] values = fv.asDoubleVector();
+      for (int i = 0; i < values.length; i++) {
+        if (values[i] != 0) {
+          nodes.add(new FeatureNode(i + 1, values[i]));
+        }
+      }
+    }
+    return nodes.toArray(new Feature[nodes.size()]);
+  }
+
+  /**
+   * @param nodes Nodes to sort in place by index
+   */
+  private static void sortNodes(List<Feature> nodes) {
+    Collections.sort(nodes, new Comparator<Feature>() {
+      @Override
+      public int compare(Feature o1, Feature o2) {
+        return Integer.compare(o1.getIndex(), o2.getIndex());
+      }
+    });
+  }
+
+  /**
+   * Score a feature vector against every class.
+   *
+   * @param fv Feature vector to score
+   * @return Decision value of each class, in the order of {@link #getClasses()}
+   */
+  public float[] score(FeatureVector fv) {
+    if (fv.length() != dims) {
+      throw new IllegalArgumentException(
+          String.format("Feature vector length %d does not match model length %d", fv.length(),
+              dims));
+    }
+    final float[] scores = biases.clone();
+    if (fv instanceof SparseIntFV) {
+      for (SparseIntArray.Entry entry : ((SparseIntFV) fv).getVector().entries()) {
+        for (int c = 0; c < classes.length; c++) {
+          scores[c] += entry.value * weights[c * dims + entry.index];
+        }
+      }
+    } else {
+      final double[] values = fv.asDoubleVector();
+      for (int c = 0; c < classes.length; c++) {
+        final int offset = c * dims;
+        float sum = 0;
+        for (int d = 0; d < dims; d++) {
+          sum += values[d] * weights[offset + d];
+        }
+        scores[c] += sum;
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Score a dense feature vector of counts against every class, skipping zero counts.
+   *
+   * @param values Feature vector to score
+   * @param scores Array to fill, a new array is created if null or not one value per class
+   * @return Decision value of each class, in the order of {@link #getClasses()}
+   */
+  public float[] score(int[] values, float[] scores) {
+    if (values.length != dims) {
+      throw new IllegalArgumentException(
+          String.format("Feature vector length %d does not match model length %d", values.length,
+              dims));
+    }
+    if (scores == null || scores.length != classes.length) {
+      scores = new float[classes.length];
+    }
+    System.arraycopy(biases, 0, scores, 0, classes.length);
+    for (int d = 0; d < dims; d++) {
+      if (values[d] != 0) {
+        for (int c = 0; c < classes.length; c++) {
+          scores[c] += values[d] * weights[c * dims + d];
+        }
+      }
+    }
+    return scores;
+  }
+
+  /**
+   * Score a dense feature vector of real values against every class.
+   *
+   * @param values Feature vector to score
+   * @param scores Array to fill, a new array is created if null or not one value per class
+   * @return Decision value of each class, in the order of {@link #getClasses()}
+   */
+  public float[] score(float[] values, float[] scores) {
+    if (values.length != dims) {
+      throw new IllegalArgumentException(
+          String.format("Feature vector length %d does not match model length %d", values.length,
+              dims));
+    }
+    if (scores == null || scores.length != classes.length) {
+      scores = new float[classes.length];
+    }
+    for (int c = 0; c < classes.length; c++) {
+      final int offset = c * dims;
+      float sum = biases[c];
+      for (int d = 0; d < dims; d++) {
+        sum += values[d] * weights[offset + d];
+      }
+      scores[c] = sum;
+    }
+    return scores;
+  }
+
+  /**
+   * Classify a feature vector as the class with the highest decision value.
+   *
+   * @param fv Feature vector to classify
+   * @return Result holding the predicted class with a confidence of 1
+   */
+  public ClassificationResult<String> classify(FeatureVector fv) {
+    return toResult(score(fv));
+  }
+
+  /**
+   * Classify a dense feature vector of counts as the class with the highest decision value.
+   *
+   * @param values Feature vector to classify
+   * @param scores Scratch array for the decision values, can be null
+   * @return Result holding the predicted class with a confidence of 1
+   */
+  public ClassificationResult<String> classify(int[] values, float[] scores) {
+    return toResult(score(values, scores));
+  }
+
+  /**
+   * Classify a dense feature vector of real values as the class with the highest decision value.
+   *
+   * @param values Feature vector to classify
+   * @param scores Scratch array for the decision values, can be null
+   * @return Result holding the predicted class with a confidence of 1
+   */
+  public ClassificationResult<String> classify(float[] values, float[] scores) {
+    return toResult(score(values, scores));
+  }
+
+  /**
+   * @param scores Decision value of each class
+   * @return Result holding the class with the highest decision value with a confidence of 1
+   */
+  private ClassificationResult<String> toResult(float[] scores) {
+    int best = 0;
+    for (int c = 1; c < scores.length; c++) {
+      if (scores[c] > scores[best]) {
+        best = c;
+      }
+    }
+    final BasicClassificationResult<String> result = new BasicClassificationResult<>();
+    result.put(classes[best], 1);
+    return result;
+  }
+
+  /**
+   * @return Class of each weight row
+   */
+  public String[] getClasses() {
+    return classes.clone();
+  }
+
+  /**
+   * @return Feature vector length
+   */
+  public int getDimensions() {
+    return dims;
+  }
+
+  /**
+   * Write the model to an open model file.
+   *
+   * @param writer Writer to use
+   * @throws IOException If the model cannot be written
+   */
+  public void write(ModelWriter writer) throws IOException {
+    writer.writeStrings(classes);
+    writer.writeInt(dims);
+    writer.writeFloats(weights);
+    writer.writeFloats(biases);
+  }
+
+  /**
+   * Read a model written by {@link #write(ModelWriter)}.
+   *
+   * @param reader Reader positioned at the start of the model
+   * @return The read model
+   * @throws IOException If the model cannot be read
+   */
+  public static LinearModel read(ModelReader reader) throws IOException {
+    final String[] classes = reader.readStrings();
+    final int dims = reader.readInt();
+    final float[] weights = reader.readFloats();
+    final float[] biases = reader.readFloats();
+    return new LinearModel(classes, dims, weights, biases);
+  }
+
+}
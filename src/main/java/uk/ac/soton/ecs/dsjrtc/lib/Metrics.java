@@ -0,0 +1,596 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Static timers and counters of the stages of training and classification, that can be toggled
+ * on and off globally. Disabled by default; when disabled every call costs a single volatile read.
+ * <br>
+ *
+ * A stage is timed by calling {@link #start()} before it and {@link #stop(Stage, long, long)}
+ * after it, giving the number of items (e.g. images) it handled:
+ *
+ * <pre>
+ * final long start = Metrics.start();
+ * ...
+ * Metrics.stop(Metrics.Stage.CLASSIFY_BATCH, start, images);
+ * </pre>
+ *
+ * For each stage the number of timed calls, items, total time and a histogram of the time per
+ * item are kept, along with a set of {@link Counter}s. Every thread records into its own set of
+ * arrays, so recording is never contended, and results are kept per thread. The records of
+ * threads that have terminated are folded into a single shared total the next time a thread
+ * starts recording or a snapshot is taken, so short-lived pool threads do not accumulate. A
+ * {@link Snapshot} merges the records of every thread, reporting percentiles of the time per item
+ * and the throughput of each stage and counter since the last {@link #reset()}, and can be written
+ * as JSON or CSV (see {@link #writeJson(File)} and {@link #writeCsv(File)}).<br>
+ *
+ * Histogram bucket b holds times in [2^(b - 1), 2^b) nanoseconds, so percentiles are reported as
+ * the upper bound of their bucket (within a factor of two).
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class Metrics {
+  /** Number of histogram buckets, enough for any time in nanoseconds */
+  private static final int BUCKETS = 64;
+  /** Start time returned while disabled */
+  private static final long DISABLED = Long.MIN_VALUE;
+
+  /**
+   * Stages of training and classification that can be timed.
+   */
+  public enum Stage {
+    /** Reading and decoding an image */
+    DECODE,
+    /** Extracting the dense patches of an image */
+    PATCH_EXTRACTION,
+    /** Assigning the patches of an image to visual words or codewords */
+    ASSIGNMENT,
+    /** Pooling the assigned patches of an image into a feature vector */
+    AGGREGATION,
+    /** A single k-means iteration or mini-batch update */
+    KMEANS_ITERATION,
+    /** Fitting a linear SVM */
+    SVM_FIT,
+    /** Classifying an image, from image to result */
+    CLASSIFY,
+    /**
+     * Classifying a range of a batch together, one call per range, so the time per item is an
+     * average over the range
+     */
+    CLASSIFY_BATCH
+  }
+
+  /**
+   * Counters of work done.
+   */
+  public enum Counter {
+    /** Patches extracted from images */
+    PATCHES_EXTRACTED,
+    /** Patches assigned to visual words or codewords */
+    PATCHES_ASSIGNED,
+    /** Vectors assigned by k-means iterations */
+    VECTORS_CLUSTERED
+  }
+
+  /** Whether recording is enabled */
+  private static volatile boolean enabled = false;
+  /** Time of the last reset, throughput is measured from this */
+  private static volatile long resetTime = System.nanoTime();
+  /** Name given to the records of threads that have terminated */
+  private static final String TERMINATED = "(terminated threads)";
+  /** Guards folding, clearing and merging of the recorders, never taken when recording */
+  private static final Object lock = new Object();
+  /** Recorder of every live thread that has recorded, and of recently terminated threads */
+  private static final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+  /** Totals of the recorders of terminated threads, only written while holding the lock */
+  private static final Recorder terminated = new Recorder(null);
+  /** Recorder of each thread */
+  private static final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+    @Override
+    protected Recorder initialValue() {
+      final Recorder recorder = new Recorder(Thread.currentThread());
+      synchronized (lock) {
+        foldTerminated();
+        recorders.add(recorder);
+      }
+      return recorder;
+    }
+  };
+
+  /**
+   * This class should not be instantiated.
+   */
+  private Metrics() {}
+
+  /**
+   * @param enabled Whether recording should be enabled globally
+   */
+  public static void setEnabled(boolean enabled) {
+    Metrics.enabled = enabled;
+  }
+
+  /**
+   * @return Whether recording is enabled globally
+   */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Clear everything recorded and restart the throughput clock.
+   */
+  public static void reset() {
+    synchronized (lock) {
+      foldTerminated();
+      for (Recorder r : recorders) {
+        r.clear();
+      }
+      terminated.clear();
+      resetTime = System.nanoTime();
+    }
+  }
+
+  /**
+   * Start timing a stage.
+   *
+   * @return Start time to pass to {@link #stop(Stage, long, long)}
+   */
+  public static long start() {
+    return enabled ? System.nanoTime() : DISABLED;
+  }
+
+  /**
+   * Stop timing a stage that handled a single item. See {@link #stop(Stage, long, long)}.
+   */
+  public static void stop(Stage stage, long start) {
+    stop(stage, start, 1);
+  }
+
+  /**
+   * Stop timing a stage, recording it if recording was enabled when it was started.
+   *
+   * @param stage Stage that was timed
+   * @param start Time returned by {@link #start()}
+   * @param items Number of items handled, the time per item is added to the histogram once per
+   *        item
+   */
+  public static void stop(Stage stage, long start, long items) {
+    if (start == DISABLED || items <= 0) {
+      return;
+    }
+    recorder.get().record(stage.ordinal(), System.nanoTime() - start, items);
+  }
+
+  /**
+   * Add to a counter if recording is enabled.
+   *
+   * @param counter Counter to add to
+   * @param n Amount to add
+   */
+  public static void count(Counter counter, long n) {
+    if (enabled) {
+      recorder.get().counters.addAndGet(counter.ordinal(), n);
+    }
+  }
+
+  /**
+   * @return Merged view of everything recorded since the last reset
+   */
+  public static Snapshot snapshot() {
+    synchronized (lock) {
+      foldTerminated();
+      final List<Recorder> all = new ArrayList<>(recorders);
+      all.add(terminated);
+      return new Snapshot(all, System.nanoTime() - resetTime);
+    }
+  }
+
+  /**
+   * Add the records of every thread that has terminated to the shared total and forget their
+   * recorders. A terminated thread can no longer write to its recorder, so it is read safely.
+   * Must be called while holding the lock.
+   */
+  private static void foldTerminated() {
+    final List<Recorder> dead = new ArrayList<>();
+    for (Recorder r : recorders) {
+      if (!r.owner.isAlive()) {
+        terminated.add(r);
+        dead.add(r);
+      }
+    }
+    if (!dead.isEmpty()) {
+      recorders.removeAll(dead);
+    }
+  }
+
+  /**
+   * Write a snapshot as JSON. See {@link Snapshot#writeJson(Writer)}.
+   *
+   * @param file File to write to
+   * @throws IOException If the file cannot be written
+   */
+  public static void writeJson(File file) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      snapshot().writeJson(writer);
+    }
+  }
+
+  /**
+   * Write a snapshot as CSV. See {@link Snapshot#writeCsv(Writer)}.
+   *
+   * @param file File to write to
+   * @throws IOException If the file cannot be written
+   */
+  public static void writeCsv(File file) throws IOException {
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      snapshot().writeCsv(writer);
+    }
+  }
+
+  /**
+   * @param nanos A time in nanoseconds
+   * @return Histogram bucket of the time
+   */
+  private static int bucket(long nanos) {
+    return nanos <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(nanos);
+  }
+
+  /**
+   * Records of a single thread, only written by that thread, or the shared total of terminated
+   * threads.
+   */
+  private static class Recorder {
+    /** Thread writing to the recorder, null for the total of terminated threads */
+    final Thread owner;
+    final String thread;
+    /** Timed calls of each stage */
+    final AtomicLongArray calls = new AtomicLongArray(Stage.values().length);
+    /** Items handled by each stage */
+    final AtomicLongArray items = new AtomicLongArray(Stage.values().length);
+    /** Total time of each stage */
+    final AtomicLongArray nanos = new AtomicLongArray(Stage.values().length);
+    /** Longest time per item of each stage */
+    final AtomicLongArray max = new AtomicLongArray(Stage.values().length);
+    /** Histogram of time per item of each stage, stage s at [s * BUCKETS, (s + 1) * BUCKETS) */
+    final AtomicLongArray histograms = new AtomicLongArray(Stage.values().length * BUCKETS);
+    /** Value of each counter */
+    final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    Recorder(Thread owner) {
+      this.owner = owner;
+      this.thread = owner == null ? TERMINATED : owner.getName();
+    }
+
+    void record(int stage, long elapsed, long n) {
+      final long perItem = elapsed / n;
+      calls.incrementAndGet(stage);
+      items.addAndGet(stage, n);
+      nanos.addAndGet(stage, elapsed);
+      histograms.addAndGet(stage * BUCKETS + bucket(perItem), n);
+      if (perItem > max.get(stage)) {
+        max.set(stage, perItem);
+      }
+    }
+
+    void add(Recorder other) {
+      for (int s = 0; s < calls.length(); s++) {
+        calls.addAndGet(s, other.calls.get(s));
+        items.addAndGet(s, other.items.get(s));
+        nanos.addAndGet(s, other.nanos.get(s));
+        if (other.max.get(s) > max.get(s)) {
+          max.set(s, other.max.get(s));
+        }
+      }
+      for (int i = 0; i < histograms.length(); i++) {
+        histograms.addAndGet(i, other.histograms.get(i));
+      }
+      for (int c = 0; c < counters.length(); c++) {
+        counters.addAndGet(c, other.counters.get(c));
+      }
+    }
+
+    void clear() {
+      for (AtomicLongArray array : new AtomicLongArray[] {calls, items, nanos, max, histograms,
+          counters}) {
+        for (int i = 0; i < array.length(); i++) {
+          array.set(i, 0);
+        }
+      }
+    }
+  }
+
+  /**
+   * Totals of a stage, over every thread or a single thread.
+   */
+  public static class StageTotals {
+    private long calls;
+    private long items;
+    private long nanos;
+    private long max;
+    private final long[] histogram = new long[BUCKETS];
+
+    private void add(Recorder r, int stage) {
+      calls += r.calls.get(stage);
+      items += r.items.get(stage);
+      nanos += r.nanos.get(stage);
+      max = Math.max(max, r.max.get(stage));
+      for (int b = 0; b < BUCKETS; b++) {
+        histogram[b] += r.histograms.get(stage * BUCKETS + b);
+      }
+    }
+
+    /**
+     * @return Number of timed calls
+     */
+    public long getCalls() {
+      return calls;
+    }
+
+    /**
+     * @return Number of items handled
+     */
+    public long getItems() {
+      return items;
+    }
+
+    /**
+     * @return Total time of all calls in nanoseconds
+     */
+    public long getNanos() {
+      return nanos;
+    }
+
+    /**
+     * @return Mean time per item in nanoseconds, zero if no items
+     */
+    public double getMeanNanos() {
+      return items == 0 ? 0 : nanos / (double) items;
+    }
+
+    /**
+     * @return Longest time per item in nanoseconds
+     */
+    public long getMaxNanos() {
+      return max;
+    }
+
+    /**
+     * @param percentile Percentile in [0, 100]
+     * @return Upper bound of the bucket holding the percentile of the time per item in nanoseconds,
+     *         zero if no items
+     */
+    public long getPercentileNanos(double percentile) {
+      final long rank = (long) Math.ceil(items * percentile / 100);
+      long seen = 0;
+      for (int b = 0; b < BUCKETS; b++) {
+        seen += histogram[b];
+        if (seen >= rank && seen > 0) {
+          return Math.min(max, b == 0 ? 0 : 1L << Math.min(b, 62));
+        }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Merged view of the records of every thread.
+   */
+  public static class Snapshot {
+    private final long wallNanos;
+    private final StageTotals[] stages = new StageTotals[Stage.values().length];
+    private final long[] counters = new long[Counter.values().length];
+    /** Totals of each stage of each thread, by thread name */
+    private final Map<String, StageTotals[]> threads = new TreeMap<>();
+
+    private Snapshot(List<Recorder> recorders, long wallNanos) {
+      this.wallNanos = wallNanos;
+      for (int s = 0; s < stages.length; s++) {
+        stages[s] = new StageTotals();
+      }
+      for (Recorder r : recorders) {
+        StageTotals[] thread = threads.get(r.thread);
+        if (thread == null) {
+          thread = new StageTotals[stages.length];
+          for (int s = 0; s < stages.length; s++) {
+            thread[s] = new StageTotals();
+          }
+        }
+        boolean active = false;
+        for (int s = 0; s < stages.length; s++) {
+          stages[s].add(r, s);
+          thread[s].add(r, s);
+          active |= thread[s].calls > 0;
+        }
+        if (active) {
+          threads.put(r.thread, thread);
+        }
+        for (int c = 0; c < counters.length; c++) {
+          counters[c] += r.counters.get(c);
+        }
+      }
+    }
+
+    /**
+     * @return Wall clock time since the last reset in nanoseconds
+     */
+    public long getWallNanos() {
+      return wallNanos;
+    }
+
+    /**
+     * @param stage A stage
+     * @return Totals of the stage over every thread
+     */
+    public StageTotals getStage(Stage stage) {
+      return stages[stage.ordinal()];
+    }
+
+    /**
+     * @param counter A counter
+     * @return Value of the counter over every thread
+     */
+    public long getCount(Counter counter) {
+      return counters[counter.ordinal()];
+    }
+
+    /**
+     * @param count A count
+     * @return Count per second of wall clock time since the last reset
+     */
+    private double perSecond(long count) {
+      return wallNanos <= 0 ? 0 : count / (wallNanos / 1e9);
+    }
+
+    /**
+     * Write the snapshot as a JSON object holding the wall time, the totals, percentiles and
+     * histogram of every stage, every counter, and the totals of every stage of every thread.
+     * Times are in microseconds.
+     *
+     * @param out Writer to write to, is not closed
+     */
+    public void writeJson(Writer out) {
+      final PrintWriter writer = new PrintWriter(out);
+      writer.printf(Locale.ROOT, "{\n  \"wallSeconds\": %.3f,\n  \"stages\": [", wallNanos / 1e9);
+      for (int s = 0; s < stages.length; s++) {
+        final StageTotals t = stages[s];
+        writer.printf(Locale.ROOT, "%s\n    {\"stage\": \"%s\", %s, \"itemsPerSecond\": %.3f, "
+            + "\"histogram\": [", s == 0 ? "" : ",", Stage.values()[s], jsonTotals(t),
+            perSecond(t.items));
+        boolean first = true;
+        for (int b = 0; b < BUCKETS; b++) {
+          if (t.histogram[b] > 0) {
+            writer.printf(Locale.ROOT, "%s{\"upperMicros\": %.3f, \"items\": %d}",
+                first ? "" : ", ", (b == 0 ? 0 : Math.pow(2, b)) / 1e3, t.histogram[b]);
+            first = false;
+          }
+        }
+        writer.print("]}");
+      }
+      writer.print("\n  ],\n  \"counters\": [");
+      for (int c = 0; c < counters.length; c++) {
+        writer.printf(Locale.ROOT, "%s\n    {\"counter\": \"%s\", \"count\": %d, "
+            + "\"perSecond\": %.3f}", c == 0 ? "" : ",", Counter.values()[c], counters[c],
+            perSecond(counters[c]));
+      }
+      writer.print("\n  ],\n  \"threads\": [");
+      boolean firstThread = true;
+      for (Map.Entry<String, StageTotals[]> thread : threads.entrySet()) {
+        writer.printf("%s\n    {\"thread\": \"%s\", \"stages\": [", firstThread ? "" : ",",
+            thread.getKey().replace("\\", "\\\\").replace("\"", "\\\""));
+        boolean first = true;
+        for (int s = 0; s < stages.length; s++) {
+          final StageTotals t = thread.getValue()[s];
+          if (t.calls > 0) {
+            writer.printf("%s{\"stage\": \"%s\", %s}", first ? "" : ", ", Stage.values()[s],
+                jsonTotals(t));
+            first = false;
+          }
+        }
+        writer.print("]}");
+        firstThread = false;
+      }
+      writer.print("\n  ]\n}\n");
+      writer.flush();
+    }
+
+    /**
+     * @param t Totals of a stage
+     * @return JSON fields of the totals
+     */
+    private static String jsonTotals(StageTotals t) {
+      return String.format(Locale.ROOT,
+          "\"calls\": %d, \"items\": %d, \"totalMicros\": %.3f, \"meanMicros\": %.3f, "
+              + "\"p50Micros\": %.3f, \"p90Micros\": %.3f, \"p99Micros\": %.3f, "
+              + "\"maxMicros\": %.3f",
+          t.calls, t.items, t.nanos / 1e3, t.getMeanNanos() / 1e3,
+          t.getPercentileNanos(50) / 1e3, t.getPercentileNanos(90) / 1e3,
+          t.getPercentileNanos(99) / 1e3, t.max / 1e3);
+    }
+
+    /**
+     * Write the snapshot as CSV, one row for each stage over all threads, each counter, and each
+     * stage of each thread. Times are in microseconds, rates per second of wall clock time.
+     *
+     * @param out Writer to write to, is not closed
+     */
+    public void writeCsv(Writer out) {
+      final PrintWriter writer = new PrintWriter(out);
+      writer.println("type,name,thread,calls,items,total_us,mean_us,p50_us,p90_us,p99_us,max_us,"
+          + "per_second");
+      for (int s = 0; s < stages.length; s++) {
+        writer.println(csvTotals("stage", Stage.values()[s].toString(), "all", stages[s],
+            perSecond(stages[s].items)));
+      }
+      for (int c = 0; c < counters.length; c++) {
+        writer.println(String.format(Locale.ROOT, "counter,%s,all,,%d,,,,,,,%.3f",
+            Counter.values()[c], counters[c], perSecond(counters[c])));
+      }
+      for (Map.Entry<String, StageTotals[]> thread : threads.entrySet()) {
+        final String name = "\"" + thread.getKey().replace("\"", "\"\"") + "\"";
+        for (int s = 0; s < stages.length; s++) {
+          final StageTotals t = thread.getValue()[s];
+          if (t.calls > 0) {
+            writer.println(csvTotals("thread_stage", Stage.values()[s].toString(), name, t,
+                perSecond(t.items)));
+          }
+        }
+      }
+      writer.flush();
+    }
+
+    /**
+     * @return CSV row of the totals of a stage
+     */
+    private static String csvTotals(String type, String name, String thread, StageTotals t,
+        double perSecond) {
+      return String.format(Locale.ROOT, "%s,%s,%s,%d,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f", type,
+          name, thread, t.calls, t.items, t.nanos / 1e3, t.getMeanNanos() / 1e3,
+          t.getPercentileNanos(50) / 1e3, t.getPercentileNanos(90) / 1e3,
+          t.getPercentileNanos(99) / 1e3, t.max / 1e3, perSecond);
+    }
+
+    /**
+     * @return Table of the stages with any calls and the counters, for printing
+     */
+    @Override
+    public String toString() {
+      final List<String> lines = new ArrayList<>();
+      lines.add(String.format("%-18s %10s %12s %12s %12s %12s %12s", "Stage", "Items",
+          "Total (ms)", "Mean (us)", "p99 (us)", "Max (us)", "Items/s"));
+      for (int s = 0; s < stages.length; s++) {
+        final StageTotals t = stages[s];
+        if (t.calls > 0) {
+          lines.add(String.format("%-18s %10d %12.1f %12.1f %12.1f %12.1f %12.1f",
+              Stage.values()[s], t.items, t.nanos / 1e6, t.getMeanNanos() / 1e3,
+              t.getPercentileNanos(99) / 1e3, t.max / 1e3, perSecond(t.items)));
+        }
+      }
+      for (int c = 0; c < counters.length; c++) {
+        if (counters[c] > 0) {
+          lines.add(String.format("%-18s %10d %64.1f", Counter.values()[c], counters[c],
+              perSecond(counters[c])));
+        }
+      }
+      final StringBuilder sb = new StringBuilder();
+      for (String line : lines) {
+        sb.append(line).append(System.lineSeparator());
+      }
+      return sb.toString();
+    }
+  }
+
+}
@@ -0,0 +1,257 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import org.openimaj.ml.clustering.assignment.hard.KDTreeFloatEuclideanAssigner;
+
+/**
+ * Streaming mini-batch k-means (Sculley, 2010). Centroids are updated from one batch of packed
+ * vectors at a time using a per centroid learning rate, so the full data set never has to be held
+ * in memory.<br>
+ *
+ * Batch assignment is split across a fork-join pool, either exactly or approximately through a
+ * k-d tree ensemble over the current centroids. The first batch is used to initialise the
+ * centroids and must hold at least k vectors.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class MiniBatchFloatKMeans {
+  /** Minimum number of vectors assigned by a single leaf task */
+  private static final int MIN_LEAF_SIZE = 256;
+
+  private final int k;
+  private final int dims;
+  private final boolean approximate;
+  private final ForkJoinPool pool;
+  private final Random random;
+
+  /** Packed centroids, null until the first batch */
+  private float[] centroids = null;
+  /** Number of vectors seen by each centroid, used for the learning rate */
+  private final long[] counts;
+  /** Number of batches used to update the centroids */
+  private int batches = 0;
+
+  /**
+   * Instantiate a mini-batch k-means clusterer.
+   *
+   * @param k Number of clusters
+   * @param dims Dimensionality of the vectors
+   * @param approximate Whether batches should be assigned with a k-d tree ensemble instead of an
+   *        exact search
+   * @param nThreads Number of threads to use for batch assignment
+   */
+  public MiniBatchFloatKMeans(int k, int dims, boolean approximate, int nThreads) {
+    if (k <= 0 || dims <= 0 || nThreads <= 0) {
+      throw new IllegalArgumentException("Clusters, dimensions and threads must all be positive");
+    }
+    this.k = k;
+    this.dims = dims;
+    this.approximate = approximate;
+    this.pool = new ForkJoinPool(nThreads);
+    this.random = new Random();
+    this.counts = new long[k];
+  }
+
+  /**
+   * @param seed Seed for the random centroid initialisation
+   */
+  public void seed(long seed) {
+    random.setSeed(seed);
+  }
+
+  /**
+   * Update the centroids with a batch of packed vectors, vector i occupies [i * dims, (i + 1) *
+   * dims) of the batch array.
+   *
+   * @param batch Packed vectors
+   * @param n Number of vectors in the batch
+   */
+  public void update(float[] batch, int n) {
+    if (centroids == null) {
+      initialise(batch, n);
+    }
+    final long start = System.nanoTime();
+    final long timer = Metrics.start();
+    final int[] assignments = assign(batch, n);
+    // Gradient step, sequential as the learning rate of a centroid depends on earlier vectors
+    for (int i = 0; i < n; i++) {
+      final int c = assignments[i];
+      final float eta = 1.0f / ++counts[c];
+      final int cOffset = c * dims;
+      final int offset = i * dims;
+      for (int d = 0; d < dims; d++) {
+        centroids[cOffset + d] += eta * (batch[offset + d] - centroids[cOffset + d]);
+      }
+    }
+    batches++;
+    Metrics.stop(Metrics.Stage.KMEANS_ITERATION, timer);
+    Metrics.count(Metrics.Counter.VECTORS_CLUSTERED, n);
+    Debugger.println(String.format("Mini-batch %d: %d vectors, %.1fms", batches, n,
+        (System.nanoTime() - start) / 1e6));
+  }
+
+  /**
+   * @return Whether the first batch has been seen
+   */
+  public boolean isInitialised() {
+    return centroids != null;
+  }
+
+  /**
+   * @return The current centroids
+   */
+  public FloatCentroidsResult getResult() {
+    if (centroids == null) {
+      throw new IllegalStateException("No batches have been clustered");
+    }
+    return FloatKMeansUtilities.toResult(centroids, k, dims);
+  }
+
+  /**
+   * Release the assignment threads, the clusterer cannot be updated afterwards.
+   */
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * Pick k distinct vectors of the first batch at random as the initial centroids.
+   *
+   * @param batch Packed vectors
+   * @param n Number of vectors in the batch
+   */
+  private void initialise(float[] batch, int n) {
+    if (n < k) {
+      throw new IllegalArgumentException(
+          String.format("First batch must hold at least %d vectors, found %d", k, n));
+    }
+    final int[] indices = new int[n];
+    for (int i = 0; i < n; i++) {
+      indices[i] = i;
+    }
+    centroids = new float[k * dims];
+    for (int c = 0; c < k; c++) {
+      final int j = c + random.nextInt(n - c);
+      final int tmp = indices[c];
+      indices[c] = indices[j];
+      indices[j] = tmp;
+      System.arraycopy(batch, indices[c] * dims, centroids, c * dims, dims);
+    }
+  }
+
+  /**
+   * Find the nearest centroid of every vector in a batch.
+   *
+   * @param batch Packed vectors
+   * @param n Number of vectors in the batch
+   * @return Centroid index for each vector
+   */
+  private int[] assign(float[] batch, int n) {
+    final int[] assignments = new int[n];
+    final int leafSize = Math.max(MIN_LEAF_SIZE, n / (4 * pool.getParallelism()));
+    if (approximate) {
+      final float[][] unpacked = new float[k][];
+      for (int c = 0; c < k; c++) {
+        unpacked[c] = new float[dims];
+        System.arraycopy(centroids, c * dims, unpacked[c], 0, dims);
+      }
+      final KDTreeFloatEuclideanAssigner assigner = new KDTreeFloatEuclideanAssigner(unpacked);
+      pool.invoke(new ApproximateAssignTask(assigner, batch, dims, assignments, 0, n, leafSize));
+    } else {
+      final float[] norms = FloatKMeansUtilities.squaredNorms(centroids, k, dims);
+      pool.invoke(new ExactAssignTask(centroids, norms, batch, dims, assignments, 0, n, leafSize));
+    }
+    return assignments;
+  }
+
+  /**
+   * Task that assigns a range of vectors with an exact search over the centroids.
+   */
+  private static class ExactAssignTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final float[] centroids;
+    private final float[] norms;
+    private final float[] batch;
+    private final int dims;
+    private final int[] assignments;
+    private final int from;
+    private final int to;
+    private final int leafSize;
+
+    ExactAssignTask(float[] centroids, float[] norms, float[] batch, int dims, int[] assignments,
+        int from, int to, int leafSize) {
+      this.centroids = centroids;
+      this.norms = norms;
+      this.batch = batch;
+      this.dims = dims;
+      this.assignments = assignments;
+      this.from = from;
+      this.to = to;
+      this.leafSize = leafSize;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > leafSize) {
+        final int mid = (from + to) >>> 1;
+        invokeAll(
+            new ExactAssignTask(centroids, norms, batch, dims, assignments, from, mid, leafSize),
+            new ExactAssignTask(centroids, norms, batch, dims, assignments, mid, to, leafSize));
+        return;
+      }
+      for (int i = from; i < to; i++) {
+        assignments[i] =
+            FloatKMeansUtilities.nearest(batch, i * dims, centroids, norms, norms.length, dims);
+      }
+    }
+  }
+
+  /**
+   * Task that assigns a range of vectors through a k-d tree ensemble.
+   */
+  private static class ApproximateAssignTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final KDTreeFloatEuclideanAssigner assigner;
+    private final float[] batch;
+    private final int dims;
+    private final int[] assignments;
+    private final int from;
+    private final int to;
+    private final int leafSize;
+
+    ApproximateAssignTask(KDTreeFloatEuclideanAssigner assigner, float[] batch, int dims,
+        int[] assignments, int from, int to, int leafSize) {
+      this.assigner = assigner;
+      this.batch = batch;
+      this.dims = dims;
+      this.assignments = assignments;
+      this.from = from;
+      this.to = to;
+      this.leafSize = leafSize;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > leafSize) {
+        final int mid = (from + to) >>> 1;
+        invokeAll(
+            new ApproximateAssignTask(assigner, batch, dims, assignments, from, mid, leafSize),
+            new ApproximateAssignTask(assigner, batch, dims, assignments, mid, to, leafSize));
+        return;
+      }
+      final float[][] rows = new float[to - from][dims];
+      for (int i = from; i < to; i++) {
+        System.arraycopy(batch, i * dims, rows[i - from], 0, dims);
+      }
+      final int[] result = assigner.assign(rows);
+      System.arraycopy(result, 0, assignments, from, result.length);
+    }
+  }
+
+}
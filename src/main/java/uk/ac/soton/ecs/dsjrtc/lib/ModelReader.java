@@ -0,0 +1,225 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader for the binary model format written by {@link ModelWriter}. The file is memory mapped
+ * read only, so large arrays are bulk copied straight from the page cache (or viewed without any
+ * copy through {@link #readFloatBuffer()}) rather than parsed value by value. A single mapping
+ * is limited to {@link Integer#MAX_VALUE} bytes, so model files must be smaller than 2 GB.<br>
+ *
+ * Every length read from the file is checked against the bytes left before anything is allocated,
+ * so a truncated or corrupt file fails with an {@link IOException} rather than an underflow or an
+ * attempt to allocate an arbitrary amount of memory.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ModelReader {
+  private final MappedByteBuffer buffer;
+  private final String type;
+
+  /**
+   * Map a model file and check its header.
+   *
+   * @param file File to read
+   * @param expectedType Model type the file must hold
+   * @throws IOException If the file cannot be read, is 2 GB or larger or is not a model of the
+   *         expected type
+   */
+  public ModelReader(File file, String expectedType) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(String.format("'%s' is too large to map, models must be under 2 GB",
+            file));
+      }
+      // The mapping stays valid after the channel is closed
+      this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.remaining() < 8 || buffer.getInt() != ModelWriter.MAGIC) {
+      throw new IOException(String.format("'%s' is not a model file", file));
+    }
+    final int version = buffer.getInt();
+    if (version != ModelWriter.VERSION) {
+      throw new IOException(String.format("Unsupported model file version: %d", version));
+    }
+    this.type = readString();
+    if (!type.equals(expectedType)) {
+      throw new IOException(
+          String.format("Model file holds a '%s' not a '%s'", type, expectedType));
+    }
+  }
+
+  /**
+   * @return Model type held by the file
+   */
+  public String getType() {
+    return type;
+  }
+
+  /**
+   * @return The next value
+   * @throws IOException If the file ends first
+   */
+  public int readInt() throws IOException {
+    require(4);
+    return buffer.getInt();
+  }
+
+  /**
+   * @return The next value
+   * @throws IOException If the file ends first
+   */
+  public long readLong() throws IOException {
+    require(8);
+    return buffer.getLong();
+  }
+
+  /**
+   * @return The next value
+   * @throws IOException If the file ends first
+   */
+  public double readDouble() throws IOException {
+    require(8);
+    return buffer.getDouble();
+  }
+
+  /**
+   * @return The next value
+   * @throws IOException If the file ends first
+   */
+  public boolean readBoolean() throws IOException {
+    require(1);
+    return buffer.get() != 0;
+  }
+
+  /**
+   * @return The next string
+   * @throws IOException If the file ends first
+   */
+  public String readString() throws IOException {
+    final byte[] bytes = new byte[readLength(1)];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return The next array of strings
+   * @throws IOException If the file ends first
+   */
+  public String[] readStrings() throws IOException {
+    // Each string takes at least the four bytes of its length
+    final String[] values = new String[readLength(4)];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = readString();
+    }
+    return values;
+  }
+
+  /**
+   * @return The next array of ints
+   * @throws IOException If the file ends first
+   */
+  public int[] readInts() throws IOException {
+    final int[] values = new int[readLength(4)];
+    final IntBuffer view = buffer.asIntBuffer();
+    view.get(values);
+    skip(4L * values.length);
+    return values;
+  }
+
+  /**
+   * @return The next array of floats
+   * @throws IOException If the file ends first
+   */
+  public float[] readFloats() throws IOException {
+    final float[] values = new float[readLength(4)];
+    final FloatBuffer view = buffer.asFloatBuffer();
+    view.get(values);
+    skip(4L * values.length);
+    return values;
+  }
+
+  /**
+   * Read the next array of floats without copying it out of the mapped file.
+   *
+   * @return Read only view of the next array of floats
+   * @throws IOException If the file ends first
+   */
+  public FloatBuffer readFloatBuffer() throws IOException {
+    final int length = readLength(4);
+    final FloatBuffer view = buffer.asFloatBuffer();
+    view.limit(length);
+    skip(4L * length);
+    return view.asReadOnlyBuffer();
+  }
+
+  /**
+   * @return The next matrix
+   * @throws IOException If the file ends first
+   */
+  public float[][] readFloatMatrix() throws IOException {
+    require(8);
+    final int rows = buffer.getInt();
+    final int cols = buffer.getInt();
+    // Rows without columns are still bounded, so a corrupt row count cannot exhaust memory
+    if (rows < 0 || cols < 0 || 4L * rows * Math.max(cols, 1) > buffer.remaining()) {
+      throw corrupt();
+    }
+    final float[][] matrix = new float[rows][cols];
+    final FloatBuffer view = buffer.asFloatBuffer();
+    for (int r = 0; r < rows; r++) {
+      view.get(matrix[r]);
+    }
+    skip(4L * rows * cols);
+    return matrix;
+  }
+
+  /**
+   * Read the length of an array, checking the rest of the file can hold it.
+   *
+   * @param elementBytes Fewest bytes each element of the array takes
+   * @return The next length
+   * @throws IOException If the length is negative or longer than the rest of the file
+   */
+  private int readLength(int elementBytes) throws IOException {
+    final int length = readInt();
+    if (length < 0 || (long) length * elementBytes > buffer.remaining()) {
+      throw corrupt();
+    }
+    return length;
+  }
+
+  /**
+   * @param bytes Number of bytes about to be read
+   * @throws IOException If fewer bytes are left in the file
+   */
+  private void require(long bytes) throws IOException {
+    if (bytes > buffer.remaining()) {
+      throw corrupt();
+    }
+  }
+
+  /**
+   * @return Exception for a file that ends before its contents do
+   */
+  private static IOException corrupt() {
+    return new IOException("Model file is truncated or corrupt");
+  }
+
+  /**
+   * @param bytes Number of bytes to move forward, at most the number left (checked by the caller)
+   */
+  private void skip(long bytes) {
+    buffer.position(buffer.position() + (int) bytes);
+  }
+
+}
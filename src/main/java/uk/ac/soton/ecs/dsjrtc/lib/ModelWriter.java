@@ -0,0 +1,161 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writer for the compact binary model format read by {@link ModelReader}. A file starts with a
+ * magic number, format version and model type, followed by the model specific records in the
+ * order they are written. All values are big-endian, arrays are prefixed by their length.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ModelWriter implements Closeable {
+  /** Magic number at the start of every model file ("SRMF") */
+  public static final int MAGIC = 0x53524D46;
+  /** Version of the format written (2 added the spatial pyramid of bag of visual words models) */
+  public static final int VERSION = 2;
+
+  private final DataOutputStream out;
+
+  /**
+   * Open a model file for writing and write its header.
+   *
+   * @param file File to write to, will be overwritten if it exists
+   * @param type Model type, checked when the file is read
+   * @throws IOException If the file cannot be written
+   */
+  public ModelWriter(File file, String type) throws IOException {
+    this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    writeString(type);
+  }
+
+  /**
+   * @param value Value to write
+   * @throws IOException If the value cannot be written
+   */
+  public void writeInt(int value) throws IOException {
+    out.writeInt(value);
+  }
+
+  /**
+   * @param value Value to write
+   * @throws IOException If the value cannot be written
+   */
+  public void writeLong(long value) throws IOException {
+    out.writeLong(value);
+  }
+
+  /**
+   * @param value Value to write
+   * @throws IOException If the value cannot be written
+   */
+  public void writeDouble(double value) throws IOException {
+    out.writeDouble(value);
+  }
+
+  /**
+   * @param value Value to write
+   * @throws IOException If the value cannot be written
+   */
+  public void writeBoolean(boolean value) throws IOException {
+    out.writeBoolean(value);
+  }
+
+  /**
+   * @param value String to write as length prefixed UTF-8
+   * @throws IOException If the value cannot be written
+   */
+  public void writeString(String value) throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * @param values Strings to write
+   * @throws IOException If the values cannot be written
+   */
+  public void writeStrings(String[] values) throws IOException {
+    out.writeInt(values.length);
+    for (String value : values) {
+      writeString(value);
+    }
+  }
+
+  /**
+   * @param values Values to write
+   * @throws IOException If the values cannot be written
+   */
+  public void writeInts(int[] values) throws IOException {
+    writeInts(values, 0, values.length);
+  }
+
+  /**
+   * @param values Array holding the values to write
+   * @param offset Index of the first value to write
+   * @param length Number of values to write
+   * @throws IOException If the values cannot be written
+   */
+  public void writeInts(int[] values, int offset, int length) throws IOException {
+    out.writeInt(length);
+    for (int i = offset; i < offset + length; i++) {
+      out.writeInt(values[i]);
+    }
+  }
+
+  /**
+   * @param values Values to write
+   * @throws IOException If the values cannot be written
+   */
+  public void writeFloats(float[] values) throws IOException {
+    writeFloats(values, 0, values.length);
+  }
+
+  /**
+   * @param values Array holding the values to write
+   * @param offset Index of the first value to write
+   * @param length Number of values to write
+   * @throws IOException If the values cannot be written
+   */
+  public void writeFloats(float[] values, int offset, int length) throws IOException {
+    out.writeInt(length);
+    for (int i = offset; i < offset + length; i++) {
+      out.writeFloat(values[i]);
+    }
+  }
+
+  /**
+   * Write a matrix as its dimensions followed by its rows packed into a single array.
+   *
+   * @param matrix Matrix to write, all rows must be the same length
+   * @throws IOException If the matrix cannot be written
+   */
+  public void writeFloatMatrix(float[][] matrix) throws IOException {
+    final int cols = matrix.length == 0 ? 0 : matrix[0].length;
+    out.writeInt(matrix.length);
+    out.writeInt(cols);
+    for (float[] row : matrix) {
+      if (row.length != cols) {
+        throw new IllegalArgumentException("Matrix rows must all be the same length");
+      }
+      for (float value : row) {
+        out.writeFloat(value);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    out.close();
+  }
+
+}
@@ -0,0 +1,184 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.experiment.evaluation.classification.Classifier;
+
+/**
+ * Utilities for classifying a batch of instances in parallel. Batches are split into ranges which
+ * are classified on a fork-join pool, so an implementation can set up its buffers once per range
+ * rather than once per instance. Pools are shared by every batch with the same number of threads,
+ * so batches do not pay for starting threads. Ranges are classified together, so each is timed
+ * as one {@link Metrics.Stage#CLASSIFY_BATCH} of its instances rather than as a
+ * {@link Metrics.Stage#CLASSIFY} of each.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ParallelClassification {
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+  /** Number of leaf ranges to aim for per thread, allows some balancing between threads */
+  private static final int LEAVES_PER_THREAD = 4;
+  /** Pools shared by every batch, by number of threads, created on first use */
+  private static final ConcurrentMap<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+  /**
+   * This class should not be instantiated.
+   */
+  private ParallelClassification() {}
+
+  /**
+   * Classifier of a range of instances in a batch.
+   *
+   * @param <C> Type of classes
+   */
+  public interface RangeClassifier<C> {
+
+    /**
+     * Classify the instances in a range of the batch. Ranges do not overlap and may be classified
+     * concurrently.
+     *
+     * @param from Index of the first instance (inclusive)
+     * @param to Index of the last instance (exclusive)
+     * @param results List to set the result of each instance in, at the instance's index
+     */
+    void classify(int from, int to, List<ClassificationResult<C>> results);
+
+  }
+
+  /**
+   * Classify a batch of instances by calling a classifier on each instance in parallel. Suitable as
+   * the fallback batch implementation for any classifier that is safe to call concurrently.
+   *
+   * @param classifier Classifier to use
+   * @param objects Instances to classify
+   * @param nThreads Number of threads to use
+   * @return Result of each instance, in order
+   */
+  public static <C, O> List<ClassificationResult<C>> classifyAll(
+      final Classifier<C, O> classifier, final List<O> objects, int nThreads) {
+    // Not timed here, the classifier times each instance
+    return run(objects.size(), nThreads, new RangeClassifier<C>() {
+      @Override
+      public void classify(int from, int to, List<ClassificationResult<C>> results) {
+        for (int i = from; i < to; i++) {
+          results.set(i, classifier.classify(objects.get(i)));
+        }
+      }
+    });
+  }
+
+  /**
+   * Classify a batch of instances by splitting it into ranges that are classified in parallel.
+   *
+   * @param n Number of instances in the batch
+   * @param nThreads Number of threads to use
+   * @param classifier Classifier of a range of the batch
+   * @return Result of each instance, in order
+   */
+  public static <C> List<ClassificationResult<C>> classifyRanges(int n, int nThreads,
+      final RangeClassifier<C> classifier) {
+    return run(n, nThreads, new RangeClassifier<C>() {
+      @Override
+      public void classify(int from, int to, List<ClassificationResult<C>> results) {
+        final long start = Metrics.start();
+        classifier.classify(from, to, results);
+        Metrics.stop(Metrics.Stage.CLASSIFY_BATCH, start, to - from);
+      }
+    });
+  }
+
+  /**
+   * Classify a batch of instances by splitting it into ranges that are classified in parallel.
+   *
+   * @param n Number of instances in the batch
+   * @param nThreads Number of threads to use
+   * @param classifier Classifier of a range of the batch
+   * @return Result of each instance, in order
+   */
+  private static <C> List<ClassificationResult<C>> run(int n, int nThreads,
+      RangeClassifier<C> classifier) {
+    if (nThreads <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive");
+    }
+    // Pre-size the results so ranges can set their results without structural changes
+    final List<ClassificationResult<C>> results =
+        new ArrayList<>(Collections.<ClassificationResult<C>>nCopies(n, null));
+    if (n == 0) {
+      return results;
+    }
+    if (nThreads == 1) {
+      classifier.classify(0, n, results);
+      return results;
+    }
+    final int leafSize = Math.max(1, n / (nThreads * LEAVES_PER_THREAD));
+    getPool(nThreads).invoke(new RangeTask<>(classifier, results, 0, n, leafSize));
+    return results;
+  }
+
+  /**
+   * Get the pool shared by every batch (and any other parallel work, such as scanning an index)
+   * using the same number of threads. Shared pools are never shut down, their worker threads are
+   * daemons and end once idle.
+   *
+   * @param nThreads Number of threads of the pool, must be positive
+   * @return Pool shared by everything using the same number of threads
+   */
+  public static ForkJoinPool getPool(int nThreads) {
+    if (nThreads <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive");
+    }
+    ForkJoinPool pool = POOLS.get(nThreads);
+    if (pool == null) {
+      final ForkJoinPool created = new ForkJoinPool(nThreads);
+      pool = POOLS.putIfAbsent(nThreads, created);
+      if (pool == null) {
+        pool = created;
+      } else {
+        // Another batch created the pool first
+        created.shutdown();
+      }
+    }
+    return pool;
+  }
+
+  /**
+   * Task that classifies a range of a batch, splitting in half until the range is small enough.
+   */
+  private static class RangeTask<C> extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final RangeClassifier<C> classifier;
+    private final List<ClassificationResult<C>> results;
+    private final int from;
+    private final int to;
+    private final int leafSize;
+
+    RangeTask(RangeClassifier<C> classifier, List<ClassificationResult<C>> results, int from,
+        int to, int leafSize) {
+      this.classifier = classifier;
+      this.results = results;
+      this.from = from;
+      this.to = to;
+      this.leafSize = leafSize;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > leafSize) {
+        final int mid = (from + to) >>> 1;
+        invokeAll(new RangeTask<>(classifier, results, from, mid, leafSize),
+            new RangeTask<>(classifier, results, mid, to, leafSize));
+      } else {
+        classifier.classify(from, to, results);
+      }
+    }
+  }
+
+}
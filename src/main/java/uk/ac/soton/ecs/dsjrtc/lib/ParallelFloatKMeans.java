@@ -0,0 +1,230 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+
+/**
+ * Exact (Lloyd's) k-means clustering over a packed array of float vectors, with the assignment and
+ * update steps of every iteration split across a fork-join pool.<br>
+ *
+ * Each leaf task assigns a range of vectors to their nearest centroid and accumulates partial
+ * centroid sums, which are then reduced pairwise. The duration of each iteration is reported
+ * through the {@link Debugger}.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ParallelFloatKMeans {
+  public static final int DEFAULT_MAX_ITERATIONS = 30;
+  /** Number of leaf tasks to aim for per thread, allows some balancing between threads */
+  private static final int LEAVES_PER_THREAD = 4;
+
+  private final int k;
+  private final int maxIterations;
+  private final int nThreads;
+  private final Random random;
+
+  /**
+   * Instantiate a parallel k-means clusterer using the class default iteration limit.
+   *
+   * @param k Number of clusters
+   * @param nThreads Number of threads to use for each iteration
+   */
+  public ParallelFloatKMeans(int k, int nThreads) {
+    this(k, DEFAULT_MAX_ITERATIONS, nThreads);
+  }
+
+  /**
+   * Instantiate a parallel k-means clusterer.
+   *
+   * @param k Number of clusters
+   * @param maxIterations Maximum number of iterations to run before stopping
+   * @param nThreads Number of threads to use for each iteration
+   */
+  public ParallelFloatKMeans(int k, int maxIterations, int nThreads) {
+    if (k <= 0 || maxIterations <= 0 || nThreads <= 0) {
+      throw new IllegalArgumentException("Clusters, iterations and threads must all be positive");
+    }
+    this.k = k;
+    this.maxIterations = maxIterations;
+    this.nThreads = nThreads;
+    this.random = new Random();
+  }
+
+  /**
+   * @param seed Seed for the random centroid initialisation
+   */
+  public void seed(long seed) {
+    random.setSeed(seed);
+  }
+
+  /**
+   * Cluster packed vectors, vector i occupies [i * dims, (i + 1) * dims) of the data array.
+   *
+   * @param data Packed vectors to cluster
+   * @param n Number of vectors
+   * @param dims Dimensionality of each vector
+   * @return The clustered centroids
+   */
+  public FloatCentroidsResult cluster(float[] data, int n, int dims) {
+    if (n < k) {
+      throw new IllegalArgumentException(
+          String.format("Cannot make %d clusters from %d vectors", k, n));
+    }
+    final float[] centroids = initialCentroids(data, n, dims);
+    final int[] assignments = new int[n];
+    Arrays.fill(assignments, -1);
+    final int leafSize = Math.max(1, n / (nThreads * LEAVES_PER_THREAD));
+
+    final ForkJoinPool pool = new ForkJoinPool(nThreads);
+    try {
+      for (int iter = 0; iter < maxIterations; iter++) {
+        final long start = System.nanoTime();
+        final long timer = Metrics.start();
+        // Assign every vector and accumulate the new centroid sums in parallel
+        final float[] norms = FloatKMeansUtilities.squaredNorms(centroids, k, dims);
+        final Partial total = pool.invoke(
+            new AssignTask(data, dims, centroids, norms, assignments, 0, n, leafSize));
+        // Update step, empty clusters keep their previous centroid
+        for (int c = 0; c < k; c++) {
+          if (total.counts[c] > 0) {
+            final int offset = c * dims;
+            for (int d = 0; d < dims; d++) {
+              centroids[offset + d] = (float) (total.sums[offset + d] / total.counts[c]);
+            }
+          }
+        }
+        Metrics.stop(Metrics.Stage.KMEANS_ITERATION, timer);
+        Metrics.count(Metrics.Counter.VECTORS_CLUSTERED, n);
+        Debugger.println(String.format("K-means iteration %d: %d changed, %.1fms", iter + 1,
+            total.changed, (System.nanoTime() - start) / 1e6));
+        if (total.changed == 0) {
+          break;
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    return FloatKMeansUtilities.toResult(centroids, k, dims);
+  }
+
+  /**
+   * Pick k distinct vectors at random as the initial centroids.
+   *
+   * @param data Packed vectors
+   * @param n Number of vectors
+   * @param dims Dimensionality of each vector
+   * @return Packed initial centroids
+   */
+  private float[] initialCentroids(float[] data, int n, int dims) {
+    // Partial Fisher-Yates over vector indices
+    final int[] indices = new int[n];
+    for (int i = 0; i < n; i++) {
+      indices[i] = i;
+    }
+    final float[] centroids = new float[k * dims];
+    for (int c = 0; c < k; c++) {
+      final int j = c + random.nextInt(n - c);
+      final int tmp = indices[c];
+      indices[c] = indices[j];
+      indices[j] = tmp;
+      System.arraycopy(data, indices[c] * dims, centroids, c * dims, dims);
+    }
+    return centroids;
+  }
+
+  /**
+   * Partial centroid sums for a range of vectors.
+   */
+  private static class Partial {
+    final double[] sums;
+    final int[] counts;
+    int changed;
+
+    Partial(int k, int dims) {
+      this.sums = new double[k * dims];
+      this.counts = new int[k];
+      this.changed = 0;
+    }
+
+    /**
+     * Merge another partial into this one.
+     *
+     * @param other Partial to merge
+     * @return This partial
+     */
+    Partial merge(Partial other) {
+      for (int i = 0; i < sums.length; i++) {
+        sums[i] += other.sums[i];
+      }
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+      }
+      changed += other.changed;
+      return this;
+    }
+  }
+
+  /**
+   * Task that assigns a range of vectors, splitting in half until the range is small enough.
+   */
+  private static class AssignTask extends RecursiveTask<Partial> {
+    private static final long serialVersionUID = 1L;
+
+    private final float[] data;
+    private final int dims;
+    private final float[] centroids;
+    private final float[] norms;
+    private final int[] assignments;
+    private final int from;
+    private final int to;
+    private final int leafSize;
+
+    AssignTask(float[] data, int dims, float[] centroids, float[] norms, int[] assignments,
+        int from, int to, int leafSize) {
+      this.data = data;
+      this.dims = dims;
+      this.centroids = centroids;
+      this.norms = norms;
+      this.assignments = assignments;
+      this.from = from;
+      this.to = to;
+      this.leafSize = leafSize;
+    }
+
+    @Override
+    protected Partial compute() {
+      if (to - from > leafSize) {
+        final int mid = (from + to) >>> 1;
+        final AssignTask left =
+            new AssignTask(data, dims, centroids, norms, assignments, from, mid, leafSize);
+        final AssignTask right =
+            new AssignTask(data, dims, centroids, norms, assignments, mid, to, leafSize);
+        left.fork();
+        final Partial rightResult = right.compute();
+        return left.join().merge(rightResult);
+      }
+      final int k = norms.length;
+      final Partial partial = new Partial(k, dims);
+      for (int i = from; i < to; i++) {
+        final int offset = i * dims;
+        final int c = FloatKMeansUtilities.nearest(data, offset, centroids, norms, k, dims);
+        if (assignments[i] != c) {
+          assignments[i] = c;
+          partial.changed++;
+        }
+        partial.counts[c]++;
+        final int sumOffset = c * dims;
+        for (int d = 0; d < dims; d++) {
+          partial.sums[sumOffset + d] += data[offset + d];
+        }
+      }
+      return partial;
+    }
+  }
+
+}
@@ -1,10 +1,12 @@
 package uk.ac.soton.ecs.dsjrtc.lib;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
 import org.openimaj.experiment.evaluation.classification.BasicClassificationResult;
@@ -14,48 +16,97 @@ import org.openimaj.image.FImage;
 /**
  * Classifier that just picks a random class from those it was trained on.<br>
  * Optimised for classification speed vs training speed. Must be trained before classification.
+ * Classes can be added and removed online (see {@link #addClass(String)} and
+ * {@link #removeClass(String)}) while classification continues on other threads, the class list
+ * being replaced as a whole on every change.
  * 
  * @author David Jones (dsj1n15@soton.ac.uk)
  * @author Richard Crosland (rtc1g16@soton.ac.uk)
  */
 public class RandomClassifier implements TrainableClassifier<String, FImage> {
 
-  /** Set of possible groups */
-  private final List<String> groups;
+  /** Possible groups, never modified once published */
+  private volatile List<String> groups;
 
   /**
    * Initialise the random classifier.
    */
   public RandomClassifier() {
-    this.groups = new ArrayList<>();
+    this.groups = Collections.emptyList();
   }
 
   @Override
   public ClassificationResult<String> classify(FImage object) {
+    final List<String> groups = this.groups;
     if (groups.isEmpty()) {
       throw new IllegalStateException("Classifier has not yet been trained");
     }
-    // Pick a random group from the trained list 
-    final Random r = new Random();
+    final long start = Metrics.start();
+    // Pick a random group from the trained list, with the generator of the calling thread
     final BasicClassificationResult<String> result = new BasicClassificationResult<>();
-    result.put(groups.get(r.nextInt(groups.size())), 1);
+    result.put(groups.get(ThreadLocalRandom.current().nextInt(groups.size())), 1);
+    Metrics.stop(Metrics.Stage.CLASSIFY, start);
     return result;
   }
 
   @Override
-  public void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+  public List<ClassificationResult<String>> classifyAll(List<FImage> objects) {
+    return ParallelClassification.classifyAll(this, objects,
+        ParallelClassification.DEFAULT_THREADS);
+  }
+
+  @Override
+  public synchronized void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
     // Clone the existing list in a structure that only contains uniques and add any new groups
     Set<String> uniqueGroups = new HashSet<>(groups);
     uniqueGroups.addAll(trainingSet.getGroups());
-    // Set group list to new set of uniques
-    groups.clear();
-    groups.addAll(uniqueGroups);
+    // Publish the new set of uniques
+    publish(uniqueGroups);
   }
 
   @Override
-  public void retrain(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
-    groups.clear();
-    train(trainingSet);
+  public synchronized void retrain(
+      GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    publish(trainingSet.getGroups());
+  }
+
+  /**
+   * Add a class that can be picked.
+   * 
+   * @param group Class to add
+   * @return Whether the class was added, false if it is already known
+   */
+  public synchronized boolean addClass(String group) {
+    final Set<String> uniqueGroups = new HashSet<>(groups);
+    if (!uniqueGroups.add(group)) {
+      return false;
+    }
+    publish(uniqueGroups);
+    return true;
+  }
+
+  /**
+   * Remove a class so it is no longer picked.
+   * 
+   * @param group Class to remove
+   * @return Whether the class was removed, false if it is not known
+   */
+  public synchronized boolean removeClass(String group) {
+    final Set<String> uniqueGroups = new HashSet<>(groups);
+    if (!uniqueGroups.remove(group)) {
+      return false;
+    }
+    publish(uniqueGroups);
+    return true;
+  }
+
+  /**
+   * Replace the group list with an unmodifiable copy of a collection of groups.
+   * 
+   * @param uniqueGroups Groups to publish
+   */
+  private void publish(Collection<String> uniqueGroups) {
+    groups = Collections.unmodifiableList(new ArrayList<>(uniqueGroups));
   }
 
 }
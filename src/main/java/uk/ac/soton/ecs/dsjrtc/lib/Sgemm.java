@@ -0,0 +1,304 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Single precision general matrix multiply, C = op(A) op(B) (optionally accumulated into C), for
+ * row major matrices held in flat arrays. op(X) is X or its transpose.<br>
+ *
+ * The multiply is cache blocked: a {@link #KC} deep panel of op(B) and an {@link #MC} high panel of
+ * op(A) are packed into contiguous per thread buffers (which also removes any transpose), and the
+ * panels are multiplied four rows of C at a time. The innermost loop is a multiply-add over
+ * contiguous values of the packed B panel and a row of C that the JIT can auto-vectorise, with each
+ * value of B loaded once for the four rows. Plain loops are used so the multiply runs on any
+ * Java 7+ runtime.<br>
+ *
+ * When given a pool, large multiplies are split into tiles of C that are computed in parallel.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class Sgemm {
+  /** Rows of op(A) packed together */
+  public static final int MC = 64;
+  /** Depth of the packed panels */
+  public static final int KC = 256;
+  /** Columns of op(B) packed together */
+  public static final int NC = 512;
+  /** Multiply-adds below which a multiply is not worth splitting between threads */
+  private static final long PARALLEL_THRESHOLD = 1 << 18;
+  /** Number of tiles to aim for per thread, allows some balancing between threads */
+  private static final int TILES_PER_THREAD = 2;
+
+  /** Per thread packed panel of op(A) */
+  private static final ThreadLocal<float[]> PACKED_A = new ThreadLocal<float[]>() {
+    @Override
+    protected float[] initialValue() {
+      return new float[MC * KC];
+    }
+  };
+  /** Per thread packed panel of op(B) */
+  private static final ThreadLocal<float[]> PACKED_B = new ThreadLocal<float[]>() {
+    @Override
+    protected float[] initialValue() {
+      return new float[KC * NC];
+    }
+  };
+
+  /**
+   * This class should not be instantiated.
+   */
+  private Sgemm() {}
+
+  /**
+   * Multiply two matrices on the calling thread. See
+   * {@link #multiply(boolean, boolean, int, int, int, float[], int, int, float[], int, int, float[], int, int, boolean, ForkJoinPool)}.
+   */
+  public static void multiply(boolean transA, boolean transB, int m, int n, int k, float[] a,
+      int aOffset, int lda, float[] b, int bOffset, int ldb, float[] c, int cOffset, int ldc,
+      boolean accumulate) {
+    multiply(transA, transB, m, n, k, a, aOffset, lda, b, bOffset, ldb, c, cOffset, ldc,
+        accumulate, null);
+  }
+
+  /**
+   * Multiply two matrices, C = op(A) op(B) or C += op(A) op(B).
+   *
+   * @param transA Whether A is transposed, A is k x m when true and m x k otherwise
+   * @param transB Whether B is transposed, B is n x k when true and k x n otherwise
+   * @param m Rows of op(A) and C
+   * @param n Columns of op(B) and C
+   * @param k Columns of op(A) and rows of op(B)
+   * @param a Array holding A
+   * @param aOffset Index of the first value of A
+   * @param lda Distance between the start of each row of A
+   * @param b Array holding B
+   * @param bOffset Index of the first value of B
+   * @param ldb Distance between the start of each row of B
+   * @param c Array holding C
+   * @param cOffset Index of the first value of C
+   * @param ldc Distance between the start of each row of C
+   * @param accumulate Whether to add the product to C rather than overwrite it
+   * @param pool Pool to split large multiplies across, null to multiply on the calling thread
+   */
+  public static void multiply(boolean transA, boolean transB, int m, int n, int k, float[] a,
+      int aOffset, int lda, float[] b, int bOffset, int ldb, float[] c, int cOffset, int ldc,
+      boolean accumulate, ForkJoinPool pool) {
+    if (m < 0 || n < 0 || k < 0) {
+      throw new IllegalArgumentException("Matrix dimensions cannot be negative");
+    }
+    if (m == 0 || n == 0) {
+      return;
+    }
+    final Operands ops = new Operands(transA, transB, k, a, aOffset, lda, b, bOffset, ldb, c,
+        cOffset, ldc, accumulate);
+    if (pool == null || pool.getParallelism() == 1 || (long) m * n * k < PARALLEL_THRESHOLD) {
+      ops.multiplyTile(0, m, 0, n);
+      return;
+    }
+    // Split C into tiles, along the longer side first
+    final int target = pool.getParallelism() * TILES_PER_THREAD;
+    int rowTiles = 1;
+    int colTiles = 1;
+    while (rowTiles * colTiles < target) {
+      if (n / colTiles >= m / rowTiles && n / colTiles >= 32) {
+        colTiles++;
+      } else if (m / rowTiles >= 8) {
+        rowTiles++;
+      } else {
+        break;
+      }
+    }
+    final List<ForkJoinTask<Void>> tiles = new ArrayList<>();
+    for (int rt = 0; rt < rowTiles; rt++) {
+      for (int ct = 0; ct < colTiles; ct++) {
+        tiles.add(new TileTask(ops, (int) ((long) m * rt / rowTiles),
+            (int) ((long) m * (rt + 1) / rowTiles), (int) ((long) n * ct / colTiles),
+            (int) ((long) n * (ct + 1) / colTiles)));
+      }
+    }
+    pool.invoke(new RecursiveAction() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected void compute() {
+        invokeAll(tiles);
+      }
+    });
+  }
+
+  /**
+   * Operands of a single multiply, shared by its tiles.
+   */
+  private static class Operands {
+    private final boolean transA;
+    private final boolean transB;
+    private final int k;
+    private final float[] a;
+    private final int aOffset;
+    private final int lda;
+    private final float[] b;
+    private final int bOffset;
+    private final int ldb;
+    private final float[] c;
+    private final int cOffset;
+    private final int ldc;
+    private final boolean accumulate;
+
+    Operands(boolean transA, boolean transB, int k, float[] a, int aOffset, int lda, float[] b,
+        int bOffset, int ldb, float[] c, int cOffset, int ldc, boolean accumulate) {
+      this.transA = transA;
+      this.transB = transB;
+      this.k = k;
+      this.a = a;
+      this.aOffset = aOffset;
+      this.lda = lda;
+      this.b = b;
+      this.bOffset = bOffset;
+      this.ldb = ldb;
+      this.c = c;
+      this.cOffset = cOffset;
+      this.ldc = ldc;
+      this.accumulate = accumulate;
+    }
+
+    /**
+     * Compute a tile of C on the calling thread.
+     *
+     * @param i0 First row of the tile (inclusive)
+     * @param i1 Last row of the tile (exclusive)
+     * @param j0 First column of the tile (inclusive)
+     * @param j1 Last column of the tile (exclusive)
+     */
+    void multiplyTile(int i0, int i1, int j0, int j1) {
+      if (!accumulate) {
+        for (int i = i0; i < i1; i++) {
+          final int row = cOffset + i * ldc;
+          for (int j = row + j0; j < row + j1; j++) {
+            c[j] = 0;
+          }
+        }
+      }
+      final float[] packedA = PACKED_A.get();
+      final float[] packedB = PACKED_B.get();
+      for (int jj = j0; jj < j1; jj += NC) {
+        final int nc = Math.min(NC, j1 - jj);
+        for (int pp = 0; pp < k; pp += KC) {
+          final int kc = Math.min(KC, k - pp);
+          packB(pp, kc, jj, nc, packedB);
+          for (int ii = i0; ii < i1; ii += MC) {
+            final int mc = Math.min(MC, i1 - ii);
+            packA(ii, mc, pp, kc, packedA);
+            multiplyPanels(packedA, packedB, mc, nc, kc, cOffset + ii * ldc + jj);
+          }
+        }
+      }
+    }
+
+    /**
+     * Pack rows [i0, i0 + mc) and columns [p0, p0 + kc) of op(A), row i at [i * kc, (i + 1) * kc).
+     */
+    private void packA(int i0, int mc, int p0, int kc, float[] packed) {
+      for (int i = 0; i < mc; i++) {
+        final int out = i * kc;
+        if (transA) {
+          for (int p = 0; p < kc; p++) {
+            packed[out + p] = a[aOffset + (p0 + p) * lda + i0 + i];
+          }
+        } else {
+          System.arraycopy(a, aOffset + (i0 + i) * lda + p0, packed, out, kc);
+        }
+      }
+    }
+
+    /**
+     * Pack rows [p0, p0 + kc) and columns [j0, j0 + nc) of op(B), row p at [p * nc, (p + 1) * nc).
+     */
+    private void packB(int p0, int kc, int j0, int nc, float[] packed) {
+      for (int p = 0; p < kc; p++) {
+        final int out = p * nc;
+        if (transB) {
+          for (int j = 0; j < nc; j++) {
+            packed[out + j] = b[bOffset + (j0 + j) * ldb + p0 + p];
+          }
+        } else {
+          System.arraycopy(b, bOffset + (p0 + p) * ldb + j0, packed, out, nc);
+        }
+      }
+    }
+
+    /**
+     * Add the product of packed panels into C, four rows at a time.
+     */
+    private void multiplyPanels(float[] packedA, float[] packedB, int mc, int nc, int kc,
+        int cStart) {
+      int i = 0;
+      for (; i + 4 <= mc; i += 4) {
+        final int c0 = cStart + i * ldc;
+        final int c1 = c0 + ldc;
+        final int c2 = c1 + ldc;
+        final int c3 = c2 + ldc;
+        final int a0 = i * kc;
+        for (int p = 0; p < kc; p++) {
+          final float v0 = packedA[a0 + p];
+          final float v1 = packedA[a0 + kc + p];
+          final float v2 = packedA[a0 + 2 * kc + p];
+          final float v3 = packedA[a0 + 3 * kc + p];
+          final int row = p * nc;
+          for (int j = 0; j < nc; j++) {
+            final float v = packedB[row + j];
+            c[c0 + j] += v0 * v;
+            c[c1 + j] += v1 * v;
+            c[c2 + j] += v2 * v;
+            c[c3 + j] += v3 * v;
+          }
+        }
+      }
+      for (; i < mc; i++) {
+        final int c0 = cStart + i * ldc;
+        final int a0 = i * kc;
+        for (int p = 0; p < kc; p++) {
+          final float v0 = packedA[a0 + p];
+          if (v0 == 0) {
+            continue;
+          }
+          final int row = p * nc;
+          for (int j = 0; j < nc; j++) {
+            c[c0 + j] += v0 * packedB[row + j];
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Task that computes a single tile of C.
+   */
+  private static class TileTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Operands ops;
+    private final int i0;
+    private final int i1;
+    private final int j0;
+    private final int j1;
+
+    TileTask(Operands ops, int i0, int i1, int j0, int j1) {
+      this.ops = ops;
+      this.i0 = i0;
+      this.i1 = i1;
+      this.j0 = j0;
+      this.j1 = j1;
+    }
+
+    @Override
+    protected void compute() {
+      ops.multiplyTile(i0, i1, j0, j1);
+    }
+  }
+
+}
@@ -1,11 +1,18 @@
 package uk.ac.soton.ecs.dsjrtc.lib;
 
+import java.util.List;
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
 import org.openimaj.experiment.evaluation.classification.Classifier;
 
 /**
- * Interface describing a classifier that can be trained. See {@link Classifier}.
+ * Interface describing a classifier that can be trained. See {@link Classifier}.<br>
+ * 
+ * Implementations allow {@link #classify(Object)} and {@link #classifyAll(List)} to be called from
+ * any number of threads at once, including while the classifier is being (re)trained: trained state
+ * is published as a whole once training finishes, so classification sees either the previous or
+ * the new model, never a mix. Training methods are serialised with each other.
  * 
  * @author David Jones (dsj1n15@soton.ac.uk)
  * @author Richard Crosland (rtc1g16@soton.ac.uk)
@@ -30,4 +37,14 @@ public interface TrainableClassifier<C, O> extends Classifier<C, O> {
    */
   void retrain(GroupedDataset<C, ListDataset<O>, O> trainingSet);
 
+  /**
+   * Classify a batch of instances. Implementations may share buffers across the batch and
+   * classify it in parallel; those without a specialised implementation should fall back to
+   * {@link ParallelClassification#classifyAll(Classifier, List, int)}.
+   *
+   * @param objects Instances to classify, a {@link ListDataset} can be used directly
+   * @return Result of each instance, in the same order as the instances
+   */
+  List<ClassificationResult<C>> classifyAll(List<O> objects);
+
 }
@@ -0,0 +1,98 @@
+package uk.ac.soton.ecs.dsjrtc.run1;
+
+/**
+ * Bounded max-heap of the nearest rows of an index to a query, ordered by distance then by row so
+ * the kept rows are the same whatever order rows are offered in.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+class Neighbours {
+  final float[] distances;
+  final int[] rows;
+  int size;
+
+  /**
+   * @param k Maximum number of rows to keep
+   */
+  Neighbours(int k) {
+    this.distances = new float[k];
+    this.rows = new int[k];
+    this.size = 0;
+  }
+
+  /**
+   * @param distance Distance of a row to the query
+   * @param row Index of the row
+   */
+  void offer(float distance, int row) {
+    if (size < rows.length) {
+      distances[size] = distance;
+      rows[size] = row;
+      siftUp(size++);
+    } else if (isNearer(distance, row, 0)) {
+      distances[0] = distance;
+      rows[0] = row;
+      siftDown(0);
+    }
+  }
+
+  /**
+   * @param other Neighbours to merge into this heap
+   */
+  void merge(Neighbours other) {
+    for (int i = 0; i < other.size; i++) {
+      offer(other.distances[i], other.rows[i]);
+    }
+  }
+
+  /**
+   * @param distance Distance of a row to the query
+   * @param row Index of the row
+   * @param position Position in the heap to compare with
+   * @return Whether the row is nearer than the row at the heap position
+   */
+  private boolean isNearer(float distance, int row, int position) {
+    return distance < distances[position]
+        || (distance == distances[position] && row < rows[position]);
+  }
+
+  private void siftUp(int position) {
+    while (position > 0) {
+      final int parent = (position - 1) >>> 1;
+      if (!isNearer(distances[parent], rows[parent], position)) {
+        break;
+      }
+      swap(position, parent);
+      position = parent;
+    }
+  }
+
+  private void siftDown(int position) {
+    while (true) {
+      final int left = 2 * position + 1;
+      if (left >= size) {
+        break;
+      }
+      int furthest = left;
+      final int right = left + 1;
+      if (right < size && isNearer(distances[left], rows[left], right)) {
+        furthest = right;
+      }
+      if (!isNearer(distances[position], rows[position], furthest)) {
+        break;
+      }
+      swap(position, furthest);
+      position = furthest;
+    }
+  }
+
+  private void swap(int a, int b) {
+    final float distance = distances[a];
+    distances[a] = distances[b];
+    distances[b] = distance;
+    final int row = rows[a];
+    rows[a] = rows[b];
+    rows[b] = row;
+  }
+}
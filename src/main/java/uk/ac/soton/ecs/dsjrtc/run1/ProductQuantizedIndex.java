@@ -0,0 +1,369 @@
+package uk.ac.soton.ecs.dsjrtc.run1;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.lib.ParallelFloatKMeans;
+
+/**
+ * Approximate k-nearest neighbour index over the rows of a {@link TinyImageIndex}, using product
+ * quantisation. Vectors are split into equal subspaces, each subspace is quantised to one of a
+ * small set of centroids (learnt by k-means) and each row is stored as a single byte code per
+ * subspace.<br>
+ *
+ * Queries are compared with asymmetric distances: the distance of each subspace of the query to
+ * every centroid of that subspace is calculated once, after which the approximate distance to a
+ * row is the sum of one table lookup per subspace. This reads a fraction of the memory of an exact
+ * scan and does a fraction of the arithmetic.<br>
+ *
+ * Recall and latency are traded through the number of subspaces and centroids (finer
+ * quantisation) and the number of candidates re-ranked by their exact distance before voting. The
+ * vote is the same as the exact index, but over the approximate neighbours.<br>
+ *
+ * The index can follow changes to the exact index (see {@link #update(TinyImageIndex)}) while it is
+ * being classified against: the codebooks are kept, added rows are encoded and appended and the
+ * codes of removed rows are skipped or dropped, with the contents published as a single immutable
+ * state as in {@link TinyImageIndex}. The codebooks only reflect the rows they were learnt from, so
+ * after many changes a new index should be built.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ProductQuantizedIndex {
+  public static final int DEFAULT_SUBSPACES = 16;
+  public static final int DEFAULT_CENTROIDS = 256;
+  public static final int DEFAULT_RERANK = 0;
+  /** Maximum number of rows to learn the centroids from */
+  public static final int DEFAULT_TRAINING_SAMPLE = 16384;
+  /** Maximum number of k-means iterations per subspace */
+  private static final int KMEANS_ITERATIONS = 15;
+  /** Largest number of centroids that fits a byte code */
+  private static final int MAX_CENTROIDS = 256;
+
+  private final int dims;
+  private final int subspaces;
+  private final int centroids;
+  private final int rerank;
+  /** Length of each subspace */
+  private final int subDims;
+  /** Centroids of each subspace, centroid c of subspace s is at [(s * centroids + c) * subDims] */
+  private final float[] codebooks;
+  /** Current contents, replaced as a whole on every update */
+  private volatile State state;
+
+  /**
+   * Build an approximate index over the current rows of an exact index using all class defaults.
+   *
+   * @param index Exact index to encode
+   */
+  public ProductQuantizedIndex(TinyImageIndex index) {
+    this(index, DEFAULT_SUBSPACES, DEFAULT_CENTROIDS, DEFAULT_RERANK);
+  }
+
+  /**
+   * Build an approximate index over the current rows of an exact index, with centroids learnt from
+   * a sample of the rows using all available threads.
+   *
+   * @param index Exact index to encode, later changes are only reflected by
+   *        {@link #update(TinyImageIndex)}
+   * @param subspaces Number of subspaces to split vectors into, must divide the vector length
+   * @param centroids Number of centroids per subspace, at most 256
+   * @param rerank Number of approximate neighbours to re-rank by exact distance, no re-ranking if
+   *        zero (in which case only the codes are read when classifying)
+   */
+  public ProductQuantizedIndex(TinyImageIndex index, int subspaces, int centroids, int rerank) {
+    final TinyImageIndex snapshot = index.snapshot();
+    if (snapshot.size() == 0) {
+      throw new IllegalArgumentException("Index is empty");
+    }
+    if (subspaces <= 0 || index.getDimensions() % subspaces != 0) {
+      throw new IllegalArgumentException(String.format(
+          "Subspaces must be positive and divide the vector length %d", index.getDimensions()));
+    }
+    if (centroids <= 0 || centroids > MAX_CENTROIDS) {
+      throw new IllegalArgumentException(
+          String.format("Centroids must be in the range [1, %d]", MAX_CENTROIDS));
+    }
+    if (rerank < 0) {
+      throw new IllegalArgumentException("Re-rank count cannot be negative");
+    }
+    this.dims = index.getDimensions();
+    this.subspaces = subspaces;
+    this.rerank = rerank;
+    this.subDims = dims / subspaces;
+    // Fewer rows than centroids would leave centroids without a row
+    this.centroids = Math.min(centroids, snapshot.size());
+    this.codebooks = new float[subspaces * this.centroids * subDims];
+    train(snapshot, DEFAULT_TRAINING_SAMPLE, Runtime.getRuntime().availableProcessors());
+    final byte[] codes = new byte[snapshot.getRows() * subspaces];
+    encode(snapshot, codes, 0);
+    this.state = new State(snapshot, codes);
+  }
+
+  /**
+   * Bring the index up to date with the current rows of an exact index, keeping the codebooks.
+   * Rows added since the last update are encoded and appended past the published codes (copying
+   * only to grow), and removed rows are skipped. When the rows have been compacted since the last
+   * update the codes of the dropped rows are dropped too, and when they have been renumbered in any
+   * other way (e.g. replaced) every row is encoded again.
+   *
+   * @param index Exact index this index was built from
+   */
+  public synchronized void update(TinyImageIndex index) {
+    final TinyImageIndex snapshot = index.snapshot();
+    if (snapshot.getDimensions() != dims) {
+      throw new IllegalArgumentException(String.format(
+          "Index length %d does not match index length %d", snapshot.getDimensions(), dims));
+    }
+    if (snapshot.size() == 0) {
+      throw new IllegalArgumentException("Index is empty");
+    }
+    final State current = state;
+    final int generation = current.index.getGeneration();
+    final int rows = snapshot.getRows();
+    byte[] codes;
+    int encoded;
+    if (snapshot.getGeneration() == generation) {
+      // Rows are only appended or removed within a generation, so the codes still line up
+      codes = current.codes;
+      encoded = current.rows;
+    } else if (snapshot.getGeneration() == generation + 1
+        && snapshot.getCompactedFrom() == current.rows) {
+      // Drop the codes of the rows the compaction dropped, keeping the order of the rest
+      final long[] dropped = snapshot.getCompactedRows();
+      codes = new byte[rows * subspaces];
+      encoded = 0;
+      for (int i = 0; i < current.rows; i++) {
+        if (!TinyImageIndex.isRemoved(dropped, i)) {
+          System.arraycopy(current.codes, i * subspaces, codes, encoded * subspaces, subspaces);
+          encoded++;
+        }
+      }
+    } else {
+      codes = new byte[rows * subspaces];
+      encoded = 0;
+    }
+    if (rows * subspaces > codes.length) {
+      codes = Arrays.copyOf(codes, Math.max(16, rows * 2) * subspaces);
+    }
+    encode(snapshot, codes, encoded);
+    state = new State(snapshot, codes);
+  }
+
+  /**
+   * @return Number of rows encoded, excluding removed rows
+   */
+  public int size() {
+    return state.size;
+  }
+
+  /**
+   * @return Number of bytes used by the codes of each row
+   */
+  public int getCodeLength() {
+    return subspaces;
+  }
+
+  /**
+   * Classify a vector by a vote of its approximate k nearest neighbours.
+   *
+   * @param query Vector to classify
+   * @param k Number of neighbours to consider
+   * @return Classes of the neighbours with their share of the vote
+   */
+  public ClassificationResult<String> classify(float[] query, int k) {
+    return classify(query, 1, k).get(0);
+  }
+
+  /**
+   * Classify a batch of packed vectors by a vote of their approximate k nearest neighbours.
+   *
+   * @param queries Packed vectors to classify, query q occupies [q * dims, (q + 1) * dims)
+   * @param n Number of queries
+   * @param k Number of neighbours to consider
+   * @return Classes of the neighbours of each query with their share of the vote, in query order
+   */
+  public List<ClassificationResult<String>> classify(float[] queries, int n, int k) {
+    if (queries.length < n * dims) {
+      throw new IllegalArgumentException("Queries array is too short");
+    }
+    if (k <= 0) {
+      throw new IllegalArgumentException("Neighbours must be positive");
+    }
+    // Classify against the codes published at the start, whatever updates are made meanwhile
+    final State state = this.state;
+    k = Math.min(k, state.size);
+    final int candidates = Math.min(Math.max(k, rerank), state.size);
+    final float[] table = new float[subspaces * centroids];
+    final List<ClassificationResult<String>> results = new ArrayList<>(n);
+    for (int q = 0; q < n; q++) {
+      final int qOffset = q * dims;
+      fillTable(queries, qOffset, table);
+      Neighbours nearest = scan(state, table, candidates);
+      if (rerank > 0) {
+        final Neighbours exact = new Neighbours(k);
+        for (int i = 0; i < nearest.size; i++) {
+          final int row = nearest.rows[i];
+          exact.offer(state.index.distance(queries, qOffset, row), row);
+        }
+        nearest = exact;
+      }
+      results.add(state.index.vote(nearest));
+    }
+    return results;
+  }
+
+  /**
+   * Calculate the squared distance of every subspace of a query to every centroid of the subspace.
+   *
+   * @param queries Packed vectors
+   * @param qOffset Offset of the query in the array
+   * @param table Table to fill, the distance to centroid c of subspace s is at [s * centroids + c]
+   */
+  private void fillTable(float[] queries, int qOffset, float[] table) {
+    for (int s = 0; s < subspaces; s++) {
+      final int sOffset = qOffset + s * subDims;
+      for (int c = 0; c < centroids; c++) {
+        final int cOffset = (s * centroids + c) * subDims;
+        float sum = 0;
+        for (int d = 0; d < subDims; d++) {
+          final float diff = queries[sOffset + d] - codebooks[cOffset + d];
+          sum += diff * diff;
+        }
+        table[s * centroids + c] = sum;
+      }
+    }
+  }
+
+  /**
+   * Find the rows with the smallest approximate distances to a query, skipping removed rows.
+   *
+   * @param state Contents to scan
+   * @param table Distance table of the query
+   * @param k Number of rows to find
+   * @return Nearest rows by approximate distance
+   */
+  private Neighbours scan(State state, float[] table, int k) {
+    final byte[] codes = state.codes;
+    final long[] removed = state.removed;
+    final Neighbours nearest = new Neighbours(k);
+    for (int i = 0; i < state.rows; i++) {
+      if (TinyImageIndex.isRemoved(removed, i)) {
+        continue;
+      }
+      final int offset = i * subspaces;
+      float sum = 0;
+      for (int s = 0; s < subspaces; s++) {
+        sum += table[s * centroids + (codes[offset + s] & 0xFF)];
+      }
+      nearest.offer(sum, i);
+    }
+    return nearest;
+  }
+
+  /**
+   * Learn the centroids of every subspace by k-means over a sample of the rows not removed.
+   *
+   * @param index Snapshot of the exact index to learn from
+   * @param maxSample Maximum number of rows to learn from
+   * @param nThreads Number of threads to cluster with
+   */
+  private void train(TinyImageIndex index, int maxSample, int nThreads) {
+    final float[] vectors = index.getVectors();
+    final long[] removed = index.getRemovedRows();
+    final int size = index.size();
+    // Sample rows without replacement through a partial Fisher-Yates shuffle
+    final int sample = Math.min(maxSample, size);
+    final int[] rows = new int[size];
+    for (int i = 0, row = 0; i < index.getRows(); i++) {
+      if (!TinyImageIndex.isRemoved(removed, i)) {
+        rows[row++] = i;
+      }
+    }
+    final Random random = new Random(0);
+    for (int i = 0; i < sample; i++) {
+      final int j = i + random.nextInt(size - i);
+      final int tmp = rows[i];
+      rows[i] = rows[j];
+      rows[j] = tmp;
+    }
+    final float[] data = new float[sample * subDims];
+    for (int s = 0; s < subspaces; s++) {
+      Debugger.println(String.format("Learning centroids of subspace %d/%d...", s + 1, subspaces));
+      for (int i = 0; i < sample; i++) {
+        System.arraycopy(vectors, rows[i] * dims + s * subDims, data, i * subDims, subDims);
+      }
+      final ParallelFloatKMeans km =
+          new ParallelFloatKMeans(centroids, KMEANS_ITERATIONS, nThreads);
+      km.seed(s);
+      final float[][] learnt = km.cluster(data, sample, subDims).centroids;
+      for (int c = 0; c < centroids; c++) {
+        System.arraycopy(learnt[c], 0, codebooks, (s * centroids + c) * subDims, subDims);
+      }
+    }
+  }
+
+  /**
+   * Encode every row not removed from a row onwards as its nearest centroid in each subspace.
+   *
+   * @param index Snapshot of the exact index to encode
+   * @param codes Codes to write, must have room for every row of the index
+   * @param from Index of the first row to encode
+   */
+  private void encode(TinyImageIndex index, byte[] codes, int from) {
+    final float[] vectors = index.getVectors();
+    final long[] removed = index.getRemovedRows();
+    for (int i = from; i < index.getRows(); i++) {
+      if (TinyImageIndex.isRemoved(removed, i)) {
+        continue;
+      }
+      for (int s = 0; s < subspaces; s++) {
+        final int vOffset = i * dims + s * subDims;
+        int best = 0;
+        float bestDistance = Float.POSITIVE_INFINITY;
+        for (int c = 0; c < centroids; c++) {
+          final int cOffset = (s * centroids + c) * subDims;
+          float sum = 0;
+          for (int d = 0; d < subDims; d++) {
+            final float diff = vectors[vOffset + d] - codebooks[cOffset + d];
+            sum += diff * diff;
+          }
+          if (sum < bestDistance) {
+            bestDistance = sum;
+            best = c;
+          }
+        }
+        codes[i * subspaces + s] = (byte) best;
+      }
+    }
+  }
+
+  /**
+   * Contents of the index at one point in time. Codes of rows [0, rows) are never modified once
+   * published, later rows may be written by updates.
+   */
+  private static class State {
+    /** Snapshot of the exact index holding the rows, used for labels, voting and re-ranking */
+    private final TinyImageIndex index;
+    /** Code of each row, the code of subspace s of row i is at [i * subspaces + s] */
+    private final byte[] codes;
+    /** Number of rows, including removed rows which may not be encoded */
+    private final int rows;
+    /** Bitmap of the removed rows, null if none */
+    private final long[] removed;
+    /** Number of rows encoded, excluding removed rows */
+    private final int size;
+
+    State(TinyImageIndex index, byte[] codes) {
+      this.index = index;
+      this.codes = codes;
+      this.rows = index.getRows();
+      this.removed = index.getRemovedRows();
+      this.size = index.size();
+    }
+  }
+
+}
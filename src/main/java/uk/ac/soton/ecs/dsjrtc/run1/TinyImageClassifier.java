@@ -1,17 +1,38 @@
 package uk.ac.soton.ecs.dsjrtc.run1;
 
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
-import org.openimaj.feature.FloatFV;
 import org.openimaj.image.FImage;
-import org.openimaj.ml.annotation.basic.KNNAnnotator;
+import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.lib.FeatureStore;
+import uk.ac.soton.ecs.dsjrtc.lib.Metrics;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+import uk.ac.soton.ecs.dsjrtc.lib.ParallelClassification;
 import uk.ac.soton.ecs.dsjrtc.lib.TrainableClassifier;
-import org.openimaj.feature.FloatFVComparison;
 
 /**
  * Classifier that uses the tiny image feature vector with k-nearest neighbour classification.<br>
- * Must be trained before classification.
+ * Must be trained before classification. A trained classifier can be saved with
+ * {@link #save(File)} and restored with {@link #load(File)}. Training vectors can be kept in a
+ * {@link FeatureStore} (see {@link #setFeatureDirectory(File)}) so retraining does not need to
+ * extract them again. For large training sets an approximate index can be used instead of an exact
+ * scan (see {@link #useApproximateSearch(int, int, int)}), this is not saved.<br>
+ * 
+ * Training adds to the index in place, and images or whole classes can be added and removed online
+ * (see {@link #add(FImage, String)}, {@link #remove(FImage)} and {@link #removeClass(String)})
+ * while classification continues on other threads: changes are serialised and each classification
+ * uses the index as it was when it started (see {@link TinyImageIndex}). Retraining replaces the
+ * index in a single step. When an approximate index is used, online changes keep its codebooks,
+ * encoding added images and dropping removed ones, while training rebuilds it (as does
+ * {@link #rebuildApproximateIndex()}, to learn new codebooks after many changes).
  * 
  * @author David Jones (dsj1n15@soton.ac.uk)
  * @author Richard Crosland (rtc1g16@soton.ac.uk)
@@ -19,9 +40,24 @@ import org.openimaj.feature.FloatFVComparison;
 public class TinyImageClassifier implements TrainableClassifier<String, FImage> {
   public static final int DEFAULT_NN_K = 20;
   public static final TinyImageFeature DEFAULT_FE = new TinyImageFeature();
+  /** Model type recorded in saved files */
+  private static final String MODEL_TYPE = "TinyImageClassifier";
 
-  /** Class nearest neighbour classifier for current training set */
-  private final KNNAnnotator<FImage, String, FloatFV> knn;
+  /** Number of neighbours to consider for classification */
+  private final int nNeighbours;
+  /** Feature extractor used for training and classification */
+  private final TinyImageFeature fe;
+  /** Training vectors of the current training set */
+  private final TinyImageIndex index;
+  /** Directory of feature stores to read and write training vectors, none if null */
+  private File featureDirectory = null;
+  /** Whether to classify with an approximate index, using the settings below */
+  private boolean approximateSearch = false;
+  private int approximateSubspaces;
+  private int approximateCentroids;
+  private int approximateRerank;
+  /** Approximate index of the training vectors, updated after changes, exact search if null */
+  private volatile ProductQuantizedIndex approximate = null;
 
   /**
    * Instantiate a tiny image classifier using the class defaults.
@@ -48,29 +84,288 @@ public class TinyImageClassifier implements TrainableClassifier<String, FImage>
    * @param fe Feature extractor to use for classification
    */
   public TinyImageClassifier(int nNeighbours, TinyImageFeature fe) {
+    this(nNeighbours, fe, null);
+  }
+
+  /**
+   * Instantiate a tiny image classifier around an existing index.
+   * 
+   * @param nNeighbours Number of neighbours to consider for classification
+   * @param fe Feature extractor to use for classification
+   * @param index Index to use, a new empty index is created if null
+   */
+  private TinyImageClassifier(int nNeighbours, TinyImageFeature fe, TinyImageIndex index) {
     if (fe == null) {
       throw new IllegalArgumentException("Feature extractor cannot be null");
     }
-    this.knn = new KNNAnnotator<>(fe, FloatFVComparison.EUCLIDEAN, nNeighbours);
+    this.nNeighbours = nNeighbours;
+    this.fe = fe;
+    final Dimension scale = fe.getScale();
+    this.index = index != null ? index : new TinyImageIndex(scale.width * scale.height);
   }
 
   @Override
   public ClassificationResult<String> classify(FImage img) {
-    if (knn.getAnnotations().isEmpty()) {
+    if (index.size() == 0) {
       throw new IllegalStateException("Classifier has not yet been trained");
     }
-    return knn.classify(img);
+    final long start = Metrics.start();
+    final float[] query = fe.extractFeature(img).values;
+    final ProductQuantizedIndex approximate = this.approximate;
+    final ClassificationResult<String> result;
+    if (approximate != null) {
+      result = approximate.classify(query, nNeighbours);
+    } else {
+      // Scan a large index in parallel
+      result = index.classify(query, 1, nNeighbours, getPool()).get(0);
+    }
+    Metrics.stop(Metrics.Stage.CLASSIFY, start);
+    return result;
   }
 
+  /**
+   * @return Shared pool scanning large indexes for single classifications, null if only one thread
+   */
+  private static ForkJoinPool getPool() {
+    final int nThreads = ParallelClassification.DEFAULT_THREADS;
+    return nThreads > 1 ? ParallelClassification.getPool(nThreads) : null;
+  }
+
+  /**
+   * {@inheritDoc} Ranges of the batch are classified in parallel, the tiny images of each range
+   * being packed together and compared against the training vectors in blocks.
+   */
   @Override
-  public void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
-    knn.train(trainingSet);
+  public List<ClassificationResult<String>> classifyAll(final List<FImage> objects) {
+    if (index.size() == 0) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    final int dims = index.getDimensions();
+    final ProductQuantizedIndex approximate = this.approximate;
+    return ParallelClassification.classifyRanges(objects.size(),
+        ParallelClassification.DEFAULT_THREADS,
+        new ParallelClassification.RangeClassifier<String>() {
+          @Override
+          public void classify(int from, int to, List<ClassificationResult<String>> results) {
+            final float[] queries = new float[(to - from) * dims];
+            for (int i = from; i < to; i++) {
+              System.arraycopy(fe.extractFeature(objects.get(i)).values, 0, queries,
+                  (i - from) * dims, dims);
+            }
+            final List<ClassificationResult<String>> classified = approximate != null
+                ? approximate.classify(queries, to - from, nNeighbours)
+                : index.classify(queries, to - from, nNeighbours);
+            for (int i = from; i < to; i++) {
+              results.set(i, classified.get(i - from));
+            }
+          }
+        });
   }
 
+  /**
+   * {@inheritDoc} Images are added to the existing training vectors, so this can also be used to
+   * add whole classes online.
+   */
+  @Override
+  public synchronized void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    addAll(index, trainingSet);
+    rebuildApproximateIndex();
+  }
+
+  /**
+   * {@inheritDoc} The new training vectors are collected in a separate index which then replaces
+   * the current one, so concurrent classifications never see a partial index.
+   */
   @Override
-  public void retrain(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
-    knn.reset();
-    train(trainingSet);
+  public synchronized void retrain(
+      GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    final TinyImageIndex replacement = new TinyImageIndex(index.getDimensions());
+    addAll(replacement, trainingSet);
+    index.replace(replacement);
+    rebuildApproximateIndex();
+  }
+
+  /**
+   * Add the tiny image vectors of a training set to an index.
+   * 
+   * @param target Index to add to
+   * @param trainingSet Images to add
+   */
+  private void addAll(TinyImageIndex target,
+      GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    final FeatureStore store = openFeatureStore();
+    for (Entry<String, ListDataset<FImage>> group : trainingSet.entrySet()) {
+      for (FImage img : group.getValue()) {
+        target.add(getFeature(store, img), group.getKey());
+      }
+    }
+    FeatureStore.saveOrReport(store);
+  }
+
+  /**
+   * Add a single image to the training vectors, the class is created if it is new.
+   * 
+   * @param img Image to add
+   * @param clazz Class of the image
+   */
+  public synchronized void add(FImage img, String clazz) {
+    index.add(fe.extractFeature(img).values, clazz);
+    updateApproximateIndex();
+  }
+
+  /**
+   * Remove an image from the training vectors, along with any images with the same tiny image.
+   * Classes left without images are removed.
+   * 
+   * @param img Image to remove
+   * @return Number of training vectors removed
+   */
+  public synchronized int remove(FImage img) {
+    final int removed = index.remove(fe.extractFeature(img).values);
+    if (removed > 0) {
+      updateApproximateIndex();
+    }
+    return removed;
+  }
+
+  /**
+   * Remove every training vector of a class.
+   * 
+   * @param clazz Class to remove
+   * @return Number of training vectors removed
+   */
+  public synchronized int removeClass(String clazz) {
+    final int removed = index.removeClass(clazz);
+    if (removed > 0) {
+      updateApproximateIndex();
+    }
+    return removed;
+  }
+
+  /**
+   * Classify with an approximate product quantised index rather than an exact scan, see
+   * {@link ProductQuantizedIndex}. The index is built from the current training vectors (if any)
+   * and rebuilt after every training.
+   * 
+   * @param subspaces Number of subspaces to split vectors into, must divide the vector length
+   * @param centroids Number of centroids per subspace, at most 256
+   * @param rerank Number of approximate neighbours to re-rank by exact distance, none if zero
+   */
+  public synchronized void useApproximateSearch(int subspaces, int centroids, int rerank) {
+    approximateSearch = true;
+    approximateSubspaces = subspaces;
+    approximateCentroids = centroids;
+    approximateRerank = rerank;
+    rebuildApproximateIndex();
+  }
+
+  /**
+   * Classify with an exact scan of the training vectors, the default.
+   */
+  public synchronized void useExactSearch() {
+    approximateSearch = false;
+    approximate = null;
+  }
+
+  /**
+   * Build the approximate index of the current training vectors if approximate search is used,
+   * learning new codebooks. Online changes keep the codebooks of the existing approximate index, so
+   * this should be called once they have changed the training vectors significantly.
+   */
+  public synchronized void rebuildApproximateIndex() {
+    if (approximateSearch && index.size() > 0) {
+      Debugger.println("Building approximate index...");
+      approximate = new ProductQuantizedIndex(index, approximateSubspaces, approximateCentroids,
+          approximateRerank);
+    } else if (index.size() == 0) {
+      approximate = null;
+    }
+  }
+
+  /**
+   * Bring the approximate index up to date with an online change to the training vectors, keeping
+   * its codebooks. It is built if there was none as the training vectors were empty.
+   */
+  private void updateApproximateIndex() {
+    final ProductQuantizedIndex approximate = this.approximate;
+    if (index.size() == 0) {
+      this.approximate = null;
+    } else if (approximate != null) {
+      approximate.update(index);
+    } else {
+      rebuildApproximateIndex();
+    }
+  }
+
+  /**
+   * Set the directory of feature stores used by training, training vectors are read from the store
+   * for the current feature extractor when present and added to it when not.
+   * 
+   * @param featureDirectory Directory of feature stores, none if null
+   */
+  public void setFeatureDirectory(File featureDirectory) {
+    this.featureDirectory = featureDirectory;
+  }
+
+  /**
+   * @return Feature store for the current extractor, null if not set (or it cannot be opened)
+   */
+  private FeatureStore openFeatureStore() {
+    final Dimension scale = fe.getScale();
+    final String configKey = String.format("%s/scale=%dx%d/normalise=%b/resize=area",
+        MODEL_TYPE, scale.width, scale.height, fe.isNormalise());
+    return FeatureStore.openOrNull(featureDirectory, configKey, FeatureStore.Kind.DENSE,
+        index.getDimensions());
+  }
+
+  /**
+   * @param store Feature store to read from and add to, null to always extract
+   * @param img Image to get the tiny image vector of
+   * @return Tiny image vector of the image
+   */
+  private float[] getFeature(FeatureStore store, FImage img) {
+    if (store == null) {
+      return fe.extractFeature(img).values;
+    }
+    final long key = FeatureStore.getImageKey(img);
+    float[] feature = store.getDense(key);
+    if (feature == null) {
+      feature = fe.extractFeature(img).values;
+      store.putDense(key, feature);
+    }
+    return feature;
+  }
+
+  /**
+   * Save the trained classifier, including its full training matrix.
+   * 
+   * @param file File to save to
+   * @throws IOException If the file cannot be written
+   */
+  public void save(File file) throws IOException {
+    try (ModelWriter writer = new ModelWriter(file, MODEL_TYPE)) {
+      final Dimension scale = fe.getScale();
+      writer.writeInt(nNeighbours);
+      writer.writeInt(scale.width);
+      writer.writeInt(scale.height);
+      writer.writeBoolean(fe.isNormalise());
+      index.write(writer);
+    }
+  }
+
+  /**
+   * Load a classifier saved with {@link #save(File)}.
+   * 
+   * @param file File to load from
+   * @return The loaded classifier, ready for classification
+   * @throws IOException If the file cannot be read
+   */
+  public static TinyImageClassifier load(File file) throws IOException {
+    final ModelReader reader = new ModelReader(file, MODEL_TYPE);
+    final int nNeighbours = reader.readInt();
+    final Dimension scale = new Dimension(reader.readInt(), reader.readInt());
+    final TinyImageFeature fe = new TinyImageFeature(scale, reader.readBoolean());
+    return new TinyImageClassifier(nNeighbours, fe, TinyImageIndex.read(reader));
   }
 
 }
@@ -1,8 +1,8 @@
 package uk.ac.soton.ecs.dsjrtc.run1;
 
 import java.awt.Dimension;
+import java.util.Arrays;
 import org.openimaj.image.FImage;
-import org.openimaj.image.processing.resize.ResizeProcessor;
 import uk.ac.soton.ecs.dsjrtc.lib.FeatureUtilities;
 import org.openimaj.feature.FeatureExtractor;
 import org.openimaj.feature.FloatFV;
@@ -12,7 +12,8 @@ import org.openimaj.feature.FloatFV;
  * classifiers. <br>
  * 
  * Static image generation can be achieved using the
- * {@link #makeTinyImage(FImage img, Dimension scale, boolean normalise)} method.
+ * {@link #makeTinyImage(FImage img, Dimension scale, boolean normalise)} method, which area
+ * averages the centre of the image in a single pass over its pixels.
  * 
  * @author David Jones (dsj1n15@soton.ac.uk)
  * @author Richard Crosland (rtc1g16@soton.ac.uk)
@@ -42,6 +43,20 @@ public class TinyImageFeature implements FeatureExtractor<FloatFV, FImage> {
     this.normalise = normalise;
   }
 
+  /**
+   * @return Scale used for tiny image generation
+   */
+  public Dimension getScale() {
+    return new Dimension(scale);
+  }
+
+  /**
+   * @return Whether normalisation is used in tiny image generation
+   */
+  public boolean isNormalise() {
+    return normalise;
+  }
+
   @Override
   public FloatFV extractFeature(FImage img) {
     float[] feature = makeTinyImage(img, scale, normalise);
@@ -57,20 +72,126 @@ public class TinyImageFeature implements FeatureExtractor<FloatFV, FImage> {
    * @return The packed tiny image vector, length will be scale.width * scale.height
    */
   public static float[] makeTinyImage(FImage img, Dimension scale, boolean normalise) {
+    final float[] packed = new float[scale.width * scale.height];
+    makeTinyImage(img, scale, normalise, packed, 0);
+    return packed;
+  }
+
+  /**
+   * Create a tiny image vector from an input image directly into an array, without any
+   * intermediate allocation. The square around the centre of the image is area averaged straight
+   * from the source pixels (each tiny pixel is the mean of the source area it covers, with partly
+   * covered source pixels weighted by their coverage), then optionally normalised to [0, 1] and
+   * mean centred as {@link FeatureUtilities#inplaceNormalise(FImage)} does.
+   * 
+   * @param img Image to create the tiny image vector from, is not modified
+   * @param scale Size to resize the image to before packing
+   * @param normalise Whether the image should be normalised
+   * @param out Array to write the packed vector to
+   * @param offset Index of the array to write the first value to
+   */
+  public static void makeTinyImage(FImage img, Dimension scale, boolean normalise, float[] out,
+      int offset) {
     // Crop to square around the centre
     final int dim = Math.min(img.width, img.height);
-    img = img.extractCenter(dim, dim);
+    makeTinyImage(img, (img.width - dim) / 2, (img.height - dim) / 2, dim, scale, normalise, out,
+        offset);
+  }
+
+  /**
+   * Create a tiny image vector from a square region of an input image directly into an array, as
+   * {@link #makeTinyImage(FImage, Dimension, boolean, float[], int)} does for the square around
+   * the centre.
+   * 
+   * @param img Image to create the tiny image vector from, is not modified
+   * @param x0 Left of the region
+   * @param y0 Top of the region
+   * @param dim Width and height of the region, must lie within the image
+   * @param scale Size to resize the region to before packing
+   * @param normalise Whether the image should be normalised
+   * @param out Array to write the packed vector to
+   * @param offset Index of the array to write the first value to
+   */
+  public static void makeTinyImage(FImage img, int x0, int y0, int dim, Dimension scale,
+      boolean normalise, float[] out, int offset) {
+    final int w = scale.width;
+    final int h = scale.height;
+    final int length = w * h;
+    if (offset < 0 || out.length - offset < length) {
+      throw new IllegalArgumentException("Output array is too short");
+    }
+    if (dim <= 0 || x0 < 0 || y0 < 0 || x0 + dim > img.width || y0 + dim > img.height) {
+      throw new IllegalArgumentException("Region must lie within the image");
+    }
+    Arrays.fill(out, offset, offset + length, 0);
 
-    // Resize to tiny image scale
-    img.processInplace(new ResizeProcessor(scale.width, scale.height));
-    // Apply normalisation to image
+    // Source pixel s covers [s * w, (s + 1) * w) and tiny pixel t covers [t * dim, (t + 1) * dim)
+    // along x (likewise for y), so coverage is exact in integer units
+    for (int y = 0; y < dim; y++) {
+      final float[] row = img.pixels[y0 + y];
+      int fromY = y * h;
+      final int toY = fromY + h;
+      while (fromY < toY) {
+        final int ty = fromY / dim;
+        final int endY = Math.min(toY, (ty + 1) * dim);
+        final int weightY = endY - fromY;
+        final int rowOffset = offset + ty * w;
+        int tx = 0;
+        int cellEnd = dim;
+        for (int x = 0; x < dim; x++) {
+          final float v = row[x0 + x] * weightY;
+          int fromX = x * w;
+          final int toX = fromX + w;
+          // Spread the pixel across every tiny pixel it covers
+          while (toX > cellEnd) {
+            out[rowOffset + tx] += v * (cellEnd - fromX);
+            fromX = cellEnd;
+            tx++;
+            cellEnd += dim;
+          }
+          out[rowOffset + tx] += v * (toX - fromX);
+          if (toX == cellEnd) {
+            tx++;
+            cellEnd += dim;
+          }
+        }
+        fromY = endY;
+      }
+    }
+
+    // Every tiny pixel is covered by dim * dim units, scale to means whilst finding the range
+    final float area = 1f / ((float) dim * dim);
+    final int end = offset + length;
+    float min = Float.MAX_VALUE;
+    float max = -Float.MAX_VALUE;
+    float sum = 0;
+    for (int i = offset; i < end; i++) {
+      final float v = out[i] * area;
+      out[i] = v;
+      sum += v;
+      if (v < min) {
+        min = v;
+      }
+      if (v > max) {
+        max = v;
+      }
+    }
     if (normalise) {
-      FeatureUtilities.inplaceNormalise(img);
+      // Scale to [0, 1] (skipped for constant images) and mean centre, the mean of the scaled
+      // values follows from the mean of the unscaled values
+      final float mean = sum / length;
+      if (max != min) {
+        final float range = max - min;
+        final float scaledMean = (mean - min) / range;
+        for (int i = offset; i < end; i++) {
+          out[i] = (out[i] - min) / range - scaledMean;
+        }
+      } else {
+        for (int i = offset; i < end; i++) {
+          out[i] -= mean;
+        }
+      }
     }
-    
-    // Pack pixels into vector
-    final float[] packed = img.getFloatPixelVector();
-    return packed;
   }
 
 }
@@ -0,0 +1,727 @@
+package uk.ac.soton.ecs.dsjrtc.run1;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.openimaj.experiment.evaluation.classification.BasicClassificationResult;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+import uk.ac.soton.ecs.dsjrtc.lib.ParallelClassification;
+
+/**
+ * Labelled training matrix for k-nearest neighbour classification of tiny image vectors. All
+ * vectors are packed into a single flat array with a class index per row.<br>
+ *
+ * Classification uses the same vote as OpenIMAJ's KNNAnnotator: each of the k nearest neighbours
+ * (by Euclidean distance) votes for its class and the confidence of a class is its share of the
+ * votes.<br>
+ *
+ * Vectors and whole classes can be added and removed while the index is being classified against.
+ * The contents are published as a single immutable state: each classification reads the state
+ * once and uses it throughout, without locking, while changes are serialised and publish a new
+ * state. Additions append past the published rows (copying only to grow), removals publish a copy
+ * of a bitmap marking the removed rows, which scans skip. The rows are only compacted once more
+ * than a quarter of them have been removed, so the matrix is not copied on every removal. A read
+ * only {@link #snapshot()} can be taken for structures built from the rows, which can follow later
+ * changes through the generation of the rows: within a generation rows are only appended or marked
+ * removed, and a new generation records the rows dropped if it was started by a compaction.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class TinyImageIndex {
+  /** Smallest index that is scanned in parallel, below this thread start up dominates */
+  public static final int PARALLEL_MIN_ROWS = 8192;
+  /** Number of queries compared against the index together */
+  private static final int QUERY_BLOCK_SIZE = 8;
+  /** Number of leaf ranges to aim for per thread, allows some balancing between threads */
+  private static final int LEAVES_PER_THREAD = 4;
+  /** Rows are compacted once more than 1 / COMPACT_DIVISOR of them have been removed */
+  private static final int COMPACT_DIVISOR = 4;
+
+  private final int dims;
+  /** Current contents, replaced as a whole on every change */
+  private volatile State state;
+  /** Label of each known class, only used (and guarded) by changes */
+  private final Map<String, Integer> classIndices;
+  /** Whether changes are rejected, true for snapshots */
+  private final boolean frozen;
+
+  /**
+   * Instantiate an empty index.
+   *
+   * @param dims Length of each vector
+   */
+  public TinyImageIndex(int dims) {
+    this(dims, new State(new float[0], new int[0], 0, new String[0], null, 0, 0, null, -1), false);
+  }
+
+  /**
+   * @param dims Length of each vector
+   * @param state Initial contents
+   * @param frozen Whether changes are rejected
+   */
+  private TinyImageIndex(int dims, State state, boolean frozen) {
+    this.dims = dims;
+    this.state = state;
+    this.frozen = frozen;
+    this.classIndices = new HashMap<>();
+    for (int c = 0; c < state.classes.length; c++) {
+      classIndices.put(state.classes[c], c);
+    }
+  }
+
+  /**
+   * Add a labelled vector to the index. Rows are appended past the end of the published rows, so
+   * adding only copies the index when it grows beyond its capacity.
+   *
+   * @param vector Vector to add
+   * @param clazz Class of the vector
+   */
+  public synchronized void add(float[] vector, String clazz) {
+    checkNotFrozen();
+    if (vector.length != dims) {
+      throw new IllegalArgumentException(
+          String.format("Vector length %d does not match index length %d", vector.length, dims));
+    }
+    final State current = state;
+    String[] classes = current.classes;
+    Integer label = classIndices.get(clazz);
+    if (label == null) {
+      label = classes.length;
+      classIndices.put(clazz, label);
+      classes = Arrays.copyOf(classes, classes.length + 1);
+      classes[label] = clazz;
+    }
+    float[] vectors = current.vectors;
+    int[] labels = current.labels;
+    long[] removed = current.removed;
+    if (current.size == labels.length) {
+      final int capacity = Math.max(16, labels.length * 2);
+      labels = Arrays.copyOf(labels, capacity);
+      vectors = Arrays.copyOf(vectors, capacity * dims);
+      if (removed != null) {
+        removed = Arrays.copyOf(removed, words(capacity));
+      }
+    }
+    System.arraycopy(vector, 0, vectors, current.size * dims, dims);
+    labels[current.size] = label;
+    state = new State(vectors, labels, current.size + 1, classes, removed, current.removedCount,
+        current.generation, current.compacted, current.compactedFrom);
+  }
+
+  /**
+   * Remove every row equal to a vector, i.e. the rows of an image (or of identical images).
+   *
+   * @param vector Vector to remove
+   * @return Number of rows removed
+   */
+  public synchronized int remove(float[] vector) {
+    checkNotFrozen();
+    if (vector.length != dims) {
+      throw new IllegalArgumentException(
+          String.format("Vector length %d does not match index length %d", vector.length, dims));
+    }
+    final State current = state;
+    final long[] removed = copyRemoved(current);
+    int count = 0;
+    for (int i = 0; i < current.size; i++) {
+      if (isRemoved(removed, i)) {
+        continue;
+      }
+      final int offset = i * dims;
+      int d = 0;
+      while (d < dims && current.vectors[offset + d] == vector[d]) {
+        d++;
+      }
+      if (d == dims) {
+        removed[i >>> 6] |= 1L << i;
+        count++;
+      }
+    }
+    return markRemoved(current, removed, count);
+  }
+
+  /**
+   * Remove every row of a class.
+   *
+   * @param clazz Class to remove
+   * @return Number of rows removed
+   */
+  public synchronized int removeClass(String clazz) {
+    checkNotFrozen();
+    final Integer label = classIndices.get(clazz);
+    if (label == null) {
+      return 0;
+    }
+    final State current = state;
+    final long[] removed = copyRemoved(current);
+    int count = 0;
+    for (int i = 0; i < current.size; i++) {
+      if (current.labels[i] == label && !isRemoved(removed, i)) {
+        removed[i >>> 6] |= 1L << i;
+        count++;
+      }
+    }
+    return markRemoved(current, removed, count);
+  }
+
+  /**
+   * @param current Current contents
+   * @return Copy of the bitmap of removed rows, covering the capacity of the rows
+   */
+  private static long[] copyRemoved(State current) {
+    final int words = words(current.labels.length);
+    return current.removed == null ? new long[words] : Arrays.copyOf(current.removed, words);
+  }
+
+  /**
+   * Publish the current rows with more rows removed, compacting them once more than
+   * 1 / {@value #COMPACT_DIVISOR} of the rows are removed, which starts a new generation. The
+   * published rows and bitmap are never modified, so readers are unaffected.
+   *
+   * @param current Current contents
+   * @param removed Bitmap of the rows removed, including those already removed
+   * @param count Number of rows newly removed
+   * @return Number of rows removed
+   */
+  private int markRemoved(State current, long[] removed, int count) {
+    if (count == 0) {
+      return 0;
+    }
+    final int removedCount = current.removedCount + count;
+    if (removedCount > current.size / COMPACT_DIVISOR) {
+      final State compacted =
+          compact(current, removed).renumber(current.generation + 1, removed, current.size);
+      classIndices.clear();
+      for (int c = 0; c < compacted.classes.length; c++) {
+        classIndices.put(compacted.classes[c], c);
+      }
+      state = compacted;
+    } else {
+      state = new State(current.vectors, current.labels, current.size, current.classes, removed,
+          removedCount, current.generation, current.compacted, current.compactedFrom);
+    }
+    return count;
+  }
+
+  /**
+   * Copy the rows of some contents that have not been removed, dropping classes that no longer have
+   * any rows.
+   *
+   * @param current Contents to compact
+   * @param removed Bitmap of the rows to drop, null if none
+   * @return Compacted contents, sharing nothing with the current contents, of the same generation
+   */
+  private State compact(State current, long[] removed) {
+    final int[] counts = new int[current.classes.length];
+    int kept = 0;
+    for (int i = 0; i < current.size; i++) {
+      if (!isRemoved(removed, i)) {
+        counts[current.labels[i]]++;
+        kept++;
+      }
+    }
+    // Relabel the remaining classes in their existing order
+    final int[] relabel = new int[counts.length];
+    final List<String> classes = new ArrayList<>();
+    for (int c = 0; c < counts.length; c++) {
+      if (counts[c] > 0) {
+        relabel[c] = classes.size();
+        classes.add(current.classes[c]);
+      }
+    }
+    final float[] vectors = new float[kept * dims];
+    final int[] labels = new int[kept];
+    int row = 0;
+    for (int i = 0; i < current.size; i++) {
+      if (!isRemoved(removed, i)) {
+        System.arraycopy(current.vectors, i * dims, vectors, row * dims, dims);
+        labels[row] = relabel[current.labels[i]];
+        row++;
+      }
+    }
+    return new State(vectors, labels, kept, classes.toArray(new String[classes.size()]), null, 0,
+        current.generation, current.compacted, current.compactedFrom);
+  }
+
+  /**
+   * @param rows A number of rows
+   * @return Number of words of a bitmap of the rows
+   */
+  private static int words(int rows) {
+    return (rows + 63) >>> 6;
+  }
+
+  /**
+   * @param removed Bitmap of removed rows, null if none
+   * @param row Index of a row
+   * @return Whether the row is removed
+   */
+  static boolean isRemoved(long[] removed, int row) {
+    return removed != null && (removed[row >>> 6] & 1L << row) != 0;
+  }
+
+  /**
+   * Replace the contents of the index with those of another, in a single step for readers.
+   *
+   * @param other Index to take the rows of, must have the same vector length
+   */
+  public synchronized void replace(TinyImageIndex other) {
+    checkNotFrozen();
+    if (other.dims != dims) {
+      throw new IllegalArgumentException(
+          String.format("Index length %d does not match index length %d", other.dims, dims));
+    }
+    final State replacement = other.snapshot().state;
+    final int generation = state.generation + 1;
+    classIndices.clear();
+    if (replacement.removedCount > 0) {
+      state = compact(replacement, replacement.removed).renumber(generation, null, -1);
+    } else {
+      // Copy so that neither index appends into the other's arrays
+      state = new State(Arrays.copyOf(replacement.vectors, replacement.size * dims),
+          Arrays.copyOf(replacement.labels, replacement.size), replacement.size,
+          replacement.classes, null, 0, generation, null, -1);
+    }
+    for (int c = 0; c < state.classes.length; c++) {
+      classIndices.put(state.classes[c], c);
+    }
+  }
+
+  /**
+   * Remove all vectors and classes from the index.
+   */
+  public synchronized void clear() {
+    checkNotFrozen();
+    state = new State(new float[0], new int[0], 0, new String[0], null, 0, state.generation + 1,
+        null, -1);
+    classIndices.clear();
+  }
+
+  /**
+   * @return Read only view of the current rows, unaffected by later changes to this index
+   */
+  public TinyImageIndex snapshot() {
+    return frozen ? this : new TinyImageIndex(dims, state, true);
+  }
+
+  /**
+   * @throws UnsupportedOperationException If the index is a snapshot
+   */
+  private void checkNotFrozen() {
+    if (frozen) {
+      throw new UnsupportedOperationException("Snapshots cannot be changed");
+    }
+  }
+
+  /**
+   * @return Number of vectors in the index
+   */
+  public int size() {
+    final State state = this.state;
+    return state.size - state.removedCount;
+  }
+
+  /**
+   * @return Number of rows, including removed rows that have not yet been compacted, rows are
+   *         numbered [0, rows)
+   */
+  int getRows() {
+    return state.size;
+  }
+
+  /**
+   * @return Bitmap of the removed rows for {@link #isRemoved(long[], int)}, not copied so must not
+   *         be modified, null if none
+   */
+  long[] getRemovedRows() {
+    return state.removed;
+  }
+
+  /**
+   * @return Generation of the rows, changed whenever rows are renumbered by a compaction,
+   *         replacement or clear
+   */
+  int getGeneration() {
+    return state.generation;
+  }
+
+  /**
+   * @return Number of rows of the previous generation if the current generation was started by
+   *         compacting them, -1 otherwise
+   */
+  int getCompactedFrom() {
+    return state.compactedFrom;
+  }
+
+  /**
+   * @return Bitmap of the rows of the previous generation dropped by the compaction that started
+   *         the current generation, for {@link #isRemoved(long[], int)}, not copied so must not be
+   *         modified, null if the generation was not started by a compaction
+   */
+  long[] getCompactedRows() {
+    return state.compacted;
+  }
+
+  /**
+   * @return Length of each vector
+   */
+  public int getDimensions() {
+    return dims;
+  }
+
+  /**
+   * Classify a vector by a vote of its k nearest neighbours.
+   *
+   * @param query Vector to classify
+   * @param k Number of neighbours to consider
+   * @return Classes of the neighbours with their share of the vote
+   */
+  public ClassificationResult<String> classify(float[] query, int k) {
+    return classify(query, 1, k, 1).get(0);
+  }
+
+  /**
+   * Classify a batch of packed vectors by a vote of their k nearest neighbours on a single thread.
+   *
+   * @param queries Packed vectors to classify, query q occupies [q * dims, (q + 1) * dims)
+   * @param n Number of queries
+   * @param k Number of neighbours to consider
+   * @return Classes of the neighbours of each query with their share of the vote, in query order
+   */
+  public List<ClassificationResult<String>> classify(float[] queries, int n, int k) {
+    return classify(queries, n, k, 1);
+  }
+
+  /**
+   * Classify a batch of packed vectors by a vote of their k nearest neighbours. Queries are
+   * compared against the index a block at a time, so each training vector is read once per block
+   * rather than once per query, with the nearest rows of each query kept in a bounded heap. Indexes
+   * of at least {@value #PARALLEL_MIN_ROWS} rows are split into ranges that are scanned in
+   * parallel on the pool shared by everything using the same number of threads (see
+   * {@link ParallelClassification#getPool(int)}), then the heaps of each range are merged.<br>
+   *
+   * Ties in distance are broken by the order rows were added, so results do not depend on the
+   * number of threads.
+   *
+   * @param queries Packed vectors to classify, query q occupies [q * dims, (q + 1) * dims)
+   * @param n Number of queries
+   * @param k Number of neighbours to consider
+   * @param nThreads Number of threads to scan the index with
+   * @return Classes of the neighbours of each query with their share of the vote, in query order
+   */
+  public List<ClassificationResult<String>> classify(float[] queries, int n, int k,
+      int nThreads) {
+    if (nThreads <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive");
+    }
+    return classify(queries, n, k,
+        nThreads > 1 ? ParallelClassification.getPool(nThreads) : null);
+  }
+
+  /**
+   * Classify a batch of packed vectors by a vote of their k nearest neighbours, as
+   * {@link #classify(float[], int, int, int)} but scanning with an existing pool, so that many
+   * threads classifying at once can share a single pool.
+   *
+   * @param queries Packed vectors to classify, query q occupies [q * dims, (q + 1) * dims)
+   * @param n Number of queries
+   * @param k Number of neighbours to consider
+   * @param pool Pool to scan the index with, null to scan on the calling thread
+   * @return Classes of the neighbours of each query with their share of the vote, in query order
+   */
+  public List<ClassificationResult<String>> classify(float[] queries, int n, int k,
+      ForkJoinPool pool) {
+    // Classify against the rows published at the start, whatever changes are made meanwhile
+    final State state = this.state;
+    final int size = state.size - state.removedCount;
+    if (size == 0) {
+      throw new IllegalStateException("Index is empty");
+    }
+    if (queries.length < n * dims) {
+      throw new IllegalArgumentException("Queries array is too short");
+    }
+    if (k <= 0) {
+      throw new IllegalArgumentException("Neighbours must be positive");
+    }
+    k = Math.min(k, size);
+    final List<ClassificationResult<String>> results = new ArrayList<>(n);
+    final int rows = state.size;
+    final boolean parallel =
+        pool != null && pool.getParallelism() > 1 && size >= PARALLEL_MIN_ROWS;
+    final int leafRows =
+        parallel ? Math.max(1, rows / (pool.getParallelism() * LEAVES_PER_THREAD)) : rows;
+    for (int start = 0; start < n; start += QUERY_BLOCK_SIZE) {
+      final int block = Math.min(QUERY_BLOCK_SIZE, n - start);
+      final Neighbours[] nearest;
+      if (parallel) {
+        nearest = pool.invoke(new ScanTask(state, queries, start, block, k, 0, rows, leafRows));
+      } else {
+        nearest = scan(state, queries, start, block, k, 0, rows);
+      }
+      for (Neighbours neighbours : nearest) {
+        results.add(vote(state, neighbours));
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Find the nearest rows in a range of the index to a block of queries, skipping removed rows.
+   *
+   * @param state Contents to scan
+   * @param queries Packed vectors to classify
+   * @param start Index of the first query of the block
+   * @param block Number of queries in the block
+   * @param k Number of neighbours to find
+   * @param from Index of the first row to scan (inclusive)
+   * @param to Index of the last row to scan (exclusive)
+   * @return Nearest rows in the range to each query of the block
+   */
+  private Neighbours[] scan(State state, float[] queries, int start, int block, int k, int from,
+      int to) {
+    final float[] vectors = state.vectors;
+    final long[] removed = state.removed;
+    final Neighbours[] nearest = new Neighbours[block];
+    for (int b = 0; b < block; b++) {
+      nearest[b] = new Neighbours(k);
+    }
+    for (int i = from; i < to; i++) {
+      if (isRemoved(removed, i)) {
+        continue;
+      }
+      final int offset = i * dims;
+      int b = 0;
+      // Four queries at a time, giving independent sums for the processor to overlap while keeping
+      // the summation order (and so the distance) of each query unchanged
+      for (; b + 4 <= block; b += 4) {
+        final int q0 = (start + b) * dims;
+        final int q1 = q0 + dims;
+        final int q2 = q1 + dims;
+        final int q3 = q2 + dims;
+        float sum0 = 0;
+        float sum1 = 0;
+        float sum2 = 0;
+        float sum3 = 0;
+        for (int d = 0; d < dims; d++) {
+          final float v = vectors[offset + d];
+          final float diff0 = queries[q0 + d] - v;
+          final float diff1 = queries[q1 + d] - v;
+          final float diff2 = queries[q2 + d] - v;
+          final float diff3 = queries[q3 + d] - v;
+          sum0 += diff0 * diff0;
+          sum1 += diff1 * diff1;
+          sum2 += diff2 * diff2;
+          sum3 += diff3 * diff3;
+        }
+        nearest[b].offer(sum0, i);
+        nearest[b + 1].offer(sum1, i);
+        nearest[b + 2].offer(sum2, i);
+        nearest[b + 3].offer(sum3, i);
+      }
+      for (; b < block; b++) {
+        final int qOffset = (start + b) * dims;
+        float sum = 0;
+        for (int d = 0; d < dims; d++) {
+          final float diff = queries[qOffset + d] - vectors[offset + d];
+          sum += diff * diff;
+        }
+        nearest[b].offer(sum, i);
+      }
+    }
+    return nearest;
+  }
+
+  /**
+   * Calculate the squared Euclidean distance of a query to a row, in the same order as a scan.
+   *
+   * @param queries Packed vectors
+   * @param qOffset Offset of the query in the array
+   * @param row Index of the row
+   * @return Squared distance of the query to the row
+   */
+  float distance(float[] queries, int qOffset, int row) {
+    final float[] vectors = state.vectors;
+    final int offset = row * dims;
+    float sum = 0;
+    for (int d = 0; d < dims; d++) {
+      final float diff = queries[qOffset + d] - vectors[offset + d];
+      sum += diff * diff;
+    }
+    return sum;
+  }
+
+  /**
+   * @return Packed training vectors, not copied so must not be modified (rows past
+   *         {@link #size()} may be in use by changes)
+   */
+  float[] getVectors() {
+    return state.vectors;
+  }
+
+  /**
+   * Vote with the nearest rows to a query.
+   *
+   * @param neighbours Nearest rows to the query
+   * @return Classes of the neighbours with their share of the vote
+   */
+  ClassificationResult<String> vote(Neighbours neighbours) {
+    return vote(state, neighbours);
+  }
+
+  /**
+   * Vote with the nearest rows to a query.
+   *
+   * @param state Contents the rows were found in
+   * @param neighbours Nearest rows to the query
+   * @return Classes of the neighbours with their share of the vote
+   */
+  private static ClassificationResult<String> vote(State state, Neighbours neighbours) {
+    final int[] labels = state.labels;
+    final String[] classes = state.classes;
+    final int[] votes = new int[classes.length];
+    for (int i = 0; i < neighbours.size; i++) {
+      votes[labels[neighbours.rows[i]]]++;
+    }
+    final BasicClassificationResult<String> result = new BasicClassificationResult<>();
+    for (int c = 0; c < votes.length; c++) {
+      if (votes[c] > 0) {
+        result.put(classes[c], (double) votes[c] / neighbours.size);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Write the index to an open model file.
+   *
+   * @param writer Writer to use
+   * @throws IOException If the index cannot be written
+   */
+  public void write(ModelWriter writer) throws IOException {
+    State state = this.state;
+    if (state.removedCount > 0) {
+      state = compact(state, state.removed);
+    }
+    writer.writeInt(dims);
+    writer.writeStrings(state.classes);
+    writer.writeInts(state.labels, 0, state.size);
+    writer.writeFloats(state.vectors, 0, state.size * dims);
+  }
+
+  /**
+   * Read an index written by {@link #write(ModelWriter)}.
+   *
+   * @param reader Reader positioned at the start of the index
+   * @return The read index
+   * @throws IOException If the index cannot be read
+   */
+  public static TinyImageIndex read(ModelReader reader) throws IOException {
+    final int dims = reader.readInt();
+    final String[] classes = reader.readStrings();
+    final int[] labels = reader.readInts();
+    final float[] vectors = reader.readFloats();
+    return new TinyImageIndex(dims,
+        new State(vectors, labels, labels.length, classes, null, 0, 0, null, -1), false);
+  }
+
+  /**
+   * Task that scans a range of rows for a block of queries, splitting in half until the range is
+   * small enough and merging the nearest rows of each half.
+   */
+  private class ScanTask extends RecursiveTask<Neighbours[]> {
+    private static final long serialVersionUID = 1L;
+
+    private final State state;
+    private final float[] queries;
+    private final int start;
+    private final int block;
+    private final int k;
+    private final int from;
+    private final int to;
+    private final int leafRows;
+
+    ScanTask(State state, float[] queries, int start, int block, int k, int from, int to,
+        int leafRows) {
+      this.state = state;
+      this.queries = queries;
+      this.start = start;
+      this.block = block;
+      this.k = k;
+      this.from = from;
+      this.to = to;
+      this.leafRows = leafRows;
+    }
+
+    @Override
+    protected Neighbours[] compute() {
+      if (to - from <= leafRows) {
+        return scan(state, queries, start, block, k, from, to);
+      }
+      final int mid = (from + to) >>> 1;
+      final ScanTask right = new ScanTask(state, queries, start, block, k, mid, to, leafRows);
+      right.fork();
+      final Neighbours[] nearest =
+          new ScanTask(state, queries, start, block, k, from, mid, leafRows).compute();
+      final Neighbours[] rightNearest = right.join();
+      for (int b = 0; b < block; b++) {
+        nearest[b].merge(rightNearest[b]);
+      }
+      return nearest;
+    }
+  }
+
+  /**
+   * Contents of the index at one point in time. Rows [0, size) of the arrays and the bitmap of
+   * removed rows are never modified once published, later rows may be written by additions.
+   */
+  private static class State {
+    /** Packed training vectors, row i occupies [i * dims, (i + 1) * dims) */
+    private final float[] vectors;
+    /** Class index of each row */
+    private final int[] labels;
+    /** Number of rows in use, including removed rows */
+    private final int size;
+    /** Known classes, indexed by label */
+    private final String[] classes;
+    /** Removed rows, row i is removed if bit i % 64 of word i / 64 is set, null if none */
+    private final long[] removed;
+    /** Number of removed rows */
+    private final int removedCount;
+    /** Generation of the rows, changed whenever rows are renumbered */
+    private final int generation;
+    /** Rows of the previous generation dropped by the compaction that started this one, or null */
+    private final long[] compacted;
+    /** Number of rows of the previous generation compacted, -1 if not started by a compaction */
+    private final int compactedFrom;
+
+    State(float[] vectors, int[] labels, int size, String[] classes, long[] removed,
+        int removedCount, int generation, long[] compacted, int compactedFrom) {
+      this.vectors = vectors;
+      this.labels = labels;
+      this.size = size;
+      this.classes = classes;
+      this.removed = removed;
+      this.removedCount = removedCount;
+      this.generation = generation;
+      this.compacted = compacted;
+      this.compactedFrom = compactedFrom;
+    }
+
+    /**
+     * @return The same contents in another generation
+     */
+    State renumber(int generation, long[] compacted, int compactedFrom) {
+      return new State(vectors, labels, size, classes, removed, removedCount, generation, compacted,
+          compactedFrom);
+    }
+  }
+
+}
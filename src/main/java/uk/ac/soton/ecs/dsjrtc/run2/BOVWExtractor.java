@@ -1,50 +1,279 @@
 package uk.ac.soton.ecs.dsjrtc.run2;
 
+import java.util.Arrays;
 import org.openimaj.feature.FeatureExtractor;
-import org.openimaj.feature.FloatFV;
 import org.openimaj.feature.SparseIntFV;
-import org.openimaj.feature.local.LocalFeature;
-import org.openimaj.feature.local.SpatialLocation;
-import org.openimaj.feature.local.list.LocalFeatureList;
 import org.openimaj.image.FImage;
-import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
-import org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator;
 import org.openimaj.ml.clustering.assignment.HardAssigner;
 import org.openimaj.util.pair.IntFloatPair;
+import uk.ac.soton.ecs.dsjrtc.lib.BlockedCentroidAssigner;
+import uk.ac.soton.ecs.dsjrtc.lib.Metrics;
 
 /**
- * Features extractor that uses featuresd from a a spatial pooled bag of visual words. 
- * 
+ * Features extractor that uses featuresd from a a spatial pyramid of bags of visual words. <br>
+ *
+ * Patches are extracted densely and, when the vocabulary is a {@link BlockedCentroidAssigner},
+ * assigned to visual words a block at a time. Each level of the pyramid splits the image into an
+ * n x n grid of blocks, the words are pooled into a histogram per block (decided by the top left of
+ * each patch) and the histograms of every block of every level concatenated. A single level of 2
+ * gives the same feature as a {@link org.openimaj.image.feature.local.aggregate.BagOfVisualWords}
+ * wrapped in a 2x2 {@link org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator}.<br>
+ *
+ * All levels are built from one pass over the words: the image is split into the finest cells
+ * that no block boundary crosses, the words are counted into an integral histogram over the cells
+ * and the histogram of any block is then read with four lookups per word.
+ *
  * @author David Jones (dsj1n15@soton.ac.uk)
  * @author Richard Crosland (rtc1g16@soton.ac.uk)
  */
 public class BOVWExtractor implements FeatureExtractor<SparseIntFV, FImage> {
-  private static final int EXTRACTOR_BLOCKS_X = 2;
-  private static final int EXTRACTOR_BLOCKS_Y = 2;
-  
+  /** Single 2x2 level, as used before pyramids were supported */
+  public static final int[] DEFAULT_LEVELS = {2};
+
   private final PatchesFeature fe;
-  private final BlockSpatialAggregator<float[], SparseIntFV> aggregator;
+  private final HardAssigner<float[], float[], IntFloatPair> vocab;
+  /** Blocks along each side of the image for each pyramid level */
+  private final int[] levels;
+  /** Per thread working buffers, reused between images */
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<>();
 
   /**
-   * Instantiate a bag of visual words extractor for the given vocabulary, wrapping the created
-   * extractor in a block aggregator for spatial pooling.
-   * 
+   * Instantiate a bag of visual words extractor for the given vocabulary, pooling words into 2x2
+   * spatial blocks.
+   *
    * @param fe Feature extractor used by vocabulary
    * @param vocab Vocabularly in the form of an assigner
    */
   public BOVWExtractor(PatchesFeature fe, HardAssigner<float[], float[], IntFloatPair> vocab) {
+    this(fe, vocab, DEFAULT_LEVELS);
+  }
+
+  /**
+   * Instantiate a bag of visual words extractor for the given vocabulary, pooling words into a
+   * spatial pyramid.
+   *
+   * @param fe Feature extractor used by vocabulary
+   * @param vocab Vocabularly in the form of an assigner
+   * @param levels Blocks along each side of the image for each pyramid level, e.g. {1, 2, 4}
+   */
+  public BOVWExtractor(PatchesFeature fe, HardAssigner<float[], float[], IntFloatPair> vocab,
+      int[] levels) {
+    if (levels == null || levels.length == 0) {
+      throw new IllegalArgumentException("Pyramid must have at least one level");
+    }
+    for (int level : levels) {
+      if (level <= 0) {
+        throw new IllegalArgumentException("Pyramid levels must be positive");
+      }
+    }
     this.fe = fe;
-    // Create an bag of visual words from the vocabularly
-    final BagOfVisualWords<float[]> bovw = new BagOfVisualWords<>(vocab);
-    // Wrap BOVW inside a block aggregator to improve accuracy
-    aggregator = new BlockSpatialAggregator<float[], SparseIntFV>(bovw, EXTRACTOR_BLOCKS_X,
-        EXTRACTOR_BLOCKS_Y);
+    this.vocab = vocab;
+    this.levels = levels.clone();
+  }
+
+  /**
+   * @return Blocks along each side of the image for each pyramid level
+   */
+  public int[] getLevels() {
+    return levels.clone();
+  }
+
+  /**
+   * @return Length of the extracted features, the vocabulary size for every block of every level
+   */
+  public int getLength() {
+    int blocks = 0;
+    for (int level : levels) {
+      blocks += level * level;
+    }
+    return blocks * vocab.size();
   }
 
   @Override
   public SparseIntFV extractFeature(FImage img) {
-    LocalFeatureList<LocalFeature<SpatialLocation, FloatFV>> feature = fe.extractFeature(img);
-    return aggregator.aggregate(feature, img.getBounds());
+    return new SparseIntFV(extractHistogram(img, null));
+  }
+
+  /**
+   * Extract the feature of an image as a dense histogram, reusing the provided array where
+   * possible.
+   *
+   * @param img Image to extract the feature of
+   * @param histogram Array to fill, a new array is created if null or not of length
+   *        {@link #getLength()}
+   * @return The filled histogram
+   */
+  public int[] extractHistogram(FImage img, int[] histogram) {
+    Scratch buffers = scratch.get();
+    if (buffers == null) {
+      buffers = new Scratch(levels);
+      scratch.set(buffers);
+    }
+    final DensePatches dense = fe.extractDense(img, buffers.patches);
+    buffers.patches = dense;
+    final int count = dense.getCount();
+    if (buffers.words.length < count) {
+      buffers.words = new int[count];
+    }
+    final int[] assigned = buffers.words;
+    long start = Metrics.start();
+    if (vocab instanceof BlockedCentroidAssigner) {
+      ((BlockedCentroidAssigner) vocab).assign(dense.getData(), 0, count, assigned);
+    } else {
+      for (int i = 0; i < count; i++) {
+        assigned[i] = vocab.assign(dense.copyPatch(i));
+      }
+    }
+    Metrics.stop(Metrics.Stage.ASSIGNMENT, start);
+    Metrics.count(Metrics.Counter.PATCHES_ASSIGNED, count);
+    start = Metrics.start();
+    if (histogram == null || histogram.length != getLength()) {
+      histogram = new int[getLength()];
+    }
+    pool(dense, assigned, img.width, img.height, buffers, histogram);
+    Metrics.stop(Metrics.Stage.AGGREGATION, start);
+    return histogram;
+  }
+
+  /**
+   * Pool assigned words into the histograms of every block of every level.
+   *
+   * @param dense Patches the words were assigned from
+   * @param assigned Word of each patch
+   * @param width Width of the image
+   * @param height Height of the image
+   * @param buffers Working buffers to use
+   * @param histogram Histogram to fill, levels in order with blocks ordered row by row
+   */
+  private void pool(DensePatches dense, int[] assigned, int width, int height, Scratch buffers,
+      int[] histogram) {
+    final int nWords = vocab.size();
+    buffers.ensureSize(width, height);
+    final int cellsX = partition(width, levels, buffers.cellX, buffers.startX);
+    final int cellsY = partition(height, levels, buffers.cellY, buffers.startY);
+
+    // Count words into an integral histogram over the cells, entry (x, y) holds the counts of every
+    // cell left of x and above y
+    final int stride = cellsX + 1;
+    final int integralLength = stride * (cellsY + 1) * nWords;
+    if (buffers.integral.length < integralLength) {
+      buffers.integral = new int[integralLength];
+    }
+    final int[] integral = buffers.integral;
+    Arrays.fill(integral, 0, integralLength, 0);
+    final int count = dense.getCount();
+    for (int i = 0; i < count; i++) {
+      final int cx = buffers.cellX[dense.getX(i)] + 1;
+      final int cy = buffers.cellY[dense.getY(i)] + 1;
+      integral[(cy * stride + cx) * nWords + assigned[i]]++;
+    }
+    for (int cy = 1; cy <= cellsY; cy++) {
+      for (int cx = 1; cx <= cellsX; cx++) {
+        final int at = (cy * stride + cx) * nWords;
+        final int left = at - nWords;
+        final int up = at - stride * nWords;
+        final int upLeft = up - nWords;
+        for (int w = 0; w < nWords; w++) {
+          integral[at + w] += integral[left + w] + integral[up + w] - integral[upLeft + w];
+        }
+      }
+    }
+
+    // Read the histogram of every block from the corners of its cells
+    int offset = 0;
+    for (int l = 0; l < levels.length; l++) {
+      final int[] startX = buffers.startX[l];
+      final int[] startY = buffers.startY[l];
+      for (int by = 0; by < levels[l]; by++) {
+        for (int bx = 0; bx < levels[l]; bx++) {
+          final int topLeft = (startY[by] * stride + startX[bx]) * nWords;
+          final int topRight = (startY[by] * stride + startX[bx + 1]) * nWords;
+          final int bottomLeft = (startY[by + 1] * stride + startX[bx]) * nWords;
+          final int bottomRight = (startY[by + 1] * stride + startX[bx + 1]) * nWords;
+          for (int w = 0; w < nWords; w++) {
+            histogram[offset + w] = integral[bottomRight + w] - integral[bottomLeft + w]
+                - integral[topRight + w] + integral[topLeft + w];
+          }
+          offset += nWords;
+        }
+      }
+    }
+  }
+
+  /**
+   * Split one side of an image into the finest cells that no block boundary of any level crosses,
+   * using the same block assignment as a
+   * {@link org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator}.
+   *
+   * @param size Length of the side
+   * @param levels Blocks along the side for each level
+   * @param cellOf Array to fill with the cell of each coordinate
+   * @param blockStart Arrays to fill with the first cell of each block of each level, with the
+   *        number of cells as the final entry (blocks that no coordinate falls in are empty)
+   * @return Number of cells
+   */
+  private static int partition(int size, int[] levels, int[] cellOf, int[][] blockStart) {
+    int cells = 0;
+    final int[] previous = new int[levels.length];
+    for (int c = 0; c < size; c++) {
+      boolean boundary = c == 0;
+      for (int l = 0; l < levels.length; l++) {
+        final int block = (int) Math.floor(c / (size / (float) levels[l]));
+        if (c == 0 || block != previous[l]) {
+          boundary = true;
+          // Any blocks skipped over are empty and start where the next block does
+          for (int b = c == 0 ? 0 : previous[l] + 1; b <= block; b++) {
+            blockStart[l][b] = cells;
+          }
+          previous[l] = block;
+        }
+      }
+      if (boundary) {
+        cells++;
+      }
+      cellOf[c] = cells - 1;
+    }
+    for (int l = 0; l < levels.length; l++) {
+      for (int b = previous[l] + 1; b <= levels[l]; b++) {
+        blockStart[l][b] = cells;
+      }
+    }
+    return cells;
+  }
+
+  /**
+   * Working buffers of a single thread.
+   */
+  private static class Scratch {
+    DensePatches patches = null;
+    int[] words = new int[0];
+    int[] cellX = new int[0];
+    int[] cellY = new int[0];
+    final int[][] startX;
+    final int[][] startY;
+    int[] integral = new int[0];
+
+    Scratch(int[] levels) {
+      startX = new int[levels.length][];
+      startY = new int[levels.length][];
+      for (int l = 0; l < levels.length; l++) {
+        startX[l] = new int[levels[l] + 1];
+        startY[l] = new int[levels[l] + 1];
+      }
+    }
+
+    /**
+     * @param width Width of the next image
+     * @param height Height of the next image
+     */
+    void ensureSize(int width, int height) {
+      if (cellX.length < width) {
+        cellX = new int[width];
+      }
+      if (cellY.length < height) {
+        cellY = new int[height];
+      }
+    }
   }
 
 }
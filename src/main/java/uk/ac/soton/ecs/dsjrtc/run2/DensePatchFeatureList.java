@@ -0,0 +1,129 @@
+package uk.ac.soton.ecs.dsjrtc.run2;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.reflect.Array;
+import java.util.AbstractList;
+import java.util.Random;
+import org.openimaj.feature.FloatFV;
+import org.openimaj.feature.local.LocalFeature;
+import org.openimaj.feature.local.LocalFeatureImpl;
+import org.openimaj.feature.local.SpatialLocation;
+import org.openimaj.feature.local.list.LocalFeatureList;
+import org.openimaj.feature.local.list.MemoryLocalFeatureList;
+
+/**
+ * Read only local feature list view over a range of a {@link DensePatches} store. Features are
+ * materialised on access so the store itself never holds per patch objects.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+class DensePatchFeatureList extends AbstractList<LocalFeature<SpatialLocation, FloatFV>>
+    implements LocalFeatureList<LocalFeature<SpatialLocation, FloatFV>> {
+
+  private final DensePatches patches;
+  private final int from;
+  private final int to;
+
+  /**
+   * Create a view over patches [from, to) of the given store.
+   *
+   * @param patches Store to view
+   * @param from First patch index (inclusive)
+   * @param to Last patch index (exclusive)
+   */
+  DensePatchFeatureList(DensePatches patches, int from, int to) {
+    this.patches = patches;
+    this.from = from;
+    this.to = to;
+  }
+
+  @Override
+  public LocalFeature<SpatialLocation, FloatFV> get(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+    }
+    final int i = from + index;
+    final SpatialLocation location = new SpatialLocation(patches.getX(i), patches.getY(i));
+    return new LocalFeatureImpl<SpatialLocation, FloatFV>(location,
+        new FloatFV(patches.copyPatch(i)));
+  }
+
+  @Override
+  public int size() {
+    return to - from;
+  }
+
+  @Override
+  public int vecLength() {
+    return patches.getPatchLength();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <Q> Q[] asDataArray(Q[] a) {
+    if (a.length < size()) {
+      a = (Q[]) Array.newInstance(a.getClass().getComponentType(), size());
+    }
+    for (int i = 0; i < size(); i++) {
+      a[i] = (Q) patches.copyPatch(from + i);
+    }
+    return a;
+  }
+
+  @Override
+  public LocalFeatureList<LocalFeature<SpatialLocation, FloatFV>> subList(int fromIndex,
+      int toIndex) {
+    if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException(
+          String.format("Invalid range [%d, %d) for size %d", fromIndex, toIndex, size()));
+    }
+    return new DensePatchFeatureList(patches, from + fromIndex, from + toIndex);
+  }
+
+  @Override
+  public LocalFeatureList<LocalFeature<SpatialLocation, FloatFV>> randomSubList(int nelem) {
+    if (nelem > size()) {
+      throw new IllegalArgumentException("Cannot select more elements than the list contains");
+    }
+    // Partial Fisher-Yates shuffle of indices to pick unique elements
+    final int[] indices = new int[size()];
+    for (int i = 0; i < indices.length; i++) {
+      indices[i] = i;
+    }
+    final Random r = new Random();
+    final MemoryLocalFeatureList<LocalFeature<SpatialLocation, FloatFV>> selected =
+        new MemoryLocalFeatureList<>(nelem);
+    for (int i = 0; i < nelem; i++) {
+      final int j = i + r.nextInt(indices.length - i);
+      final int tmp = indices[i];
+      indices[i] = indices[j];
+      indices[j] = tmp;
+      selected.add(get(indices[i]));
+    }
+    return selected;
+  }
+
+  @Override
+  public void writeASCII(PrintWriter out) throws IOException {
+    new MemoryLocalFeatureList<>(this).writeASCII(out);
+  }
+
+  @Override
+  public String asciiHeader() {
+    return "";
+  }
+
+  @Override
+  public void writeBinary(DataOutput out) throws IOException {
+    new MemoryLocalFeatureList<>(this).writeBinary(out);
+  }
+
+  @Override
+  public byte[] binaryHeader() {
+    return LocalFeatureList.BINARY_HEADER;
+  }
+
+}
@@ -0,0 +1,148 @@
+package uk.ac.soton.ecs.dsjrtc.run2;
+
+import java.util.Arrays;
+import org.openimaj.feature.FloatFV;
+import org.openimaj.feature.local.LocalFeature;
+import org.openimaj.feature.local.SpatialLocation;
+import org.openimaj.feature.local.list.LocalFeatureList;
+
+/**
+ * Contiguous store of equally sized patches. All patch vectors are packed row by row into a single
+ * float array, with a matching array of interleaved (x, y) patch locations. Instances can be
+ * reused between images to avoid reallocating the backing arrays.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class DensePatches {
+  /** Length of a single patch vector */
+  private final int patchLength;
+  /** Number of patches currently held */
+  private int count;
+  /** Packed patch vectors, patch i occupies [i * patchLength, (i + 1) * patchLength) */
+  private float[] data;
+  /** Interleaved patch locations, patch i is at (locations[2i], locations[2i + 1]) */
+  private int[] locations;
+
+  /**
+   * Instantiate an empty patch store.
+   *
+   * @param patchLength Length of a single patch vector
+   */
+  public DensePatches(int patchLength) {
+    this(patchLength, 0);
+  }
+
+  /**
+   * Instantiate an empty patch store with an initial capacity.
+   *
+   * @param patchLength Length of a single patch vector
+   * @param capacity Number of patches to initially allocate space for
+   */
+  public DensePatches(int patchLength, int capacity) {
+    if (patchLength <= 0) {
+      throw new IllegalArgumentException("Patch length must be positive");
+    }
+    this.patchLength = patchLength;
+    this.count = 0;
+    this.data = new float[patchLength * capacity];
+    this.locations = new int[2 * capacity];
+  }
+
+  /**
+   * Clear the store and make sure there is space for the given number of patches. Existing backing
+   * arrays are kept when they are large enough.
+   *
+   * @param count Number of patches that will be held
+   */
+  public void reset(int count) {
+    if (data.length < count * patchLength) {
+      data = new float[count * patchLength];
+    }
+    if (locations.length < 2 * count) {
+      locations = new int[2 * count];
+    }
+    this.count = count;
+  }
+
+  /**
+   * @return Length of a single patch vector
+   */
+  public int getPatchLength() {
+    return patchLength;
+  }
+
+  /**
+   * @return Number of patches currently held
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * @return Backing patch array, only the first count * patchLength values are valid
+   */
+  public float[] getData() {
+    return data;
+  }
+
+  /**
+   * @return Backing location array, only the first 2 * count values are valid
+   */
+  public int[] getLocations() {
+    return locations;
+  }
+
+  /**
+   * @param index Index of patch
+   * @return Offset of the patch in the backing patch array
+   */
+  public int getOffset(int index) {
+    return index * patchLength;
+  }
+
+  /**
+   * @param index Index of patch
+   * @return X position of the patch
+   */
+  public int getX(int index) {
+    return locations[2 * index];
+  }
+
+  /**
+   * @param index Index of patch
+   * @return Y position of the patch
+   */
+  public int getY(int index) {
+    return locations[2 * index + 1];
+  }
+
+  /**
+   * @param index Index of patch
+   * @return A copy of the patch vector
+   */
+  public float[] copyPatch(int index) {
+    final int offset = getOffset(index);
+    return Arrays.copyOfRange(data, offset, offset + patchLength);
+  }
+
+  /**
+   * @param from First patch index (inclusive)
+   * @param to Last patch index (exclusive)
+   * @return A packed copy of the patch vectors in the range
+   */
+  public float[] copyRange(int from, int to) {
+    return Arrays.copyOfRange(data, getOffset(from), getOffset(to));
+  }
+
+  /**
+   * Create a local feature list view of the held patches. Features are created on access, the view
+   * is only valid until this store is next reset.
+   *
+   * @return Local feature list backed by this store
+   */
+  public LocalFeatureList<LocalFeature<SpatialLocation, FloatFV>> asFeatureList() {
+    return new DensePatchFeatureList(this, 0, count);
+  }
+
+}
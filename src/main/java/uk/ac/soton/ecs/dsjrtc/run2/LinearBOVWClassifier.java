@@ -1,38 +1,60 @@
 package uk.ac.soton.ecs.dsjrtc.run2;
 
-import org.openimaj.data.DataSource;
-import org.openimaj.data.dataset.Dataset;
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Map.Entry;
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
 import org.openimaj.experiment.dataset.sampling.Sampler;
 import org.openimaj.experiment.dataset.sampling.StratifiedGroupedUniformRandomisedSampler;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
-import org.openimaj.feature.FeatureExtractor;
-import org.openimaj.feature.FloatFV;
 import org.openimaj.feature.SparseIntFV;
-import org.openimaj.feature.local.LocalFeature;
-import org.openimaj.feature.local.SpatialLocation;
-import org.openimaj.feature.local.data.LocalFeatureListDataSource;
-import org.openimaj.feature.local.list.LocalFeatureList;
-import org.openimaj.feature.local.list.MemoryLocalFeatureList;
 import org.openimaj.image.FImage;
-import org.openimaj.image.feature.local.aggregate.BagOfVisualWords;
-import org.openimaj.image.feature.local.aggregate.BlockSpatialAggregator;
-import org.openimaj.ml.annotation.linear.LiblinearAnnotator;
-import org.openimaj.ml.annotation.linear.LiblinearAnnotator.Mode;
 import org.openimaj.ml.clustering.FloatCentroidsResult;
-import org.openimaj.ml.clustering.assignment.HardAssigner;
-import org.openimaj.ml.clustering.kmeans.FloatKMeans;
-import org.openimaj.util.pair.IntFloatPair;
 import de.bwaldvogel.liblinear.SolverType;
+import uk.ac.soton.ecs.dsjrtc.lib.BlockedCentroidAssigner;
 import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.lib.FeatureStore;
+import uk.ac.soton.ecs.dsjrtc.lib.IncrementalLinearTrainer;
+import uk.ac.soton.ecs.dsjrtc.lib.LinearModel;
+import uk.ac.soton.ecs.dsjrtc.lib.Metrics;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+import uk.ac.soton.ecs.dsjrtc.lib.ParallelClassification;
 import uk.ac.soton.ecs.dsjrtc.lib.TrainableClassifier;
 
 /**
  * Classifier that uses a linear classifier for annotation, with features extracted from a bag of
  * visual words (vocabulary) generated through k-means with the base feature of image patches.<br>
  * 
- * Must be trained before classification and the vocabulary can only be generated on first train.
+ * Histograms are pooled over a spatial pyramid (by default the whole image, a 2x2 grid and a 4x4
+ * grid), so the linear model can weigh where in the image each visual word appears.<br>
+ * 
+ * Must be trained before classification and the vocabulary can only be generated on first train,
+ * unless one is given with {@link #setVocabulary(FloatCentroidsResult)}. A trained classifier can
+ * be saved with {@link #save(File)} and restored with {@link #load(File)}.<br>
+ * 
+ * Training histograms can be kept in a {@link FeatureStore} (see
+ * {@link #setFeatureDirectory(File)}), so that retraining with a different C parameter (see
+ * {@link #setC(double)}) only retrains the linear model. Stores are keyed by the vocabulary, so to
+ * reuse a store between runs the vocabulary must be kept by loading a saved classifier.<br>
+ * 
+ * In incremental mode (see {@link #setIncremental(boolean)}) the training histograms are kept and
+ * the linear model is trained with an {@link IncrementalLinearTrainer}, so that new images can be
+ * added with {@link #update(GroupedDataset)}: only the new images are encoded against the frozen
+ * vocabulary and the linear model is warm started from the previous solution. Incremental state is
+ * not saved.<br>
+ * 
+ * Classification is safe from many threads at once without locking. The vocabulary, its extractor
+ * and the linear model are published together as an immutable snapshot once (re)training or
+ * updating finishes, so classification (and saving) continues with the previous model meanwhile,
+ * and each thread reuses its own histogram and score buffers.
  * 
  * @author David Jones (dsj1n15@soton.ac.uk)
  * @author Richard Crosland (rtc1g16@soton.ac.uk)
@@ -43,17 +65,52 @@ public class LinearBOVWClassifier implements TrainableClassifier<String, FImage>
   // Vocabulary modifiers
   private static final float VOCAB_IMAGE_PERCENT = 0.2f;
   private static final float VOCAB_IMAGE_FEATURE_PERCENTAGE = 1.0f;
-  private static final int K_MEANS_CLUSTERS = 500;
+  public static final int DEFAULT_K_MEANS_CLUSTERS = 500;
+  /** Blocks along each side of the image for each spatial pyramid level */
+  public static final int[] DEFAULT_PYRAMID_LEVELS = {1, 2, 4};
 
   // Annotator modifiers
-  private static final double ANNOTATOR_C_PARAM = 0.95;
+  private static final SolverType ANNOTATOR_SOLVER = SolverType.L2R_L2LOSS_SVC;
+  public static final double DEFAULT_C_PARAM = 0.95;
   private static final double ANNOTATOR_EPS = 0.00001;
+  /** Model type recorded in saved files */
+  private static final String MODEL_TYPE = "LinearBOVWClassifier";
+
+  /** Vocabulary, that gets set during first training (or given) */
+  private FloatCentroidsResult vocabulary = null;
+  /** Extractor using the vocabulary, that gets set during first training */
+  private BOVWExtractor extractor = null;
+  /**
+   * Vocabulary, extractor and linear model, published by training (and replaced during retraining)
+   */
+  private volatile Trained trained = null;
+  /** Per thread buffers for single classifications */
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
 
-  
-  /** Classifier instance, that gets set during first training (and reset during retraining) */
-  private LiblinearAnnotator<FImage, String> annotator = null;
-  
   private PatchesFeature patchesFeature;
+  /** Number of visual words in the vocabulary */
+  private final int clusters;
+  /** Clustering mode to use for vocabulary generation */
+  private final VocabularyBuilder.Mode vocabMode;
+  /** Number of threads to use for vocabulary generation and batch classification */
+  private final int nThreads;
+  /** Blocks along each side of the image for each spatial pyramid level */
+  private final int[] pyramidLevels;
+  /** Cost of constraint violation used when training the linear model */
+  private double c = DEFAULT_C_PARAM;
+  /** Directory of feature stores to read and write training histograms, none if null */
+  private File featureDirectory = null;
+  /** Whether to keep training histograms and train the linear model incrementally */
+  private boolean incremental = false;
+  /** Trainer holding the training histograms in incremental mode, null until trained */
+  private IncrementalLinearTrainer trainer = null;
+  /** Keys of the images held by the trainer, so repeated images are not added again */
+  private final Set<Long> trainedImages = new HashSet<>();
 
   /**
    * Instantiate the classifier with all class defaults.
@@ -68,18 +125,127 @@ public class LinearBOVWClassifier implements TrainableClassifier<String, FImage>
    * @param patchesFeature Patches feature extractor to use
    */
   public LinearBOVWClassifier(PatchesFeature patchesFeature) {
+    this(patchesFeature, VocabularyBuilder.DEFAULT_THREADS);
+  }
+
+  /**
+   * Instantiate the classifier with a custom patches feature and thread count.
+   * 
+   * @param patchesFeature Patches feature extractor to use
+   * @param nThreads Number of threads to use for vocabulary generation and batch classification
+   */
+  public LinearBOVWClassifier(PatchesFeature patchesFeature, int nThreads) {
+    this(patchesFeature, VocabularyBuilder.DEFAULT_MODE, nThreads);
+  }
+
+  /**
+   * Instantiate the classifier with a custom patches feature, vocabulary clustering mode and thread
+   * count.
+   * 
+   * @param patchesFeature Patches feature extractor to use
+   * @param vocabMode Clustering mode to use for vocabulary generation
+   * @param nThreads Number of threads to use for vocabulary generation and batch classification
+   */
+  public LinearBOVWClassifier(PatchesFeature patchesFeature, VocabularyBuilder.Mode vocabMode,
+      int nThreads) {
+    this(patchesFeature, vocabMode, nThreads, DEFAULT_PYRAMID_LEVELS);
+  }
+
+  /**
+   * Instantiate the classifier with a custom patches feature, vocabulary clustering mode, thread
+   * count and spatial pyramid.
+   * 
+   * @param patchesFeature Patches feature extractor to use
+   * @param vocabMode Clustering mode to use for vocabulary generation
+   * @param nThreads Number of threads to use for vocabulary generation and batch classification
+   * @param pyramidLevels Blocks along each side of the image for each spatial pyramid level
+   */
+  public LinearBOVWClassifier(PatchesFeature patchesFeature, VocabularyBuilder.Mode vocabMode,
+      int nThreads, int[] pyramidLevels) {
+    this(patchesFeature, DEFAULT_K_MEANS_CLUSTERS, vocabMode, nThreads, pyramidLevels);
+  }
+
+  /**
+   * Instantiate the classifier with a custom patches feature, vocabulary size, vocabulary
+   * clustering mode, thread count and spatial pyramid.
+   * 
+   * @param patchesFeature Patches feature extractor to use
+   * @param clusters Number of visual words in the vocabulary
+   * @param vocabMode Clustering mode to use for vocabulary generation
+   * @param nThreads Number of threads to use for vocabulary generation and batch classification
+   * @param pyramidLevels Blocks along each side of the image for each spatial pyramid level
+   */
+  public LinearBOVWClassifier(PatchesFeature patchesFeature, int clusters,
+      VocabularyBuilder.Mode vocabMode, int nThreads, int[] pyramidLevels) {
     if (patchesFeature == null) {
       throw new IllegalArgumentException("Patches feature extractor cannot be null");
     }
+    if (clusters <= 0) {
+      throw new IllegalArgumentException("Vocabulary size must be positive");
+    }
+    if (vocabMode == null) {
+      throw new IllegalArgumentException("Vocabulary mode cannot be null");
+    }
+    if (nThreads <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive");
+    }
+    if (pyramidLevels == null || pyramidLevels.length == 0) {
+      throw new IllegalArgumentException("Spatial pyramid must have at least one level");
+    }
+    for (int level : pyramidLevels) {
+      if (level <= 0) {
+        throw new IllegalArgumentException("Spatial pyramid levels must be positive");
+      }
+    }
     this.patchesFeature = patchesFeature;
+    this.clusters = clusters;
+    this.vocabMode = vocabMode;
+    this.nThreads = nThreads;
+    this.pyramidLevels = pyramidLevels.clone();
   }
 
   @Override
   public ClassificationResult<String> classify(FImage object) {
-    if (annotator == null) {
+    final Trained trained = this.trained;
+    if (trained == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    final long start = Metrics.start();
+    final Scratch buffers = scratch.get();
+    buffers.histogram = trained.extractor.extractHistogram(object, buffers.histogram);
+    if (buffers.scores == null || buffers.scores.length != trained.nClasses) {
+      buffers.scores = new float[trained.nClasses];
+    }
+    final ClassificationResult<String> result =
+        trained.model.classify(buffers.histogram, buffers.scores);
+    Metrics.stop(Metrics.Stage.CLASSIFY, start);
+    return result;
+  }
+
+  /**
+   * {@inheritDoc} Images are classified in parallel, each range of the batch reusing a single
+   * histogram and score buffer.
+   */
+  @Override
+  public List<ClassificationResult<String>> classifyAll(final List<FImage> objects) {
+    final Trained trained = this.trained;
+    if (trained == null) {
       throw new IllegalStateException("Classifier has not yet been trained");
     }
-    return annotator.classify(object);
+    final BOVWExtractor extractor = trained.extractor;
+    final LinearModel model = trained.model;
+    return ParallelClassification.classifyRanges(objects.size(), nThreads,
+        new ParallelClassification.RangeClassifier<String>() {
+          @Override
+          public void classify(int from, int to, List<ClassificationResult<String>> results) {
+            int[] histogram = null;
+            final float[] scores = new float[trained.nClasses];
+            for (int i = from; i < to; i++) {
+              histogram = extractor.extractHistogram(objects.get(i), histogram);
+              results.set(i, model.classify(histogram, scores));
+            }
+          }
+        });
   }
 
   /**
@@ -87,69 +253,287 @@ public class LinearBOVWClassifier implements TrainableClassifier<String, FImage>
    * expanded.
    */
   @Override
-  public void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
-    if (annotator == null) {
+  public synchronized void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    if (vocabulary == null) {
       // Create the vocabulary through clustered patch features (use a sample of the training set)
       Debugger.println("Making vocabulary...");
       Sampler<GroupedDataset<String, ListDataset<FImage>, FImage>> sampler =
           new StratifiedGroupedUniformRandomisedSampler<>(VOCAB_IMAGE_PERCENT);
-      final HardAssigner<float[], float[], IntFloatPair> vocab =
-          getVocabulary(sampler.sample(trainingSet), patchesFeature);
+      final VocabularyBuilder vocabBuilder = new VocabularyBuilder(patchesFeature,
+          clusters, VOCAB_IMAGE_FEATURE_PERCENTAGE, nThreads, vocabMode);
+      vocabulary = vocabBuilder.build(sampler.sample(trainingSet));
       // Group the features using a BOVW extractor
       Debugger.println("Making extractor...");
-      final FeatureExtractor<SparseIntFV, FImage> extractor =
-          new BOVWExtractor(patchesFeature, vocab);
-      // Create a linear classifier for one vs many using mode suitable for classes that can only
-      // belong to one class
-      Debugger.println("Making annotator...");
-      annotator = new LiblinearAnnotator<>(extractor, Mode.MULTICLASS, SolverType.L2R_L2LOSS_SVC,
-          ANNOTATOR_C_PARAM, ANNOTATOR_EPS);
-    }
-    // Train the classifier
+      extractor = new BOVWExtractor(patchesFeature, new BlockedCentroidAssigner(vocabulary),
+          pyramidLevels);
+    }
+    // Train a linear classifier for one vs many, suitable for classes that can only belong to one
+    // class
     Debugger.println("Training started...");
-    annotator.train(trainingSet);
+    final FeatureStore store = openFeatureStore();
+    if (incremental) {
+      trainer = new IncrementalLinearTrainer(extractor.getLength(), c,
+          IncrementalLinearTrainer.DEFAULT_EPS, nThreads);
+      trainedImages.clear();
+      addImages(store, trainingSet);
+      FeatureStore.saveOrReport(store);
+      trained = new Trained(vocabulary, extractor, trainer.train());
+      Debugger.println("Training finished");
+      return;
+    }
+    final List<SparseIntFV> features = new ArrayList<>();
+    final List<String> labels = new ArrayList<>();
+    for (Entry<String, ListDataset<FImage>> group : trainingSet.entrySet()) {
+      for (FImage img : group.getValue()) {
+        features.add(getFeature(store, img));
+        labels.add(group.getKey());
+      }
+    }
+    FeatureStore.saveOrReport(store);
+    trained = new Trained(vocabulary, extractor,
+        LinearModel.train(features, labels, ANNOTATOR_SOLVER, c, ANNOTATOR_EPS));
     Debugger.println("Training finished");
   }
 
+  /**
+   * Add new images to an incrementally trained classifier. Only images that have not been trained
+   * on are encoded, against the existing vocabulary, and the linear model is warm started from the
+   * previous solution (with the current C parameter). New classes can be introduced.
+   * 
+   * @param newImages Images to add to the training set
+   */
+  public synchronized void update(
+      GroupedDataset<String, ListDataset<FImage>, FImage> newImages) {
+    if (trainer == null) {
+      throw new IllegalStateException("Classifier has not been trained in incremental mode");
+    }
+    final FeatureStore store = openFeatureStore();
+    final int added = addImages(store, newImages);
+    FeatureStore.saveOrReport(store);
+    Debugger.println(String.format("Updating with %d new images...", added));
+    if (added > 0) {
+      trainer.setC(c);
+      trained = new Trained(vocabulary, extractor, trainer.train());
+    }
+    Debugger.println("Update finished");
+  }
+
+  /**
+   * Add the histograms of images that have not been trained on to the trainer.
+   * 
+   * @param store Feature store to read from and add to, null to always extract
+   * @param images Images to add
+   * @return Number of images added
+   */
+  private int addImages(FeatureStore store,
+      GroupedDataset<String, ListDataset<FImage>, FImage> images) {
+    int added = 0;
+    for (Entry<String, ListDataset<FImage>> group : images.entrySet()) {
+      for (FImage img : group.getValue()) {
+        final long key = FeatureStore.getImageKey(img);
+        if (trainedImages.add(key)) {
+          trainer.add(getFeature(store, key, img), group.getKey());
+          added++;
+        }
+      }
+    }
+    return added;
+  }
+
+  /**
+   * Use an already built vocabulary rather than generating one on first train, e.g. to compare
+   * vocabularies built outside the classifier. The next training encodes against it; the published
+   * model keeps its own vocabulary until then, and any incremental state is dropped.
+   * 
+   * @param vocabulary Vocabulary to use, of patch vectors
+   */
+  public synchronized void setVocabulary(FloatCentroidsResult vocabulary) {
+    if (vocabulary == null || vocabulary.centroids == null || vocabulary.centroids.length == 0) {
+      throw new IllegalArgumentException("Vocabulary must have at least one centroid");
+    }
+    this.vocabulary = vocabulary;
+    this.extractor = new BOVWExtractor(patchesFeature, new BlockedCentroidAssigner(vocabulary),
+        pyramidLevels);
+    trainer = null;
+    trainedImages.clear();
+  }
+
+  /**
+   * Set whether the next training keeps its histograms so the classifier can be updated with
+   * {@link #update(GroupedDataset)}, training the linear model with an
+   * {@link IncrementalLinearTrainer} rather than liblinear. Disabling drops any kept histograms.
+   * 
+   * @param incremental Whether to train incrementally
+   */
+  public synchronized void setIncremental(boolean incremental) {
+    this.incremental = incremental;
+    if (!incremental) {
+      trainer = null;
+      trainedImages.clear();
+    }
+  }
+
+  /**
+   * Set the cost of constraint violation used by the next training of the linear model.
+   * 
+   * @param c C parameter, must be positive
+   */
+  public void setC(double c) {
+    if (c <= 0) {
+      throw new IllegalArgumentException("C parameter must be positive");
+    }
+    this.c = c;
+  }
+
+  /**
+   * @return Cost of constraint violation used when training the linear model
+   */
+  public double getC() {
+    return c;
+  }
+
+  /**
+   * Set the directory of feature stores used by training, training histograms are read from the
+   * store for the current vocabulary when present and added to it when not.
+   * 
+   * @param featureDirectory Directory of feature stores, none if null
+   */
+  public void setFeatureDirectory(File featureDirectory) {
+    this.featureDirectory = featureDirectory;
+  }
+
+  /**
+   * @param vocabulary Vocabulary the histograms are encoded against
+   * @return Key identifying the histograms made with the vocabulary
+   */
+  private String getFeatureConfigKey(FloatCentroidsResult vocabulary) {
+    final Dimension window = patchesFeature.getWindow();
+    return String.format("%s/window=%dx%d/step=%dx%d/pyramid=%s/vocabulary=%s", MODEL_TYPE,
+        window.width, window.height, patchesFeature.getStepX(), patchesFeature.getStepY(),
+        Arrays.toString(pyramidLevels), FeatureStore.hashMatrix(vocabulary.centroids));
+  }
+
+  /**
+   * @return Feature store for the extractor training encodes with, null if not set (or it cannot be
+   *         opened)
+   */
+  private FeatureStore openFeatureStore() {
+    return FeatureStore.openOrNull(featureDirectory, getFeatureConfigKey(vocabulary),
+        FeatureStore.Kind.SPARSE, extractor.getLength());
+  }
+
+  /**
+   * @param store Feature store to read from and add to, null to always extract
+   * @param img Image to get the histogram of
+   * @return Histogram of the image
+   */
+  private SparseIntFV getFeature(FeatureStore store, FImage img) {
+    if (store == null) {
+      return extractor.extractFeature(img);
+    }
+    return getFeature(store, FeatureStore.getImageKey(img), img);
+  }
+
+  /**
+   * @param store Feature store to read from and add to, null to always extract
+   * @param key Key of the image in the store
+   * @param img Image to get the histogram of
+   * @return Histogram of the image
+   */
+  private SparseIntFV getFeature(FeatureStore store, long key, FImage img) {
+    if (store == null) {
+      return extractor.extractFeature(img);
+    }
+    SparseIntFV feature = store.getSparse(key);
+    if (feature == null) {
+      feature = extractor.extractFeature(img);
+      store.putSparse(key, feature);
+    }
+    return feature;
+  }
+
   @Override
-  public void retrain(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+  public synchronized void retrain(
+      GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
     train(trainingSet);
   }
 
   /**
-   * Get a set of features and cluster them to create a vocabulary for a bag of visual words.
+   * Save the trained classifier: the patch configuration, spatial pyramid, vocabulary and linear
+   * model. The vocabulary saved is the one the published model was trained with, even if another
+   * has since been given with {@link #setVocabulary(FloatCentroidsResult)}.
    * 
-   * @param dataset Dataset to get features from
-   * @param fe The patches feature extractor to use
-   * @return An assigner for the trained cluster
-   */
-  private static HardAssigner<float[], float[], IntFloatPair> getVocabulary(Dataset<FImage> dataset,
-      PatchesFeature fe) {
-
-    // Find image features (patches)
-    LocalFeatureList<LocalFeature<SpatialLocation, FloatFV>> features =
-        new MemoryLocalFeatureList<>();
-    Debugger.println("Extracting features...");
-    int totalFeatures = 0;
-    for (FImage img : dataset) {
-      final LocalFeatureList<LocalFeature<SpatialLocation, FloatFV>> localFeatures =
-          fe.extractFeature(img);
-      totalFeatures += localFeatures.size();
-      // Get a reduced random feature list
-      final int featureCount = (int) (localFeatures.size() * VOCAB_IMAGE_FEATURE_PERCENTAGE);
-      features.addAll(localFeatures.randomSubList(featureCount));
-    }
-    Debugger
-        .println(String.format("Found %d features, using %d...", totalFeatures, features.size()));
-
-    // Cluster using k-means
-    Debugger.println(String.format("Clustering features with %d centroids...", K_MEANS_CLUSTERS));
-    FloatKMeans km = FloatKMeans.createExact(K_MEANS_CLUSTERS);
-    DataSource<float[]> datasource = new LocalFeatureListDataSource<>(features);
-    FloatCentroidsResult result = km.cluster(datasource);
-    Debugger.println("Clustering complete...");
-
-    return result.defaultHardAssigner();
+   * @param file File to save to
+   * @throws IOException If the file cannot be written
+   */
+  public synchronized void save(File file) throws IOException {
+    final Trained trained = this.trained;
+    if (trained == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    try (ModelWriter writer = new ModelWriter(file, MODEL_TYPE)) {
+      final Dimension window = patchesFeature.getWindow();
+      writer.writeInt(window.width);
+      writer.writeInt(window.height);
+      writer.writeInt(patchesFeature.getStepX());
+      writer.writeInt(patchesFeature.getStepY());
+      writer.writeInts(pyramidLevels);
+      writer.writeFloatMatrix(trained.vocabulary.centroids);
+      trained.model.write(writer);
+    }
+  }
+
+  /**
+   * Load a classifier saved with {@link #save(File)}. Further training will reuse the loaded
+   * vocabulary.
+   * 
+   * @param file File to load from
+   * @return The loaded classifier, ready for classification
+   * @throws IOException If the file cannot be read
+   */
+  public static LinearBOVWClassifier load(File file) throws IOException {
+    final ModelReader reader = new ModelReader(file, MODEL_TYPE);
+    final Dimension window = new Dimension(reader.readInt(), reader.readInt());
+    final PatchesFeature patchesFeature =
+        new PatchesFeature(window, reader.readInt(), reader.readInt());
+    final int[] pyramidLevels = reader.readInts();
+    final float[][] centroids = reader.readFloatMatrix();
+    final LinearBOVWClassifier classifier = new LinearBOVWClassifier(patchesFeature,
+        centroids.length, VocabularyBuilder.DEFAULT_MODE, VocabularyBuilder.DEFAULT_THREADS,
+        pyramidLevels);
+    final FloatCentroidsResult vocabulary = new FloatCentroidsResult();
+    vocabulary.centroids = centroids;
+    classifier.setVocabulary(vocabulary);
+    classifier.trained = new Trained(vocabulary, classifier.extractor, LinearModel.read(reader));
+    return classifier;
+  }
+
+  /**
+   * Vocabulary and its extractor with the linear model trained on its histograms, never changed
+   * once published.
+   */
+  private static class Trained {
+    final FloatCentroidsResult vocabulary;
+    final BOVWExtractor extractor;
+    final LinearModel model;
+    /** Number of classes of the model */
+    final int nClasses;
+
+    Trained(FloatCentroidsResult vocabulary, BOVWExtractor extractor, LinearModel model) {
+      this.vocabulary = vocabulary;
+      this.extractor = extractor;
+      this.model = model;
+      this.nClasses = model.getClasses().length;
+    }
+  }
+
+  /**
+   * Buffers for classifying images on a single thread, reallocated when they do not fit the
+   * published model.
+   */
+  private static class Scratch {
+    int[] histogram = null;
+    float[] scores = null;
   }
 
 }
@@ -0,0 +1,361 @@
+package uk.ac.soton.ecs.dsjrtc.run2;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.experiment.dataset.sampling.Sampler;
+import org.openimaj.experiment.dataset.sampling.StratifiedGroupedUniformRandomisedSampler;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.feature.FloatFV;
+import org.openimaj.image.FImage;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import de.bwaldvogel.liblinear.SolverType;
+import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.lib.FeatureStore;
+import uk.ac.soton.ecs.dsjrtc.lib.LinearModel;
+import uk.ac.soton.ecs.dsjrtc.lib.Metrics;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+import uk.ac.soton.ecs.dsjrtc.lib.ParallelClassification;
+import uk.ac.soton.ecs.dsjrtc.lib.TrainableClassifier;
+
+/**
+ * Classifier that uses a linear classifier for annotation, with features extracted as vectors of
+ * locally aggregated descriptors (see {@link VLADExtractor}) over a small codebook generated
+ * through k-means with the base feature of image patches.<br>
+ *
+ * An alternative to {@link LinearBOVWClassifier} that trades a large vocabulary for a much
+ * cheaper clustering and assignment step, the same linear annotator is used for both.<br>
+ *
+ * Must be trained before classification and the codebook can only be generated on first train. A
+ * trained classifier can be saved with {@link #save(File)} and restored with
+ * {@link #load(File)}. Training vectors can be kept in a {@link FeatureStore} (see
+ * {@link #setFeatureDirectory(File)}), as with {@link LinearBOVWClassifier}.<br>
+ *
+ * Classification is safe from many threads at once without locking, the extractor and linear model
+ * being published together as an immutable snapshot as with {@link LinearBOVWClassifier}.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class LinearVLADClassifier implements TrainableClassifier<String, FImage> {
+  // Base feature extractor
+  public static final PatchesFeature DEFAULT_PATCHES_FEATURE = new PatchesFeature();
+  // Codebook modifiers
+  private static final float CODEBOOK_IMAGE_PERCENT = 0.2f;
+  private static final float CODEBOOK_IMAGE_FEATURE_PERCENTAGE = 1.0f;
+  public static final int DEFAULT_K_MEANS_CLUSTERS = 64;
+
+  // Annotator modifiers
+  private static final SolverType ANNOTATOR_SOLVER = SolverType.L2R_L2LOSS_SVC;
+  public static final double DEFAULT_C_PARAM = 0.95;
+  private static final double ANNOTATOR_EPS = 0.00001;
+  /** Model type recorded in saved files */
+  private static final String MODEL_TYPE = "LinearVLADClassifier";
+
+  /** Codebook, that gets set during first training */
+  private FloatCentroidsResult codebook = null;
+  /** Extractor using the codebook, that gets set during first training */
+  private VLADExtractor extractor = null;
+  /** Extractor and linear model, published by training (and replaced during retraining) */
+  private volatile Trained trained = null;
+  /** Per thread buffers for single classifications */
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private final PatchesFeature patchesFeature;
+  /** Number of centroids in the codebook */
+  private final int clusters;
+  /** Clustering mode to use for codebook generation */
+  private final VocabularyBuilder.Mode codebookMode;
+  /** Number of threads to use for codebook generation and batch classification */
+  private final int nThreads;
+  /** Cost of constraint violation used when training the linear model */
+  private double c = DEFAULT_C_PARAM;
+  /** Directory of feature stores to read and write training vectors, none if null */
+  private File featureDirectory = null;
+
+  /**
+   * Instantiate the classifier with all class defaults.
+   */
+  public LinearVLADClassifier() {
+    this(DEFAULT_PATCHES_FEATURE);
+  }
+
+  /**
+   * Instantiate the classifier with a custom patches feature.
+   *
+   * @param patchesFeature Patches feature extractor to use
+   */
+  public LinearVLADClassifier(PatchesFeature patchesFeature) {
+    this(patchesFeature, DEFAULT_K_MEANS_CLUSTERS);
+  }
+
+  /**
+   * Instantiate the classifier with a custom patches feature and codebook size.
+   *
+   * @param patchesFeature Patches feature extractor to use
+   * @param clusters Number of centroids in the codebook
+   */
+  public LinearVLADClassifier(PatchesFeature patchesFeature, int clusters) {
+    this(patchesFeature, clusters, VocabularyBuilder.DEFAULT_MODE,
+        VocabularyBuilder.DEFAULT_THREADS);
+  }
+
+  /**
+   * Instantiate the classifier with a custom patches feature, codebook size, codebook clustering
+   * mode and thread count.
+   *
+   * @param patchesFeature Patches feature extractor to use
+   * @param clusters Number of centroids in the codebook
+   * @param codebookMode Clustering mode to use for codebook generation
+   * @param nThreads Number of threads to use for codebook generation and batch classification
+   */
+  public LinearVLADClassifier(PatchesFeature patchesFeature, int clusters,
+      VocabularyBuilder.Mode codebookMode, int nThreads) {
+    if (patchesFeature == null) {
+      throw new IllegalArgumentException("Patches feature extractor cannot be null");
+    }
+    if (clusters <= 0) {
+      throw new IllegalArgumentException("Codebook size must be positive");
+    }
+    if (codebookMode == null) {
+      throw new IllegalArgumentException("Codebook mode cannot be null");
+    }
+    if (nThreads <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive");
+    }
+    this.patchesFeature = patchesFeature;
+    this.clusters = clusters;
+    this.codebookMode = codebookMode;
+    this.nThreads = nThreads;
+  }
+
+  @Override
+  public ClassificationResult<String> classify(FImage object) {
+    final Trained trained = this.trained;
+    if (trained == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    final long start = Metrics.start();
+    final Scratch buffers = scratch.get();
+    buffers.vector = trained.extractor.extractVector(object, buffers.vector);
+    if (buffers.scores == null || buffers.scores.length != trained.nClasses) {
+      buffers.scores = new float[trained.nClasses];
+    }
+    final ClassificationResult<String> result =
+        trained.model.classify(buffers.vector, buffers.scores);
+    Metrics.stop(Metrics.Stage.CLASSIFY, start);
+    return result;
+  }
+
+  /**
+   * {@inheritDoc} Images are classified in parallel, each range of the batch reusing a single
+   * vector and score buffer.
+   */
+  @Override
+  public List<ClassificationResult<String>> classifyAll(final List<FImage> objects) {
+    final Trained trained = this.trained;
+    if (trained == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    final VLADExtractor extractor = trained.extractor;
+    final LinearModel model = trained.model;
+    return ParallelClassification.classifyRanges(objects.size(), nThreads,
+        new ParallelClassification.RangeClassifier<String>() {
+          @Override
+          public void classify(int from, int to, List<ClassificationResult<String>> results) {
+            float[] vector = null;
+            final float[] scores = new float[trained.nClasses];
+            for (int i = from; i < to; i++) {
+              vector = extractor.extractVector(objects.get(i), vector);
+              results.set(i, model.classify(vector, scores));
+            }
+          }
+        });
+  }
+
+  /**
+   * {@inheritDoc} N.B. Will only train the annotator after first train, codebook will not be
+   * regenerated.
+   */
+  @Override
+  public synchronized void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    if (codebook == null) {
+      // Create the codebook through clustered patch features (use a sample of the training set)
+      Debugger.println("Making codebook...");
+      Sampler<GroupedDataset<String, ListDataset<FImage>, FImage>> sampler =
+          new StratifiedGroupedUniformRandomisedSampler<>(CODEBOOK_IMAGE_PERCENT);
+      final VocabularyBuilder codebookBuilder = new VocabularyBuilder(patchesFeature, clusters,
+          CODEBOOK_IMAGE_FEATURE_PERCENTAGE, nThreads, codebookMode);
+      codebook = codebookBuilder.build(sampler.sample(trainingSet));
+      Debugger.println("Making extractor...");
+      extractor = new VLADExtractor(patchesFeature, codebook);
+    }
+    Debugger.println("Training started...");
+    final FeatureStore store = openFeatureStore();
+    final List<FloatFV> features = new ArrayList<>();
+    final List<String> labels = new ArrayList<>();
+    for (Entry<String, ListDataset<FImage>> group : trainingSet.entrySet()) {
+      for (FImage img : group.getValue()) {
+        features.add(new FloatFV(getFeature(store, img)));
+        labels.add(group.getKey());
+      }
+    }
+    FeatureStore.saveOrReport(store);
+    trained = new Trained(extractor,
+        LinearModel.train(features, labels, ANNOTATOR_SOLVER, c, ANNOTATOR_EPS));
+    Debugger.println("Training finished");
+  }
+
+  /**
+   * Set the cost of constraint violation used by the next training of the linear model.
+   *
+   * @param c C parameter, must be positive
+   */
+  public void setC(double c) {
+    if (c <= 0) {
+      throw new IllegalArgumentException("C parameter must be positive");
+    }
+    this.c = c;
+  }
+
+  /**
+   * @return Cost of constraint violation used when training the linear model
+   */
+  public double getC() {
+    return c;
+  }
+
+  /**
+   * Set the directory of feature stores used by training, training vectors are read from the
+   * store for the current codebook when present and added to it when not.
+   *
+   * @param featureDirectory Directory of feature stores, none if null
+   */
+  public void setFeatureDirectory(File featureDirectory) {
+    this.featureDirectory = featureDirectory;
+  }
+
+  /**
+   * @return Key identifying the vectors made by the current extractor
+   */
+  private String getFeatureConfigKey() {
+    final Dimension window = patchesFeature.getWindow();
+    return String.format("%s/window=%dx%d/step=%dx%d/codebook=%s", MODEL_TYPE, window.width,
+        window.height, patchesFeature.getStepX(), patchesFeature.getStepY(),
+        FeatureStore.hashMatrix(codebook.centroids));
+  }
+
+  /**
+   * @return Feature store for the current extractor, null if not set (or it cannot be opened)
+   */
+  private FeatureStore openFeatureStore() {
+    return FeatureStore.openOrNull(featureDirectory, getFeatureConfigKey(),
+        FeatureStore.Kind.DENSE, extractor.getLength());
+  }
+
+  /**
+   * @param store Feature store to read from and add to, null to always extract
+   * @param img Image to get the vector of
+   * @return Vector of the image
+   */
+  private float[] getFeature(FeatureStore store, FImage img) {
+    if (store == null) {
+      return extractor.extractVector(img, null);
+    }
+    final long key = FeatureStore.getImageKey(img);
+    float[] feature = store.getDense(key);
+    if (feature == null) {
+      feature = extractor.extractVector(img, null);
+      store.putDense(key, feature);
+    }
+    return feature;
+  }
+
+  @Override
+  public synchronized void retrain(
+      GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    train(trainingSet);
+  }
+
+  /**
+   * Save the trained classifier: the patch configuration, codebook and linear model.
+   *
+   * @param file File to save to
+   * @throws IOException If the file cannot be written
+   */
+  public synchronized void save(File file) throws IOException {
+    final Trained trained = this.trained;
+    if (trained == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    try (ModelWriter writer = new ModelWriter(file, MODEL_TYPE)) {
+      final Dimension window = patchesFeature.getWindow();
+      writer.writeInt(window.width);
+      writer.writeInt(window.height);
+      writer.writeInt(patchesFeature.getStepX());
+      writer.writeInt(patchesFeature.getStepY());
+      writer.writeFloatMatrix(codebook.centroids);
+      trained.model.write(writer);
+    }
+  }
+
+  /**
+   * Load a classifier saved with {@link #save(File)}. Further training will reuse the loaded
+   * codebook.
+   *
+   * @param file File to load from
+   * @return The loaded classifier, ready for classification
+   * @throws IOException If the file cannot be read
+   */
+  public static LinearVLADClassifier load(File file) throws IOException {
+    final ModelReader reader = new ModelReader(file, MODEL_TYPE);
+    final Dimension window = new Dimension(reader.readInt(), reader.readInt());
+    final PatchesFeature patchesFeature =
+        new PatchesFeature(window, reader.readInt(), reader.readInt());
+    final FloatCentroidsResult codebook = new FloatCentroidsResult();
+    codebook.centroids = reader.readFloatMatrix();
+    final LinearVLADClassifier classifier =
+        new LinearVLADClassifier(patchesFeature, codebook.centroids.length);
+    classifier.codebook = codebook;
+    classifier.extractor = new VLADExtractor(patchesFeature, codebook);
+    classifier.trained = new Trained(classifier.extractor, LinearModel.read(reader));
+    return classifier;
+  }
+
+  /**
+   * Extractor with the linear model trained on its vectors, never changed once published.
+   */
+  private static class Trained {
+    final VLADExtractor extractor;
+    final LinearModel model;
+    /** Number of classes of the model */
+    final int nClasses;
+
+    Trained(VLADExtractor extractor, LinearModel model) {
+      this.extractor = extractor;
+      this.model = model;
+      this.nClasses = model.getClasses().length;
+    }
+  }
+
+  /**
+   * Buffers for classifying images on a single thread, reallocated when they do not fit the
+   * published model.
+   */
+  private static class Scratch {
+    float[] vector = null;
+    float[] scores = null;
+  }
+
+}
@@ -4,21 +4,21 @@ import java.awt.Dimension;
 import org.openimaj.feature.FeatureExtractor;
 import org.openimaj.feature.FloatFV;
 import org.openimaj.feature.local.LocalFeature;
-import org.openimaj.feature.local.LocalFeatureImpl;
 import org.openimaj.feature.local.SpatialLocation;
 import org.openimaj.feature.local.list.LocalFeatureList;
-import org.openimaj.feature.local.list.MemoryLocalFeatureList;
 import org.openimaj.image.FImage;
 import org.openimaj.image.pixel.sampling.RectangleSampler;
-import org.openimaj.math.geometry.shape.Rectangle;
 import uk.ac.soton.ecs.dsjrtc.lib.FeatureUtilities;
+import uk.ac.soton.ecs.dsjrtc.lib.Metrics;
 
 /**
  * Patches generator class that directly implements the feature extractor class for generic
  * classifiers. <br>
  * 
  * Static feature generation can be achieved using the:
- * {@link #getPatches(FImage img, int stepX, int stepY, Dimension window)} method.
+ * {@link #getPatches(FImage img, int stepX, int stepY, Dimension window)} method. Allocation free
+ * dense extraction into a contiguous {@link DensePatches} store can be achieved using the
+ * {@link #getDensePatches(FImage, Dimension, int, int, DensePatches)} method.
  * 
  * @author David Jones (dsj1n15@soton.ac.uk)
  * @author Richard Crosland (rtc1g16@soton.ac.uk)
@@ -67,6 +67,53 @@ public class PatchesFeature
     return getPatches(object, window, stepX, stepY);
   }
 
+  /**
+   * Extract normalised patches from the input image into a new contiguous patch store.
+   * 
+   * @param img The image to extract patches from
+   * @return Store holding all patches
+   */
+  public DensePatches extractDense(FImage img) {
+    return extractDense(img, null);
+  }
+
+  /**
+   * Extract normalised patches from the input image into a contiguous patch store, reusing the
+   * provided store where possible.
+   * 
+   * @param img The image to extract patches from
+   * @param reuse Store to reuse, a new store is created if null or of the wrong patch length
+   * @return Store holding all patches
+   */
+  public DensePatches extractDense(FImage img, DensePatches reuse) {
+    final long start = Metrics.start();
+    final DensePatches patches = getDensePatches(img, window, stepX, stepY, reuse);
+    Metrics.stop(Metrics.Stage.PATCH_EXTRACTION, start);
+    Metrics.count(Metrics.Counter.PATCHES_EXTRACTED, patches.getCount());
+    return patches;
+  }
+
+  /**
+   * @return Size of patches
+   */
+  public Dimension getWindow() {
+    return new Dimension(window);
+  }
+
+  /**
+   * @return Step size in the x direction
+   */
+  public int getStepX() {
+    return stepX;
+  }
+
+  /**
+   * @return Step size in the y direction
+   */
+  public int getStepY() {
+    return stepY;
+  }
+
   /**
    * Generate a list of normalised patches from the input image. The number of patches returned will
    * be dependent on window size and step size.
@@ -79,19 +126,48 @@ public class PatchesFeature
    */
   public static LocalFeatureList<LocalFeature<SpatialLocation, FloatFV>> getPatches(FImage img,
       Dimension window, int stepX, int stepY) {
-    LocalFeatureList<LocalFeature<SpatialLocation, FloatFV>> patches =
-        new MemoryLocalFeatureList<>();
-
-    // Generate a list of rectangles to extract as patches
-    RectangleSampler rs = new RectangleSampler(img, stepX, stepY, window.width, window.height);
-    for (Rectangle r : rs.allRectangles()) {
-      // Extract patch as feature
-      FImage extracted = img.extractROI(r);
-      FeatureUtilities.inplaceNormalise(extracted);
-      FloatFV feature = new FloatFV(extracted.getFloatPixelVector());
-      SpatialLocation location = new SpatialLocation(r.x, r.y);
-      // Record feature with location
-      patches.add(new LocalFeatureImpl<SpatialLocation, FloatFV>(location, feature));
+    return getDensePatches(img, window, stepX, stepY, null).asFeatureList();
+  }
+
+  /**
+   * Generate normalised patches from the input image, packing them into a contiguous patch store.
+   * Patches are taken row by row in the same order as a {@link RectangleSampler} over the image.
+   * 
+   * @param img The image to extract patches from
+   * @param window The size of patches
+   * @param stepX Step size in the X direction between patches
+   * @param stepY Step size in the Y direction between patches
+   * @param reuse Store to reuse, a new store is created if null or of the wrong patch length
+   * @return Store holding all patches
+   */
+  public static DensePatches getDensePatches(FImage img, Dimension window, int stepX, int stepY,
+      DensePatches reuse) {
+    final int patchLength = window.width * window.height;
+    final DensePatches patches = (reuse != null && reuse.getPatchLength() == patchLength) ? reuse
+        : new DensePatches(patchLength);
+
+    // Count the windows that fit entirely inside the image
+    final int nX = img.width < window.width ? 0 : (img.width - window.width) / stepX + 1;
+    final int nY = img.height < window.height ? 0 : (img.height - window.height) / stepY + 1;
+    patches.reset(nX * nY);
+
+    final float[][] pixels = img.pixels;
+    final float[] data = patches.getData();
+    final int[] locations = patches.getLocations();
+    int offset = 0;
+    int p = 0;
+    for (int y = 0, iy = 0; iy < nY; y += stepY, iy++) {
+      for (int x = 0, ix = 0; ix < nX; x += stepX, ix++) {
+        // Copy window rows straight into the packed array and normalise in place
+        for (int r = 0; r < window.height; r++) {
+          System.arraycopy(pixels[y + r], x, data, offset + r * window.width, window.width);
+        }
+        FeatureUtilities.inplaceNormalise(data, offset, patchLength);
+        locations[2 * p] = x;
+        locations[2 * p + 1] = y;
+        offset += patchLength;
+        p++;
+      }
     }
     return patches;
   }
@@ -0,0 +1,125 @@
+package uk.ac.soton.ecs.dsjrtc.run2;
+
+import java.util.Arrays;
+import org.openimaj.feature.FeatureExtractor;
+import org.openimaj.feature.FloatFV;
+import org.openimaj.image.FImage;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import uk.ac.soton.ecs.dsjrtc.lib.BlockedCentroidAssigner;
+import uk.ac.soton.ecs.dsjrtc.lib.FeatureUtilities;
+import uk.ac.soton.ecs.dsjrtc.lib.Metrics;
+
+/**
+ * Features extractor that encodes an image as a vector of locally aggregated descriptors (VLAD).
+ * <br>
+ *
+ * Patches are extracted densely and assigned to their nearest centroid a block at a time. Rather
+ * than counting the patches assigned to each centroid, as a bag of visual words does, the
+ * residuals of the patches from their centroid are summed, giving a dense feature of the codebook
+ * size times the patch length. Far fewer centroids are needed for the same accuracy, so clustering
+ * and assignment are much cheaper.<br>
+ *
+ * The summed residuals are power normalised (the signed square root of each value, which damps
+ * frequently repeated patches) and then scaled to unit L2 norm.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class VLADExtractor implements FeatureExtractor<FloatFV, FImage> {
+  private final PatchesFeature fe;
+  private final BlockedCentroidAssigner assigner;
+  /** Codebook, one row per centroid */
+  private final float[][] centroids;
+  /** Length of each patch (and centroid) */
+  private final int dims;
+  /** Per thread working buffers, reused between images */
+  private final ThreadLocal<Scratch> scratch = new ThreadLocal<>();
+
+  /**
+   * Instantiate a VLAD extractor for the given codebook.
+   *
+   * @param fe Feature extractor used by the codebook
+   * @param codebook Clustering result holding the centroids
+   */
+  public VLADExtractor(PatchesFeature fe, FloatCentroidsResult codebook) {
+    if (codebook.centroids.length == 0) {
+      throw new IllegalArgumentException("Codebook must have at least one centroid");
+    }
+    this.fe = fe;
+    this.assigner = new BlockedCentroidAssigner(codebook);
+    this.centroids = codebook.centroids;
+    this.dims = codebook.centroids[0].length;
+  }
+
+  /**
+   * @return Length of the extracted features, the patch length for every centroid
+   */
+  public int getLength() {
+    return centroids.length * dims;
+  }
+
+  @Override
+  public FloatFV extractFeature(FImage img) {
+    return new FloatFV(extractVector(img, null));
+  }
+
+  /**
+   * Extract the normalised VLAD vector of an image, reusing the provided array where possible.
+   *
+   * @param img Image to extract the feature of
+   * @param vector Array to fill, a new array is created if null or not of the feature length
+   * @return The filled vector, centroid c occupies [c * patch length, (c + 1) * patch length)
+   */
+  public float[] extractVector(FImage img, float[] vector) {
+    Scratch buffers = scratch.get();
+    if (buffers == null) {
+      buffers = new Scratch();
+      scratch.set(buffers);
+    }
+    final DensePatches dense = fe.extractDense(img, buffers.patches);
+    buffers.patches = dense;
+    final int count = dense.getCount();
+    if (buffers.words.length < count) {
+      buffers.words = new int[count];
+    }
+    final int[] assigned = buffers.words;
+    long start = Metrics.start();
+    assigner.assign(dense.getData(), 0, count, assigned);
+    Metrics.stop(Metrics.Stage.ASSIGNMENT, start);
+    Metrics.count(Metrics.Counter.PATCHES_ASSIGNED, count);
+    start = Metrics.start();
+
+    if (vector == null || vector.length != getLength()) {
+      vector = new float[getLength()];
+    } else {
+      Arrays.fill(vector, 0);
+    }
+    // Accumulate the residual of each patch from its centroid
+    final float[] data = dense.getData();
+    for (int i = 0; i < count; i++) {
+      final float[] centroid = centroids[assigned[i]];
+      final int patch = i * dims;
+      final int out = assigned[i] * dims;
+      for (int d = 0; d < dims; d++) {
+        vector[out + d] += data[patch + d] - centroid[d];
+      }
+    }
+    // Power normalise then L2 normalise
+    for (int i = 0; i < vector.length; i++) {
+      final float v = vector[i];
+      vector[i] = v < 0 ? (float) -Math.sqrt(-v) : (float) Math.sqrt(v);
+    }
+    FeatureUtilities.inplaceUnitL2(vector);
+    Metrics.stop(Metrics.Stage.AGGREGATION, start);
+    return vector;
+  }
+
+  /**
+   * Working buffers of a single thread.
+   */
+  private static class Scratch {
+    DensePatches patches = null;
+    int[] words = new int[0];
+  }
+
+}
@@ -0,0 +1,303 @@
+package uk.ac.soton.ecs.dsjrtc.run2;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import org.openimaj.data.dataset.Dataset;
+import org.openimaj.image.FImage;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.lib.MiniBatchFloatKMeans;
+import uk.ac.soton.ecs.dsjrtc.lib.ParallelFloatKMeans;
+
+/**
+ * Builds a visual vocabulary by clustering image patches. Patch extraction is spread across a pool
+ * of threads (images are decoded on the calling thread as the dataset is iterated) and the
+ * clustering uses one of the following modes:
+ * <ul>
+ * <li>{@link Mode#EXACT}: All selected patches are held in memory and clustered with
+ * {@link ParallelFloatKMeans}.</li>
+ * <li>{@link Mode#MINI_BATCH}: Patches are streamed into fixed size batches and clustered with
+ * {@link MiniBatchFloatKMeans}, memory use is independent of the dataset size.</li>
+ * <li>{@link Mode#APPROXIMATE}: As {@link Mode#MINI_BATCH} but batches are assigned through a k-d
+ * tree ensemble.</li>
+ * </ul>
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class VocabularyBuilder {
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+  public static final Mode DEFAULT_MODE = Mode.EXACT;
+  public static final int DEFAULT_BATCH_SIZE = 20000;
+  public static final int DEFAULT_EPOCHS = 2;
+
+  /**
+   * Clustering modes available for vocabulary generation.
+   */
+  public enum Mode {
+    EXACT, MINI_BATCH, APPROXIMATE
+  }
+
+  private final PatchesFeature fe;
+  private final int clusters;
+  private final float featurePercentage;
+  private final int nThreads;
+  private final Mode mode;
+  private final int batchSize;
+  private final int epochs;
+
+  /**
+   * Instantiate an exact vocabulary builder.
+   *
+   * @param fe The patches feature extractor to use
+   * @param clusters Number of visual words to create
+   * @param featurePercentage Fraction of the patches of each image to cluster
+   * @param nThreads Number of threads to use for extraction and clustering
+   */
+  public VocabularyBuilder(PatchesFeature fe, int clusters, float featurePercentage,
+      int nThreads) {
+    this(fe, clusters, featurePercentage, nThreads, DEFAULT_MODE);
+  }
+
+  /**
+   * Instantiate a vocabulary builder using the class default batch size and epochs for the
+   * streaming modes.
+   *
+   * @param fe The patches feature extractor to use
+   * @param clusters Number of visual words to create
+   * @param featurePercentage Fraction of the patches of each image to cluster
+   * @param nThreads Number of threads to use for extraction and clustering
+   * @param mode Clustering mode to use
+   */
+  public VocabularyBuilder(PatchesFeature fe, int clusters, float featurePercentage, int nThreads,
+      Mode mode) {
+    this(fe, clusters, featurePercentage, nThreads, mode, DEFAULT_BATCH_SIZE, DEFAULT_EPOCHS);
+  }
+
+  /**
+   * Instantiate a vocabulary builder.
+   *
+   * @param fe The patches feature extractor to use
+   * @param clusters Number of visual words to create
+   * @param featurePercentage Fraction of the patches of each image to cluster
+   * @param nThreads Number of threads to use for extraction and clustering
+   * @param mode Clustering mode to use
+   * @param batchSize Number of patches in each batch for the streaming modes
+   * @param epochs Number of passes over the dataset for the streaming modes
+   */
+  public VocabularyBuilder(PatchesFeature fe, int clusters, float featurePercentage, int nThreads,
+      Mode mode, int batchSize, int epochs) {
+    if (fe == null) {
+      throw new IllegalArgumentException("Patches feature extractor cannot be null");
+    }
+    if (mode == null) {
+      throw new IllegalArgumentException("Clustering mode cannot be null");
+    }
+    if (featurePercentage <= 0 || featurePercentage > 1) {
+      throw new IllegalArgumentException("Feature percentage must be in the range (0, 1]");
+    }
+    if (nThreads <= 0 || batchSize < clusters || epochs <= 0) {
+      throw new IllegalArgumentException(
+          "Threads and epochs must be positive, batches must hold at least one patch per cluster");
+    }
+    this.fe = fe;
+    this.clusters = clusters;
+    this.featurePercentage = featurePercentage;
+    this.nThreads = nThreads;
+    this.mode = mode;
+    this.batchSize = batchSize;
+    this.epochs = epochs;
+  }
+
+  /**
+   * Get a set of features and cluster them to create a vocabulary for a bag of visual words.
+   *
+   * @param dataset Dataset to get features from
+   * @return The trained clusters
+   */
+  public FloatCentroidsResult build(Dataset<FImage> dataset) {
+    Debugger.println(String.format("Clustering features with %d centroids (%s)...", clusters,
+        mode.name().toLowerCase()));
+    final FloatCentroidsResult result;
+    if (mode == Mode.EXACT) {
+      Debugger.println("Extracting features...");
+      final DensePatches features = extractFeatures(dataset);
+      Debugger.println(String.format("Using %d features...", features.getCount()));
+      final ParallelFloatKMeans km = new ParallelFloatKMeans(clusters, nThreads);
+      result = km.cluster(features.getData(), features.getCount(), features.getPatchLength());
+    } else {
+      result = buildStreaming(dataset);
+    }
+    Debugger.println("Clustering complete...");
+    return result;
+  }
+
+  /**
+   * Extract a random selection of patches from every image of a dataset into a single store.
+   *
+   * @param dataset Dataset to get features from
+   * @return Store holding the selected patches of all images
+   */
+  public DensePatches extractFeatures(Dataset<FImage> dataset) {
+    final int patchLength = getPatchLength();
+    final List<float[]> selections = new ArrayList<>();
+    forEachSelection(dataset, new SelectionConsumer() {
+      @Override
+      public void accept(float[] selection) {
+        selections.add(selection);
+      }
+    });
+    int total = 0;
+    for (float[] selection : selections) {
+      total += selection.length / patchLength;
+    }
+    final DensePatches features = new DensePatches(patchLength, total);
+    features.reset(total);
+    int offset = 0;
+    for (float[] selection : selections) {
+      System.arraycopy(selection, 0, features.getData(), offset, selection.length);
+      offset += selection.length;
+    }
+    return features;
+  }
+
+  /**
+   * Cluster the selected patches in fixed size batches, only one batch is held at a time.
+   *
+   * @param dataset Dataset to get features from
+   * @return The trained clusters
+   */
+  private FloatCentroidsResult buildStreaming(Dataset<FImage> dataset) {
+    final int patchLength = getPatchLength();
+    final MiniBatchFloatKMeans km =
+        new MiniBatchFloatKMeans(clusters, patchLength, mode == Mode.APPROXIMATE, nThreads);
+    final float[] batch = new float[batchSize * patchLength];
+    try {
+      for (int epoch = 0; epoch < epochs; epoch++) {
+        Debugger.println(String.format("Starting epoch %d of %d...", epoch + 1, epochs));
+        final int[] filled = {0};
+        forEachSelection(dataset, new SelectionConsumer() {
+          @Override
+          public void accept(float[] selection) {
+            // Copy into the batch, running an update each time it fills
+            int offset = 0;
+            while (offset < selection.length) {
+              final int length =
+                  Math.min(selection.length - offset, batch.length - filled[0] * patchLength);
+              System.arraycopy(selection, offset, batch, filled[0] * patchLength, length);
+              filled[0] += length / patchLength;
+              offset += length;
+              if (filled[0] == batchSize) {
+                km.update(batch, batchSize);
+                filled[0] = 0;
+              }
+            }
+          }
+        });
+        // Use the remainder if it is large enough to be meaningful (or needed to initialise)
+        if (filled[0] > 0 && (filled[0] >= clusters || !km.isInitialised())) {
+          km.update(batch, filled[0]);
+        }
+      }
+      return km.getResult();
+    } finally {
+      km.shutdown();
+    }
+  }
+
+  /**
+   * @return Length of a single patch vector
+   */
+  private int getPatchLength() {
+    return fe.getWindow().width * fe.getWindow().height;
+  }
+
+  /**
+   * Consumer of packed patch selections.
+   */
+  private interface SelectionConsumer {
+    /**
+     * @param selection Packed selected patches of a single image
+     */
+    void accept(float[] selection);
+  }
+
+  /**
+   * Extract patch selections from every image of a dataset on a thread pool, passing them to the
+   * consumer on the calling thread in dataset order. At most a fixed number of images are in flight
+   * at any time.
+   *
+   * @param dataset Dataset to get features from
+   * @param consumer Consumer of each image's selection
+   */
+  private void forEachSelection(Dataset<FImage> dataset, SelectionConsumer consumer) {
+    final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    final int maxInFlight = 2 * nThreads;
+    final Queue<Future<float[]>> inFlight = new ArrayDeque<>(maxInFlight);
+    try {
+      for (final FImage img : dataset) {
+        if (inFlight.size() == maxInFlight) {
+          consumer.accept(inFlight.remove().get());
+        }
+        inFlight.add(executor.submit(new Callable<float[]>() {
+          @Override
+          public float[] call() {
+            return selectPatches(img);
+          }
+        }));
+      }
+      while (!inFlight.isEmpty()) {
+        consumer.accept(inFlight.remove().get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted whilst extracting features", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Feature extraction failed", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Extract the patches of an image and pack a random selection of them.
+   *
+   * @param img Image to extract from
+   * @return Packed selected patches
+   */
+  private float[] selectPatches(FImage img) {
+    final DensePatches patches = fe.extractDense(img);
+    final int patchLength = patches.getPatchLength();
+    final int count = patches.getCount();
+    final int selected = (int) (count * featurePercentage);
+    if (selected == count) {
+      return patches.getData().length == count * patchLength ? patches.getData()
+          : patches.copyRange(0, count);
+    }
+    // Partial Fisher-Yates over patch indices
+    final int[] indices = new int[count];
+    for (int i = 0; i < count; i++) {
+      indices[i] = i;
+    }
+    final ThreadLocalRandom random = ThreadLocalRandom.current();
+    final float[] out = new float[selected * patchLength];
+    for (int i = 0; i < selected; i++) {
+      final int j = i + random.nextInt(count - i);
+      final int tmp = indices[i];
+      indices[i] = indices[j];
+      indices[j] = tmp;
+      System.arraycopy(patches.getData(), patches.getOffset(indices[i]), out, i * patchLength,
+          patchLength);
+    }
+    return out;
+  }
+
+}
@@ -0,0 +1,267 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.awt.Dimension;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.image.FImage;
+
+/**
+ * Batch source that creates randomly augmented inputs from the images of a grouped dataset as they
+ * are needed, using an {@link ImageAugmenter}. Only the batches in flight are held, so a new
+ * version of every image is seen each epoch without multiplying the dataset in memory.<br>
+ *
+ * Batches are made by a background pool of producers, up to a fixed number ahead of the batch
+ * being trained on, so augmentation overlaps with training. The pool is started with the first
+ * epoch and reused by later ones until the source is closed; beginning an epoch cancels the
+ * batches still queued for an abandoned one. Reading images from the dataset is
+ * serialised (archives do not support concurrent reads) but augmentation is done in parallel; the
+ * dataset can be wrapped in a {@link uk.ac.soton.ecs.dsjrtc.lib.CachedListDataset} so images are
+ * not decoded again every epoch.<br>
+ *
+ * The shuffle and the randomness of every batch are drawn up front from the source of randomness
+ * given to {@link #epoch(int, Random)}, so the batches of an epoch do not depend on which producer
+ * made them.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class AugmentedBatchSource implements BatchSource {
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+
+  /** Group of each sample */
+  private final List<ListDataset<FImage>> groups;
+  /** Index of the group of each sample within the classes */
+  private final int[] targets;
+  /** Index of each sample within its group */
+  private final int[] indices;
+  private final ImageAugmenter augmenter;
+  private final Dimension scale;
+  private final int nThreads;
+  /** Maximum number of batches made ahead of the one being trained on */
+  private final int prefetch;
+  /** Lock serialising dataset reads */
+  private final Object readLock = new Object();
+  /** Producer pool, null until the first epoch */
+  private ExecutorService executor = null;
+  /** Iterator of the latest epoch */
+  private Producer current = null;
+  private boolean closed = false;
+
+  /**
+   * Instantiate a source over a dataset.
+   *
+   * @param dataset Dataset to draw images from
+   * @param classes Sorted classes, the target of each image is the index of its group
+   * @param augmenter Augmenter to create inputs with
+   * @param scale Size of each input
+   * @param nThreads Number of producer threads
+   */
+  public AugmentedBatchSource(GroupedDataset<String, ListDataset<FImage>, FImage> dataset,
+      String[] classes, ImageAugmenter augmenter, Dimension scale, int nThreads) {
+    if (nThreads <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive");
+    }
+    final int size = dataset.numInstances();
+    this.groups = new ArrayList<>(size);
+    this.targets = new int[size];
+    this.indices = new int[size];
+    int i = 0;
+    for (String group : dataset.getGroups()) {
+      final int target = Arrays.binarySearch(classes, group);
+      if (target < 0) {
+        throw new IllegalArgumentException("Dataset group is not a class: " + group);
+      }
+      final ListDataset<FImage> instances = dataset.get(group);
+      for (int index = 0; index < instances.size(); index++) {
+        groups.add(instances);
+        targets[i] = target;
+        indices[i++] = index;
+      }
+    }
+    this.augmenter = augmenter;
+    this.scale = new Dimension(scale);
+    this.nThreads = nThreads;
+    this.prefetch = 2 * nThreads;
+  }
+
+  @Override
+  public int size() {
+    return targets.length;
+  }
+
+  @Override
+  public synchronized Iterator<Batch> epoch(final int batchSize, Random random) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("Batch size must be positive");
+    }
+    if (closed) {
+      throw new IllegalStateException("Batch source has been closed");
+    }
+    // Fisher-Yates shuffle of the sample order
+    final int[] order = new int[targets.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    for (int i = order.length - 1; i > 0; i--) {
+      final int j = random.nextInt(i + 1);
+      final int swap = order[i];
+      order[i] = order[j];
+      order[j] = swap;
+    }
+    final long[] seeds = new long[(order.length + batchSize - 1) / batchSize];
+    for (int b = 0; b < seeds.length; b++) {
+      seeds[b] = random.nextLong();
+    }
+    if (current != null) {
+      current.cancel();
+    }
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(nThreads, new ThreadFactory() {
+        private final ThreadFactory factory = Executors.defaultThreadFactory();
+
+        @Override
+        public Thread newThread(Runnable r) {
+          final Thread thread = factory.newThread(r);
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    current = new Producer(executor, order, batchSize, seeds);
+    return current;
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (current != null) {
+      current.cancel();
+      current = null;
+    }
+    if (executor != null) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  /**
+   * Make a single batch.
+   *
+   * @param order Sample order of the epoch
+   * @param from First position of the batch in the order (inclusive)
+   * @param to Last position of the batch in the order (exclusive)
+   * @param seed Seed of the randomness of the batch
+   * @return The batch
+   */
+  private Batch makeBatch(int[] order, int from, int to, long seed) {
+    final Random random = new Random(seed);
+    final float[][] inputs = new float[to - from][];
+    final int[] batchTargets = new int[to - from];
+    for (int i = 0; i < inputs.length; i++) {
+      final int sample = order[from + i];
+      final FImage img;
+      synchronized (readLock) {
+        img = groups.get(sample).get(indices[sample]);
+      }
+      inputs[i] = new float[scale.width * scale.height];
+      augmenter.augment(img, scale, random, inputs[i], 0);
+      batchTargets[i] = targets[sample];
+    }
+    return new Batch(inputs, batchTargets);
+  }
+
+  /**
+   * Iterator over the batches of one epoch, keeping the producer pool a fixed number of batches
+   * ahead. The pool threads are daemons so a source that is never closed does not stop the JVM
+   * exiting.
+   */
+  private class Producer implements Iterator<Batch> {
+    private final int[] order;
+    private final int batchSize;
+    private final long[] seeds;
+    private final ExecutorService executor;
+    private final Queue<Future<Batch>> inFlight = new ArrayDeque<>();
+    /** Index of the next batch to submit */
+    private int submitted = 0;
+
+    Producer(ExecutorService executor, int[] order, int batchSize, long[] seeds) {
+      this.executor = executor;
+      this.order = order;
+      this.batchSize = batchSize;
+      this.seeds = seeds;
+      while (submitted < seeds.length && inFlight.size() < prefetch) {
+        submitNext();
+      }
+    }
+
+    /**
+     * Cancel the batches not yet taken, and submit no more.
+     */
+    void cancel() {
+      submitted = seeds.length;
+      for (Future<Batch> future : inFlight) {
+        future.cancel(true);
+      }
+      inFlight.clear();
+    }
+
+    private void submitNext() {
+      final int from = submitted * batchSize;
+      final int to = Math.min(order.length, from + batchSize);
+      final long seed = seeds[submitted++];
+      inFlight.add(executor.submit(new Callable<Batch>() {
+        @Override
+        public Batch call() {
+          return makeBatch(order, from, to, seed);
+        }
+      }));
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !inFlight.isEmpty();
+    }
+
+    @Override
+    public Batch next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final Batch batch;
+      try {
+        batch = inFlight.remove().get();
+      } catch (InterruptedException e) {
+        cancel();
+        Thread.currentThread().interrupt();
+        throw new RuntimeException("Interrupted whilst augmenting images", e);
+      } catch (ExecutionException e) {
+        cancel();
+        throw new RuntimeException("Image augmentation failed", e.getCause());
+      }
+      if (submitted < seeds.length) {
+        submitNext();
+      }
+      return batch;
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+}
@@ -0,0 +1,50 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+/**
+ * Batch of network inputs with the index of each input's target class.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class Batch {
+  private final float[][] inputs;
+  private final int[] targets;
+
+  /**
+   * Instantiate a batch, the arrays are not copied.
+   *
+   * @param inputs Input values of each sample
+   * @param targets Index of the target class of each sample
+   */
+  public Batch(float[][] inputs, int[] targets) {
+    if (inputs.length != targets.length) {
+      throw new IllegalArgumentException("There must be one target for every input");
+    }
+    this.inputs = inputs;
+    this.targets = targets;
+  }
+
+  /**
+   * @return Number of samples
+   */
+  public int size() {
+    return inputs.length;
+  }
+
+  /**
+   * @param index Index of a sample
+   * @return Input values of the sample
+   */
+  public float[] getInput(int index) {
+    return inputs[index];
+  }
+
+  /**
+   * @param index Index of a sample
+   * @return Index of the target class of the sample
+   */
+  public int getTarget(int index) {
+    return targets[index];
+  }
+
+}
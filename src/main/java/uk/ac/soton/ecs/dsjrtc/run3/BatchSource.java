@@ -0,0 +1,36 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Source of the training batches of each epoch, see {@link NetworkTrainer}. A source is closed once
+ * training is finished with it, whether or not the last epoch was read to the end.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public interface BatchSource extends AutoCloseable {
+
+  /**
+   * @return Number of samples in each epoch
+   */
+  int size();
+
+  /**
+   * Begin an epoch. Every sample of the epoch is returned once, in batches of at most the batch
+   * size.
+   *
+   * @param batchSize Maximum number of samples in each batch
+   * @param random Source of randomness for shuffling
+   * @return Batches of the epoch
+   */
+  Iterator<Batch> epoch(int batchSize, Random random);
+
+  /**
+   * Release any resources held by the source, no further epochs can be begun.
+   */
+  @Override
+  void close();
+
+}
@@ -0,0 +1,422 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.feature.FloatFV;
+import org.openimaj.image.FImage;
+import de.bwaldvogel.liblinear.SolverType;
+import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.lib.FeatureStore;
+import uk.ac.soton.ecs.dsjrtc.lib.FeatureUtilities;
+import uk.ac.soton.ecs.dsjrtc.lib.LinearModel;
+import uk.ac.soton.ecs.dsjrtc.lib.Metrics;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+import uk.ac.soton.ecs.dsjrtc.lib.ParallelClassification;
+import uk.ac.soton.ecs.dsjrtc.lib.TrainableClassifier;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageFeature;
+
+/**
+ * Classifier that uses a linear classifier for annotation, with features extracted as embeddings
+ * from a fixed, already trained convolutional network: the L2 normalised output of one of its
+ * hidden layers (by default the one feeding the final dense layer). Inputs are prepared as
+ * {@link TensorFlowCNNWrapper} prepares them, so the backbone can be the network of a trained
+ * wrapper, e.g. {@code TensorFlowCNNWrapper.load(file).getNetwork()}.<br>
+ *
+ * The backbone is never changed by training, only the linear annotator (the same as used by
+ * {@link uk.ac.soton.ecs.dsjrtc.run2.LinearBOVWClassifier}) is trained. Training embeddings are
+ * computed in parallel, in batches that each reuse a single set of network buffers, while images
+ * are read from the dataset on the calling thread. Embeddings can be kept in a
+ * {@link FeatureStore} (see {@link #setFeatureDirectory(File)}) keyed by the backbone parameters,
+ * so retraining with a different C parameter (see {@link #setC(double)}) only runs liblinear.<br>
+ *
+ * Classification is safe from many threads at once without locking: the backbone is only read and
+ * each (re)training publishes a new, immutable linear model once trained.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class CNNEmbeddingClassifier implements TrainableClassifier<String, FImage> {
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+  /** Number of images embedded together by one task */
+  private static final int EMBEDDING_BATCH_SIZE = 32;
+
+  // Annotator modifiers
+  private static final SolverType ANNOTATOR_SOLVER = SolverType.L2R_L2LOSS_SVC;
+  public static final double DEFAULT_C_PARAM = 1.0;
+  private static final double ANNOTATOR_EPS = 0.00001;
+  /** Model type recorded in saved files */
+  private static final String MODEL_TYPE = "CNNEmbeddingClassifier";
+
+  /** Fixed network the embeddings are taken from */
+  private final Network backbone;
+  /** Index of the layer whose output is the embedding */
+  private final int embeddingLayer;
+  /** Number of threads to use for embedding and batch classification */
+  private final int nThreads;
+  /** Linear model, that gets set during training (and replaced during retraining) */
+  private volatile LinearModel model = null;
+  /** Cost of constraint violation used when training the linear model */
+  private double c = DEFAULT_C_PARAM;
+  /** Directory of feature stores to read and write training embeddings, none if null */
+  private File featureDirectory = null;
+  /** Per thread buffers for single classifications and training */
+  private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+    @Override
+    protected Buffers initialValue() {
+      return new Buffers(backbone);
+    }
+  };
+
+  /**
+   * Instantiate an untrained classifier embedding with the layer that feeds the final dense layer
+   * of the backbone.
+   *
+   * @param backbone Trained network to take embeddings from, is not modified
+   */
+  public CNNEmbeddingClassifier(Network backbone) {
+    this(backbone, getDefaultEmbeddingLayer(backbone), DEFAULT_THREADS);
+  }
+
+  /**
+   * Instantiate an untrained classifier.
+   *
+   * @param backbone Trained network to take embeddings from, is not modified, must take a single
+   *        channel square input
+   * @param embeddingLayer Index of the layer whose output is the embedding
+   * @param nThreads Number of threads to use for embedding and batch classification
+   */
+  public CNNEmbeddingClassifier(Network backbone, int embeddingLayer, int nThreads) {
+    final Shape input = backbone.getInputShape();
+    if (input.getChannels() != 1 || input.getWidth() != input.getHeight()) {
+      throw new IllegalArgumentException("Network input must be a single channel square");
+    }
+    if (embeddingLayer < 0 || embeddingLayer >= backbone.getLayers().size()) {
+      throw new IllegalArgumentException("Embedding layer must be a layer of the network");
+    }
+    if (nThreads <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive");
+    }
+    this.backbone = backbone;
+    this.embeddingLayer = embeddingLayer;
+    this.nThreads = nThreads;
+  }
+
+  /**
+   * @param network Network to take embeddings from
+   * @return Index of the layer feeding the final dense layer of the network
+   */
+  public static int getDefaultEmbeddingLayer(Network network) {
+    final List<Layer> layers = network.getLayers();
+    for (int l = layers.size() - 1; l > 0; l--) {
+      if (layers.get(l) instanceof DenseLayer) {
+        return l - 1;
+      }
+    }
+    throw new IllegalArgumentException("Network has no hidden layer feeding a dense layer");
+  }
+
+  /**
+   * @return Length of each embedding
+   */
+  public int getEmbeddingLength() {
+    return backbone.getLayers().get(embeddingLayer).getOutputShape().getSize();
+  }
+
+  /**
+   * Compute the embedding of an image.
+   *
+   * @param img Image to embed
+   * @param buffers Buffers of the calling thread
+   * @param out Array to write the embedding to, null to create one
+   * @return The unit length embedding
+   */
+  private float[] embed(FImage img, Buffers buffers, float[] out) {
+    final Shape input = backbone.getInputShape();
+    TinyImageFeature.makeTinyImage(img, new Dimension(input.getWidth(), input.getHeight()), true,
+        buffers.input, 0);
+    final float[] output = backbone.forward(buffers.input, buffers.activations, null,
+        embeddingLayer);
+    if (out == null) {
+      out = new float[output.length];
+    }
+    System.arraycopy(output, 0, out, 0, output.length);
+    return FeatureUtilities.inplaceUnitL2(out);
+  }
+
+  @Override
+  public ClassificationResult<String> classify(FImage object) {
+    final LinearModel model = this.model;
+    if (model == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    final long start = Metrics.start();
+    final ClassificationResult<String> result =
+        model.classify(embed(object, buffers.get(), null), null);
+    Metrics.stop(Metrics.Stage.CLASSIFY, start);
+    return result;
+  }
+
+  /**
+   * {@inheritDoc} Images are classified in parallel, each range of the batch reusing a single set
+   * of network buffers, embedding and score buffer.
+   */
+  @Override
+  public List<ClassificationResult<String>> classifyAll(final List<FImage> objects) {
+    final LinearModel model = this.model;
+    if (model == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    return ParallelClassification.classifyRanges(objects.size(), nThreads,
+        new ParallelClassification.RangeClassifier<String>() {
+          @Override
+          public void classify(int from, int to, List<ClassificationResult<String>> results) {
+            final Buffers buffers = new Buffers(backbone);
+            final float[] embedding = new float[getEmbeddingLength()];
+            final float[] scores = new float[model.getClasses().length];
+            for (int i = from; i < to; i++) {
+              results.set(i, model.classify(embed(objects.get(i), buffers, embedding), scores));
+            }
+          }
+        });
+  }
+
+  /**
+   * {@inheritDoc} N.B. Only the annotator is trained, the backbone is fixed.
+   */
+  @Override
+  public synchronized void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    Debugger.println("Embedding training images...");
+    final long start = System.nanoTime();
+    final FeatureStore store = openFeatureStore();
+    final List<FloatFV> features = new ArrayList<>();
+    final List<String> labels = new ArrayList<>();
+    final int cached = embedAll(trainingSet, store, features, labels);
+    FeatureStore.saveOrReport(store);
+    Debugger.println(String.format("Embedded %d images (%d cached) in %.1fs", features.size(),
+        cached, (System.nanoTime() - start) / 1e9));
+    Debugger.println("Training started...");
+    model = LinearModel.train(features, labels, ANNOTATOR_SOLVER, c, ANNOTATOR_EPS);
+    Debugger.println("Training finished");
+  }
+
+  /**
+   * Get the embedding of every image of a dataset, reading cached embeddings from the store and
+   * computing the rest in parallel batches. At most a fixed number of batches are in flight at any
+   * time.
+   *
+   * @param dataset Dataset to embed
+   * @param store Feature store to read from and add to, null to always embed
+   * @param features List to add each embedding to
+   * @param labels List to add the class of each embedding to
+   * @return Number of embeddings read from the store
+   */
+  private int embedAll(GroupedDataset<String, ListDataset<FImage>, FImage> dataset,
+      FeatureStore store, List<FloatFV> features, List<String> labels) {
+    final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    final int maxInFlight = 2 * nThreads;
+    final Queue<EmbeddingBatch> inFlight = new ArrayDeque<>(maxInFlight);
+    int cached = 0;
+    try {
+      EmbeddingBatch batch = new EmbeddingBatch();
+      for (Entry<String, ListDataset<FImage>> group : dataset.entrySet()) {
+        for (FImage img : group.getValue()) {
+          final long key = store == null ? 0 : FeatureStore.getImageKey(img);
+          final float[] feature = store == null ? null : store.getDense(key);
+          if (feature != null) {
+            features.add(new FloatFV(feature));
+            labels.add(group.getKey());
+            cached++;
+            continue;
+          }
+          batch.add(img, group.getKey(), key);
+          if (batch.images.size() == EMBEDDING_BATCH_SIZE) {
+            if (inFlight.size() == maxInFlight) {
+              inFlight.remove().collect(store, features, labels);
+            }
+            inFlight.add(batch.submit(executor));
+            batch = new EmbeddingBatch();
+          }
+        }
+      }
+      if (!batch.images.isEmpty()) {
+        inFlight.add(batch.submit(executor));
+      }
+      while (!inFlight.isEmpty()) {
+        inFlight.remove().collect(store, features, labels);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted whilst embedding images", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Embedding failed", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    return cached;
+  }
+
+  /**
+   * Images embedded together by one task, with their classes and store keys.
+   */
+  private class EmbeddingBatch {
+    final List<FImage> images = new ArrayList<>(EMBEDDING_BATCH_SIZE);
+    final List<String> classes = new ArrayList<>(EMBEDDING_BATCH_SIZE);
+    final long[] keys = new long[EMBEDDING_BATCH_SIZE];
+    Future<float[][]> embeddings;
+
+    void add(FImage img, String label, long key) {
+      keys[images.size()] = key;
+      images.add(img);
+      classes.add(label);
+    }
+
+    EmbeddingBatch submit(ExecutorService executor) {
+      embeddings = executor.submit(new Callable<float[][]>() {
+        @Override
+        public float[][] call() {
+          final Buffers buffers = CNNEmbeddingClassifier.this.buffers.get();
+          final float[][] out = new float[images.size()][];
+          for (int i = 0; i < out.length; i++) {
+            out[i] = embed(images.get(i), buffers, null);
+          }
+          return out;
+        }
+      });
+      return this;
+    }
+
+    void collect(FeatureStore store, List<FloatFV> features, List<String> labels)
+        throws InterruptedException, ExecutionException {
+      final float[][] out = embeddings.get();
+      for (int i = 0; i < out.length; i++) {
+        features.add(new FloatFV(out[i]));
+        labels.add(classes.get(i));
+        if (store != null) {
+          store.putDense(keys[i], out[i]);
+        }
+      }
+    }
+  }
+
+  /**
+   * Set the cost of constraint violation used by the next training of the linear model.
+   *
+   * @param c C parameter, must be positive
+   */
+  public void setC(double c) {
+    if (c <= 0) {
+      throw new IllegalArgumentException("C parameter must be positive");
+    }
+    this.c = c;
+  }
+
+  /**
+   * @return Cost of constraint violation used when training the linear model
+   */
+  public double getC() {
+    return c;
+  }
+
+  /**
+   * Set the directory of feature stores used by training, training embeddings are read from the
+   * store for the current backbone when present and added to it when not.
+   *
+   * @param featureDirectory Directory of feature stores, none if null
+   */
+  public void setFeatureDirectory(File featureDirectory) {
+    this.featureDirectory = featureDirectory;
+  }
+
+  /**
+   * @return Key identifying the embeddings made by the backbone
+   */
+  private String getFeatureConfigKey() {
+    // Hash the input shape and every parameter array of the backbone
+    final List<float[]> rows = new ArrayList<>();
+    final Shape input = backbone.getInputShape();
+    rows.add(new float[] {input.getChannels(), input.getHeight(), input.getWidth()});
+    for (Layer layer : backbone.getLayers()) {
+      rows.add(layer.getWeights());
+      rows.add(layer.getBiases());
+    }
+    return String.format("%s/layer=%d/network=%s", MODEL_TYPE, embeddingLayer,
+        FeatureStore.hashMatrix(rows.toArray(new float[0][])));
+  }
+
+  /**
+   * @return Feature store for the backbone, null if not set (or it cannot be opened)
+   */
+  private FeatureStore openFeatureStore() {
+    return FeatureStore.openOrNull(featureDirectory, getFeatureConfigKey(),
+        FeatureStore.Kind.DENSE, getEmbeddingLength());
+  }
+
+  @Override
+  public synchronized void retrain(
+      GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    train(trainingSet);
+  }
+
+  /**
+   * Save the trained classifier: the embedding layer, backbone and linear model.
+   *
+   * @param file File to save to
+   * @throws IOException If the file cannot be written
+   */
+  public void save(File file) throws IOException {
+    final LinearModel model = this.model;
+    if (model == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    try (ModelWriter writer = new ModelWriter(file, MODEL_TYPE)) {
+      writer.writeInt(embeddingLayer);
+      backbone.write(writer);
+      model.write(writer);
+    }
+  }
+
+  /**
+   * Load a classifier saved with {@link #save(File)}.
+   *
+   * @param file File to load from
+   * @return The loaded classifier, ready for classification
+   * @throws IOException If the file cannot be read
+   */
+  public static CNNEmbeddingClassifier load(File file) throws IOException {
+    final ModelReader reader = new ModelReader(file, MODEL_TYPE);
+    final int embeddingLayer = reader.readInt();
+    final CNNEmbeddingClassifier classifier =
+        new CNNEmbeddingClassifier(Network.read(reader), embeddingLayer, DEFAULT_THREADS);
+    classifier.model = LinearModel.read(reader);
+    return classifier;
+  }
+
+  /**
+   * Buffers for embedding images on a single thread.
+   */
+  private static class Buffers {
+    final float[] input;
+    final Network.Activations activations;
+
+    Buffers(Network network) {
+      this.input = new float[network.getInputShape().getSize()];
+      this.activations = network.createActivations();
+    }
+  }
+
+}
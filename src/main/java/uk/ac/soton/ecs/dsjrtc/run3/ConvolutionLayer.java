@@ -0,0 +1,256 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+import uk.ac.soton.ecs.dsjrtc.lib.Sgemm;
+
+/**
+ * Two dimensional convolution over every input channel, with square kernels, a common stride and
+ * zero padding.<br>
+ *
+ * The input is unrolled into a column matrix (im2col) with one row per kernel value of each input
+ * channel and one column per output position, so the whole convolution is a single {@link Sgemm}
+ * multiply of the weights (one row per output channel) by the columns. The product is already in
+ * the channel by channel layout of the output. Pointwise (1x1, unit stride, unpadded) convolutions
+ * multiply the input directly.<br>
+ *
+ * The backward pass unrolls the input again, so the weight gradient is the output gradient
+ * multiplied by the transposed columns and the input gradient is the transposed weights multiplied
+ * by the output gradient, folded back onto the input (col2im).
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ConvolutionLayer extends Layer {
+  static final String TYPE = "Convolution";
+
+  private final int filters;
+  private final int size;
+  private final int stride;
+  private final int padding;
+
+  /**
+   * Instantiate a convolution layer.
+   *
+   * @param filters Number of output channels
+   * @param size Width and height of each kernel
+   * @param stride Distance between each kernel position
+   * @param padding Zero padding added to each side of the input
+   */
+  public ConvolutionLayer(int filters, int size, int stride, int padding) {
+    if (filters <= 0 || size <= 0 || stride <= 0 || padding < 0) {
+      throw new IllegalArgumentException(
+          "Filters, size and stride must be positive, padding cannot be negative");
+    }
+    this.filters = filters;
+    this.size = size;
+    this.stride = stride;
+    this.padding = padding;
+  }
+
+  @Override
+  protected Shape getOutputShape(Shape input) {
+    final int height = (input.getHeight() + 2 * padding - size) / stride + 1;
+    final int width = (input.getWidth() + 2 * padding - size) / stride + 1;
+    if (input.getHeight() + 2 * padding < size || input.getWidth() + 2 * padding < size) {
+      throw new IllegalArgumentException(
+          String.format("Input %s is smaller than the %dx%d kernel", input, size, size));
+    }
+    return new Shape(filters, height, width);
+  }
+
+  @Override
+  protected int getWeightCount(Shape input) {
+    return filters * input.getChannels() * size * size;
+  }
+
+  @Override
+  protected int getBiasCount(Shape input) {
+    return filters;
+  }
+
+  @Override
+  public void initialise(Random random) {
+    heInitialise(weights, inputShape.getChannels() * size * size, random);
+    Arrays.fill(biases, 0);
+  }
+
+  /**
+   * @return Whether the input can be multiplied directly, without unrolling
+   */
+  private boolean isPointwise() {
+    return size == 1 && stride == 1 && padding == 0;
+  }
+
+  @Override
+  public int getWorkspaceSize() {
+    if (isPointwise()) {
+      return 0;
+    }
+    return inputShape.getChannels() * size * size * outputShape.getHeight()
+        * outputShape.getWidth();
+  }
+
+  @Override
+  public void forward(float[] input, float[] output, float[] workspace, ForkJoinPool pool) {
+    final int positions = outputShape.getHeight() * outputShape.getWidth();
+    final int depth = inputShape.getChannels() * size * size;
+    float[] columns = input;
+    if (!isPointwise()) {
+      im2col(input, workspace);
+      columns = workspace;
+    }
+    Sgemm.multiply(false, false, filters, positions, depth, weights, 0, depth, columns, 0,
+        positions, output, 0, positions, false, pool);
+    for (int f = 0; f < filters; f++) {
+      final float bias = biases[f];
+      for (int i = f * positions; i < (f + 1) * positions; i++) {
+        output[i] += bias;
+      }
+    }
+  }
+
+  @Override
+  public int getBackwardWorkspaceSize() {
+    return 2 * getWorkspaceSize();
+  }
+
+  @Override
+  public void backward(float[] input, float[] output, float[] outputGradient,
+      float[] inputGradient, float[] weightGradient, float[] biasGradient, float[] workspace) {
+    final int positions = outputShape.getHeight() * outputShape.getWidth();
+    final int depth = inputShape.getChannels() * size * size;
+    float[] columns = input;
+    if (!isPointwise()) {
+      im2col(input, workspace);
+      columns = workspace;
+    }
+    Sgemm.multiply(false, true, filters, depth, positions, outputGradient, 0, positions, columns, 0,
+        positions, weightGradient, 0, depth, true);
+    for (int f = 0; f < filters; f++) {
+      float sum = 0;
+      for (int i = f * positions; i < (f + 1) * positions; i++) {
+        sum += outputGradient[i];
+      }
+      biasGradient[f] += sum;
+    }
+    if (inputGradient == null) {
+      return;
+    }
+    if (isPointwise()) {
+      Sgemm.multiply(true, false, depth, positions, filters, weights, 0, depth, outputGradient, 0,
+          positions, inputGradient, 0, positions, false);
+    } else {
+      final int columnGradient = depth * positions;
+      Sgemm.multiply(true, false, depth, positions, filters, weights, 0, depth, outputGradient, 0,
+          positions, workspace, columnGradient, positions, false);
+      col2im(workspace, columnGradient, inputGradient);
+    }
+  }
+
+  /**
+   * Unroll the input so that row (c * size + ky) * size + kx holds, for every output position, the
+   * input value under kernel position (kx, ky) of channel c (zero where it falls in the padding).
+   *
+   * @param input Input activations
+   * @param columns Array to fill with the column matrix
+   */
+  void im2col(float[] input, float[] columns) {
+    final int inHeight = inputShape.getHeight();
+    final int inWidth = inputShape.getWidth();
+    final int outHeight = outputShape.getHeight();
+    final int outWidth = outputShape.getWidth();
+    int out = 0;
+    for (int c = 0; c < inputShape.getChannels(); c++) {
+      final int channel = c * inHeight * inWidth;
+      for (int ky = 0; ky < size; ky++) {
+        for (int kx = 0; kx < size; kx++) {
+          for (int oy = 0; oy < outHeight; oy++) {
+            final int iy = oy * stride - padding + ky;
+            if (iy < 0 || iy >= inHeight) {
+              Arrays.fill(columns, out, out + outWidth, 0);
+              out += outWidth;
+              continue;
+            }
+            final int row = channel + iy * inWidth;
+            for (int ox = 0; ox < outWidth; ox++) {
+              final int ix = ox * stride - padding + kx;
+              columns[out++] = (ix < 0 || ix >= inWidth) ? 0 : input[row + ix];
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Fold a column matrix back onto the input, the reverse of {@link #im2col}: every value is added
+   * to the input position it was unrolled from and values from the padding are dropped.
+   *
+   * @param columns Array holding the column matrix
+   * @param offset Index of the first value of the column matrix
+   * @param input Array to fill with the folded input
+   */
+  void col2im(float[] columns, int offset, float[] input) {
+    final int inHeight = inputShape.getHeight();
+    final int inWidth = inputShape.getWidth();
+    final int outHeight = outputShape.getHeight();
+    final int outWidth = outputShape.getWidth();
+    Arrays.fill(input, 0, inputShape.getSize(), 0);
+    int in = offset;
+    for (int c = 0; c < inputShape.getChannels(); c++) {
+      final int channel = c * inHeight * inWidth;
+      for (int ky = 0; ky < size; ky++) {
+        for (int kx = 0; kx < size; kx++) {
+          for (int oy = 0; oy < outHeight; oy++) {
+            final int iy = oy * stride - padding + ky;
+            if (iy < 0 || iy >= inHeight) {
+              in += outWidth;
+              continue;
+            }
+            final int row = channel + iy * inWidth;
+            for (int ox = 0; ox < outWidth; ox++, in++) {
+              final int ix = ox * stride - padding + kx;
+              if (ix >= 0 && ix < inWidth) {
+                input[row + ix] += columns[in];
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  protected String getType() {
+    return TYPE;
+  }
+
+  @Override
+  protected Layer newUnconnected() {
+    return new ConvolutionLayer(filters, size, stride, padding);
+  }
+
+  @Override
+  protected void writeConfig(ModelWriter writer) throws IOException {
+    writer.writeInt(filters);
+    writer.writeInt(size);
+    writer.writeInt(stride);
+    writer.writeInt(padding);
+  }
+
+  /**
+   * @param reader Reader positioned at the configuration written by {@link #writeConfig}
+   * @return Unconnected layer of the read configuration
+   * @throws IOException If the configuration cannot be read
+   */
+  static ConvolutionLayer readConfig(ModelReader reader) throws IOException {
+    return new ConvolutionLayer(reader.readInt(), reader.readInt(), reader.readInt(),
+        reader.readInt());
+  }
+
+}
@@ -0,0 +1,116 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+
+/**
+ * Fully connected layer over the flattened input, with one packed row of weights per output.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class DenseLayer extends Layer {
+  static final String TYPE = "Dense";
+
+  private final int outputs;
+
+  /**
+   * Instantiate a fully connected layer.
+   *
+   * @param outputs Number of outputs
+   */
+  public DenseLayer(int outputs) {
+    if (outputs <= 0) {
+      throw new IllegalArgumentException("Number of outputs must be positive");
+    }
+    this.outputs = outputs;
+  }
+
+  @Override
+  protected Shape getOutputShape(Shape input) {
+    return new Shape(outputs, 1, 1);
+  }
+
+  @Override
+  protected int getWeightCount(Shape input) {
+    return outputs * input.getSize();
+  }
+
+  @Override
+  protected int getBiasCount(Shape input) {
+    return outputs;
+  }
+
+  @Override
+  public void initialise(Random random) {
+    heInitialise(weights, inputShape.getSize(), random);
+    Arrays.fill(biases, 0);
+  }
+
+  @Override
+  public void forward(float[] input, float[] output, float[] workspace, ForkJoinPool pool) {
+    final int inputs = inputShape.getSize();
+    for (int o = 0; o < outputs; o++) {
+      final int row = o * inputs;
+      float sum = biases[o];
+      for (int i = 0; i < inputs; i++) {
+        sum += weights[row + i] * input[i];
+      }
+      output[o] = sum;
+    }
+  }
+
+  @Override
+  public void backward(float[] input, float[] output, float[] outputGradient,
+      float[] inputGradient, float[] weightGradient, float[] biasGradient, float[] workspace) {
+    final int inputs = inputShape.getSize();
+    if (inputGradient != null) {
+      Arrays.fill(inputGradient, 0, inputs, 0);
+    }
+    for (int o = 0; o < outputs; o++) {
+      final float g = outputGradient[o];
+      if (g == 0) {
+        continue;
+      }
+      biasGradient[o] += g;
+      final int row = o * inputs;
+      for (int i = 0; i < inputs; i++) {
+        weightGradient[row + i] += g * input[i];
+      }
+      if (inputGradient != null) {
+        for (int i = 0; i < inputs; i++) {
+          inputGradient[i] += g * weights[row + i];
+        }
+      }
+    }
+  }
+
+  @Override
+  protected String getType() {
+    return TYPE;
+  }
+
+  @Override
+  protected Layer newUnconnected() {
+    return new DenseLayer(outputs);
+  }
+
+  @Override
+  protected void writeConfig(ModelWriter writer) throws IOException {
+    writer.writeInt(outputs);
+  }
+
+  /**
+   * @param reader Reader positioned at the configuration written by {@link #writeConfig}
+   * @return Unconnected layer of the read configuration
+   * @throws IOException If the configuration cannot be read
+   */
+  static DenseLayer readConfig(ModelReader reader) throws IOException {
+    return new DenseLayer(reader.readInt());
+  }
+
+}
@@ -0,0 +1,109 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.awt.Dimension;
+import java.util.Random;
+import org.openimaj.image.FImage;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageFeature;
+
+/**
+ * Creates randomly altered network inputs from an image, so that every epoch of training sees a
+ * different version of each image. Each input is made with the following, all drawn at random:
+ * <ul>
+ * <li>Scale jitter and cropping: a square region whose side is between the minimum scale and the
+ * whole of the shorter image side, at any position in the image.</li>
+ * <li>Horizontal flipping, with a probability of one half.</li>
+ * <li>Brightness and contrast changes, applied after the input is normalised (as a
+ * {@link TinyImageFeature} is) since normalisation would otherwise undo them.</li>
+ * </ul>
+ * The region is area averaged straight into the output array, so no intermediate images are
+ * created. An augmenter holds no state and can be used by many threads at once, each with its own
+ * source of randomness.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ImageAugmenter {
+  /** Smallest crop side, as a fraction of the shorter image side */
+  public static final float DEFAULT_MIN_SCALE = 0.7f;
+  /** Largest shift of the normalised values */
+  public static final float DEFAULT_BRIGHTNESS = 0.1f;
+  /** Largest relative change of the spread of the normalised values */
+  public static final float DEFAULT_CONTRAST = 0.2f;
+
+  private final float minScale;
+  private final boolean flip;
+  private final float brightness;
+  private final float contrast;
+
+  /**
+   * Instantiate an augmenter using all class defaults.
+   */
+  public ImageAugmenter() {
+    this(DEFAULT_MIN_SCALE, true, DEFAULT_BRIGHTNESS, DEFAULT_CONTRAST);
+  }
+
+  /**
+   * Instantiate an augmenter.
+   *
+   * @param minScale Smallest crop side as a fraction of the shorter image side, in (0, 1], one for
+   *        no scale jitter
+   * @param flip Whether to randomly flip inputs horizontally
+   * @param brightness Largest shift of the normalised values, zero for no change
+   * @param contrast Largest relative change of the spread of the normalised values, in [0, 1), zero
+   *        for no change
+   */
+  public ImageAugmenter(float minScale, boolean flip, float brightness, float contrast) {
+    if (minScale <= 0 || minScale > 1) {
+      throw new IllegalArgumentException("Minimum scale must be in (0, 1]");
+    }
+    if (brightness < 0) {
+      throw new IllegalArgumentException("Brightness change cannot be negative");
+    }
+    if (contrast < 0 || contrast >= 1) {
+      throw new IllegalArgumentException("Contrast change must be in [0, 1)");
+    }
+    this.minScale = minScale;
+    this.flip = flip;
+    this.brightness = brightness;
+    this.contrast = contrast;
+  }
+
+  /**
+   * Create a randomly altered input from an image directly into an array.
+   *
+   * @param img Image to create the input from, is not modified
+   * @param scale Size of the input
+   * @param random Source of randomness, held by the calling thread
+   * @param out Array to write the packed input to
+   * @param offset Index of the array to write the first value to
+   */
+  public void augment(FImage img, Dimension scale, Random random, float[] out, int offset) {
+    final int shorter = Math.min(img.width, img.height);
+    final float fraction = minScale + (1 - minScale) * random.nextFloat();
+    final int dim = Math.max(1, Math.round(shorter * fraction));
+    final int x0 = random.nextInt(img.width - dim + 1);
+    final int y0 = random.nextInt(img.height - dim + 1);
+    TinyImageFeature.makeTinyImage(img, x0, y0, dim, scale, true, out, offset);
+
+    final int w = scale.width;
+    final int h = scale.height;
+    if (flip && random.nextBoolean()) {
+      for (int y = 0; y < h; y++) {
+        final int row = offset + y * w;
+        for (int l = row, r = row + w - 1; l < r; l++, r--) {
+          final float swap = out[l];
+          out[l] = out[r];
+          out[r] = swap;
+        }
+      }
+    }
+    if (brightness > 0 || contrast > 0) {
+      final float gain = 1 + contrast * (2 * random.nextFloat() - 1);
+      final float shift = brightness * (2 * random.nextFloat() - 1);
+      for (int i = offset; i < offset + w * h; i++) {
+        out[i] = out[i] * gain + shift;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,89 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Batch source over inputs held in memory, shuffled at the start of every epoch. Batches refer to
+ * the held input arrays rather than copying them.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class InMemoryBatchSource implements BatchSource {
+  private final float[][] inputs;
+  private final int[] targets;
+
+  /**
+   * Instantiate a source over the given samples, the arrays are not copied.
+   *
+   * @param inputs Input values of each sample
+   * @param targets Index of the target class of each sample
+   */
+  public InMemoryBatchSource(float[][] inputs, int[] targets) {
+    if (inputs.length != targets.length) {
+      throw new IllegalArgumentException("There must be one target for every input");
+    }
+    this.inputs = inputs;
+    this.targets = targets;
+  }
+
+  @Override
+  public int size() {
+    return inputs.length;
+  }
+
+  @Override
+  public Iterator<Batch> epoch(final int batchSize, Random random) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("Batch size must be positive");
+    }
+    // Fisher-Yates shuffle of the sample order
+    final int[] order = new int[inputs.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    for (int i = order.length - 1; i > 0; i--) {
+      final int j = random.nextInt(i + 1);
+      final int swap = order[i];
+      order[i] = order[j];
+      order[j] = swap;
+    }
+    return new Iterator<Batch>() {
+      private int next = 0;
+
+      @Override
+      public boolean hasNext() {
+        return next < order.length;
+      }
+
+      @Override
+      public Batch next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        final int size = Math.min(batchSize, order.length - next);
+        final float[][] batchInputs = new float[size][];
+        final int[] batchTargets = new int[size];
+        for (int i = 0; i < size; i++) {
+          batchInputs[i] = inputs[order[next + i]];
+          batchTargets[i] = targets[order[next + i]];
+        }
+        next += size;
+        return new Batch(batchInputs, batchTargets);
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  @Override
+  public void close() {
+    // Nothing is held beyond the arrays
+  }
+
+}
@@ -0,0 +1,249 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+
+/**
+ * Single layer of a {@link Network}. A layer is connected to the shape of its input once, which
+ * fixes its output shape and the size of its parameters, and is then run forward (and backward when
+ * training) over the activations of one image at a time. Layers hold no per image state, so a
+ * connected layer can run on many threads at once as long as each thread has its own buffers.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public abstract class Layer {
+  /** Shape of the input, set on connection */
+  protected Shape inputShape = null;
+  /** Shape of the output, set on connection */
+  protected Shape outputShape = null;
+  /** Weights of the layer, empty if the layer has none */
+  protected float[] weights = null;
+  /** Biases of the layer, empty if the layer has none */
+  protected float[] biases = null;
+
+  /**
+   * Connect the layer to the shape of its input, allocating zeroed parameters if the layer does not
+   * already hold them.
+   *
+   * @param input Shape of the input
+   * @return Shape of the output
+   */
+  public Shape connect(Shape input) {
+    if (inputShape != null && !inputShape.equals(input)) {
+      throw new IllegalStateException("Layer is already connected to a different input shape");
+    }
+    final Shape output = getOutputShape(input);
+    final int nWeights = getWeightCount(input);
+    final int nBiases = getBiasCount(input);
+    if (weights == null) {
+      weights = new float[nWeights];
+      biases = new float[nBiases];
+    } else if (weights.length != nWeights || biases.length != nBiases) {
+      throw new IllegalArgumentException(
+          String.format("%s parameters do not match input shape %s", getType(), input));
+    }
+    this.inputShape = input;
+    this.outputShape = output;
+    return output;
+  }
+
+  /**
+   * @param input Shape of the input
+   * @return Shape of the output for the input, throws if the input is not supported
+   */
+  protected abstract Shape getOutputShape(Shape input);
+
+  /**
+   * @param input Shape of the input
+   * @return Number of weights used for the input
+   */
+  protected int getWeightCount(Shape input) {
+    return 0;
+  }
+
+  /**
+   * @param input Shape of the input
+   * @return Number of biases used for the input
+   */
+  protected int getBiasCount(Shape input) {
+    return 0;
+  }
+
+  /**
+   * Randomly initialise the parameters of a connected layer, does nothing for layers without
+   * parameters.
+   *
+   * @param random Source of randomness
+   */
+  public void initialise(Random random) {}
+
+  /**
+   * @return Length of the scratch array needed by {@link #forward}, zero if none is needed
+   */
+  public int getWorkspaceSize() {
+    return 0;
+  }
+
+  /**
+   * Run the connected layer over the activations of one image.
+   *
+   * @param input Input activations, of the input shape
+   * @param output Array to fill with the output activations, of the output shape
+   * @param workspace Scratch array of at least {@link #getWorkspaceSize()} values
+   * @param pool Pool to split large multiplies across, null to run on the calling thread
+   */
+  public abstract void forward(float[] input, float[] output, float[] workspace,
+      ForkJoinPool pool);
+
+  /**
+   * @return Length of the scratch array needed by {@link #backward}, zero if none is needed
+   */
+  public int getBackwardWorkspaceSize() {
+    return 0;
+  }
+
+  /**
+   * Propagate the gradient of the loss for one image back through the connected layer, adding the
+   * gradients of the parameters to the given arrays.
+   *
+   * @param input Input activations of the forward run
+   * @param output Output activations of the forward run
+   * @param outputGradient Gradient of the loss with respect to the output
+   * @param inputGradient Array to fill with the gradient of the loss with respect to the input,
+   *        null if not needed
+   * @param weightGradient Array to add the gradient of the weights to
+   * @param biasGradient Array to add the gradient of the biases to
+   * @param workspace Scratch array of at least {@link #getBackwardWorkspaceSize()} values
+   */
+  public abstract void backward(float[] input, float[] output, float[] outputGradient,
+      float[] inputGradient, float[] weightGradient, float[] biasGradient, float[] workspace);
+
+  /**
+   * @return Shape of the input, null if not connected
+   */
+  public Shape getInputShape() {
+    return inputShape;
+  }
+
+  /**
+   * @return Shape of the output, null if not connected
+   */
+  public Shape getOutputShape() {
+    return outputShape;
+  }
+
+  /**
+   * @return Backing weight array, null if not connected
+   */
+  public float[] getWeights() {
+    return weights;
+  }
+
+  /**
+   * @return Backing bias array, null if not connected
+   */
+  public float[] getBiases() {
+    return biases;
+  }
+
+  /**
+   * @return Name of the layer type recorded in model files
+   */
+  protected abstract String getType();
+
+  /**
+   * @return New unconnected layer with the same configuration
+   */
+  protected abstract Layer newUnconnected();
+
+  /**
+   * @return Unconnected copy of the layer with copies of its parameters, to be connected by a new
+   *         network
+   */
+  public Layer copy() {
+    final Layer copy = newUnconnected();
+    if (weights != null) {
+      copy.weights = weights.clone();
+      copy.biases = biases.clone();
+    }
+    return copy;
+  }
+
+  /**
+   * Write the configuration of the layer, everything needed to recreate it other than its
+   * parameters.
+   *
+   * @param writer Writer to use
+   * @throws IOException If the configuration cannot be written
+   */
+  protected void writeConfig(ModelWriter writer) throws IOException {}
+
+  /**
+   * Write the connected layer to an open model file.
+   *
+   * @param writer Writer to use
+   * @throws IOException If the layer cannot be written
+   */
+  public void write(ModelWriter writer) throws IOException {
+    if (inputShape == null) {
+      throw new IllegalStateException("Layer has not been connected");
+    }
+    writer.writeString(getType());
+    writeConfig(writer);
+    writer.writeFloats(weights);
+    writer.writeFloats(biases);
+  }
+
+  /**
+   * Read a layer written by {@link #write(ModelWriter)}, the layer must still be connected.
+   *
+   * @param reader Reader positioned at the start of the layer
+   * @return The read layer
+   * @throws IOException If the layer type is not known
+   */
+  public static Layer read(ModelReader reader) throws IOException {
+    final String type = reader.readString();
+    final Layer layer;
+    switch (type) {
+      case ConvolutionLayer.TYPE:
+        layer = ConvolutionLayer.readConfig(reader);
+        break;
+      case MaxPoolLayer.TYPE:
+        layer = MaxPoolLayer.readConfig(reader);
+        break;
+      case DenseLayer.TYPE:
+        layer = DenseLayer.readConfig(reader);
+        break;
+      case ReLULayer.TYPE:
+        layer = new ReLULayer();
+        break;
+      case SoftmaxLayer.TYPE:
+        layer = new SoftmaxLayer();
+        break;
+      default:
+        throw new IOException(String.format("Unknown layer type: '%s'", type));
+    }
+    layer.weights = reader.readFloats();
+    layer.biases = reader.readFloats();
+    return layer;
+  }
+
+  /**
+   * Fill an array with normally distributed values scaled for a ReLU network (He initialisation).
+   *
+   * @param values Array to fill
+   * @param fanIn Number of inputs contributing to each output
+   * @param random Source of randomness
+   */
+  protected static void heInitialise(float[] values, int fanIn, Random random) {
+    final double std = Math.sqrt(2.0 / fanIn);
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (float) (random.nextGaussian() * std);
+    }
+  }
+
+}
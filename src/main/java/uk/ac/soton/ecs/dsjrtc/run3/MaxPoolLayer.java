@@ -0,0 +1,130 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+
+/**
+ * Max pooling over square windows of each channel, without padding. Trailing rows and columns that
+ * do not fill a window are dropped. The gradient of each window is passed back to the first input
+ * holding its maximum, found again from the forward activations rather than stored.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class MaxPoolLayer extends Layer {
+  static final String TYPE = "MaxPool";
+
+  private final int size;
+  private final int stride;
+
+  /**
+   * Instantiate a max pooling layer.
+   *
+   * @param size Width and height of each window
+   * @param stride Distance between each window
+   */
+  public MaxPoolLayer(int size, int stride) {
+    if (size <= 0 || stride <= 0) {
+      throw new IllegalArgumentException("Size and stride must be positive");
+    }
+    this.size = size;
+    this.stride = stride;
+  }
+
+  @Override
+  protected Shape getOutputShape(Shape input) {
+    if (input.getHeight() < size || input.getWidth() < size) {
+      throw new IllegalArgumentException(
+          String.format("Input %s is smaller than the %dx%d window", input, size, size));
+    }
+    return new Shape(input.getChannels(), (input.getHeight() - size) / stride + 1,
+        (input.getWidth() - size) / stride + 1);
+  }
+
+  @Override
+  public void forward(float[] input, float[] output, float[] workspace, ForkJoinPool pool) {
+    final int inHeight = inputShape.getHeight();
+    final int inWidth = inputShape.getWidth();
+    final int outHeight = outputShape.getHeight();
+    final int outWidth = outputShape.getWidth();
+    int out = 0;
+    for (int c = 0; c < inputShape.getChannels(); c++) {
+      final int channel = c * inHeight * inWidth;
+      for (int oy = 0; oy < outHeight; oy++) {
+        for (int ox = 0; ox < outWidth; ox++) {
+          final int corner = channel + oy * stride * inWidth + ox * stride;
+          float max = Float.NEGATIVE_INFINITY;
+          for (int ky = 0; ky < size; ky++) {
+            final int row = corner + ky * inWidth;
+            for (int i = row; i < row + size; i++) {
+              if (input[i] > max) {
+                max = input[i];
+              }
+            }
+          }
+          output[out++] = max;
+        }
+      }
+    }
+  }
+
+  @Override
+  public void backward(float[] input, float[] output, float[] outputGradient,
+      float[] inputGradient, float[] weightGradient, float[] biasGradient, float[] workspace) {
+    if (inputGradient == null) {
+      return;
+    }
+    final int inHeight = inputShape.getHeight();
+    final int inWidth = inputShape.getWidth();
+    final int outHeight = outputShape.getHeight();
+    final int outWidth = outputShape.getWidth();
+    Arrays.fill(inputGradient, 0, inputShape.getSize(), 0);
+    int out = 0;
+    for (int c = 0; c < inputShape.getChannels(); c++) {
+      final int channel = c * inHeight * inWidth;
+      for (int oy = 0; oy < outHeight; oy++) {
+        for (int ox = 0; ox < outWidth; ox++, out++) {
+          final int corner = channel + oy * stride * inWidth + ox * stride;
+          search: for (int ky = 0; ky < size; ky++) {
+            final int row = corner + ky * inWidth;
+            for (int i = row; i < row + size; i++) {
+              if (input[i] == output[out]) {
+                inputGradient[i] += outputGradient[out];
+                break search;
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Override
+  protected String getType() {
+    return TYPE;
+  }
+
+  @Override
+  protected Layer newUnconnected() {
+    return new MaxPoolLayer(size, stride);
+  }
+
+  @Override
+  protected void writeConfig(ModelWriter writer) throws IOException {
+    writer.writeInt(size);
+    writer.writeInt(stride);
+  }
+
+  /**
+   * @param reader Reader positioned at the configuration written by {@link #writeConfig}
+   * @return Unconnected layer of the read configuration
+   * @throws IOException If the configuration cannot be read
+   */
+  static MaxPoolLayer readConfig(ModelReader reader) throws IOException {
+    return new MaxPoolLayer(reader.readInt(), reader.readInt());
+  }
+
+}
@@ -0,0 +1,330 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+
+/**
+ * Feed forward network of {@link Layer}s, each layer connected to the output of the previous.<br>
+ *
+ * The network holds only its parameters. Running it needs a set of {@link Activations} (created
+ * with {@link #createActivations()}) which hold a buffer for the output of every layer and a shared
+ * scratch array; these are reused between images, so a thread running many images allocates
+ * nothing after its first. A network can be run on many threads at once, each with its own
+ * activations.<br>
+ *
+ * Networks ending in a {@link SoftmaxLayer} can be trained with cross entropy loss: each thread
+ * runs {@link #backward} over its images, summing parameter gradients into its own
+ * {@link Gradients}, see {@link NetworkTrainer}.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class Network {
+  private final Shape inputShape;
+  private final List<Layer> layers;
+
+  /**
+   * Instantiate a network, connecting each layer in turn. Layers that are not yet connected get
+   * zeroed parameters, see {@link #initialise(Random)}.
+   *
+   * @param inputShape Shape of the input of the first layer
+   * @param layers Layers in order, must not be part of any other network
+   */
+  public Network(Shape inputShape, List<Layer> layers) {
+    if (layers.isEmpty()) {
+      throw new IllegalArgumentException("Network must have at least one layer");
+    }
+    this.inputShape = inputShape;
+    this.layers = Collections.unmodifiableList(new ArrayList<>(layers));
+    Shape shape = inputShape;
+    for (Layer layer : this.layers) {
+      shape = layer.connect(shape);
+    }
+  }
+
+  /**
+   * @return Network of the same layers with copies of the parameters, which can be trained without
+   *         affecting this network
+   */
+  public Network copy() {
+    final List<Layer> copies = new ArrayList<>(layers.size());
+    for (Layer layer : layers) {
+      copies.add(layer.copy());
+    }
+    return new Network(inputShape, copies);
+  }
+
+  /**
+   * Randomly initialise the parameters of every layer.
+   *
+   * @param random Source of randomness
+   */
+  public void initialise(Random random) {
+    for (Layer layer : layers) {
+      layer.initialise(random);
+    }
+  }
+
+  /**
+   * @return Shape of the input of the first layer
+   */
+  public Shape getInputShape() {
+    return inputShape;
+  }
+
+  /**
+   * @return Shape of the output of the last layer
+   */
+  public Shape getOutputShape() {
+    return layers.get(layers.size() - 1).getOutputShape();
+  }
+
+  /**
+   * @return Layers in order
+   */
+  public List<Layer> getLayers() {
+    return layers;
+  }
+
+  /**
+   * @return Total number of weights and biases
+   */
+  public int getParameterCount() {
+    int count = 0;
+    for (Layer layer : layers) {
+      count += layer.getWeights().length + layer.getBiases().length;
+    }
+    return count;
+  }
+
+  /**
+   * @return New set of buffers for running the network on a single thread
+   */
+  public Activations createActivations() {
+    return new Activations(this);
+  }
+
+  /**
+   * Run the network over one image.
+   *
+   * @param input Input values, of the input shape
+   * @param activations Buffers to use, held by the calling thread
+   * @param pool Pool to split large multiplies across, null to run on the calling thread
+   * @return Output of the last layer, the backing buffer of the activations (valid until they are
+   *         next used)
+   */
+  public float[] forward(float[] input, Activations activations, ForkJoinPool pool) {
+    return forward(input, activations, pool, layers.size() - 1);
+  }
+
+  /**
+   * Run the first layers of the network over one image, such as to use the output of a hidden
+   * layer as an embedding of the image.
+   *
+   * @param input Input values, of the input shape
+   * @param activations Buffers to use, held by the calling thread
+   * @param pool Pool to split large multiplies across, null to run on the calling thread
+   * @param last Index of the last layer to run
+   * @return Output of the last layer run, the backing buffer of the activations (valid until they
+   *         are next used)
+   */
+  public float[] forward(float[] input, Activations activations, ForkJoinPool pool, int last) {
+    if (input.length < inputShape.getSize()) {
+      throw new IllegalArgumentException("Input is smaller than the input shape");
+    }
+    if (last < 0 || last >= layers.size()) {
+      throw new IllegalArgumentException("Last layer must be a layer of the network");
+    }
+    float[] current = input;
+    for (int l = 0; l <= last; l++) {
+      layers.get(l).forward(current, activations.outputs[l], activations.workspace, pool);
+      current = activations.outputs[l];
+    }
+    return current;
+  }
+
+  /**
+   * @return New set of gradient buffers for training the network on a single thread
+   */
+  public Gradients createGradients() {
+    return new Gradients(this);
+  }
+
+  /**
+   * Propagate the cross entropy loss of the last forward run back through the network, adding the
+   * gradient of every parameter to the gradient buffers. The gradient of the loss with respect to
+   * the input of the final softmax is the probabilities less one at the target class, so the
+   * softmax itself is skipped.
+   *
+   * @param input Input values of the forward run
+   * @param target Index of the target class
+   * @param activations Buffers holding the forward run
+   * @param gradients Buffers to add the gradients to, held by the calling thread
+   * @return Cross entropy loss of the image
+   */
+  public float backward(float[] input, int target, Activations activations, Gradients gradients) {
+    final int last = layers.size() - 1;
+    if (last == 0 || !(layers.get(last) instanceof SoftmaxLayer)) {
+      throw new IllegalStateException("Only networks ending in a softmax layer can be trained");
+    }
+    final float[] probabilities = activations.outputs[last];
+    final float[] gradient = gradients.outputs[last - 1];
+    System.arraycopy(probabilities, 0, gradient, 0, probabilities.length);
+    gradient[target] -= 1;
+    for (int l = last - 1; l >= 0; l--) {
+      layers.get(l).backward(l == 0 ? input : activations.outputs[l - 1], activations.outputs[l],
+          gradients.outputs[l], l == 0 ? null : gradients.outputs[l - 1], gradients.weights[l],
+          gradients.biases[l], gradients.workspace);
+    }
+    return (float) -Math.log(Math.max(probabilities[target], Float.MIN_NORMAL));
+  }
+
+  /**
+   * Write the network to an open model file.
+   *
+   * @param writer Writer to use
+   * @throws IOException If the network cannot be written
+   */
+  public void write(ModelWriter writer) throws IOException {
+    writer.writeInt(inputShape.getChannels());
+    writer.writeInt(inputShape.getHeight());
+    writer.writeInt(inputShape.getWidth());
+    writer.writeInt(layers.size());
+    for (Layer layer : layers) {
+      layer.write(writer);
+    }
+  }
+
+  /**
+   * Read a network written by {@link #write(ModelWriter)}.
+   *
+   * @param reader Reader positioned at the start of the network
+   * @return The read network
+   * @throws IOException If the network cannot be read
+   */
+  public static Network read(ModelReader reader) throws IOException {
+    final Shape inputShape = new Shape(reader.readInt(), reader.readInt(), reader.readInt());
+    final int nLayers = reader.readInt();
+    final List<Layer> layers = new ArrayList<>(nLayers);
+    for (int l = 0; l < nLayers; l++) {
+      layers.add(Layer.read(reader));
+    }
+    return new Network(inputShape, layers);
+  }
+
+  /**
+   * Buffers for running a network on a single thread.
+   */
+  public static class Activations {
+    /** Output of each layer */
+    final float[][] outputs;
+    /** Scratch array shared by the layers */
+    final float[] workspace;
+
+    /**
+     * @param network Network to create buffers for
+     */
+    Activations(Network network) {
+      final List<Layer> layers = network.layers;
+      outputs = new float[layers.size()][];
+      int workspaceSize = 0;
+      for (int l = 0; l < layers.size(); l++) {
+        outputs[l] = new float[layers.get(l).getOutputShape().getSize()];
+        workspaceSize = Math.max(workspaceSize, layers.get(l).getWorkspaceSize());
+      }
+      workspace = new float[workspaceSize];
+    }
+
+    /**
+     * @param layer Index of a layer
+     * @return Output of the layer from the last run
+     */
+    public float[] getOutput(int layer) {
+      return outputs[layer];
+    }
+  }
+
+  /**
+   * Buffers for training a network on a single thread: a gradient array for the parameters of
+   * every layer, summed over the images run since they were last cleared, along with the gradient
+   * of each layer output and a shared scratch array.
+   */
+  public static class Gradients {
+    /** Summed gradient of the weights of each layer */
+    final float[][] weights;
+    /** Summed gradient of the biases of each layer */
+    final float[][] biases;
+    /** Gradient of the output of each layer for the current image */
+    final float[][] outputs;
+    /** Scratch array shared by the layers */
+    final float[] workspace;
+    /** Non-empty parameter gradient arrays, in the order of {@link Optimiser#getParameters()} */
+    final List<float[]> parameters = new ArrayList<>();
+
+    /**
+     * @param network Network to create buffers for
+     */
+    Gradients(Network network) {
+      final List<Layer> layers = network.layers;
+      weights = new float[layers.size()][];
+      biases = new float[layers.size()][];
+      outputs = new float[layers.size()][];
+      int workspaceSize = 0;
+      for (int l = 0; l < layers.size(); l++) {
+        final Layer layer = layers.get(l);
+        weights[l] = new float[layer.getWeights().length];
+        biases[l] = new float[layer.getBiases().length];
+        outputs[l] = new float[layer.getOutputShape().getSize()];
+        workspaceSize = Math.max(workspaceSize, layer.getBackwardWorkspaceSize());
+        for (float[] values : new float[][] {weights[l], biases[l]}) {
+          if (values.length > 0) {
+            parameters.add(values);
+          }
+        }
+      }
+      workspace = new float[workspaceSize];
+    }
+
+    /**
+     * Zero the summed parameter gradients.
+     */
+    public void clear() {
+      for (int l = 0; l < weights.length; l++) {
+        Arrays.fill(weights[l], 0);
+        Arrays.fill(biases[l], 0);
+      }
+    }
+
+    /**
+     * @return Non-empty parameter gradient arrays, in the order of
+     *         {@link Optimiser#getParameters()}
+     */
+    public List<float[]> getParameters() {
+      return parameters;
+    }
+
+    /**
+     * @param layer Index of a layer
+     * @return Summed gradient of the weights of the layer
+     */
+    public float[] getWeights(int layer) {
+      return weights[layer];
+    }
+
+    /**
+     * @param layer Index of a layer
+     * @return Summed gradient of the biases of the layer
+     */
+    public float[] getBiases(int layer) {
+      return biases[layer];
+    }
+  }
+
+}
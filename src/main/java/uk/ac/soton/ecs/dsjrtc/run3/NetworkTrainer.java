@@ -0,0 +1,310 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Trains a {@link Network} with data parallel mini-batch gradient descent.<br>
+ *
+ * Each batch is split between a fixed set of workers, one per thread, and every worker runs its
+ * share of the batch forward and backward with its own activation and gradient buffers, so no
+ * locking is needed during the pass. At the end of the batch the parameters are split into ranges
+ * and, in parallel, the gradients of every worker are summed over each range and the
+ * {@link Optimiser} applied to it. The buffers of each worker are reused for the whole of training.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class NetworkTrainer {
+  public static final int DEFAULT_EPOCHS = 20;
+  public static final int DEFAULT_BATCH_SIZE = 32;
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+  /** Parameters reduced and updated together by one task */
+  private static final int UPDATE_RANGE = 1 << 14;
+
+  private final int epochs;
+  private final int batchSize;
+  private final int nThreads;
+
+  /**
+   * Listener notified at the end of every epoch, such as to report progress or checkpoint.
+   */
+  public interface EpochListener {
+
+    /**
+     * @param stats Statistics of the finished epoch
+     */
+    void epochFinished(EpochStats stats);
+
+  }
+
+  /**
+   * Statistics of a single epoch.
+   */
+  public static class EpochStats {
+    private final int epoch;
+    private final int samples;
+    private final double seconds;
+    private final double loss;
+    private final double accuracy;
+
+    EpochStats(int epoch, int samples, double seconds, double loss, double accuracy) {
+      this.epoch = epoch;
+      this.samples = samples;
+      this.seconds = seconds;
+      this.loss = loss;
+      this.accuracy = accuracy;
+    }
+
+    /**
+     * @return Index of the epoch, from zero
+     */
+    public int getEpoch() {
+      return epoch;
+    }
+
+    /**
+     * @return Number of samples trained on
+     */
+    public int getSamples() {
+      return samples;
+    }
+
+    /**
+     * @return Wall clock time of the epoch in seconds
+     */
+    public double getSeconds() {
+      return seconds;
+    }
+
+    /**
+     * @return Samples trained on per second
+     */
+    public double getSamplesPerSecond() {
+      return samples / seconds;
+    }
+
+    /**
+     * @return Mean cross entropy loss of the samples, before each batch's update
+     */
+    public double getLoss() {
+      return loss;
+    }
+
+    /**
+     * @return Fraction of the samples classified correctly, before each batch's update
+     */
+    public double getAccuracy() {
+      return accuracy;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Epoch %d: loss %.4f, accuracy %.2f%%, %.1fs (%.1f samples/s)",
+          epoch + 1, loss, 100 * accuracy, seconds, getSamplesPerSecond());
+    }
+  }
+
+  /**
+   * Instantiate a trainer using all class defaults.
+   */
+  public NetworkTrainer() {
+    this(DEFAULT_EPOCHS, DEFAULT_BATCH_SIZE, DEFAULT_THREADS);
+  }
+
+  /**
+   * Instantiate a trainer.
+   *
+   * @param epochs Number of passes over the training samples
+   * @param batchSize Number of samples in each update
+   * @param nThreads Number of threads to split each batch across
+   */
+  public NetworkTrainer(int epochs, int batchSize, int nThreads) {
+    if (epochs <= 0 || batchSize <= 0 || nThreads <= 0) {
+      throw new IllegalArgumentException("Epochs, batch size and threads must be positive");
+    }
+    this.epochs = epochs;
+    this.batchSize = batchSize;
+    this.nThreads = nThreads;
+  }
+
+  /**
+   * Train a network, updating its parameters in place.
+   *
+   * @param network Network to train, must end in a {@link SoftmaxLayer}
+   * @param optimiser Optimiser of the network
+   * @param source Source of the training batches
+   * @param random Source of randomness for shuffling
+   * @param listener Listener to notify after every epoch, can be null
+   */
+  public void train(Network network, Optimiser optimiser, BatchSource source, Random random,
+      EpochListener listener) {
+    final List<Worker> workers = new ArrayList<>(nThreads);
+    for (int w = 0; w < nThreads; w++) {
+      workers.add(new Worker(network));
+    }
+    final List<Update> updates = createUpdates(optimiser, workers);
+    final ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+    try {
+      for (int epoch = 0; epoch < epochs; epoch++) {
+        final long start = System.nanoTime();
+        double loss = 0;
+        int correct = 0;
+        int samples = 0;
+        final Iterator<Batch> batches = source.epoch(batchSize, random);
+        while (batches.hasNext()) {
+          final Batch batch = batches.next();
+          // Forward and backward passes, each worker taking a contiguous share of the batch
+          for (int w = 0; w < nThreads; w++) {
+            workers.get(w).setRange(batch, batch.size() * w / nThreads,
+                batch.size() * (w + 1) / nThreads);
+          }
+          for (Future<Void> future : executor.invokeAll(workers)) {
+            future.get();
+          }
+          for (Worker worker : workers) {
+            loss += worker.loss;
+            correct += worker.correct;
+          }
+          samples += batch.size();
+          // Reduce the gradients and update the parameters
+          optimiser.beginStep();
+          for (Update update : updates) {
+            update.scale = 1f / batch.size();
+          }
+          for (Future<Void> future : executor.invokeAll(updates)) {
+            future.get();
+          }
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        if (listener != null && samples > 0) {
+          listener.epochFinished(
+              new EpochStats(epoch, samples, seconds, loss / samples, correct / (double) samples));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted whilst training", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Training failed", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Split the parameters into ranges that are reduced and updated together.
+   *
+   * @param optimiser Optimiser of the network
+   * @param workers Workers whose gradients are reduced
+   * @return Update task of each range
+   */
+  private static List<Update> createUpdates(Optimiser optimiser, List<Worker> workers) {
+    final List<Update> updates = new ArrayList<>();
+    final List<float[]> parameters = optimiser.getParameters();
+    for (int p = 0; p < parameters.size(); p++) {
+      final int length = parameters.get(p).length;
+      for (int from = 0; from < length; from += UPDATE_RANGE) {
+        updates.add(new Update(optimiser, workers, p, from, Math.min(length, from + UPDATE_RANGE)));
+      }
+    }
+    return updates;
+  }
+
+  /**
+   * Runs a share of each batch forward and backward with its own buffers.
+   */
+  private static class Worker implements Callable<Void> {
+    final Network network;
+    final Network.Activations activations;
+    final Network.Gradients gradients;
+    Batch batch;
+    int from;
+    int to;
+    /** Summed loss of the share of the last batch */
+    double loss;
+    /** Correctly classified samples of the share of the last batch */
+    int correct;
+
+    Worker(Network network) {
+      this.network = network;
+      this.activations = network.createActivations();
+      this.gradients = network.createGradients();
+    }
+
+    void setRange(Batch batch, int from, int to) {
+      this.batch = batch;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public Void call() {
+      gradients.clear();
+      loss = 0;
+      correct = 0;
+      for (int i = from; i < to; i++) {
+        final float[] input = batch.getInput(i);
+        final int target = batch.getTarget(i);
+        final float[] probabilities = network.forward(input, activations, null);
+        int best = 0;
+        for (int c = 1; c < probabilities.length; c++) {
+          if (probabilities[c] > probabilities[best]) {
+            best = c;
+          }
+        }
+        if (best == target) {
+          correct++;
+        }
+        loss += network.backward(input, target, activations, gradients);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Sums the gradients of every worker over a range of one parameter array into the first worker's
+   * gradient, then applies the optimiser to the range.
+   */
+  private static class Update implements Callable<Void> {
+    final Optimiser optimiser;
+    final float[][] gradients;
+    final int array;
+    final int from;
+    final int to;
+    /** Scale of the summed gradient, one over the batch size */
+    float scale;
+
+    Update(Optimiser optimiser, List<Worker> workers, int array, int from, int to) {
+      this.optimiser = optimiser;
+      this.gradients = new float[workers.size()][];
+      for (int w = 0; w < workers.size(); w++) {
+        gradients[w] = workers.get(w).gradients.getParameters().get(array);
+      }
+      this.array = array;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public Void call() {
+      final float[] sum = gradients[0];
+      for (int w = 1; w < gradients.length; w++) {
+        final float[] gradient = gradients[w];
+        for (int i = from; i < to; i++) {
+          sum[i] += gradient[i];
+        }
+      }
+      optimiser.update(array, sum, scale, from, to);
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,127 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Updates the parameters of a network from their gradients, using one of the following modes:
+ * <ul>
+ * <li>{@link Mode#SGD}: Stochastic gradient descent with momentum.</li>
+ * <li>{@link Mode#ADAM}: Adam, with a step size per parameter from bias corrected running means of
+ * the gradient and squared gradient.</li>
+ * </ul>
+ * The parameters are split into the weight and bias arrays of each layer (see
+ * {@link #getParameters()}). Within a step, disjoint ranges of the arrays can be updated
+ * concurrently.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class Optimiser {
+  public static final Mode DEFAULT_MODE = Mode.ADAM;
+  public static final float DEFAULT_LEARNING_RATE = 0.001f;
+  private static final float MOMENTUM = 0.9f;
+  private static final float BETA_1 = 0.9f;
+  private static final float BETA_2 = 0.999f;
+  private static final float EPSILON = 1e-8f;
+
+  /**
+   * Optimisation modes available.
+   */
+  public enum Mode {
+    SGD, ADAM
+  }
+
+  private final Mode mode;
+  private final float learningRate;
+  /** Weight and bias arrays of every layer with parameters */
+  private final List<float[]> parameters = new ArrayList<>();
+  /** Momentum (or first moment) of each parameter array */
+  private final List<float[]> first = new ArrayList<>();
+  /** Second moment of each parameter array, Adam only */
+  private final List<float[]> second = new ArrayList<>();
+  /** Number of steps taken */
+  private int steps = 0;
+  /** Step size of the current step, including any bias correction */
+  private float stepSize;
+  /** Bias correction of the second moment for the current step */
+  private float secondCorrection;
+
+  /**
+   * Instantiate an optimiser for a network.
+   *
+   * @param network Network to optimise
+   * @param mode Optimisation mode to use
+   * @param learningRate Step size
+   */
+  public Optimiser(Network network, Mode mode, float learningRate) {
+    if (mode == null) {
+      throw new IllegalArgumentException("Optimisation mode cannot be null");
+    }
+    if (learningRate <= 0) {
+      throw new IllegalArgumentException("Learning rate must be positive");
+    }
+    this.mode = mode;
+    this.learningRate = learningRate;
+    for (Layer layer : network.getLayers()) {
+      for (float[] values : new float[][] {layer.getWeights(), layer.getBiases()}) {
+        if (values.length > 0) {
+          parameters.add(values);
+          first.add(new float[values.length]);
+          second.add(mode == Mode.ADAM ? new float[values.length] : null);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return Weight and bias arrays of every layer with parameters, in layer order with the weights
+   *         of a layer before its biases
+   */
+  public List<float[]> getParameters() {
+    return parameters;
+  }
+
+  /**
+   * Begin a step, must be called before the updates of the step.
+   */
+  public void beginStep() {
+    steps++;
+    if (mode == Mode.ADAM) {
+      final double firstCorrection = 1 - Math.pow(BETA_1, steps);
+      secondCorrection = (float) (1 - Math.pow(BETA_2, steps));
+      stepSize = (float) (learningRate / firstCorrection);
+    } else {
+      stepSize = learningRate;
+    }
+  }
+
+  /**
+   * Update a range of a parameter array.
+   *
+   * @param array Index of the parameter array, see {@link #getParameters()}
+   * @param gradient Gradient of the array
+   * @param scale Scale to apply to the gradient, such as one over the batch size
+   * @param from First index to update (inclusive)
+   * @param to Last index to update (exclusive)
+   */
+  public void update(int array, float[] gradient, float scale, int from, int to) {
+    final float[] values = parameters.get(array);
+    final float[] m = first.get(array);
+    if (mode == Mode.SGD) {
+      for (int i = from; i < to; i++) {
+        m[i] = MOMENTUM * m[i] + gradient[i] * scale;
+        values[i] -= stepSize * m[i];
+      }
+      return;
+    }
+    final float[] v = second.get(array);
+    for (int i = from; i < to; i++) {
+      final float g = gradient[i] * scale;
+      m[i] = BETA_1 * m[i] + (1 - BETA_1) * g;
+      v[i] = BETA_2 * v[i] + (1 - BETA_2) * g * g;
+      values[i] -= stepSize * m[i] / ((float) Math.sqrt(v[i] / secondCorrection) + EPSILON);
+    }
+  }
+
+}
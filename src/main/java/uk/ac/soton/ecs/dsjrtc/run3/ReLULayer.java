@@ -0,0 +1,49 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Rectified linear activation, max(0, x) of every value.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ReLULayer extends Layer {
+  static final String TYPE = "ReLU";
+
+  @Override
+  protected Shape getOutputShape(Shape input) {
+    return input;
+  }
+
+  @Override
+  public void forward(float[] input, float[] output, float[] workspace, ForkJoinPool pool) {
+    final int length = inputShape.getSize();
+    for (int i = 0; i < length; i++) {
+      output[i] = input[i] > 0 ? input[i] : 0;
+    }
+  }
+
+  @Override
+  public void backward(float[] input, float[] output, float[] outputGradient,
+      float[] inputGradient, float[] weightGradient, float[] biasGradient, float[] workspace) {
+    if (inputGradient == null) {
+      return;
+    }
+    final int length = inputShape.getSize();
+    for (int i = 0; i < length; i++) {
+      inputGradient[i] = output[i] > 0 ? outputGradient[i] : 0;
+    }
+  }
+
+  @Override
+  protected String getType() {
+    return TYPE;
+  }
+
+  @Override
+  protected Layer newUnconnected() {
+    return new ReLULayer();
+  }
+
+}
@@ -0,0 +1,78 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+/**
+ * Immutable shape of the activations of a single image, held channel by channel with each channel
+ * packed row by row.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class Shape {
+  private final int channels;
+  private final int height;
+  private final int width;
+
+  /**
+   * Instantiate a shape.
+   *
+   * @param channels Number of channels
+   * @param height Rows in each channel
+   * @param width Values in each row
+   */
+  public Shape(int channels, int height, int width) {
+    if (channels <= 0 || height <= 0 || width <= 0) {
+      throw new IllegalArgumentException("Shape dimensions must be positive");
+    }
+    this.channels = channels;
+    this.height = height;
+    this.width = width;
+  }
+
+  /**
+   * @return Number of channels
+   */
+  public int getChannels() {
+    return channels;
+  }
+
+  /**
+   * @return Rows in each channel
+   */
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * @return Values in each row
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * @return Total number of values
+   */
+  public int getSize() {
+    return channels * height * width;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof Shape)) {
+      return false;
+    }
+    final Shape other = (Shape) obj;
+    return channels == other.channels && height == other.height && width == other.width;
+  }
+
+  @Override
+  public int hashCode() {
+    return (channels * 31 + height) * 31 + width;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%dx%dx%d", channels, height, width);
+  }
+
+}
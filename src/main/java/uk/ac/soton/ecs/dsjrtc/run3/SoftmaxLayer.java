@@ -0,0 +1,67 @@
+package uk.ac.soton.ecs.dsjrtc.run3;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Softmax over the flattened input, turning scores into probabilities that sum to one. The
+ * maximum score is subtracted before exponentiation so large scores cannot overflow.<br>
+ *
+ * When training with cross entropy loss the gradient is taken straight to the input of this layer
+ * (see {@link Network#backward}), which avoids dividing by small probabilities.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class SoftmaxLayer extends Layer {
+  static final String TYPE = "Softmax";
+
+  @Override
+  protected Shape getOutputShape(Shape input) {
+    return input;
+  }
+
+  @Override
+  public void forward(float[] input, float[] output, float[] workspace, ForkJoinPool pool) {
+    final int length = inputShape.getSize();
+    float max = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < length; i++) {
+      max = Math.max(max, input[i]);
+    }
+    double sum = 0;
+    for (int i = 0; i < length; i++) {
+      output[i] = (float) Math.exp(input[i] - max);
+      sum += output[i];
+    }
+    final float scale = (float) (1 / sum);
+    for (int i = 0; i < length; i++) {
+      output[i] *= scale;
+    }
+  }
+
+  @Override
+  public void backward(float[] input, float[] output, float[] outputGradient,
+      float[] inputGradient, float[] weightGradient, float[] biasGradient, float[] workspace) {
+    if (inputGradient == null) {
+      return;
+    }
+    final int length = inputShape.getSize();
+    float dot = 0;
+    for (int i = 0; i < length; i++) {
+      dot += outputGradient[i] * output[i];
+    }
+    for (int i = 0; i < length; i++) {
+      inputGradient[i] = output[i] * (outputGradient[i] - dot);
+    }
+  }
+
+  @Override
+  protected String getType() {
+    return TYPE;
+  }
+
+  @Override
+  protected Layer newUnconnected() {
+    return new SoftmaxLayer();
+  }
+
+}
@@ -1,32 +1,431 @@
 package uk.ac.soton.ecs.dsjrtc.run3;
 
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.experiment.evaluation.classification.BasicClassificationResult;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
 import org.openimaj.image.FImage;
+import uk.ac.soton.ecs.dsjrtc.lib.CachedListDataset;
+import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.lib.ImageCache;
+import uk.ac.soton.ecs.dsjrtc.lib.Metrics;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelReader;
+import uk.ac.soton.ecs.dsjrtc.lib.ModelWriter;
+import uk.ac.soton.ecs.dsjrtc.lib.ParallelClassification;
 import uk.ac.soton.ecs.dsjrtc.lib.TrainableClassifier;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageFeature;
 
-public class TensorFlowCNNWrapper  implements TrainableClassifier<String, FImage> {
+/**
+ * Classifier that runs a small convolutional neural network over each image, using the pure Java
+ * {@link Network} engine so no TensorFlow service (or GPU) is needed.<br>
+ *
+ * Images are cropped to the square around their centre, area averaged down to the network input
+ * size and normalised as a {@link TinyImageFeature} is. The predicted class is the output of the
+ * network with the highest probability.<br>
+ *
+ * A single {@link #classify(FImage)} splits the larger multiplies of the network across the pool
+ * shared by everything using the same number of threads (see
+ * {@link ParallelClassification#getPool(int)}), whereas {@link #classifyAll(List)} runs whole
+ * images in parallel with each thread reusing its own activation buffers.<br>
+ *
+ * Training creates the default network (see {@link #createDefaultNetwork(int, int)}) and trains it
+ * end to end with a {@link NetworkTrainer}, reporting the time and throughput of every epoch. When
+ * a checkpoint file is set (see {@link #setCheckpointFile(File)}) the classifier is saved to it
+ * after every epoch, a checkpoint can be restored with {@link #load(File)} and trained further.
+ * When augmentation is enabled (see {@link #setAugmentTrainingData(boolean)}) every epoch trains on
+ * newly augmented versions of the images, made in the background by an
+ * {@link AugmentedBatchSource}; otherwise the inputs are prepared once and held in memory.<br>
+ *
+ * Classification is safe from many threads at once without locking. The network and its classes
+ * are published together as a single snapshot; further training works on a copy of the network
+ * and publishes it when finished, so classification continues with the previous network meanwhile.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class TensorFlowCNNWrapper implements TrainableClassifier<String, FImage> {
+  /** Width and height of the network input */
+  public static final int DEFAULT_INPUT_SIZE = 64;
+  public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+  /** Model type recorded in saved files */
+  private static final String MODEL_TYPE = "TensorFlowCNNWrapper";
+
+  /** Whether to train on randomly augmented images */
+  private boolean augmentTrainingData = false;
+  /** Number of passes over the training set made by each training */
+  private int epochs = NetworkTrainer.DEFAULT_EPOCHS;
+  /** File to save the classifier to after every training epoch, none if null */
+  private File checkpointFile = null;
+  /** Source of randomness for initialisation and shuffling */
+  private final Random random = new Random();
+
+  /** Network and the class of each output, null until trained or loaded */
+  private volatile Trained trained = null;
+  /** Number of threads to use for classification and training */
+  private final int nThreads;
+  /** Per thread buffers for single classifications */
+  private final ThreadLocal<Buffers> buffers = new ThreadLocal<>();
+
+  /**
+   * Instantiate an untrained classifier using all class defaults.
+   */
+  public TensorFlowCNNWrapper() {
+    this(DEFAULT_THREADS);
+  }
+
+  /**
+   * Instantiate an untrained classifier.
+   *
+   * @param nThreads Number of threads to use for classification and training
+   */
+  public TensorFlowCNNWrapper(int nThreads) {
+    if (nThreads <= 0) {
+      throw new IllegalArgumentException("Thread count must be positive");
+    }
+    this.nThreads = nThreads;
+  }
+
+  /**
+   * Instantiate a classifier using an existing network.
+   *
+   * @param network Network to use, must take a single channel square input and output one
+   *        probability per class
+   * @param classes Class of each network output
+   * @param nThreads Number of threads to use for classification and training
+   */
+  public TensorFlowCNNWrapper(Network network, String[] classes, int nThreads) {
+    this(nThreads);
+    this.trained = checkNetwork(network, classes.clone());
+  }
+
+  /**
+   * Create the default network architecture: three blocks of 3x3 convolution, ReLU and 2x2 max
+   * pooling (16, 32 then 64 filters), a 128 unit hidden layer and a softmax output. The network has
+   * zeroed parameters until initialised.
+   *
+   * @param inputSize Width and height of the input, should be a multiple of 8
+   * @param nClasses Number of classes to output
+   * @return The network
+   */
+  public static Network createDefaultNetwork(int inputSize, int nClasses) {
+    final List<Layer> layers = new ArrayList<>();
+    for (int filters : new int[] {16, 32, 64}) {
+      layers.add(new ConvolutionLayer(filters, 3, 1, 1));
+      layers.add(new ReLULayer());
+      layers.add(new MaxPoolLayer(2, 2));
+    }
+    layers.add(new DenseLayer(128));
+    layers.add(new ReLULayer());
+    layers.add(new DenseLayer(nClasses));
+    layers.add(new SoftmaxLayer());
+    return new Network(new Shape(1, inputSize, inputSize), layers);
+  }
+
+  /**
+   * @param network Network to use
+   * @param classes Class of each network output
+   * @return The network and classes, if they are suitable
+   */
+  private static Trained checkNetwork(Network network, String[] classes) {
+    final Shape input = network.getInputShape();
+    if (input.getChannels() != 1 || input.getWidth() != input.getHeight()) {
+      throw new IllegalArgumentException("Network input must be a single channel square");
+    }
+    if (network.getOutputShape().getSize() != classes.length) {
+      throw new IllegalArgumentException("Network must have one output per class");
+    }
+    return new Trained(network, classes);
+  }
+
+  /**
+   * @return The published network, null if not trained or loaded (must not be modified)
+   */
+  public Network getNetwork() {
+    final Trained trained = this.trained;
+    return trained == null ? null : trained.network;
+  }
 
-  private boolean augmentTrainingData;
-  
-  
   @Override
   public ClassificationResult<String> classify(FImage object) {
-    // TODO Auto-generated method stub
-    return null;
+    final Trained trained = this.trained;
+    if (trained == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    Buffers buffers = this.buffers.get();
+    if (buffers == null || buffers.network != trained.network) {
+      buffers = new Buffers(trained.network);
+      this.buffers.set(buffers);
+    }
+    final long start = Metrics.start();
+    final ClassificationResult<String> result =
+        classify(object, buffers, trained.classes, getPool());
+    Metrics.stop(Metrics.Stage.CLASSIFY, start);
+    return result;
+  }
+
+  /**
+   * {@inheritDoc} Images are classified in parallel, each range of the batch reusing a single set
+   * of buffers.
+   */
+  @Override
+  public List<ClassificationResult<String>> classifyAll(final List<FImage> objects) {
+    final Trained trained = this.trained;
+    if (trained == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    return ParallelClassification.classifyRanges(objects.size(), nThreads,
+        new ParallelClassification.RangeClassifier<String>() {
+          @Override
+          public void classify(int from, int to, List<ClassificationResult<String>> results) {
+            final Buffers buffers = new Buffers(trained.network);
+            for (int i = from; i < to; i++) {
+              results.set(i, TensorFlowCNNWrapper.classify(objects.get(i), buffers,
+                  trained.classes, null));
+            }
+          }
+        });
+  }
+
+  /**
+   * @param img Image to classify
+   * @param buffers Buffers of the calling thread, for the network to run
+   * @param classes Class of each network output
+   * @param pool Pool to split large multiplies across, null to run on the calling thread
+   * @return Result holding the most probable class with its probability
+   */
+  private static ClassificationResult<String> classify(FImage img, Buffers buffers,
+      String[] classes, ForkJoinPool pool) {
+    final Shape input = buffers.network.getInputShape();
+    TinyImageFeature.makeTinyImage(img, new Dimension(input.getWidth(), input.getHeight()), true,
+        buffers.input, 0);
+    final float[] probabilities = buffers.network.forward(buffers.input, buffers.activations, pool);
+    int best = 0;
+    for (int c = 1; c < classes.length; c++) {
+      if (probabilities[c] > probabilities[best]) {
+        best = c;
+      }
+    }
+    final BasicClassificationResult<String> result = new BasicClassificationResult<>();
+    result.put(classes[best], probabilities[best]);
+    return result;
+  }
+
+  /**
+   * @return Shared pool splitting the multiplies of a single classification, null if only one
+   *         thread
+   */
+  private ForkJoinPool getPool() {
+    return nThreads > 1 ? ParallelClassification.getPool(nThreads) : null;
   }
 
+  /**
+   * {@inheritDoc} N.B. A copy of the current network is trained further if it has the same classes
+   * as the training set, otherwise a new default network is created.
+   */
   @Override
-  public void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
-    // Apply augmentation
+  public synchronized void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    train(trainingSet, trained);
+  }
+
+  /**
+   * Train a network and publish it when finished.
+   *
+   * @param trainingSet Images to train on
+   * @param previous Network to copy and train further if it has the same classes, a new network
+   *        is always created if null
+   */
+  private void train(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet,
+      Trained previous) {
+    final String[] classes = trainingSet.getGroups().toArray(new String[0]);
+    Arrays.sort(classes);
+    final Network network;
+    if (previous == null || !Arrays.equals(previous.classes, classes)) {
+      Debugger.println("Making network...");
+      network = createDefaultNetwork(DEFAULT_INPUT_SIZE, classes.length);
+      network.initialise(random);
+    } else {
+      // Train a copy, classification continues with the published network meanwhile
+      network = previous.network.copy();
+    }
+    final Shape input = network.getInputShape();
+    final Dimension scale = new Dimension(input.getWidth(), input.getHeight());
+    final BatchSource source;
+    if (augmentTrainingData) {
+      // Cache decoded images so each epoch only pays for augmentation
+      final ImageCache cache = new ImageCache(ImageCache.DEFAULT_MEMORY_LIMIT,
+          ImageCache.Storage.BYTE, null);
+      source = new AugmentedBatchSource(CachedListDataset.wrap(trainingSet, cache, "train/"),
+          classes, new ImageAugmenter(), scale, nThreads);
+    } else {
+      Debugger.println("Preparing inputs...");
+      final float[][] inputs = new float[trainingSet.numInstances()][];
+      final int[] targets = new int[inputs.length];
+      int i = 0;
+      for (Entry<String, ListDataset<FImage>> group : trainingSet.entrySet()) {
+        final int target = Arrays.binarySearch(classes, group.getKey());
+        for (FImage img : group.getValue()) {
+          inputs[i] = TinyImageFeature.makeTinyImage(img, scale, true);
+          targets[i++] = target;
+        }
+      }
+      source = new InMemoryBatchSource(inputs, targets);
+    }
+    Debugger.println(String.format("Training started on %d images%s, %d parameters...",
+        source.size(), augmentTrainingData ? " (augmented)" : "", network.getParameterCount()));
+    final NetworkTrainer trainer = new NetworkTrainer(epochs, NetworkTrainer.DEFAULT_BATCH_SIZE,
+        nThreads);
+    final Optimiser optimiser =
+        new Optimiser(network, Optimiser.DEFAULT_MODE, Optimiser.DEFAULT_LEARNING_RATE);
+    try {
+      trainer.train(network, optimiser, source, random,
+          new NetworkTrainer.EpochListener() {
+            @Override
+            public void epochFinished(NetworkTrainer.EpochStats stats) {
+              Debugger.println(stats);
+              saveCheckpoint(network, classes);
+            }
+          });
+    } finally {
+      source.close();
+    }
+    trained = new Trained(network, classes);
+    Debugger.println("Training finished");
+  }
 
+  /**
+   * Save a network being trained to the checkpoint file if set. The file is written beside the
+   * checkpoint and moved over it, so an interrupted save never leaves a partial checkpoint.
+   *
+   * @param network Network being trained
+   * @param classes Class of each network output
+   */
+  private void saveCheckpoint(Network network, String[] classes) {
+    if (checkpointFile == null) {
+      return;
+    }
+    final File partial = new File(checkpointFile.getPath() + ".partial");
+    try {
+      write(partial, network, classes);
+      Files.move(partial.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println(String.format("Failed to save checkpoint: %s", e));
+    }
   }
 
+  /**
+   * @param epochs Number of passes over the training set made by each training, must be positive
+   */
+  public void setEpochs(int epochs) {
+    if (epochs <= 0) {
+      throw new IllegalArgumentException("Epochs must be positive");
+    }
+    this.epochs = epochs;
+  }
+
+  /**
+   * @param augmentTrainingData Whether to train on randomly cropped, flipped, scaled and
+   *        brightened versions of the training images, newly made every epoch
+   */
+  public void setAugmentTrainingData(boolean augmentTrainingData) {
+    this.augmentTrainingData = augmentTrainingData;
+  }
+
+  /**
+   * Set the file the classifier is saved to after every training epoch.
+   *
+   * @param checkpointFile File to save to, none if null
+   */
+  public void setCheckpointFile(File checkpointFile) {
+    this.checkpointFile = checkpointFile;
+  }
+
+  /**
+   * {@inheritDoc} The new network is only published when trained.
+   */
   @Override
-  public void retrain(GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
-    // TODO Auto-generated method stub
-    
+  public synchronized void retrain(
+      GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet) {
+    train(trainingSet, null);
+  }
+
+  /**
+   * Save the trained classifier: the classes and the network.
+   *
+   * @param file File to save to
+   * @throws IOException If the file cannot be written
+   */
+  public void save(File file) throws IOException {
+    final Trained trained = this.trained;
+    if (trained == null) {
+      throw new IllegalStateException("Classifier has not yet been trained");
+    }
+    write(file, trained.network, trained.classes);
+  }
+
+  /**
+   * @param file File to save to
+   * @param network Network to save
+   * @param classes Class of each network output
+   * @throws IOException If the file cannot be written
+   */
+  private static void write(File file, Network network, String[] classes) throws IOException {
+    try (ModelWriter writer = new ModelWriter(file, MODEL_TYPE)) {
+      writer.writeStrings(classes);
+      network.write(writer);
+    }
+  }
+
+  /**
+   * Load a classifier saved with {@link #save(File)}.
+   *
+   * @param file File to load from
+   * @return The loaded classifier, ready for classification
+   * @throws IOException If the file cannot be read
+   */
+  public static TensorFlowCNNWrapper load(File file) throws IOException {
+    final ModelReader reader = new ModelReader(file, MODEL_TYPE);
+    final String[] classes = reader.readStrings();
+    return new TensorFlowCNNWrapper(Network.read(reader), classes, DEFAULT_THREADS);
+  }
+
+  /**
+   * Network with the class of each of its outputs, never changed once published.
+   */
+  private static class Trained {
+    final Network network;
+    final String[] classes;
+
+    Trained(Network network, String[] classes) {
+      this.network = network;
+      this.classes = classes;
+    }
+  }
+
+  /**
+   * Buffers for classifying images of one network on a single thread.
+   */
+  private static class Buffers {
+    final Network network;
+    final float[] input;
+    final Network.Activations activations;
+
+    Buffers(Network network) {
+      this.network = network;
+      this.input = new float[network.getInputShape().getSize()];
+      this.activations = network.createActivations();
+    }
   }
 
 }
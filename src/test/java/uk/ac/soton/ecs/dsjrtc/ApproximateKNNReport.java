@@ -0,0 +1,138 @@
+package uk.ac.soton.ecs.dsjrtc;
+
+import java.util.List;
+import java.util.Random;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.experiment.evaluation.classification.ClassificationResultUtils;
+import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.run1.ProductQuantizedIndex;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageIndex;
+
+/**
+ * Report comparing the accuracy and throughput of approximate {@link ProductQuantizedIndex}
+ * settings against an exact {@link TinyImageIndex} scan, for training sets of increasing size.
+ * Uses random vectors of the same shape as the 16x16 run 1 tiny images with noisy clustered
+ * classes, so needs no dataset. Accuracy is against the true class of each query and agreement is
+ * against the top class of the exact scan.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ApproximateKNNReport {
+  private static final int DIMS = 16 * 16;
+  private static final int CLASSES = 15;
+  private static final int K = 20;
+  private static final float SPREAD = 14;
+  private static final int[] TRAINING_SIZES = {10000, 100000};
+  private static final int QUERIES = 300;
+  /** Approximate settings to report as {subspaces, centroids, re-rank count} */
+  private static final int[][] SETTINGS =
+      {{8, 256, 0}, {16, 256, 0}, {32, 256, 0}, {16, 256, 100}, {32, 256, 200}};
+
+  /**
+   * Main method for report.
+   *
+   * @param args None (ignored)
+   */
+  public static void main(String[] args) {
+    Debugger.setOutputEnabled(false);
+    final Random random = new Random(0);
+    final float[][] centres = new float[CLASSES][];
+    for (int c = 0; c < CLASSES; c++) {
+      centres[c] = randomVector(random, null);
+    }
+    final float[] queries = new float[QUERIES * DIMS];
+    final String[] truth = new String[QUERIES];
+    for (int q = 0; q < QUERIES; q++) {
+      System.arraycopy(randomVector(random, centres[q % CLASSES]), 0, queries, q * DIMS, DIMS);
+      truth[q] = "c" + (q % CLASSES);
+    }
+
+    System.out.println(String.format("%-10s %-22s %10s %10s %12s %10s %10s", "Training",
+        "Index", "Bytes/row", "Build (s)", "Queries/s", "Accuracy", "Agreement"));
+    for (int size : TRAINING_SIZES) {
+      final TinyImageIndex index = new TinyImageIndex(DIMS);
+      for (int i = 0; i < size; i++) {
+        index.add(randomVector(random, centres[i % CLASSES]), "c" + (i % CLASSES));
+      }
+      // Warm up then time the exact scan
+      index.classify(queries, QUERIES, K);
+      long start = System.nanoTime();
+      final List<ClassificationResult<String>> exact = index.classify(queries, QUERIES, K);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      final String[] exactClasses = topClasses(exact);
+      report(size, "Exact", DIMS * 4, 0, seconds, exactClasses, truth, exactClasses);
+
+      for (int[] setting : SETTINGS) {
+        start = System.nanoTime();
+        final ProductQuantizedIndex approximate =
+            new ProductQuantizedIndex(index, setting[0], setting[1], setting[2]);
+        final double buildSeconds = (System.nanoTime() - start) / 1e9;
+        approximate.classify(queries, QUERIES, K);
+        start = System.nanoTime();
+        final List<ClassificationResult<String>> results =
+            approximate.classify(queries, QUERIES, K);
+        seconds = (System.nanoTime() - start) / 1e9;
+        report(size, String.format("PQ m=%d c=%d r=%d", setting[0], setting[1], setting[2]),
+            approximate.getCodeLength(), buildSeconds, seconds, topClasses(results), truth,
+            exactClasses);
+      }
+    }
+  }
+
+  /**
+   * @param results Classification results
+   * @return Most confident class of each result
+   */
+  private static String[] topClasses(List<ClassificationResult<String>> results) {
+    final String[] classes = new String[results.size()];
+    for (int q = 0; q < classes.length; q++) {
+      classes[q] = ClassificationResultUtils.getHighestConfidenceClass(results.get(q));
+    }
+    return classes;
+  }
+
+  /**
+   * Print a row of the report.
+   *
+   * @param size Number of training vectors
+   * @param name Name of the index
+   * @param bytesPerRow Bytes of search data per training vector
+   * @param buildSeconds Seconds taken to build the index
+   * @param seconds Seconds taken to classify all queries
+   * @param classes Top class of each query
+   * @param truth True class of each query
+   * @param exact Top class of each query by the exact scan
+   */
+  private static void report(int size, String name, int bytesPerRow, double buildSeconds,
+      double seconds, String[] classes, String[] truth, String[] exact) {
+    int correct = 0;
+    int agree = 0;
+    for (int q = 0; q < classes.length; q++) {
+      if (classes[q].equals(truth[q])) {
+        correct++;
+      }
+      if (classes[q].equals(exact[q])) {
+        agree++;
+      }
+    }
+    System.out.println(String.format("%-10d %-22s %10d %10.1f %12.1f %9.2f%% %9.2f%%", size, name,
+        bytesPerRow, buildSeconds, QUERIES / seconds, 100.0 * correct / classes.length,
+        100.0 * agree / classes.length));
+  }
+
+  /**
+   * @param random Source of randomness
+   * @param centre Centre to offset from, uniform in [0, 1) if null
+   * @return A random vector
+   */
+  private static float[] randomVector(Random random, float[] centre) {
+    final float[] vector = new float[DIMS];
+    for (int d = 0; d < DIMS; d++) {
+      vector[d] = centre == null ? random.nextFloat()
+          : centre[d] + SPREAD * (float) random.nextGaussian() / (float) Math.sqrt(DIMS);
+    }
+    return vector;
+  }
+
+}
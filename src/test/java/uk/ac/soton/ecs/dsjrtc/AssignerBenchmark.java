@@ -0,0 +1,126 @@
+package uk.ac.soton.ecs.dsjrtc;
+
+import java.util.Random;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import org.openimaj.ml.clustering.assignment.HardAssigner;
+import org.openimaj.util.pair.IntFloatPair;
+import uk.ac.soton.ecs.dsjrtc.lib.BlockedCentroidAssigner;
+
+/**
+ * Throughput benchmark of visual word assignment, comparing the default OpenIMAJ assigner of a
+ * vocabulary with the {@link BlockedCentroidAssigner}. Uses random patches and centroids of the
+ * same shape as the run 2 vocabulary, so needs no dataset. Each assigner is warmed up before being
+ * timed and the agreement of its assignments with the default assigner is reported.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class AssignerBenchmark {
+  private static final int CLUSTERS = 500;
+  private static final int DIMS = 64;
+  private static final int PATCHES = 100000;
+  private static final int WARMUP_ROUNDS = 3;
+  private static final int ROUNDS = 5;
+
+  /**
+   * Main method for benchmark.
+   *
+   * @param args None (ignored)
+   */
+  public static void main(String[] args) {
+    final Random random = new Random(0);
+    final FloatCentroidsResult vocab = new FloatCentroidsResult();
+    vocab.centroids = randomMatrix(random, CLUSTERS, DIMS);
+    final float[][] patches = randomMatrix(random, PATCHES, DIMS);
+    final float[] packed = new float[PATCHES * DIMS];
+    for (int i = 0; i < PATCHES; i++) {
+      System.arraycopy(patches[i], 0, packed, i * DIMS, DIMS);
+    }
+
+    final HardAssigner<float[], float[], IntFloatPair> exact = vocab.defaultHardAssigner();
+    final BlockedCentroidAssigner blocked = new BlockedCentroidAssigner(vocab);
+    final int[] reference = new int[PATCHES];
+    final int[] indices = new int[PATCHES];
+
+    System.out.println(String.format("%-24s %16s %12s", "Assigner", "Patches/s", "Agreement"));
+    // Default assigner, one patch at a time as BagOfVisualWords does
+    double seconds = time(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < PATCHES; i++) {
+          reference[i] = exact.assign(patches[i]);
+        }
+      }
+    });
+    report("Default (per patch)", seconds, reference, reference);
+    // Default assigner, all patches in one call
+    seconds = time(new Runnable() {
+      @Override
+      public void run() {
+        System.arraycopy(exact.assign(patches), 0, indices, 0, PATCHES);
+      }
+    });
+    report("Default (batch)", seconds, indices, reference);
+    // Blocked assigner over the packed patches
+    seconds = time(new Runnable() {
+      @Override
+      public void run() {
+        blocked.assign(packed, 0, PATCHES, indices);
+      }
+    });
+    report("Blocked", seconds, indices, reference);
+  }
+
+  /**
+   * Run a task for the warm up rounds, then time it.
+   *
+   * @param task Task to time
+   * @return Mean seconds per timed round
+   */
+  private static double time(Runnable task) {
+    for (int r = 0; r < WARMUP_ROUNDS; r++) {
+      task.run();
+    }
+    final long start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      task.run();
+    }
+    return (System.nanoTime() - start) / 1e9 / ROUNDS;
+  }
+
+  /**
+   * Print a row of the results table.
+   *
+   * @param name Name of the assigner
+   * @param seconds Seconds taken to assign all patches
+   * @param indices Assignments made
+   * @param reference Assignments of the default assigner
+   */
+  private static void report(String name, double seconds, int[] indices, int[] reference) {
+    int agree = 0;
+    for (int i = 0; i < indices.length; i++) {
+      if (indices[i] == reference[i]) {
+        agree++;
+      }
+    }
+    System.out.println(String.format("%-24s %16.0f %11.2f%%", name, PATCHES / seconds,
+        100.0 * agree / indices.length));
+  }
+
+  /**
+   * @param random Source of randomness
+   * @param rows Number of rows
+   * @param cols Number of columns
+   * @return Matrix of normally distributed values
+   */
+  private static float[][] randomMatrix(Random random, int rows, int cols) {
+    final float[][] matrix = new float[rows][cols];
+    for (int r = 0; r < rows; r++) {
+      for (int c = 0; c < cols; c++) {
+        matrix[r][c] = (float) random.nextGaussian();
+      }
+    }
+    return matrix;
+  }
+
+}
@@ -0,0 +1,140 @@
+package uk.ac.soton.ecs.dsjrtc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.openimaj.image.FImage;
+import uk.ac.soton.ecs.dsjrtc.lib.Sgemm;
+import uk.ac.soton.ecs.dsjrtc.run3.Network;
+import uk.ac.soton.ecs.dsjrtc.run3.TensorFlowCNNWrapper;
+
+/**
+ * Throughput benchmark of CNN inference, reporting the images per second of the default run 3
+ * network when classifying one image at a time (splitting multiplies across threads) and when
+ * classifying a batch (one image per thread). The matrix multiply is also compared against a naive
+ * triple loop on the shape of the widest convolution. Uses random weights and images of a similar
+ * size to the scene dataset, so needs no dataset or trained model. Everything is warmed up before
+ * being timed.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class CNNBenchmark {
+  private static final int IMAGES = 200;
+  private static final int IMAGE_SIZE = 256;
+  private static final int CLASSES = 15;
+  private static final int WARMUP_ROUNDS = 2;
+  private static final int ROUNDS = 3;
+  // Shape of the first convolution of the default network as a multiply
+  private static final int GEMM_M = 16;
+  private static final int GEMM_N = 64 * 64;
+  private static final int GEMM_K = 9;
+
+  /**
+   * Main method for benchmark.
+   *
+   * @param args None (ignored)
+   */
+  public static void main(String[] args) {
+    final Random random = new Random(0);
+    final List<FImage> images = new ArrayList<>();
+    for (int i = 0; i < IMAGES; i++) {
+      final FImage img = new FImage(IMAGE_SIZE, IMAGE_SIZE);
+      for (int y = 0; y < IMAGE_SIZE; y++) {
+        for (int x = 0; x < IMAGE_SIZE; x++) {
+          img.pixels[y][x] = random.nextFloat();
+        }
+      }
+      images.add(img);
+    }
+    final String[] classes = new String[CLASSES];
+    for (int c = 0; c < CLASSES; c++) {
+      classes[c] = "class" + c;
+    }
+    final Network network =
+        TensorFlowCNNWrapper.createDefaultNetwork(TensorFlowCNNWrapper.DEFAULT_INPUT_SIZE, CLASSES);
+    network.initialise(random);
+    final TensorFlowCNNWrapper cnn =
+        new TensorFlowCNNWrapper(network, classes, TensorFlowCNNWrapper.DEFAULT_THREADS);
+    System.out.println(String.format("Network of %d parameters, %d threads",
+        network.getParameterCount(), TensorFlowCNNWrapper.DEFAULT_THREADS));
+
+    System.out.println(String.format("%-24s %16s", "Mode", "Images/s"));
+    double seconds = time(new Runnable() {
+      @Override
+      public void run() {
+        for (FImage img : images) {
+          cnn.classify(img);
+        }
+      }
+    });
+    System.out.println(String.format("%-24s %16.1f", "Single", IMAGES / seconds));
+    seconds = time(new Runnable() {
+      @Override
+      public void run() {
+        cnn.classifyAll(images);
+      }
+    });
+    System.out.println(String.format("%-24s %16.1f", "Batch", IMAGES / seconds));
+
+    final float[] a = randomArray(random, GEMM_M * GEMM_K);
+    final float[] b = randomArray(random, GEMM_K * GEMM_N);
+    final float[] c = new float[GEMM_M * GEMM_N];
+    final double flops = 2.0 * GEMM_M * GEMM_N * GEMM_K;
+    System.out.println(String.format("\n%-24s %16s", "Multiply", "GFLOP/s"));
+    seconds = time(new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < GEMM_M; i++) {
+          for (int j = 0; j < GEMM_N; j++) {
+            float sum = 0;
+            for (int p = 0; p < GEMM_K; p++) {
+              sum += a[i * GEMM_K + p] * b[p * GEMM_N + j];
+            }
+            c[i * GEMM_N + j] = sum;
+          }
+        }
+      }
+    });
+    System.out.println(String.format("%-24s %16.2f", "Naive", flops / seconds / 1e9));
+    seconds = time(new Runnable() {
+      @Override
+      public void run() {
+        Sgemm.multiply(false, false, GEMM_M, GEMM_N, GEMM_K, a, 0, GEMM_K, b, 0, GEMM_N, c, 0,
+            GEMM_N, false);
+      }
+    });
+    System.out.println(String.format("%-24s %16.2f", "Blocked", flops / seconds / 1e9));
+  }
+
+  /**
+   * Run a task for the warm up rounds, then time it.
+   *
+   * @param task Task to time
+   * @return Mean seconds per timed round
+   */
+  private static double time(Runnable task) {
+    for (int r = 0; r < WARMUP_ROUNDS; r++) {
+      task.run();
+    }
+    final long start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      task.run();
+    }
+    return (System.nanoTime() - start) / 1e9 / ROUNDS;
+  }
+
+  /**
+   * @param random Source of randomness
+   * @param length Number of values
+   * @return Array of normally distributed values
+   */
+  private static float[] randomArray(Random random, int length) {
+    final float[] values = new float[length];
+    for (int i = 0; i < length; i++) {
+      values[i] = (float) random.nextGaussian();
+    }
+    return values;
+  }
+
+}
@@ -1,6 +1,8 @@
 package uk.ac.soton.ecs.dsjrtc;
 
 import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
 import org.openimaj.data.dataset.VFSGroupDataset;
@@ -8,12 +10,17 @@ import org.openimaj.data.dataset.VFSListDataset;
 import org.openimaj.experiment.dataset.split.GroupedRandomSplitter;
 import org.openimaj.image.FImage;
 import org.openimaj.image.ImageUtilities;
+import uk.ac.soton.ecs.dsjrtc.lib.ImageCache;
+import uk.ac.soton.ecs.dsjrtc.lib.Metrics;
 import uk.ac.soton.ecs.dsjrtc.lib.RandomClassifier;
 import uk.ac.soton.ecs.dsjrtc.lib.TestingUtilities;
 import uk.ac.soton.ecs.dsjrtc.run1.TinyImageClassifier;
 import uk.ac.soton.ecs.dsjrtc.run1.TinyImageFeature;
 import uk.ac.soton.ecs.dsjrtc.run2.LinearBOVWClassifier;
+import uk.ac.soton.ecs.dsjrtc.run2.LinearVLADClassifier;
 import uk.ac.soton.ecs.dsjrtc.run2.PatchesFeature;
+import uk.ac.soton.ecs.dsjrtc.run3.CNNEmbeddingClassifier;
+import uk.ac.soton.ecs.dsjrtc.run3.TensorFlowCNNWrapper;
 
 /**
  * Test application for image classification.
@@ -29,6 +36,8 @@ public class ClassifierTest {
    * @param args None (ignored)
    */
   public static void main(String[] args) {
+    Metrics.setEnabled(true);
+
     // ----------------------------------------
     // DATASET LOADING
     // ----------------------------------------
@@ -69,6 +78,11 @@ public class ClassifierTest {
     GroupedDataset<String, ListDataset<FImage>, FImage> training = splitData.getTrainingDataset();
     GroupedDataset<String, ListDataset<FImage>, FImage> labeledTesting = splitData.getTestDataset();
     
+    // Share decoded testing images between classifiers as bytes, lossless for 8-bit greyscale
+    // JPEGs (colour JPEGs have their luminance rounded)
+    final ImageCache testingCache =
+        new ImageCache(ImageCache.DEFAULT_MEMORY_LIMIT, ImageCache.Storage.BYTE, null);
+
     // ----------------------------------------
     // CLASSIFIER TESTING
     // ----------------------------------------
@@ -76,21 +90,49 @@ public class ClassifierTest {
     RandomClassifier rc = new RandomClassifier();
     rc.train(training);
     TestingUtilities.evaluateClassifier(rc, labeledTesting);
-    TestingUtilities.classifyDataset(dsTesting, rc, true, "run0.txt");
+    TestingUtilities.streamClassifications(dsTesting, rc, testingCache, "run0.txt");
 
     System.out.println("\n[Testing TinyImageClassifier]");
     TinyImageFeature tife = new TinyImageFeature(new Dimension(16, 16), true);
     TinyImageClassifier tic = new TinyImageClassifier(20, tife);
     tic.train(training);
     TestingUtilities.evaluateClassifier(tic, labeledTesting);
-    TestingUtilities.classifyDataset(dsTesting, tic, true, "run1.txt");
+    TestingUtilities.streamClassifications(dsTesting, tic, testingCache, "run1.txt");
 
     System.out.println("\n[Testing LinearBOVWClassifier]");
     PatchesFeature patchesFeature = new PatchesFeature();
     LinearBOVWClassifier lbc = new LinearBOVWClassifier(patchesFeature);
     lbc.train(training);
     TestingUtilities.evaluateClassifier(lbc, labeledTesting);
-    TestingUtilities.classifyDataset(dsTesting, lbc, true, "run2.txt");
+    TestingUtilities.streamClassifications(dsTesting, lbc, testingCache, "run2.txt");
+
+    System.out.println("\n[Testing LinearVLADClassifier]");
+    LinearVLADClassifier lvc = new LinearVLADClassifier(patchesFeature);
+    lvc.train(training);
+    TestingUtilities.evaluateClassifier(lvc, labeledTesting);
+
+    System.out.println("\n[Testing TensorFlowCNNWrapper]");
+    TensorFlowCNNWrapper cnn = new TensorFlowCNNWrapper();
+    cnn.train(training);
+    TestingUtilities.evaluateClassifier(cnn, labeledTesting);
+    TestingUtilities.streamClassifications(dsTesting, cnn, testingCache, "run3.txt");
+
+    System.out.println("\n[Testing CNNEmbeddingClassifier]");
+    CNNEmbeddingClassifier cec = new CNNEmbeddingClassifier(cnn.getNetwork());
+    cec.train(training);
+    TestingUtilities.evaluateClassifier(cec, labeledTesting);
+
+    // ----------------------------------------
+    // METRICS
+    // ----------------------------------------
+    System.out.println("\n[Metrics]");
+    System.out.print(Metrics.snapshot());
+    try {
+      Metrics.writeJson(new File("metrics.json"));
+      Metrics.writeCsv(new File("metrics.csv"));
+    } catch (IOException e) {
+      System.err.println(String.format("Failed to write metrics: %s", e));
+    }
   }
 
 
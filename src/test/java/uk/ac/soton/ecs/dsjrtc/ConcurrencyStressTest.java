@@ -0,0 +1,345 @@
+package uk.ac.soton.ecs.dsjrtc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.image.FImage;
+import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.lib.RandomClassifier;
+import uk.ac.soton.ecs.dsjrtc.lib.TrainableClassifier;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageClassifier;
+import uk.ac.soton.ecs.dsjrtc.run2.LinearBOVWClassifier;
+import uk.ac.soton.ecs.dsjrtc.run2.LinearVLADClassifier;
+import uk.ac.soton.ecs.dsjrtc.run2.PatchesFeature;
+import uk.ac.soton.ecs.dsjrtc.run2.VocabularyBuilder;
+import uk.ac.soton.ecs.dsjrtc.run3.CNNEmbeddingClassifier;
+import uk.ac.soton.ecs.dsjrtc.run3.Network;
+import uk.ac.soton.ecs.dsjrtc.run3.TensorFlowCNNWrapper;
+
+/**
+ * Stress test of concurrent classification. Every classifier is trained on synthetic images (a
+ * striped pattern per class with noise, so no dataset is needed) and then classifies the same
+ * images from increasing numbers of threads at once, each thread calling
+ * {@link TrainableClassifier#classify(Object)} directly. Results must match those of a single
+ * threaded pass (or just be a trained class for the random classifier) and throughput must scale
+ * with the thread count. Finally each classifier is trained further while all threads keep
+ * classifying, every result having to be a trained class.<br>
+ *
+ * Exits with a non-zero status on any mismatch, exception or (with at least two processors) if a
+ * classifier that does real work per image does not reach {@value #MIN_SPEEDUP} times the single
+ * thread throughput on all threads.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ConcurrencyStressTest {
+  private static final int CLASSES = 5;
+  private static final int IMAGES_PER_CLASS = 20;
+  private static final int IMAGE_SIZE = 64;
+  /** Passes over the images made by each thread for each thread count */
+  private static final int ROUNDS = 4;
+  private static final int BOVW_CLUSTERS = 50;
+  private static final int VLAD_CLUSTERS = 16;
+  private static final double MIN_SPEEDUP = 1.2;
+
+  /**
+   * Main method for stress test.
+   *
+   * @param args None (ignored)
+   */
+  public static void main(String[] args) {
+    Debugger.setOutputEnabled(false);
+    final Random random = new Random(0);
+    final GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet = makeDataset(random);
+    final List<FImage> images = new ArrayList<>();
+    for (String group : trainingSet.getGroups()) {
+      images.addAll(trainingSet.get(group));
+    }
+    final Set<String> classes = new HashSet<>(trainingSet.getGroups());
+    final int maxThreads = Runtime.getRuntime().availableProcessors();
+    final List<Integer> threadCounts = new ArrayList<>();
+    for (int nThreads = 1; nThreads < maxThreads; nThreads *= 2) {
+      threadCounts.add(nThreads);
+    }
+    threadCounts.add(maxThreads);
+
+    // Training the wrapper further publishes a copy, so the backbone can be shared with it
+    final Network backbone =
+        TensorFlowCNNWrapper.createDefaultNetwork(TensorFlowCNNWrapper.DEFAULT_INPUT_SIZE, CLASSES);
+    backbone.initialise(random);
+    // Sorted as training sorts them, so further training continues with a copy of the network
+    final String[] sortedClasses = classes.toArray(new String[0]);
+    Arrays.sort(sortedClasses);
+    final TensorFlowCNNWrapper cnn = new TensorFlowCNNWrapper(backbone, sortedClasses, 1);
+    cnn.setEpochs(1);
+
+    final List<Case> cases = new ArrayList<>();
+    cases.add(new Case("Random", new RandomClassifier(), false, false));
+    cases.add(new Case("Tiny image", new TinyImageClassifier(), true, true));
+    cases.add(new Case("Linear BOVW", new LinearBOVWClassifier(new PatchesFeature(), BOVW_CLUSTERS,
+        VocabularyBuilder.DEFAULT_MODE, 1, LinearBOVWClassifier.DEFAULT_PYRAMID_LEVELS), true,
+        true));
+    cases.add(new Case("Linear VLAD", new LinearVLADClassifier(new PatchesFeature(), VLAD_CLUSTERS,
+        VocabularyBuilder.DEFAULT_MODE, 1), true, true));
+    cases.add(new Case("CNN", cnn, true, true));
+    cases.add(new Case("CNN embedding", new CNNEmbeddingClassifier(backbone,
+        CNNEmbeddingClassifier.getDefaultEmbeddingLayer(backbone), 1), true, true));
+
+    System.out.println(String.format("%-16s %8s %12s %10s %12s", "Classifier", "Threads",
+        "Images/s", "Speedup", "Mismatches"));
+    int failures = 0;
+    for (Case c : cases) {
+      if (c.classifier != cnn) {
+        c.classifier.train(trainingSet);
+      }
+      final List<Set<String>> reference = new ArrayList<>();
+      for (FImage img : images) {
+        reference.add(c.classifier.classify(img).getPredictedClasses());
+      }
+      // Untimed pass so the single thread baseline is not measured before compilation
+      classifyConcurrently(c, images, reference, classes, 1);
+      double baseline = 0;
+      double speedup = 0;
+      for (int nThreads : threadCounts) {
+        final Run run;
+        try {
+          run = classifyConcurrently(c, images, reference, classes, nThreads);
+        } catch (RuntimeException e) {
+          System.out.println(String.format("%-16s %8d failed: %s", c.name, nThreads, e.getCause()));
+          failures++;
+          continue;
+        }
+        final double throughput = run.classified / run.seconds;
+        if (nThreads == 1) {
+          baseline = throughput;
+        }
+        speedup = throughput / baseline;
+        System.out.println(String.format("%-16s %8d %12.1f %9.2fx %12d", c.name, nThreads,
+            throughput, speedup, run.mismatches));
+        failures += run.mismatches > 0 ? 1 : 0;
+      }
+      if (c.scalable && maxThreads >= 2 && speedup < MIN_SPEEDUP) {
+        System.out.println(String.format("%-16s did not scale: %.2fx on %d threads", c.name,
+            speedup, maxThreads));
+        failures++;
+      }
+      failures += classifyWhileTraining(c, trainingSet, images, classes, maxThreads) ? 0 : 1;
+    }
+    if (failures > 0) {
+      System.out.println(String.format("%d failures", failures));
+      System.exit(1);
+    }
+    System.out.println("All classifiers passed");
+  }
+
+  /**
+   * Classify the images a number of times from many threads at once.
+   *
+   * @param c Classifier to use
+   * @param images Images to classify
+   * @param reference Single threaded result of each image
+   * @param classes Trained classes
+   * @param nThreads Number of threads to classify from
+   * @return Classifications made, time taken and results that did not match the reference
+   */
+  private static Run classifyConcurrently(final Case c, final List<FImage> images,
+      final List<Set<String>> reference, final Set<String> classes, int nThreads) {
+    final ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    final CountDownLatch ready = new CountDownLatch(nThreads);
+    final CountDownLatch go = new CountDownLatch(1);
+    try {
+      final List<Future<Integer>> futures = new ArrayList<>();
+      for (int t = 0; t < nThreads; t++) {
+        // Start each thread at a different image so threads do not move in step
+        final int offset = t * images.size() / nThreads;
+        futures.add(pool.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws InterruptedException {
+            ready.countDown();
+            go.await();
+            int mismatches = 0;
+            for (int n = 0; n < ROUNDS * images.size(); n++) {
+              final int i = (offset + n) % images.size();
+              final Set<String> predicted = c.classifier.classify(images.get(i))
+                  .getPredictedClasses();
+              if (c.deterministic ? !predicted.equals(reference.get(i))
+                  : !isTrainedClass(predicted, classes)) {
+                mismatches++;
+              }
+            }
+            return mismatches;
+          }
+        }));
+      }
+      ready.await();
+      final long start = System.nanoTime();
+      go.countDown();
+      int mismatches = 0;
+      for (Future<Integer> future : futures) {
+        mismatches += future.get();
+      }
+      final double seconds = (System.nanoTime() - start) / 1e9;
+      return new Run((long) nThreads * ROUNDS * images.size(), seconds, mismatches);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while classifying", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Classification failed", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Train a classifier further on the calling thread while many threads keep classifying.
+   *
+   * @param c Classifier to use
+   * @param trainingSet Images to train on
+   * @param images Images to classify
+   * @param classes Trained classes
+   * @param nThreads Number of threads to classify from
+   * @return Whether every classification succeeded with a trained class
+   */
+  private static boolean classifyWhileTraining(final Case c,
+      GroupedDataset<String, ListDataset<FImage>, FImage> trainingSet, final List<FImage> images,
+      final Set<String> classes, int nThreads) {
+    final ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+    final AtomicLong classified = new AtomicLong();
+    final AtomicLong invalid = new AtomicLong();
+    final CountDownLatch stop = new CountDownLatch(1);
+    try {
+      final List<Future<?>> futures = new ArrayList<>();
+      for (int t = 0; t < nThreads; t++) {
+        final int offset = t;
+        futures.add(pool.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            for (int n = offset; stop.getCount() > 0; n++) {
+              final ClassificationResult<String> result =
+                  c.classifier.classify(images.get(n % images.size()));
+              if (!isTrainedClass(result.getPredictedClasses(), classes)) {
+                invalid.incrementAndGet();
+              }
+              classified.incrementAndGet();
+            }
+            return null;
+          }
+        }));
+      }
+      final long start = System.nanoTime();
+      try {
+        c.classifier.train(trainingSet);
+      } finally {
+        stop.countDown();
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      System.out.println(String.format("%-16s trained in %.1fs during %d classifications, %d "
+          + "invalid", c.name, (System.nanoTime() - start) / 1e9, classified.get(),
+          invalid.get()));
+      return invalid.get() == 0;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while classifying", e);
+    } catch (ExecutionException e) {
+      System.out.println(String.format("%-16s failed during training: %s", c.name,
+          e.getCause()));
+      return false;
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * @param predicted Predicted classes of a result
+   * @param classes Trained classes
+   * @return Whether a single trained class was predicted
+   */
+  private static boolean isTrainedClass(Set<String> predicted, Set<String> classes) {
+    return !predicted.isEmpty() && classes.containsAll(predicted);
+  }
+
+  /**
+   * Make a dataset of striped images, the stripes of each class having their own angle and
+   * frequency, with noise so that no two images are the same.
+   *
+   * @param random Source of randomness
+   * @return The dataset
+   */
+  private static GroupedDataset<String, ListDataset<FImage>, FImage> makeDataset(
+      Random random) {
+    final MapBackedDataset<String, ListDataset<FImage>, FImage> dataset =
+        new MapBackedDataset<String, ListDataset<FImage>, FImage>();
+    for (int c = 0; c < CLASSES; c++) {
+      final double angle = Math.PI * c / CLASSES;
+      final double frequency = 0.2 + 0.1 * c;
+      final List<FImage> images = new ArrayList<>();
+      for (int i = 0; i < IMAGES_PER_CLASS; i++) {
+        final FImage img = new FImage(IMAGE_SIZE, IMAGE_SIZE);
+        final double phase = random.nextDouble() * 2 * Math.PI;
+        for (int y = 0; y < IMAGE_SIZE; y++) {
+          for (int x = 0; x < IMAGE_SIZE; x++) {
+            final double t = x * Math.cos(angle) + y * Math.sin(angle);
+            img.pixels[y][x] = (float) (0.5 + 0.4 * Math.sin(frequency * t + phase)
+                + 0.1 * random.nextGaussian());
+          }
+        }
+        images.add(img);
+      }
+      dataset.put("class" + c, new ListBackedDataset<FImage>(images));
+    }
+    return dataset;
+  }
+
+  /**
+   * Classifier under test with how its results are checked.
+   */
+  private static class Case {
+    final String name;
+    final TrainableClassifier<String, FImage> classifier;
+    /** Whether results must match the single threaded results, otherwise any trained class */
+    final boolean deterministic;
+    /** Whether classification does enough work per image to speed up with more threads */
+    final boolean scalable;
+
+    Case(String name, TrainableClassifier<String, FImage> classifier, boolean deterministic,
+        boolean scalable) {
+      this.name = name;
+      this.classifier = classifier;
+      this.deterministic = deterministic;
+      this.scalable = scalable;
+    }
+  }
+
+  /**
+   * Outcome of classifying from a number of threads.
+   */
+  private static class Run {
+    final long classified;
+    final double seconds;
+    final int mismatches;
+
+    Run(long classified, double seconds, int mismatches) {
+      this.classified = classified;
+      this.seconds = seconds;
+      this.mismatches = mismatches;
+    }
+  }
+
+}
@@ -0,0 +1,451 @@
+package uk.ac.soton.ecs.dsjrtc;
+
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListBackedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.MapBackedDataset;
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.image.FImage;
+import uk.ac.soton.ecs.dsjrtc.lib.CachedListDataset;
+import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.lib.ImageCache;
+import uk.ac.soton.ecs.dsjrtc.lib.TestingUtilities;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageClassifier;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageFeature;
+import uk.ac.soton.ecs.dsjrtc.run2.LinearBOVWClassifier;
+import uk.ac.soton.ecs.dsjrtc.run2.PatchesFeature;
+import uk.ac.soton.ecs.dsjrtc.run2.VocabularyBuilder;
+
+/**
+ * Hyper-parameter sweep of the run 1 and run 2 classifiers. Every configuration of the grids below
+ * is scored by stratified k-fold cross validation and the configurations are reported in order of
+ * mean accuracy, along with the wall-clock time spent training and testing them.<br>
+ *
+ * Configurations that only differ downstream of feature extraction are run one after another in a
+ * single task sharing a {@link uk.ac.soton.ecs.dsjrtc.lib.FeatureStore}: tiny image
+ * configurations of the same scale share their tiny image vectors, and bag of visual words
+ * configurations of the same patches and vocabulary size share their vocabulary and histograms, so
+ * each C parameter after the first only retrains the linear model. The first configuration of a
+ * task pays for the shared extraction. Tasks (one per feature configuration and fold) run
+ * concurrently across cores, each classifier being trained single threaded where it allows.<br>
+ *
+ * Images are decoded once into a shared {@link ImageCache} up front, as the archive does not
+ * support concurrent reads.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class HyperParameterSweep {
+  private static final int FOLDS = 5;
+  private static final long SEED = 0;
+  private static final int THREADS = Runtime.getRuntime().availableProcessors();
+  /** Large enough that the whole training set stays cached */
+  private static final long CACHE_LIMIT = 1024L * 1024 * 1024;
+
+  // Tiny image grid
+  private static final int[] TINY_SCALES = {4, 8, 16};
+  private static final int[] TINY_NEIGHBOURS = {5, 10, 20, 40};
+  // Bag of visual words grid
+  private static final int[] PATCH_WINDOWS = {4, 8};
+  private static final int[] PATCH_STEPS = {4, 8};
+  private static final int[] VOCAB_CLUSTERS = {250, LinearBOVWClassifier.DEFAULT_K_MEANS_CLUSTERS};
+  private static final double[] C_PARAMS = {0.25, LinearBOVWClassifier.DEFAULT_C_PARAM, 4.0};
+
+  /**
+   * Main method for the sweep.
+   *
+   * @param args Optional directory to keep feature stores in, a temporary directory if not given
+   * @throws IOException If the feature directory cannot be created
+   */
+  public static void main(String[] args) throws IOException {
+    final VFSGroupDataset<FImage> dsTraining = TestingUtilities.loadGroupDataset("training.zip");
+    if (dsTraining == null) {
+      return;
+    }
+    final boolean temporary = args.length == 0;
+    final File featureRoot = temporary
+        ? Files.createTempDirectory("sweep-features").toFile() : new File(args[0]);
+    if (!featureRoot.isDirectory() && !featureRoot.mkdirs()) {
+      throw new IOException("Failed to create feature directory: " + featureRoot);
+    }
+
+    // Only print progress and the results table
+    Debugger.setOutputEnabled(false);
+    final long sweepStart = System.nanoTime();
+    final GroupedDataset<String, ListDataset<FImage>, FImage> dataset = CachedListDataset.wrap(
+        dsTraining, new ImageCache(CACHE_LIMIT, ImageCache.Storage.BYTE, null), "training/");
+    int decoded = 0;
+    for (FImage img : dataset) {
+      decoded += img != null ? 1 : 0;
+    }
+    System.out.println(String.format("Decoded %d images", decoded));
+    final List<Fold> folds = makeFolds(dataset, FOLDS, new Random(SEED));
+
+    // Group configurations by the features they share, one task per group and fold
+    final Map<String, Configuration> configurations = new LinkedHashMap<>();
+    final List<Callable<Void>> tasks = new ArrayList<>();
+    int group = 0;
+    for (int scale : TINY_SCALES) {
+      final List<Configuration> shared = new ArrayList<>();
+      for (int k : TINY_NEIGHBOURS) {
+        shared.add(addConfiguration(configurations, "TinyImage",
+            String.format("scale=%dx%d k=%d", scale, scale, k)));
+      }
+      for (Fold fold : folds) {
+        tasks.add(new TinyImageTask(scale, fold, shared, new File(featureRoot, "group" + group++)));
+      }
+    }
+    for (int window : PATCH_WINDOWS) {
+      for (int step : PATCH_STEPS) {
+        for (int clusters : VOCAB_CLUSTERS) {
+          final List<Configuration> shared = new ArrayList<>();
+          for (double c : C_PARAMS) {
+            shared.add(addConfiguration(configurations, "LinearBOVW", String.format(
+                "window=%dx%d step=%d clusters=%d C=%.2f", window, window, step, clusters, c)));
+          }
+          for (Fold fold : folds) {
+            tasks.add(new BOVWTask(window, step, clusters, fold, shared,
+                new File(featureRoot, "group" + group++)));
+          }
+        }
+      }
+    }
+
+    System.out.println(String.format("Running %d configurations over %d folds in %d tasks...",
+        configurations.size(), FOLDS, tasks.size()));
+    runAll(tasks);
+    final double sweepSeconds = (System.nanoTime() - sweepStart) / 1e9;
+    if (temporary) {
+      delete(featureRoot);
+    }
+
+    // Rank by mean accuracy
+    final List<Configuration> ranked = new ArrayList<>(configurations.values());
+    Collections.sort(ranked, new Comparator<Configuration>() {
+      @Override
+      public int compare(Configuration a, Configuration b) {
+        return Double.compare(b.getMeanAccuracy(), a.getMeanAccuracy());
+      }
+    });
+    System.out.println(String.format("%-5s %-12s %-42s %10s %8s %10s", "Rank", "Classifier",
+        "Configuration", "Accuracy", "Std", "Cost (s)"));
+    for (int i = 0; i < ranked.size(); i++) {
+      final Configuration configuration = ranked.get(i);
+      System.out.println(String.format("%-5d %-12s %-42s %10.4f %8.4f %10.2f", i + 1,
+          configuration.classifier, configuration.description, configuration.getMeanAccuracy(),
+          configuration.getStdAccuracy(), configuration.getSeconds()));
+    }
+    System.out.println(String.format("Sweep took %.2f s on %d threads", sweepSeconds, THREADS));
+  }
+
+  /**
+   * @param configurations Configurations by name to add to
+   * @param classifier Name of the classifier
+   * @param description Description of the hyper-parameters
+   * @return The added configuration
+   */
+  private static Configuration addConfiguration(Map<String, Configuration> configurations,
+      String classifier, String description) {
+    final Configuration configuration = new Configuration(classifier, description);
+    configurations.put(classifier + " " + description, configuration);
+    return configuration;
+  }
+
+  /**
+   * Run tasks across the sweep threads, waiting for all of them to finish.
+   *
+   * @param tasks Tasks to run
+   */
+  private static void runAll(List<Callable<Void>> tasks) {
+    final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    try {
+      final List<Future<Void>> futures = new ArrayList<>();
+      for (Callable<Void> task : tasks) {
+        futures.add(pool.submit(task));
+      }
+      for (int i = 0; i < futures.size(); i++) {
+        futures.get(i).get();
+        System.out.println(String.format("Finished task %d/%d", i + 1, futures.size()));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while running the sweep", e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("Sweep task failed", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Split a dataset into stratified folds, each class being shuffled and dealt across the folds.
+   *
+   * @param dataset Dataset to split
+   * @param nFolds Number of folds
+   * @param random Source of the shuffles
+   * @return Folds, each testing on one part and training on the rest
+   */
+  private static List<Fold> makeFolds(GroupedDataset<String, ListDataset<FImage>, FImage> dataset,
+      int nFolds, Random random) {
+    final List<Fold> folds = new ArrayList<>();
+    final List<MapBackedDataset<String, ListDataset<FImage>, FImage>> training =
+        new ArrayList<>();
+    final List<MapBackedDataset<String, ListDataset<FImage>, FImage>> testing = new ArrayList<>();
+    for (int f = 0; f < nFolds; f++) {
+      training.add(new MapBackedDataset<String, ListDataset<FImage>, FImage>());
+      testing.add(new MapBackedDataset<String, ListDataset<FImage>, FImage>());
+    }
+    for (Entry<String, ListDataset<FImage>> group : dataset.entrySet()) {
+      final ListDataset<FImage> images = group.getValue();
+      final List<Integer> order = new ArrayList<>();
+      for (int i = 0; i < images.size(); i++) {
+        order.add(i);
+      }
+      Collections.shuffle(order, random);
+      for (int f = 0; f < nFolds; f++) {
+        final List<Integer> train = new ArrayList<>();
+        final List<Integer> test = new ArrayList<>();
+        for (int i = 0; i < order.size(); i++) {
+          (i % nFolds == f ? test : train).add(order.get(i));
+        }
+        training.get(f).put(group.getKey(),
+            new ListBackedDataset<FImage>(new Subset(images, train)));
+        testing.get(f).put(group.getKey(),
+            new ListBackedDataset<FImage>(new Subset(images, test)));
+      }
+    }
+    for (int f = 0; f < nFolds; f++) {
+      folds.add(new Fold(f, training.get(f), testing.get(f)));
+    }
+    return folds;
+  }
+
+  /**
+   * Delete a directory of feature stores.
+   *
+   * @param file File or directory to delete
+   */
+  private static void delete(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    if (!file.delete()) {
+      System.err.println(String.format("Failed to delete: %s", file));
+    }
+  }
+
+  /**
+   * View of part of a list of images, images are read from the source on access.
+   */
+  private static class Subset extends AbstractList<FImage> {
+    private final List<FImage> source;
+    private final List<Integer> indices;
+
+    /**
+     * @param source Images to view
+     * @param indices Indices of the source images in the view
+     */
+    public Subset(List<FImage> source, List<Integer> indices) {
+      this.source = source;
+      this.indices = indices;
+    }
+
+    @Override
+    public FImage get(int index) {
+      return source.get(indices.get(index));
+    }
+
+    @Override
+    public int size() {
+      return indices.size();
+    }
+  }
+
+  /**
+   * Training and testing sets of one fold.
+   */
+  private static class Fold {
+    private final int index;
+    private final GroupedDataset<String, ListDataset<FImage>, FImage> training;
+    private final GroupedDataset<String, ListDataset<FImage>, FImage> testing;
+
+    /**
+     * @param index Index of the fold
+     * @param training Images to train on
+     * @param testing Images to test on
+     */
+    public Fold(int index, GroupedDataset<String, ListDataset<FImage>, FImage> training,
+        GroupedDataset<String, ListDataset<FImage>, FImage> testing) {
+      this.index = index;
+      this.training = training;
+      this.testing = testing;
+    }
+  }
+
+  /**
+   * Accuracy of each fold and time spent for one configuration, recorded from the sweep threads.
+   */
+  private static class Configuration {
+    private final String classifier;
+    private final String description;
+    private final double[] accuracies = new double[FOLDS];
+    private long nanos = 0;
+
+    /**
+     * @param classifier Name of the classifier
+     * @param description Description of the hyper-parameters
+     */
+    public Configuration(String classifier, String description) {
+      this.classifier = classifier;
+      this.description = description;
+    }
+
+    /**
+     * @param fold Fold the configuration was tested on
+     * @param accuracy Accuracy on the fold
+     * @param elapsed Nanoseconds spent training and testing on the fold
+     */
+    public synchronized void record(Fold fold, double accuracy, long elapsed) {
+      accuracies[fold.index] = accuracy;
+      nanos += elapsed;
+    }
+
+    /**
+     * @return Mean accuracy over the folds
+     */
+    public synchronized double getMeanAccuracy() {
+      double total = 0;
+      for (double accuracy : accuracies) {
+        total += accuracy;
+      }
+      return total / accuracies.length;
+    }
+
+    /**
+     * @return Standard deviation of the accuracy over the folds
+     */
+    public synchronized double getStdAccuracy() {
+      final double mean = getMeanAccuracy();
+      double total = 0;
+      for (double accuracy : accuracies) {
+        total += (accuracy - mean) * (accuracy - mean);
+      }
+      return Math.sqrt(total / accuracies.length);
+    }
+
+    /**
+     * @return Seconds spent training and testing over all folds
+     */
+    public synchronized double getSeconds() {
+      return nanos / 1e9;
+    }
+  }
+
+  /**
+   * Tiny image configurations of one scale on one fold, sharing a store of tiny image vectors.
+   */
+  private static class TinyImageTask implements Callable<Void> {
+    private final int scale;
+    private final Fold fold;
+    private final List<Configuration> configurations;
+    private final File featureDirectory;
+
+    /**
+     * @param scale Side of the tiny images
+     * @param fold Fold to train and test on
+     * @param configurations Configuration of each of {@link HyperParameterSweep#TINY_NEIGHBOURS}
+     * @param featureDirectory Directory of feature stores for this task
+     */
+    public TinyImageTask(int scale, Fold fold, List<Configuration> configurations,
+        File featureDirectory) {
+      this.scale = scale;
+      this.fold = fold;
+      this.configurations = configurations;
+      this.featureDirectory = featureDirectory;
+    }
+
+    @Override
+    public Void call() {
+      final TinyImageFeature fe = new TinyImageFeature(new Dimension(scale, scale), true);
+      for (int i = 0; i < TINY_NEIGHBOURS.length; i++) {
+        final long start = System.nanoTime();
+        final TinyImageClassifier classifier = new TinyImageClassifier(TINY_NEIGHBOURS[i], fe);
+        classifier.setFeatureDirectory(featureDirectory);
+        classifier.train(fold.training);
+        final double accuracy = TestingUtilities.getAccuracy(classifier, fold.testing);
+        configurations.get(i).record(fold, accuracy, System.nanoTime() - start);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Bag of visual words configurations of one patches feature and vocabulary size on one fold,
+   * sharing the vocabulary and a store of histograms.
+   */
+  private static class BOVWTask implements Callable<Void> {
+    private final int window;
+    private final int step;
+    private final int clusters;
+    private final Fold fold;
+    private final List<Configuration> configurations;
+    private final File featureDirectory;
+
+    /**
+     * @param window Side of the patches
+     * @param step Step between patches in both directions
+     * @param clusters Number of visual words in the vocabulary
+     * @param fold Fold to train and test on
+     * @param configurations Configuration of each of {@link HyperParameterSweep#C_PARAMS}
+     * @param featureDirectory Directory of feature stores for this task
+     */
+    public BOVWTask(int window, int step, int clusters, Fold fold,
+        List<Configuration> configurations, File featureDirectory) {
+      this.window = window;
+      this.step = step;
+      this.clusters = clusters;
+      this.fold = fold;
+      this.configurations = configurations;
+      this.featureDirectory = featureDirectory;
+    }
+
+    @Override
+    public Void call() {
+      final PatchesFeature fe = new PatchesFeature(new Dimension(window, window), step, step);
+      final LinearBOVWClassifier classifier = new LinearBOVWClassifier(fe, clusters,
+          VocabularyBuilder.DEFAULT_MODE, 1, LinearBOVWClassifier.DEFAULT_PYRAMID_LEVELS);
+      classifier.setFeatureDirectory(featureDirectory);
+      for (int i = 0; i < C_PARAMS.length; i++) {
+        final long start = System.nanoTime();
+        // The vocabulary is only made by the first training, later trainings read histograms
+        classifier.setC(C_PARAMS[i]);
+        classifier.train(fold.training);
+        final double accuracy = TestingUtilities.getAccuracy(classifier, fold.testing);
+        configurations.get(i).record(fold, accuracy, System.nanoTime() - start);
+      }
+      return null;
+    }
+  }
+
+}
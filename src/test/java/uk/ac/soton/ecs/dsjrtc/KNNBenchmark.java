@@ -0,0 +1,167 @@
+package uk.ac.soton.ecs.dsjrtc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.feature.FloatFV;
+import org.openimaj.feature.FloatFVComparison;
+import org.openimaj.feature.IdentityFeatureExtractor;
+import org.openimaj.ml.annotation.AnnotatedObject;
+import org.openimaj.ml.annotation.ScoredAnnotation;
+import org.openimaj.ml.annotation.basic.KNNAnnotator;
+import uk.ac.soton.ecs.dsjrtc.lib.ParallelClassification;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageIndex;
+
+/**
+ * Throughput benchmark of k-nearest neighbour classification of tiny image vectors, comparing
+ * OpenIMAJ's KNNAnnotator with the {@link TinyImageIndex} on one thread and on all threads, for
+ * training sets of increasing size. Uses random vectors of the same shape as the run 1 tiny images
+ * with clustered classes, so needs no dataset. The vote of every index classification is checked
+ * against the KNNAnnotator vote for the same query.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class KNNBenchmark {
+  private static final int DIMS = 16 * 16;
+  private static final int CLASSES = 15;
+  private static final int K = 20;
+  private static final int[] TRAINING_SIZES = {1000, 10000, 100000};
+  private static final int QUERIES = 64;
+  private static final int WARMUP_ROUNDS = 2;
+  private static final int ROUNDS = 3;
+
+  /**
+   * Main method for benchmark.
+   *
+   * @param args None (ignored)
+   */
+  public static void main(String[] args) {
+    final Random random = new Random(0);
+    final float[][] centres = new float[CLASSES][];
+    for (int c = 0; c < CLASSES; c++) {
+      centres[c] = randomVector(random, null, 0);
+    }
+    final float[] queries = new float[QUERIES * DIMS];
+    for (int q = 0; q < QUERIES; q++) {
+      System.arraycopy(randomVector(random, centres[q % CLASSES], 2), 0, queries, q * DIMS, DIMS);
+    }
+
+    System.out.println(String.format("%-10s %-24s %12s %12s", "Training", "Classifier",
+        "Queries/s", "Agreement"));
+    for (int size : TRAINING_SIZES) {
+      final KNNAnnotator<FloatFV, String, FloatFV> knn = new KNNAnnotator<>(
+          new IdentityFeatureExtractor<FloatFV>(), FloatFVComparison.EUCLIDEAN, K);
+      final TinyImageIndex index = new TinyImageIndex(DIMS);
+      for (int i = 0; i < size; i++) {
+        final float[] vector = randomVector(random, centres[i % CLASSES], 2);
+        knn.train(AnnotatedObject.create(new FloatFV(vector), "c" + (i % CLASSES)));
+        index.add(vector, "c" + (i % CLASSES));
+      }
+
+      final List<Map<String, Double>> reference = new ArrayList<>();
+      double seconds = time(new Runnable() {
+        @Override
+        public void run() {
+          reference.clear();
+          for (int q = 0; q < QUERIES; q++) {
+            final float[] query = new float[DIMS];
+            System.arraycopy(queries, q * DIMS, query, 0, DIMS);
+            final Map<String, Double> votes = new HashMap<>();
+            for (ScoredAnnotation<String> vote : knn.annotate(new FloatFV(query))) {
+              votes.put(vote.annotation, (double) vote.confidence);
+            }
+            reference.add(votes);
+          }
+        }
+      });
+      report(size, "KNNAnnotator", seconds, reference, reference);
+
+      final List<ClassificationResult<String>> results = new ArrayList<>();
+      for (final int nThreads : new int[] {1, ParallelClassification.DEFAULT_THREADS}) {
+        seconds = time(new Runnable() {
+          @Override
+          public void run() {
+            results.clear();
+            results.addAll(index.classify(queries, QUERIES, K, nThreads));
+          }
+        });
+        report(size, String.format("Index (%d threads)", nThreads), seconds, toVotes(results),
+            reference);
+      }
+    }
+  }
+
+  /**
+   * Run a task for the warm up rounds, then time it.
+   *
+   * @param task Task to time
+   * @return Mean seconds per timed round
+   */
+  private static double time(Runnable task) {
+    for (int r = 0; r < WARMUP_ROUNDS; r++) {
+      task.run();
+    }
+    final long start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      task.run();
+    }
+    return (System.nanoTime() - start) / 1e9 / ROUNDS;
+  }
+
+  /**
+   * @param results Classification results
+   * @return Confidence of each class of each result
+   */
+  private static List<Map<String, Double>> toVotes(List<ClassificationResult<String>> results) {
+    final List<Map<String, Double>> votes = new ArrayList<>();
+    for (ClassificationResult<String> result : results) {
+      final Map<String, Double> resultVotes = new HashMap<>();
+      for (String clazz : result.getPredictedClasses()) {
+        resultVotes.put(clazz, (double) (float) result.getConfidence(clazz));
+      }
+      votes.add(resultVotes);
+    }
+    return votes;
+  }
+
+  /**
+   * Print a row of the results table.
+   *
+   * @param size Number of training vectors
+   * @param name Name of the classifier
+   * @param seconds Seconds taken to classify all queries
+   * @param votes Votes made for each query
+   * @param reference Votes of the KNNAnnotator for each query
+   */
+  private static void report(int size, String name, double seconds,
+      List<Map<String, Double>> votes, List<Map<String, Double>> reference) {
+    int agree = 0;
+    for (int q = 0; q < votes.size(); q++) {
+      if (votes.get(q).equals(reference.get(q))) {
+        agree++;
+      }
+    }
+    System.out.println(String.format("%-10d %-24s %12.1f %11.2f%%", size, name,
+        QUERIES / seconds, 100.0 * agree / votes.size()));
+  }
+
+  /**
+   * @param random Source of randomness
+   * @param centre Centre to offset from, the origin if null
+   * @param spread Standard deviation of the offset, uniform in [0, 1) if zero
+   * @return A random vector
+   */
+  private static float[] randomVector(Random random, float[] centre, float spread) {
+    final float[] vector = new float[DIMS];
+    for (int d = 0; d < DIMS; d++) {
+      vector[d] = spread == 0 ? random.nextFloat()
+          : centre[d] + spread * (float) random.nextGaussian() / (float) Math.sqrt(DIMS);
+    }
+    return vector;
+  }
+
+}
@@ -0,0 +1,181 @@
+package uk.ac.soton.ecs.dsjrtc;
+
+import java.awt.Dimension;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.resize.ResizeProcessor;
+import uk.ac.soton.ecs.dsjrtc.lib.FeatureUtilities;
+import uk.ac.soton.ecs.dsjrtc.run1.TinyImageFeature;
+
+/**
+ * Throughput benchmark of tiny image generation, comparing the original pipeline (crop copy,
+ * resize processor, then normalisation passes) with the fused area averaging of
+ * {@link TinyImageFeature}. Uses smooth random images of a typical scene size, so needs no
+ * dataset.<br>
+ *
+ * The fused kernel is checked against a plain block mean on a crop that divides exactly into tiny
+ * pixels, and the mean difference to the original pipeline (which uses a filtered resample rather
+ * than an area average) is reported. Bytes allocated per image are reported where the JVM supports
+ * per-thread allocation counters.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class TinyImageBenchmark {
+  private static final Dimension[] SCALES = {new Dimension(4, 4), new Dimension(16, 16)};
+  private static final int IMAGES = 200;
+  private static final int WIDTH = 300;
+  private static final int HEIGHT = 250;
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int ROUNDS = 10;
+
+  /**
+   * Main method for benchmark.
+   *
+   * @param args None (ignored)
+   */
+  public static void main(String[] args) {
+    final Random random = new Random(0);
+    final FImage[] images = new FImage[IMAGES];
+    for (int i = 0; i < IMAGES; i++) {
+      // Smooth random waves with some pixel noise, loosely like a scene
+      images[i] = new FImage(WIDTH, HEIGHT);
+      final double fx = random.nextDouble() * 0.05;
+      final double fy = random.nextDouble() * 0.05;
+      final double phase = random.nextDouble() * Math.PI;
+      for (int y = 0; y < HEIGHT; y++) {
+        for (int x = 0; x < WIDTH; x++) {
+          images[i].pixels[y][x] = (float) (0.4 + 0.3 * Math.sin(fx * x + phase)
+              * Math.cos(fy * y) + 0.2 * random.nextFloat());
+        }
+      }
+    }
+
+    System.out.println(String.format("%-8s %-10s %12s %14s %14s", "Scale", "Pipeline",
+        "Images/s", "Bytes/image", "Mean diff"));
+    for (final Dimension scale : SCALES) {
+      final int length = scale.width * scale.height;
+      final float[][] reference = new float[IMAGES][];
+      final float[] fused = new float[IMAGES * length];
+      double[] timing = time(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < IMAGES; i++) {
+            reference[i] = makeResizedTinyImage(images[i], scale);
+          }
+        }
+      });
+      report(scale, "Original", timing, 0);
+      timing = time(new Runnable() {
+        @Override
+        public void run() {
+          for (int i = 0; i < IMAGES; i++) {
+            TinyImageFeature.makeTinyImage(images[i], scale, true, fused, i * length);
+          }
+        }
+      });
+      double diff = 0;
+      for (int i = 0; i < IMAGES; i++) {
+        for (int j = 0; j < length; j++) {
+          diff += Math.abs(reference[i][j] - fused[i * length + j]);
+        }
+      }
+      report(scale, "Fused", timing, diff / (IMAGES * length));
+      System.out.println(String.format("%-8s Fused error against block mean: %.2e",
+          scale.width + "x" + scale.height, blockMeanError(images[0], scale)));
+    }
+  }
+
+  /**
+   * Create a tiny image with the original pipeline.
+   *
+   * @param img Image to create the tiny image vector from
+   * @param scale Size to resize the image to
+   * @return The packed, normalised tiny image vector
+   */
+  private static float[] makeResizedTinyImage(FImage img, Dimension scale) {
+    final int dim = Math.min(img.width, img.height);
+    img = img.extractCenter(dim, dim);
+    img.processInplace(new ResizeProcessor(scale.width, scale.height));
+    FeatureUtilities.inplaceNormalise(img);
+    return img.getFloatPixelVector();
+  }
+
+  /**
+   * Compare the unnormalised fused kernel with a plain block mean, over a crop of the image whose
+   * size is an exact multiple of the scale.
+   *
+   * @param img Image to crop
+   * @param scale Size of tiny image
+   * @return Largest absolute difference between the two
+   */
+  private static double blockMeanError(FImage img, Dimension scale) {
+    final int block = Math.min(img.width / scale.width, img.height / scale.height);
+    final FImage crop = img.extractCenter(block * scale.width, block * scale.height);
+    final FImage square = crop.extractROI(0, 0, Math.min(crop.width, crop.height),
+        Math.min(crop.width, crop.height));
+    final int cell = square.width / scale.width;
+    final float[] fused = TinyImageFeature.makeTinyImage(square, scale, false);
+    double error = 0;
+    for (int ty = 0; ty < scale.height; ty++) {
+      for (int tx = 0; tx < scale.width; tx++) {
+        double sum = 0;
+        for (int y = 0; y < cell; y++) {
+          for (int x = 0; x < cell; x++) {
+            sum += square.pixels[ty * cell + y][tx * cell + x];
+          }
+        }
+        error = Math.max(error, Math.abs(sum / (cell * cell) - fused[ty * scale.width + tx]));
+      }
+    }
+    return error;
+  }
+
+  /**
+   * Run a task for the warm up rounds, then time it.
+   *
+   * @param task Task to time
+   * @return Mean seconds per timed round and bytes allocated per round (negative if unknown)
+   */
+  private static double[] time(Runnable task) {
+    for (int r = 0; r < WARMUP_ROUNDS; r++) {
+      task.run();
+    }
+    final long startBytes = allocatedBytes();
+    final long start = System.nanoTime();
+    for (int r = 0; r < ROUNDS; r++) {
+      task.run();
+    }
+    final double seconds = (System.nanoTime() - start) / 1e9 / ROUNDS;
+    final long endBytes = allocatedBytes();
+    final double bytes = startBytes < 0 ? -1 : (double) (endBytes - startBytes) / ROUNDS;
+    return new double[] {seconds, bytes};
+  }
+
+  /**
+   * @return Bytes allocated by the current thread so far, negative if not supported
+   */
+  private static long allocatedBytes() {
+    final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) bean)
+          .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return -1;
+  }
+
+  /**
+   * Print a row of the results table.
+   *
+   * @param scale Scale of the tiny images
+   * @param name Name of the pipeline
+   * @param timing Seconds and bytes allocated to make all images
+   * @param diff Mean absolute difference to the original pipeline
+   */
+  private static void report(Dimension scale, String name, double[] timing, double diff) {
+    System.out.println(String.format("%-8s %-10s %12.0f %14.0f %14.2e",
+        scale.width + "x" + scale.height, name, IMAGES / timing[0], timing[1] / IMAGES, diff));
+  }
+
+}
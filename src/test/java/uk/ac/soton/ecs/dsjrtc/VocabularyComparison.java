@@ -0,0 +1,111 @@
+package uk.ac.soton.ecs.dsjrtc;
+
+import org.openimaj.data.dataset.GroupedDataset;
+import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.VFSGroupDataset;
+import org.openimaj.experiment.dataset.sampling.StratifiedGroupedUniformRandomisedSampler;
+import org.openimaj.experiment.dataset.split.GroupedRandomSplitter;
+import org.openimaj.image.FImage;
+import org.openimaj.ml.clustering.FloatCentroidsResult;
+import uk.ac.soton.ecs.dsjrtc.lib.Debugger;
+import uk.ac.soton.ecs.dsjrtc.lib.FloatKMeansUtilities;
+import uk.ac.soton.ecs.dsjrtc.lib.TestingUtilities;
+import uk.ac.soton.ecs.dsjrtc.run2.DensePatches;
+import uk.ac.soton.ecs.dsjrtc.run2.LinearBOVWClassifier;
+import uk.ac.soton.ecs.dsjrtc.run2.PatchesFeature;
+import uk.ac.soton.ecs.dsjrtc.run2.VocabularyBuilder;
+
+/**
+ * Comparison of the vocabulary clustering modes. For each mode a single vocabulary is built, and
+ * the time taken to build it, the quantisation error of held out patches against it and the
+ * accuracy of a classifier trained with it are reported.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class VocabularyComparison {
+  private static final int CLUSTERS = 500;
+  private static final float VOCAB_IMAGE_PERCENT = 0.2f;
+
+  /**
+   * Main method for comparison.
+   *
+   * @param args None (ignored)
+   */
+  public static void main(String[] args) {
+    final VFSGroupDataset<FImage> dsTraining = TestingUtilities.loadGroupDataset("training.zip");
+    if (dsTraining == null) {
+      return;
+    }
+    final GroupedRandomSplitter<String, FImage> splitData =
+        new GroupedRandomSplitter<>(dsTraining, 75, 0, 25);
+    final GroupedDataset<String, ListDataset<FImage>, FImage> training =
+        splitData.getTrainingDataset();
+    final GroupedDataset<String, ListDataset<FImage>, FImage> testing = splitData.getTestDataset();
+    final GroupedDataset<String, ListDataset<FImage>, FImage> vocabImages =
+        new StratifiedGroupedUniformRandomisedSampler<String, FImage>(VOCAB_IMAGE_PERCENT)
+            .sample(training);
+    final PatchesFeature fe = new PatchesFeature();
+    final int nThreads = VocabularyBuilder.DEFAULT_THREADS;
+
+    // Only print the results table
+    Debugger.setOutputEnabled(false);
+    System.out.println(String.format("%-12s %12s %14s %12s", "Mode", "Vocab (s)",
+        "Quant. error", "Accuracy"));
+    for (VocabularyBuilder.Mode mode : VocabularyBuilder.Mode.values()) {
+      final VocabularyBuilder builder =
+          new VocabularyBuilder(fe, CLUSTERS, 1.0f, nThreads, mode);
+      final long start = System.nanoTime();
+      final FloatCentroidsResult vocab = builder.build(vocabImages);
+      final double seconds = (System.nanoTime() - start) / 1e9;
+      final double error = quantisationError(vocab, fe, testing);
+
+      // Classify with the same vocabulary, rather than letting the classifier cluster its own
+      final LinearBOVWClassifier classifier = new LinearBOVWClassifier(fe, mode, nThreads);
+      classifier.setVocabulary(vocab);
+      classifier.train(training);
+      final double accuracy = TestingUtilities.getAccuracy(classifier, testing);
+      System.out.println(String.format("%-12s %12.2f %14.5f %12.4f", mode, seconds, error,
+          accuracy));
+    }
+  }
+
+  /**
+   * Calculate the mean squared distance of patches to their nearest centroid.
+   *
+   * @param vocab Vocabulary to measure
+   * @param fe Patches feature extractor used to make the vocabulary
+   * @param dataset Images to take patches from
+   * @return The mean squared distance
+   */
+  private static double quantisationError(FloatCentroidsResult vocab, PatchesFeature fe,
+      GroupedDataset<String, ListDataset<FImage>, FImage> dataset) {
+    final int k = vocab.numClusters();
+    final int dims = vocab.numDimensions();
+    final float[] centroids = new float[k * dims];
+    for (int c = 0; c < k; c++) {
+      System.arraycopy(vocab.centroids[c], 0, centroids, c * dims, dims);
+    }
+    final float[] norms = FloatKMeansUtilities.squaredNorms(centroids, k, dims);
+    double total = 0;
+    long count = 0;
+    DensePatches patches = null;
+    for (FImage img : dataset) {
+      patches = fe.extractDense(img, patches);
+      final float[] data = patches.getData();
+      for (int i = 0; i < patches.getCount(); i++) {
+        final int offset = patches.getOffset(i);
+        final int c = FloatKMeansUtilities.nearest(data, offset, centroids, norms, k, dims);
+        double distance = 0;
+        for (int d = 0; d < dims; d++) {
+          final double diff = data[offset + d] - centroids[c * dims + d];
+          distance += diff * diff;
+        }
+        total += distance;
+        count++;
+      }
+    }
+    return total / count;
+  }
+
+}
@@ -0,0 +1,284 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.commons.vfs2.FileObject;
+import org.openimaj.data.dataset.VFSListDataset;
+import org.openimaj.experiment.evaluation.classification.ClassificationResult;
+import org.openimaj.experiment.evaluation.classification.Classifier;
+import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
+import org.openimaj.io.InputStreamObjectReader;
+
+/**
+ * Streaming runner that classifies an unlabeled dataset through a pipeline of two bounded thread
+ * pools: a decode stage that reads and decodes images and a classify stage that runs the
+ * classifier. Results are handed on in order as soon as all earlier results are complete.<br>
+ *
+ * Reading the raw bytes of each file is serialised (archives do not support concurrent reads) but
+ * decoding is done in parallel. At most a fixed number of images are in flight at once, between
+ * being read and their result being handled, so memory use does not grow with the dataset size.
+ * An {@link ImageCache} can be given so that images classified by an earlier run are not decoded
+ * again.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class ClassificationPipeline {
+  public static final int DEFAULT_DECODE_THREADS =
+      Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+  public static final int DEFAULT_CLASSIFY_THREADS = Runtime.getRuntime().availableProcessors();
+  public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+  private final Classifier<String, FImage> classifier;
+  private final InputStreamObjectReader<FImage> reader;
+  private final int decodeThreads;
+  private final int classifyThreads;
+  private final int maxInFlight;
+  private final ImageCache cache;
+
+  /**
+   * Handler of pipeline results, called in order from the thread running the pipeline.
+   */
+  public interface ResultHandler {
+
+    /**
+     * @param file File that was classified
+     * @param result Classification of the file
+     * @throws IOException If the result cannot be handled, stopping the pipeline
+     */
+    void handle(FileObject file, ClassificationResult<String> result) throws IOException;
+
+  }
+
+  /**
+   * Instantiate a pipeline for the given classifier using all class defaults.
+   *
+   * @param classifier Classifier to use, must be safe to call concurrently
+   */
+  public ClassificationPipeline(Classifier<String, FImage> classifier) {
+    this(classifier, null);
+  }
+
+  /**
+   * Instantiate a pipeline for the given classifier using a cache of decoded images and all other
+   * class defaults.
+   *
+   * @param classifier Classifier to use, must be safe to call concurrently
+   * @param cache Cache of decoded images, no caching if null
+   */
+  public ClassificationPipeline(Classifier<String, FImage> classifier, ImageCache cache) {
+    this(classifier, ImageUtilities.FIMAGE_READER, DEFAULT_DECODE_THREADS,
+        DEFAULT_CLASSIFY_THREADS, DEFAULT_MAX_IN_FLIGHT, cache);
+  }
+
+  /**
+   * Instantiate a pipeline for the given classifier.
+   *
+   * @param classifier Classifier to use, must be safe to call concurrently
+   * @param reader Reader to decode images with
+   * @param decodeThreads Number of threads to decode images with
+   * @param classifyThreads Number of threads to classify images with
+   * @param maxInFlight Maximum number of images held in the pipeline at once
+   * @param cache Cache of decoded images, no caching if null
+   */
+  public ClassificationPipeline(Classifier<String, FImage> classifier,
+      InputStreamObjectReader<FImage> reader, int decodeThreads, int classifyThreads,
+      int maxInFlight, ImageCache cache) {
+    if (classifier == null || reader == null) {
+      throw new IllegalArgumentException("Classifier and reader cannot be null");
+    }
+    if (decodeThreads <= 0 || classifyThreads <= 0 || maxInFlight <= 0) {
+      throw new IllegalArgumentException("Thread counts and images in flight must be positive");
+    }
+    this.classifier = classifier;
+    this.reader = reader;
+    this.decodeThreads = decodeThreads;
+    this.classifyThreads = classifyThreads;
+    this.maxInFlight = maxInFlight;
+    this.cache = cache;
+  }
+
+  /**
+   * Classify every image of a dataset, handling the results in order.
+   *
+   * @param dataset Dataset to classify
+   * @param sort Whether to order by file number rather than dataset order
+   * @param handler Handler to pass each result to
+   * @return Number of images classified
+   * @throws IOException If an image cannot be read or classified, or a result cannot be handled
+   */
+  public int run(VFSListDataset<FImage> dataset, boolean sort, ResultHandler handler)
+      throws IOException {
+    final FileObject[] files = getOrderedFiles(dataset, sort);
+    final Semaphore inFlight = new Semaphore(maxInFlight);
+    final BlockingQueue<Completed> completed = new LinkedBlockingQueue<>();
+    final ExecutorService decodePool = Executors.newFixedThreadPool(decodeThreads);
+    final ExecutorService classifyPool = Executors.newFixedThreadPool(classifyThreads);
+    final Object readLock = new Object();
+
+    // Feed the decode stage from a separate thread, blocking while the pipeline is full
+    final Thread submitter = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (int i = 0; i < files.length; i++) {
+            inFlight.acquire();
+            decodePool.execute(new DecodeTask(i, files[i], readLock, classifyPool, completed));
+          }
+        } catch (InterruptedException e) {
+          // Pipeline stopped early
+        }
+      }
+    }, "pipeline-submitter");
+    submitter.setDaemon(true);
+    submitter.start();
+
+    // Hand on results in order, holding back any that complete early
+    final Map<Integer, Completed> pending = new HashMap<>();
+    int next = 0;
+    try {
+      while (next < files.length) {
+        final Completed result = completed.take();
+        if (result.error != null) {
+          throw new IOException(
+              String.format("Failed to classify '%s'", files[result.sequence]), result.error);
+        }
+        pending.put(result.sequence, result);
+        Completed ready;
+        while ((ready = pending.remove(next)) != null) {
+          handler.handle(files[next], ready.result);
+          inFlight.release();
+          next++;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while classifying dataset", e);
+    } finally {
+      submitter.interrupt();
+      decodePool.shutdownNow();
+      classifyPool.shutdownNow();
+    }
+    return next;
+  }
+
+  /**
+   * @param dataset Dataset to get the files of
+   * @param sort Whether to sort the files by file number
+   * @return Files in the order they should be classified
+   */
+  private static FileObject[] getOrderedFiles(VFSListDataset<FImage> dataset, boolean sort) {
+    final FileObject[] files = dataset.getFileObjects();
+    if (sort) {
+      final List<Pair<FileObject, Void>> pairs = new ArrayList<>(files.length);
+      for (FileObject file : files) {
+        pairs.add(new ImmutablePair<FileObject, Void>(file, null));
+      }
+      TestingUtilities.inplaceSortByFileNum(pairs);
+      for (int i = 0; i < files.length; i++) {
+        files[i] = pairs.get(i).getKey();
+      }
+    }
+    return files;
+  }
+
+  /**
+   * @param file File to read
+   * @return Full content of the file
+   * @throws IOException If the file cannot be read
+   */
+  private static byte[] readBytes(FileObject file) throws IOException {
+    try (InputStream in = file.getContent().getInputStream()) {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[8192];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * Result of the pipeline for a single image, or the error that stopped it.
+   */
+  private static class Completed {
+    final int sequence;
+    final ClassificationResult<String> result;
+    final Throwable error;
+
+    Completed(int sequence, ClassificationResult<String> result, Throwable error) {
+      this.sequence = sequence;
+      this.result = result;
+      this.error = error;
+    }
+  }
+
+  /**
+   * Task that reads and decodes an image, then passes it to the classify stage.
+   */
+  private class DecodeTask implements Runnable {
+    private final int sequence;
+    private final FileObject file;
+    private final Object readLock;
+    private final ExecutorService classifyPool;
+    private final BlockingQueue<Completed> completed;
+
+    DecodeTask(int sequence, FileObject file, Object readLock, ExecutorService classifyPool,
+        BlockingQueue<Completed> completed) {
+      this.sequence = sequence;
+      this.file = file;
+      this.readLock = readLock;
+      this.classifyPool = classifyPool;
+      this.completed = completed;
+    }
+
+    @Override
+    public void run() {
+      try {
+        final String key = CachedListDataset.getKey(file);
+        FImage cached = cache != null ? cache.get(key) : null;
+        if (cached == null) {
+          final long start = Metrics.start();
+          final byte[] bytes;
+          synchronized (readLock) {
+            bytes = readBytes(file);
+          }
+          cached = reader.read(new ByteArrayInputStream(bytes));
+          Metrics.stop(Metrics.Stage.DECODE, start);
+          if (cache != null) {
+            cache.put(key, cached);
+          }
+        }
+        final FImage img = cached;
+        classifyPool.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              completed.add(new Completed(sequence, classifier.classify(img), null));
+            } catch (Throwable e) {
+              completed.add(new Completed(sequence, null, e));
+            }
+          }
+        });
+      } catch (Throwable e) {
+        completed.add(new Completed(sequence, null, e));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,226 @@
+package uk.ac.soton.ecs.dsjrtc.lib;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.Random;
+import org.junit.Test;
+import org.openimaj.image.FImage;
+import org.openimaj.image.processing.algorithm.MeanCenter;
+
+/**
+ * Tests of the primitive array normalisation kernels of {@link FeatureUtilities} against the
+ * original image based implementations (or a direct double precision calculation where there is
+ * none), over whole arrays and strided regions of random sizes. Values outside a region must be
+ * left untouched.
+ *
+ * @author David Jones (dsj1n15@soton.ac.uk)
+ * @author Richard Crosland (rtc1g16@soton.ac.uk)
+ */
+public class FeatureUtilitiesTest {
+  private static final int TRIALS = 500;
+  /** Allowed error of kernels that are not expected to match an existing implementation exactly */
+  private static final double TOLERANCE = 1e-5;
+
+  /**
+   * Kernel under test, applied to a strided region of an array.
+   */
+  private interface Kernel {
+    void apply(float[] data, int offset, int width, int height, int stride);
+  }
+
+  @Test
+  public void normaliseMatchesImageNormalise() {
+    checkTrials(true, new Kernel() {
+      @Override
+      public void apply(float[] data, int offset, int width, int height, int stride) {
+        FeatureUtilities.inplaceNormalise(data, offset, width, height, stride);
+      }
+    }, new Kernel() {
+      @Override
+      public void apply(float[] data, int offset, int width, int height, int stride) {
+        final FImage img = toImage(data, offset, width, height, stride);
+        FeatureUtilities.inplaceNormalise(img);
+        fromImage(img, data, offset, stride);
+      }
+    });
+  }
+
+  @Test
+  public void minMaxMatchesImageNormalise() {
+    checkTrials(true, new Kernel() {
+      @Override
+      public void apply(float[] data, int offset, int width, int height, int stride) {
+        FeatureUtilities.inplaceMinMax(data, offset, width, height, stride);
+      }
+    }, new Kernel() {
+      @Override
+      public void apply(float[] data, int offset, int width, int height, int stride) {
+        final FImage img = toImage(data, offset, width, height, stride);
+        img.normalise();
+        fromImage(img, data, offset, stride);
+      }
+    });
+  }
+
+  @Test
+  public void meanCentreMatchesMeanCenter() {
+    checkTrials(true, new Kernel() {
+      @Override
+      public void apply(float[] data, int offset, int width, int height, int stride) {
+        FeatureUtilities.inplaceMeanCentre(data, offset, width, height, stride);
+      }
+    }, new Kernel() {
+      @Override
+      public void apply(float[] data, int offset, int width, int height, int stride) {
+        final FImage img = toImage(data, offset, width, height, stride);
+        img.processInplace(new MeanCenter());
+        fromImage(img, data, offset, stride);
+      }
+    });
+  }
+
+  @Test
+  public void unitL2MatchesDirectCalculation() {
+    checkTrials(false, new Kernel() {
+      @Override
+      public void apply(float[] data, int offset, int width, int height, int stride) {
+        FeatureUtilities.inplaceUnitL2(data, offset, width, height, stride);
+      }
+    }, new Kernel() {
+      @Override
+      public void apply(float[] data, int offset, int width, int height, int stride) {
+        double sumSq = 0;
+        for (int r = 0; r < height; r++) {
+          for (int c = 0; c < width; c++) {
+            sumSq += Math.pow(data[offset + r * stride + c], 2);
+          }
+        }
+        for (int r = 0; r < height && sumSq > 0; r++) {
+          for (int c = 0; c < width; c++) {
+            data[offset + r * stride + c] /= Math.sqrt(sumSq);
+          }
+        }
+      }
+    });
+  }
+
+  @Test
+  public void standardiseMatchesDirectCalculation() {
+    checkTrials(false, new Kernel() {
+      @Override
+      public void apply(float[] data, int offset, int width, int height, int stride) {
+        FeatureUtilities.inplaceStandardise(data, offset, width, height, stride);
+      }
+    }, new Kernel() {
+      @Override
+      public void apply(float[] data, int offset, int width, int height, int stride) {
+        final int n = width * height;
+        double sum = 0;
+        for (int r = 0; r < height; r++) {
+          for (int c = 0; c < width; c++) {
+            sum += data[offset + r * stride + c];
+          }
+        }
+        final double mean = sum / n;
+        double sumSq = 0;
+        for (int r = 0; r < height; r++) {
+          for (int c = 0; c < width; c++) {
+            sumSq += Math.pow(data[offset + r * stride + c] - mean, 2);
+          }
+        }
+        final double std = Math.sqrt(sumSq / n);
+        for (int r = 0; r < height; r++) {
+          for (int c = 0; c < width; c++) {
+            final int i = offset + r * stride + c;
+            data[i] = (float) ((data[i] - mean) / (std > 0 ? std : 1));
+          }
+        }
+      }
+    });
+  }
+
+  @Test
+  public void wholeArrayOverloadsAgree() {
+    final Random random = new Random(0);
+    final float[] data = new float[64];
+    for (int i = 0; i < data.length; i++) {
+      data[i] = random.nextFloat();
+    }
+    final float[] whole = FeatureUtilities.inplaceNormalise(data.clone());
+    final float[] region = FeatureUtilities.inplaceNormalise(data.clone(), 0, 8, 8, 8);
+    final float[] image = FeatureUtilities.inplaceNormalise(new float[][] {data.clone()})[0];
+    assertArrayEquals(whole, region, 0);
+    assertArrayEquals(whole, image, 0);
+  }
+
+  /**
+   * Apply a kernel and its reference to strided regions of random sizes of random arrays, and
+   * compare the results.
+   *
+   * @param exact Whether the results must match exactly
+   * @param kernel Kernel under test
+   * @param reference Reference implementation
+   */
+  private static void checkTrials(boolean exact, Kernel kernel, Kernel reference) {
+    final Random random = new Random(0);
+    for (int trial = 0; trial < TRIALS; trial++) {
+      final int width = 1 + random.nextInt(20);
+      final int height = 1 + random.nextInt(20);
+      final int stride = width + random.nextInt(5);
+      final int offset = random.nextInt(10);
+      final float[] data = new float[offset + (height - 1) * stride + width + random.nextInt(10)];
+      // Occasionally use a constant region, which every kernel must handle
+      final boolean constant = random.nextInt(20) == 0;
+      for (int i = 0; i < data.length; i++) {
+        data[i] = constant ? 0.5f : random.nextFloat() * 10 - 3;
+      }
+      final float[] expected = data.clone();
+      reference.apply(expected, offset, width, height, stride);
+      final float[] actual = data.clone();
+      kernel.apply(actual, offset, width, height, stride);
+      for (int i = 0; i < actual.length; i++) {
+        final boolean inRegion = i >= offset && (i - offset) % stride < width
+            && (i - offset) / stride < height;
+        final String message = String.format("%dx%d (stride %d, offset %d) index %d", width,
+            height, stride, offset, i);
+        if (!inRegion || exact) {
+          assertEquals(message, expected[i], actual[i], 0);
+        } else {
+          assertTrue(message, Math.abs(actual[i] - expected[i]) <= TOLERANCE);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param data Array holding the region
+   * @param offset Index of the first value of the region
+   * @param width Number of values in each row of the region
+   * @param height Number of rows in the region
+   * @param stride Distance between the start of each row of the region
+   * @return New image holding a copy of the region
+   */
+  private static FImage toImage(float[] data, int offset, int width, int height, int stride) {
+    final FImage img = new FImage(width, height);
+    for (int r = 0; r < height; r++) {
+      System.arraycopy(data, offset + r * stride, img.pixels[r], 0, width);
+    }
+    return img;
+  }
+
+  /**
+   * Copy an image back over a strided region.
+   *
+   * @param img Image to copy
+   * @param data Array holding the region
+   * @param offset Index of the first value of the region
+   * @param stride Distance between the start of each row of the region
+   */
+  private static void fromImage(FImage img, float[] data, int offset, int stride) {
+    for (int r = 0; r < img.height; r++) {
+      System.arraycopy(img.pixels[r], 0, data, offset + r * stride, img.width);
+    }
+  }
+
+}
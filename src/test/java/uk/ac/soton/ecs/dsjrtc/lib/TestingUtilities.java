@@ -1,8 +1,9 @@
 package uk.ac.soton.ecs.dsjrtc.lib;
 
-import java.io.File;
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -15,6 +16,7 @@ import org.apache.commons.lang3.tuple.Pair;
 import org.apache.commons.vfs2.FileObject;
 import org.openimaj.data.dataset.GroupedDataset;
 import org.openimaj.data.dataset.ListDataset;
+import org.openimaj.data.dataset.VFSGroupDataset;
 import org.openimaj.data.dataset.VFSListDataset;
 import org.openimaj.experiment.evaluation.classification.ClassificationEvaluator;
 import org.openimaj.experiment.evaluation.classification.ClassificationResult;
@@ -23,6 +25,7 @@ import org.openimaj.experiment.evaluation.classification.Classifier;
 import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMAnalyser;
 import org.openimaj.experiment.evaluation.classification.analysers.confusionmatrix.CMResult;
 import org.openimaj.image.FImage;
+import org.openimaj.image.ImageUtilities;
 
 /**
  * General testing utilities.
@@ -55,7 +58,40 @@ public class TestingUtilities {
     return null;
   }
 
-  
+  /**
+   * Load a grouped image dataset from a zip in the project resource folder.
+   * 
+   * @param relativePath Path of the zip from resource folder root
+   * @return The loaded dataset, null if it could not be loaded
+   */
+  public static VFSGroupDataset<FImage> loadGroupDataset(String relativePath) {
+    final String path = getResourcePath(relativePath);
+    if (path == null) {
+      return null;
+    }
+    try {
+      return new VFSGroupDataset<FImage>("zip:" + path, ImageUtilities.FIMAGE_READER);
+    } catch (Exception e) {
+      e.printStackTrace();
+      return null;
+    }
+  }
+
+  /**
+   * Calculate the accuracy of a classifier over a labeled testset without printing a report.
+   * 
+   * @param classifier The classifier to test
+   * @param testset A labeled testset to use for classifier assessment.
+   * @return Fraction of the testset that was classified correctly
+   */
+  public static double getAccuracy(Classifier<String, FImage> classifier,
+      GroupedDataset<String, ListDataset<FImage>, FImage> testset) {
+    CMAnalyser<FImage, String> analyser = new CMAnalyser<>(CMAnalyser.Strategy.SINGLE);
+    ClassificationEvaluator<CMResult<String>, String, FImage> evaluator =
+        new ClassificationEvaluator<>(classifier, testset, analyser);
+    return evaluator.analyse(evaluator.evaluate()).getMatrix().getAccuracy();
+  }
+
   /**
    * Print the detailed report of a classification evaluation.
    * 
@@ -79,34 +115,86 @@ public class TestingUtilities {
 
   /**
    * Run a classifier on an unlabeled dataset. Optionally, can export classifications to file.
+   * Images are decoded and classified in parallel through a {@link ClassificationPipeline}, with
+   * classifications written out as they complete.
    * 
    * @param dataset Dataset to classify
-   * @param classifier Classifier to use on dataset
-   * @param sort Whether to sort in ascending order by file number
+   * @param classifier Classifier to use on dataset, must be safe to call concurrently
+   * @param sort Whether to sort in ascending order by file number, exports are always sorted
    * @param exportPath Path to export classifications to, will not export if null
    * @return Classifications
+   * @throws RuntimeException If an image cannot be classified or the export cannot be written,
+   *         caused by the pipeline's exception
    */
   public static List<Pair<FileObject, ClassificationResult<String>>> classifyDataset(
       VFSListDataset<FImage> dataset, Classifier<String, FImage> classifier, boolean sort,
       String exportPath) {
-
-    // Run dataset through classifier
     final List<Pair<FileObject, ClassificationResult<String>>> results =
         new ArrayList<>(dataset.numInstances());
-    for (int i = 0; i < dataset.numInstances(); i++) {
-      final FileObject file = dataset.getFileObject(i);
-      final ClassificationResult<String> result = classifier.classify(dataset.get(i));
-      results.add(new ImmutablePair<>(file, result));
-    }
-    if (sort) {
-      inplaceSortByFileNum(results);
-    }
-    if (exportPath != null) {
-      TestingUtilities.exportClassifications(exportPath, results);
+    try (BufferedWriter writer =
+        exportPath == null ? null : new BufferedWriter(new FileWriter(exportPath))) {
+      // Run dataset through classifier, exports must be in file number order
+      new ClassificationPipeline(classifier).run(dataset, sort || exportPath != null,
+          new ClassificationPipeline.ResultHandler() {
+            @Override
+            public void handle(FileObject file, ClassificationResult<String> result)
+                throws IOException {
+              results.add(new ImmutablePair<>(file, result));
+              if (writer != null) {
+                writeClassification(writer, file, result);
+              }
+            }
+          });
+    } catch (IOException e) {
+      // Never hand back the results of a partial run
+      throw new RuntimeException("Failed to classify dataset", e);
     }
     return results;
   }
 
+  /**
+   * Run a classifier on an unlabeled dataset, streaming classifications straight to file in
+   * ascending order by file number without holding them in memory. Suitable for datasets of any
+   * size.
+   * 
+   * @param dataset Dataset to classify
+   * @param classifier Classifier to use on dataset, must be safe to call concurrently
+   * @param exportPath Path to export classifications to
+   * @return Whether export was successful
+   */
+  public static boolean streamClassifications(VFSListDataset<FImage> dataset,
+      Classifier<String, FImage> classifier, String exportPath) {
+    return streamClassifications(dataset, classifier, null, exportPath);
+  }
+
+  /**
+   * Run a classifier on an unlabeled dataset, streaming classifications straight to file in
+   * ascending order by file number without holding them in memory. Decoded images are shared
+   * through a cache, so later runs over the same dataset can skip decoding.
+   * 
+   * @param dataset Dataset to classify
+   * @param classifier Classifier to use on dataset, must be safe to call concurrently
+   * @param cache Cache of decoded images, no caching if null
+   * @param exportPath Path to export classifications to
+   * @return Whether export was successful
+   */
+  public static boolean streamClassifications(VFSListDataset<FImage> dataset,
+      Classifier<String, FImage> classifier, ImageCache cache, String exportPath) {
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(exportPath))) {
+      new ClassificationPipeline(classifier, cache).run(dataset, true,
+          new ClassificationPipeline.ResultHandler() {
+            @Override
+            public void handle(FileObject file, ClassificationResult<String> result)
+                throws IOException {
+              writeClassification(writer, file, result);
+            }
+          });
+    } catch (IOException e) {
+      e.printStackTrace();
+      return false;
+    }
+    return true;
+  }
 
   /**
    * Export a list of classifications to file.
@@ -121,29 +209,31 @@ public class TestingUtilities {
     inplaceSortByFileNum(results);
 
     // Export the results to file
-    File file = new File(outputPath);
-    FileWriter writer = null;
-    try {
-      writer = new FileWriter(file);
+    try (BufferedWriter writer = new BufferedWriter(new FileWriter(outputPath))) {
       for (Pair<FileObject, ClassificationResult<String>> result : results) {
-        String clazz = ClassificationResultUtils.getHighestConfidenceClass(result.getValue());
-        writer.write(String.format("%s %s\r\n", getFilename(result.getKey()), clazz));
+        writeClassification(writer, result.getKey(), result.getValue());
       }
     } catch (Exception e) {
       e.printStackTrace();
       return false;
-    } finally {
-      if (writer != null) {
-        try {
-          writer.close();
-        } catch (IOException e) {
-          // ignore
-        }
-      }
     }
     return true;
   }
 
+  /**
+   * Write a single classification as a line of an export file.
+   * 
+   * @param writer Writer to write to
+   * @param file File that was classified
+   * @param result Classification of the file
+   * @throws IOException If the line cannot be written
+   */
+  private static void writeClassification(Writer writer, FileObject file,
+      ClassificationResult<String> result) throws IOException {
+    String clazz = ClassificationResultUtils.getHighestConfidenceClass(result);
+    writer.write(String.format("%s %s\r\n", getFilename(file), clazz));
+  }
+
   /**
    * Sort the given list of pairs where the key is a file object. File objects should be
    * interpretable as some numeric value for sorting. Will be sorted in ascending order based on the